@@ -1,12 +1,174 @@
 package com.ldb;
 
-import com.ldb.db.DBImpl;
+import com.ldb.db.RandomAccessFile;
+import com.ldb.db.SequentialFile;
 import com.ldb.db.WritableFile;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// File system access for the DB. Failures surface as UncheckedIOException.
 public class Env {
 
-    public WritableFile newWritableFile(WritableFile writableFile) {
-        return null;
+    // Creates a new file with the specified name, deleting any existing file
+    public WritableFile newWritableFile(String fname) {
+        try {
+            return new FileChannelWritableFile(fname, FileChannel.open(Paths.get(fname),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        } catch (IOException e) {
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    // Same as above, but the file is first filled to "preallocateSize" bytes and
+    // synced, so appends within that size need no file size updates on sync.
+    public WritableFile newWritableFile(String fname, long preallocateSize) {
+        if (preallocateSize <= 0) {
+            return newWritableFile(fname);
+        }
+        return new FileChannelWritableFile(fname, openPreallocated(fname, preallocateSize, false));
+    }
+
+    // Same as above, but appends are copied into a mapping of the file, see
+    // MmapWritableFile. Meant for the log, whose records are small and many.
+    public WritableFile newMmapWritableFile(String fname, long preallocateSize) {
+        FileChannel channel = openPreallocated(fname, preallocateSize, true);
+        try {
+            return new MmapWritableFile(fname, channel, MmapWritableFile.kDefaultWindowSize);
+        } catch (IOException e) {
+            closeQuietly(channel, e);
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    // Renames "oldFname" to "fname" and opens it for writing from the start,
+    // keeping its old contents and size.
+    public WritableFile reuseWritableFile(String fname, String oldFname) {
+        try {
+            Files.move(Paths.get(oldFname), Paths.get(fname));
+            return new FileChannelWritableFile(fname, FileChannel.open(Paths.get(fname), StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    // Same as above with a MmapWritableFile
+    public WritableFile reuseMmapWritableFile(String fname, String oldFname) {
+        FileChannel channel = null;
+        try {
+            Files.move(Paths.get(oldFname), Paths.get(fname));
+            channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new MmapWritableFile(fname, channel, MmapWritableFile.kDefaultWindowSize);
+        } catch (IOException e) {
+            closeQuietly(channel, e);
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    // Creates or truncates "fname" and fills it with "size" zeros. A mapping
+    // needs the channel to be readable as well.
+    private static FileChannel openPreallocated(String fname, long size, boolean readable) {
+        FileChannel channel = null;
+        try {
+            channel = readable
+                    ? FileChannel.open(Paths.get(fname), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                    : FileChannel.open(Paths.get(fname), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            if (size > 0) {
+                // There is no fallocate, write the zeros out
+                ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(size, 1 << 20));
+                long position = 0;
+                while (position < size) {
+                    zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+                    while (zeros.hasRemaining()) {
+                        position += channel.write(zeros, position);
+                    }
+                }
+                channel.force(true);
+            }
+            return channel;
+        } catch (IOException e) {
+            closeQuietly(channel, e);
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel, IOException e) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+        }
+    }
+
+    public SequentialFile newSequentialFile(String fname) {
+        try {
+            return new FileChannelSequentialFile(fname, FileChannel.open(Paths.get(fname), StandardOpenOption.READ));
+        } catch (IOException e) {
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    public RandomAccessFile newRandomAccessFile(String fname) {
+        try {
+            return new FileChannelRandomAccessFile(fname, FileChannel.open(Paths.get(fname), StandardOpenOption.READ));
+        } catch (IOException e) {
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    // Same as above, but the whole file is mapped read-only and reads are
+    // views of the mapping, see MmapRandomAccessFile. A file too large for one
+    // mapping is read with positional reads instead.
+    public RandomAccessFile newMmapRandomAccessFile(String fname) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fname), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return newRandomAccessFile(fname);
+            }
+            return new MmapRandomAccessFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } catch (IOException e) {
+            throw new UncheckedIOException(fname, e);
+        }
+    }
+
+    public void createDir(String dirname) {
+        try {
+            Files.createDirectories(Paths.get(dirname));
+        } catch (IOException e) {
+            throw new UncheckedIOException(dirname, e);
+        }
+    }
+
+    // Names of the entries of "dir", not their paths
+    public List<String> getChildren(String dir) {
+        List<String> result = new ArrayList<>();
+        try (Stream<Path> children = Files.list(Paths.get(dir))) {
+            children.forEach(child -> result.add(child.getFileName().toString()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(dir, e);
+        }
+        return result;
+    }
+
+    public void removeFile(String fname) {
+        try {
+            Files.delete(Paths.get(fname));
+        } catch (IOException e) {
+            throw new UncheckedIOException(fname, e);
+        }
     }
 
     public void schedule(Runnable task) {
@@ -0,0 +1,52 @@
+package com.ldb;
+
+import com.ldb.db.RandomAccessFile;
+import com.ldb.db.Status;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads with positional FileChannel reads, which leave the channel position
+// alone and so need no locking between threads
+public class FileChannelRandomAccessFile implements RandomAccessFile {
+    private final String filename;
+    private final FileChannel channel;
+
+    public FileChannelRandomAccessFile(String filename, FileChannel channel) {
+        this.filename = filename;
+        this.channel = channel;
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int n) {
+        ByteBuffer dst = ByteBuffer.allocate(n);
+        try {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, offset + dst.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(filename, e);
+        }
+        dst.flip();
+        return dst;
+    }
+
+    @Override
+    public boolean isMapped() {
+        return false;
+    }
+
+    @Override
+    public Status close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        }
+        return Status.of(null);
+    }
+}
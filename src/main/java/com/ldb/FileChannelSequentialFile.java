@@ -0,0 +1,53 @@
+package com.ldb;
+
+import com.ldb.db.SequentialFile;
+import com.ldb.db.Status;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class FileChannelSequentialFile implements SequentialFile {
+    private final String filename;
+    private final FileChannel channel;
+
+    public FileChannelSequentialFile(String filename, FileChannel channel) {
+        this.filename = filename;
+        this.channel = channel;
+    }
+
+    @Override
+    public Status read(ByteBuffer dst) {
+        try {
+            while (dst.hasRemaining()) {
+                if (channel.read(dst) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        }
+        return Status.of(null);
+    }
+
+    @Override
+    public Status skip(long n) {
+        try {
+            channel.position(channel.position() + n);
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        }
+        return Status.of(null);
+    }
+
+    @Override
+    public Status close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        }
+        return Status.of(null);
+    }
+}
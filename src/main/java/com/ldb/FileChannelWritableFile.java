@@ -0,0 +1,62 @@
+package com.ldb;
+
+import com.ldb.db.Status;
+import com.ldb.db.WritableFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class FileChannelWritableFile implements WritableFile {
+    private final String filename;
+    private final FileChannel channel;
+
+    public FileChannelWritableFile(String filename, FileChannel channel) {
+        this.filename = filename;
+        this.channel = channel;
+    }
+
+    @Override
+    public Status append(ByteBuffer[] srcs, int offset, int length) {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += srcs[i].remaining();
+        }
+        try {
+            while (remaining > 0) {
+                remaining -= channel.write(srcs, offset, length);
+            }
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        }
+        return Status.of(null);
+    }
+
+    @Override
+    public Status flush() {
+        // Nothing is buffered, appends are already in the OS
+        return Status.of(null);
+    }
+
+    @Override
+    public Status sync() {
+        try {
+            // File data only, like fdatasync
+            channel.force(false);
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        }
+        return Status.of(null);
+    }
+
+    @Override
+    public Status close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        }
+        return Status.of(null);
+    }
+}
@@ -0,0 +1,40 @@
+package com.ldb;
+
+import com.ldb.db.RandomAccessFile;
+import com.ldb.db.Status;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+// Serves reads as read-only views of one mapping of the whole file, no read
+// syscalls and no copies. The mapping outlives the channel it was made from,
+// so the file holds no descriptor, and it is unmapped once the last view of it
+// is collected: views handed out stay valid after close().
+public class MmapRandomAccessFile implements RandomAccessFile {
+    private final MappedByteBuffer mapping;
+
+    public MmapRandomAccessFile(MappedByteBuffer mapping) {
+        this.mapping = mapping;
+    }
+
+    @Override
+    public ByteBuffer read(long offset, int n) {
+        int limit = mapping.capacity();
+        if (offset >= limit) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer view = mapping.duplicate();
+        view.limit((int) Math.min(limit, offset + n)).position((int) offset);
+        return view.slice();
+    }
+
+    @Override
+    public boolean isMapped() {
+        return true;
+    }
+
+    @Override
+    public Status close() {
+        return Status.of(null);
+    }
+}
@@ -0,0 +1,148 @@
+package com.ldb;
+
+import com.ldb.db.Status;
+import com.ldb.db.WritableFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Appends by copying into a window of the file mapped read-write, so an append
+// is a memory copy instead of a write(2). A full window is replaced by a mapping
+// of the next one, which extends the file if needed. Windows written since the
+// last sync are kept until sync() has forced them.
+// On close the file is cut back to the data written, unless it was larger to
+// begin with (preallocated or recycled).
+public class MmapWritableFile implements WritableFile {
+    static final int kDefaultWindowSize = 1 << 20;
+
+    private final String filename;
+    private final FileChannel channel;
+    private final int windowSize;
+    private final long initialSize;
+    // sync() runs on another thread than append(). A lock rather than the monitor,
+    // an append that maps the next window holds it across the mmap call.
+    private final Lock lock = new ReentrantLock();
+    // Guarded by lock
+    private MappedByteBuffer window;
+    private long windowOffset;  // File offset of window
+    private boolean windowDirty;
+    private final List<MappedByteBuffer> unsyncedWindows = new ArrayList<>();
+    private long mappedEnd;     // The file reaches at least this far
+    private boolean grown;      // Mapping extended the file since the last sync
+
+    public MmapWritableFile(String filename, FileChannel channel, int windowSize) throws IOException {
+        this.filename = filename;
+        this.channel = channel;
+        this.windowSize = windowSize;
+        this.initialSize = channel.size();
+        this.mappedEnd = initialSize;
+        this.windowOffset = -windowSize;
+    }
+
+    @Override
+    public Status append(ByteBuffer[] srcs, int offset, int length) {
+        lock.lock();
+        try {
+            for (int i = offset; i < offset + length; i++) {
+                ByteBuffer src = srcs[i];
+                while (src.hasRemaining()) {
+                    if (window == null || !window.hasRemaining()) {
+                        nextWindow();
+                    }
+                    int n = Math.min(src.remaining(), window.remaining());
+                    int limit = src.limit();
+                    src.limit(src.position() + n);
+                    window.put(src);
+                    src.limit(limit);
+                    windowDirty = true;
+                }
+            }
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        } finally {
+            lock.unlock();
+        }
+        return Status.of(null);
+    }
+
+    private void nextWindow() throws IOException {
+        if (window != null && windowDirty) {
+            unsyncedWindows.add(window);
+        }
+        windowOffset += windowSize;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowOffset, windowSize);
+        windowDirty = false;
+        if (windowOffset + windowSize > mappedEnd) {
+            mappedEnd = windowOffset + windowSize;
+            grown = true;
+        }
+    }
+
+    @Override
+    public Status flush() {
+        // The data is in the page cache as soon as it is copied
+        return Status.of(null);
+    }
+
+    @Override
+    public Status sync() {
+        List<MappedByteBuffer> dirty;
+        boolean syncSize;
+        lock.lock();
+        try {
+            dirty = new ArrayList<>(unsyncedWindows);
+            unsyncedWindows.clear();
+            if (window != null && windowDirty) {
+                dirty.add(window);
+                windowDirty = false;
+            }
+            syncSize = grown;
+            grown = false;
+        } finally {
+            lock.unlock();
+        }
+        // Appends go on while the pages are written, a later sync covers them.
+        // force() writes back the dirty pages of the whole window, the range
+        // variant needs a newer JDK than the one the build targets.
+        try {
+            for (MappedByteBuffer buffer : dirty) {
+                buffer.force();
+            }
+            if (syncSize) {
+                // The file length is metadata the data depends on
+                channel.force(false);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            return Status.of(e instanceof UncheckedIOException
+                    ? (UncheckedIOException) e : new UncheckedIOException(filename, (IOException) e));
+        }
+        return Status.of(null);
+    }
+
+    @Override
+    public Status close() {
+        lock.lock();
+        try {
+            long size = window == null ? 0 : windowOffset + window.position();
+            // The mappings stay valid until collected, nothing writes through them after this
+            window = null;
+            unsyncedWindows.clear();
+            if (size > initialSize && size < channel.size()) {
+                channel.truncate(size);
+            }
+            channel.close();
+        } catch (IOException e) {
+            return Status.of(new UncheckedIOException(filename, e));
+        } finally {
+            lock.unlock();
+        }
+        return Status.of(null);
+    }
+}
@@ -6,7 +6,6 @@ import com.ldb.db.Options;
 import com.ldb.db.VersionEdit;
 import com.ldb.db.WritableFile;
 import com.ldb.db.memtable.MemTable;
-import com.ldb.log.Writer;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -19,18 +18,24 @@ public class Op {
         DBImpl db = new DBImpl(options, name);
         lock.lock();
         try {
+            // Ignore error from createDir since the creation of the DB is
+            // committed only when the descriptor is created, and this directory
+            // may already exist from a previous failed creation attempt.
+            try {
+                options.getEnv().createDir(name);
+            } catch (RuntimeException ignored) {
+            }
             VersionEdit edit = new VersionEdit();
             boolean saveManifest = db.recover(edit);
             if (db.getMem() == null) {
                 // Create new log and a corresponding memtable.
                 long newLogNumber = db.getVersions().newFileNumber();
                 try {
-                    WritableFile logfile = options.getEnv()
-                            .newWritableFile(DBImpl.logFileName(db.getDbName(), newLogNumber));
+                    WritableFile logfile = db.newLogFile(newLogNumber);
                     edit.setLogNumber(newLogNumber);
                     db.setLogFile(logfile);
                     db.setLogFileNumber(newLogNumber);
-                    db.setLog(new Writer(logfile));
+                    db.setLog(db.newLogWriter(logfile, newLogNumber));
                     db.setMem(new MemTable(db.getInternalComparator()));
                     db.getMem().ref();
                 } catch (RuntimeException e) {
@@ -42,6 +47,7 @@ public class Op {
                 edit.setLogNumber(db.getLogFileNumber());
                 db.getVersions().logAndApply(edit);
             }
+            db.startLogSyncer();
             db.removeObsoleteFiles();
             db.maybeScheduleCompaction();
         } finally {
@@ -2,7 +2,23 @@ package com.ldb.db;
 
 public class Config {
     public static int kNumLevels = 7;
+    // Level-0 compaction is started when we hit this many files.
+    public static int kL0_CompactionTrigger = 4;
+    // Soft limit on number of level-0 files.  We pace writes at this point.
     public static int kL0_SlowdownWritesTrigger = 8;
+    // Maximum number of level-0 files.  We stop writes at this point.
     public static int kL0_StopWritesTrigger = 12;
+    // Same for the bytes compaction is behind, see VersionSet.pendingCompactionBytes
+    public static long kSoftPendingCompactionBytesLimit = 64L << 30;
+    public static long kHardPendingCompactionBytesLimit = 256L << 30;
+    // With a flush pending, writes are paced once mem is this full
+    public static double kMemTableSlowdownFill = 0.75;
+    // A write group is capped at kMaxBatchGroupSize bytes, or at the leader's
+    // size plus kSmallBatchGroupSize when the leader's own batch is that small.
+    public static int kMaxBatchGroupSize = 1 << 20;
+    public static int kSmallBatchGroupSize = 128 << 10;
+    // Open files other than tables, kept out of Options.maxOpenFiles for the
+    // table cache
+    public static int kNumNonTableCacheFiles = 10;
 
 }
@@ -1,7 +1,63 @@
 package com.ldb.db;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
 public interface DB {
 
     Status write(WriteOptions options, WriteBatch updates);
 
+    // If the database contains an entry for "key" returns the corresponding
+    // value, else null. The value is a read-only view.
+    ByteBuffer get(ReadOptions options, ByteBuffer key);
+
+    // Looks up all of "keys" at one snapshot and returns their values in the
+    // order of "keys", null for a key with no entry. Cheaper than calling get()
+    // for each key when there are many of them.
+    List<ByteBuffer> multiGet(ReadOptions options, List<ByteBuffer> keys);
+
+    // Return an iterator over the contents of the database, as of
+    // options.snapshot or the current state if it is null. The iterator is
+    // initially invalid, the caller must call one of the seek methods on it
+    // before using it, and must close it before the DB is closed.
+    DBIterator newIterator(ReadOptions options);
+
+    // Scans the user keys in [lower, upper) in parallel on "pool", a null bound
+    // leaves that side open. The range is split into at most "partitions"
+    // sub-ranges holding about the same amount of data, judged from table file
+    // boundaries and memtable samples. "scanner" is called once per sub-range on
+    // a pool thread, with an iterator bounded to the sub-range and positioned at
+    // its first entry; the iterator is closed when it returns. All sub-ranges
+    // read one snapshot. Returns when every scanner has, an exception thrown by
+    // a scanner is rethrown.
+    void scanPartitions(ReadOptions options, ByteBuffer lower, ByteBuffer upper, int partitions,
+                        ForkJoinPool pool, Consumer<DBIterator> scanner);
+
+    // The entries of [lower, upper) as a parallel stream of copies, in key
+    // order, split as in scanPartitions. The stream runs on the common pool
+    // unless its terminal operation is started from a task of another pool.
+    // It holds the data it reads until it is closed.
+    Stream<Map.Entry<ByteBuffer, ByteBuffer>> parallelScan(ReadOptions options, ByteBuffer lower,
+                                                           ByteBuffer upper, int partitions);
+
+    // Return a handle to the current DB state.  Iterators created with
+    // this handle will all observe a stable snapshot of the current DB
+    // state.  The caller must call releaseSnapshot(result) when the
+    // snapshot is no longer needed.
+    Snapshot getSnapshot();
+
+    // Release a previously acquired snapshot.  The caller must not
+    // use "snapshot" after this call.
+    void releaseSnapshot(Snapshot snapshot);
+
+    // Same as write(), and the returned future completes with the status of the
+    // log sync that made updates durable. Unless options.sync is set that sync
+    // runs in the background, see Options.logSyncIntervalMillis.
+    CompletableFuture<Status> writeDeferred(WriteOptions options, WriteBatch updates);
+
 }
@@ -1,20 +1,43 @@
 package com.ldb.db;
 
 import com.ldb.Env;
+import com.ldb.db.memtable.ArenaSkipList;
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.InternalKeyComparator;
+import com.ldb.db.memtable.LookupKey;
+import com.ldb.db.memtable.LookupResult;
 import com.ldb.db.memtable.MemTable;
+import com.ldb.utils.BytewiseComparator;
+import com.ldb.utils.KeyValueIterator;
 import lombok.Data;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Data
 public class DBImpl implements DB {
@@ -22,115 +45,744 @@ public class DBImpl implements DB {
     private final Options options;
     private final String dbName;
     private long logFileNumber;
-    private VersionSet versions;
+    private VersionSet versions = new VersionSet();
     private MemTable mem;
     private MemTable imm;
     private volatile AtomicBoolean hasImm = new AtomicBoolean(false);
-    private Deque<Writer> writers = new ConcurrentLinkedDeque<>();
+    private WriteQueue writers = new WriteQueue();
     private Lock lock = new ReentrantLock();
-    private Condition wcv = lock.newCondition();
     private Condition backgroundWorkFinishedSignal = lock.newCondition();
-    private volatile Status bgError;
+    private volatile Status bgError = Status.of(null);
     private WritableFile logFile;
-    private Comparator internalComparator;
+    private Comparator<InternalKey> internalComparator = new InternalKeyComparator();
     private boolean backgroundCompactionScheduled;
     private AtomicBoolean shuttingDown = new AtomicBoolean(false);
     private Object manualCompaction;
     private Env env;
     private com.ldb.log.Writer log;
-    private WriteBatch tmpBatch;
+    private WriteBatch tmpBatch = new WriteBatch();
+    // Merged batches of pipelined groups, a few groups are in flight at a time
+    private WriteBatchPool batchPool = new WriteBatchPool(4, 2 * Config.kMaxBatchGroupSize);
+    // Pipelined write: groups whose log record is written but not yet applied to mem,
+    // in sequence order. Guarded by lock.
+    private Deque<WriteGroup> memtableGroups = new ArrayDeque<>();
+    private Condition memtableCv = lock.newCondition();
+    // Obsolete log files kept to be written over by new logs, oldest first.
+    // Guarded by lock.
+    private Deque<Long> logsToRecycle = new ArrayDeque<>();
+    // Background log syncs for deferred writes, null when disabled
+    private LogSyncer logSyncer;
+    private final WriteController writeController;
+    // Size of the last group written, the next leader is delayed for it
+    private long lastBatchGroupSize;
+    // Guarded by lock
+    private final SnapshotList snapshots = new SnapshotList();
 
 
     public DBImpl(Options options, String name) {
         this.options = options;
         this.dbName = name;
         this.logFileNumber = 0;
+        this.env = options.getEnv();
+        this.writeController = new WriteController(options.delayedWriteRate);
+        this.versions.setTableCache(new TableCache(name, options, tableCacheSize(options)));
     }
 
     @Override
     public Status write(WriteOptions options, WriteBatch updates) {
+        return write(options, updates, new Writer());
+    }
+
+    @Override
+    public CompletableFuture<Status> writeDeferred(WriteOptions options, WriteBatch updates) {
+        if (logSyncer == null && !options.isSync()) {
+            WriteOptions sync = new WriteOptions();
+            sync.setSync(true);
+            options = sync;
+        }
         Writer w = new Writer();
-        w.setBatch(updates);
-        w.setSync(options.isSync());
-        w.setDone(false);
+        Status status = write(options, updates, w);
+        if (!status.isOk() || updates == null || logSyncer == null) {
+            return CompletableFuture.completedFuture(status);
+        }
+        return logSyncer.waitFor(w.sequence);
+    }
+
+    @Override
+    public ByteBuffer get(ReadOptions options, ByteBuffer key) {
+        ReadScratch scratch = readScratch.get();
+        ReadView view = refReadView(options, scratch.view);
+        try {
+            LookupKey lkey = scratch.key.set(key, view.snapshot);
+            LookupResult result = scratch.result;
+            // First look in the memtable, then in the immutable memtable (if any).
+            if (!view.mem.get(lkey, result) && (view.imm == null || !view.imm.get(lkey, result))) {
+                view.current.get(options, lkey, result, versions.tableCache());
+            }
+            return result.state() == LookupResult.State.kFound ? result.value() : null;
+        } finally {
+            unrefReadView(view);
+            scratch.release(0);
+        }
+    }
+
+    @Override
+    public List<ByteBuffer> multiGet(ReadOptions options, List<ByteBuffer> keys) {
+        int n = keys.size();
+        // Look the keys up in user key order, so each structure is walked forward
+        // once: the memtables resume every search from where the last one ended,
+        // and consecutive keys in one table file are handed to it together.
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            ByteBuffer x = keys.get(a);
+            ByteBuffer y = keys.get(b);
+            return BytewiseComparator.compare(x, x.position(), x.remaining(), y, y.position(), y.remaining());
+        });
+
+        ReadScratch scratch = readScratch.get();
+        ReadView view = refReadView(options, scratch.view);
+        LookupKey[] lkeys = scratch.keys(n);
+        LookupResult[] results = scratch.results;
+        try {
+            for (int i = 0; i < n; i++) {
+                lkeys[i].set(keys.get(order[i]), view.snapshot);
+            }
+            ArenaSkipList.Splice finger = view.mem.newFinger();
+            boolean pending = false;
+            for (int i = 0; i < n; i++) {
+                pending |= !view.mem.get(lkeys[i], results[i], finger);
+            }
+            if (pending && view.imm != null) {
+                finger = view.imm.newFinger();
+                pending = false;
+                for (int i = 0; i < n; i++) {
+                    if (!results[i].isDone()) {
+                        pending |= !view.imm.get(lkeys[i], results[i], finger);
+                    }
+                }
+            }
+            if (pending) {
+                view.current.multiGet(options, lkeys, results, n, versions.tableCache());
+            }
+
+            ByteBuffer[] values = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                if (results[i].state() == LookupResult.State.kFound) {
+                    values[order[i]] = results[i].value();
+                }
+            }
+            return Arrays.asList(values);
+        } finally {
+            unrefReadView(view);
+            scratch.release(n);
+        }
+    }
+
+    @Override
+    public DBIterator newIterator(ReadOptions options) {
+        ReadView view = refReadView(options);
+        try {
+            return newIterator(options, view, () -> unrefReadView(view));
+        } catch (RuntimeException e) {
+            unrefReadView(view);
+            throw e;
+        }
+    }
+
+    // An iterator over "view", "cleanup" runs when it is closed
+    private DBIterator newIterator(ReadOptions options, ReadView view, Runnable cleanup) {
+        List<KeyValueIterator> iters = new ArrayList<>();
+        iters.add(view.mem.iterator());
+        if (view.imm != null) {
+            iters.add(view.imm.iterator());
+        }
+        try {
+            view.current.addIterators(options, iters, versions.tableCache());
+        } catch (RuntimeException e) {
+            iters.forEach(KeyValueIterator::close);
+            throw e;
+        }
+        return new DBIter(new MergingIterator(iters), view.snapshot, options, cleanup);
+    }
+
+    @Override
+    public void scanPartitions(ReadOptions options, ByteBuffer lower, ByteBuffer upper, int partitions,
+                               ForkJoinPool pool, Consumer<DBIterator> scanner) {
+        ReadView view = refReadView(options);
+        try {
+            List<ByteBuffer> bounds = splitRange(view, lower, upper, partitions);
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                ReadOptions partition = withBounds(options, bounds.get(i), bounds.get(i + 1));
+                tasks.add(ForkJoinTask.adapt(() -> {
+                    try (DBIterator iter = newIterator(partition, view, () -> { })) {
+                        iter.seekToFirst();
+                        scanner.accept(iter);
+                    }
+                }));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } finally {
+            unrefReadView(view);
+        }
+    }
+
+    @Override
+    public Stream<Map.Entry<ByteBuffer, ByteBuffer>> parallelScan(ReadOptions options, ByteBuffer lower,
+                                                                  ByteBuffer upper, int partitions) {
+        ReadView view = refReadView(options);
+        AtomicBoolean released = new AtomicBoolean();
+        Set<DBIterator> open = ConcurrentHashMap.newKeySet();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                open.forEach(DBIterator::close);
+                unrefReadView(view);
+            }
+        };
+        try {
+            List<ByteBuffer> bounds = splitRange(view, lower, upper, partitions);
+            // Partitions the stream gives up on early are closed with it
+            IntFunction<DBIterator> openPartition = i -> {
+                DBIterator iter = newIterator(withBounds(options, bounds.get(i), bounds.get(i + 1)), view, () -> { });
+                open.add(iter);
+                return iter;
+            };
+            return StreamSupport.stream(new PartitionSpliterator(openPartition, 0, bounds.size() - 1), true)
+                    .onClose(release);
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    // Boundaries of at most "partitions" sub-ranges of [lower, upper) holding
+    // about the same amount of data in "view", see RangePartitioner
+    private List<ByteBuffer> splitRange(ReadView view, ByteBuffer lower, ByteBuffer upper, int partitions) {
+        RangePartitioner partitioner = new RangePartitioner(lower, upper);
+        // Enough keys per partition for the split points to land near their targets
+        int samples = partitions * 16;
+        for (MemTable table : new MemTable[]{view.mem, view.imm}) {
+            if (table != null) {
+                List<ByteBuffer> keys = table.sampleKeys(samples);
+                for (ByteBuffer key : keys) {
+                    partitioner.add(key, (double) table.approximateMemoryUsage() / keys.size());
+                }
+            }
+        }
+        view.current.addRangeSamples(partitioner);
+        return partitioner.split(partitions);
+    }
 
+    List<ByteBuffer> splitRange(ReadOptions options, ByteBuffer lower, ByteBuffer upper, int partitions) {
+        ReadView view = refReadView(options);
+        try {
+            return splitRange(view, lower, upper, partitions);
+        } finally {
+            unrefReadView(view);
+        }
+    }
+
+    private static ReadOptions withBounds(ReadOptions options, ByteBuffer lower, ByteBuffer upper) {
+        ReadOptions bounded = new ReadOptions();
+        bounded.setVerifyChecksums(options.isVerifyChecksums());
+        bounded.setFillCache(options.isFillCache());
+        bounded.setSnapshot(options.getSnapshot());
+        bounded.setReadaheadSize(options.getReadaheadSize());
+        bounded.setIterateLowerBound(lower);
+        bounded.setIterateUpperBound(upper);
+        return bounded;
+    }
+
+    // What a read sees: the snapshot sequence and referenced memtables and version
+    private static class ReadView {
+        private long snapshot;
+        private MemTable mem;
+        private MemTable imm;
+        private Version current;
+    }
+
+    // Lookup keys and results of the reads on one thread. get() and multiGet()
+    // reuse them instead of allocating them per key, a read holds them until it
+    // returns.
+    private static final ThreadLocal<ReadScratch> readScratch = ThreadLocal.withInitial(ReadScratch::new);
+
+    private static class ReadScratch {
+        private final ReadView view = new ReadView();
+        private final LookupKey key = new LookupKey();
+        private final LookupResult result = new LookupResult();
+        private LookupKey[] keys = new LookupKey[0];
+        private LookupResult[] results = new LookupResult[0];
+
+        // Returns at least n lookup keys, with as many results beside them
+        LookupKey[] keys(int n) {
+            if (keys.length < n) {
+                int size = Math.max(n, keys.length * 2);
+                LookupKey[] grownKeys = Arrays.copyOf(keys, size);
+                LookupResult[] grownResults = Arrays.copyOf(results, size);
+                for (int i = keys.length; i < size; i++) {
+                    grownKeys[i] = new LookupKey();
+                    grownResults[i] = new LookupResult();
+                }
+                keys = grownKeys;
+                results = grownResults;
+            }
+            return keys;
+        }
+
+        // Drops what the last read found, with the first n batch results, so that
+        // an idle thread does not keep memtables or blocks reachable
+        void release(int n) {
+            view.mem = null;
+            view.imm = null;
+            view.current = null;
+            result.reset();
+            for (int i = 0; i < n; i++) {
+                results[i].reset();
+            }
+        }
+    }
+
+    private ReadView refReadView(ReadOptions options) {
+        return refReadView(options, new ReadView());
+    }
+
+    private ReadView refReadView(ReadOptions options, ReadView view) {
+        // Only the refs are taken under the lock, the lookup itself runs without it
         lock.lock();
         try {
-            writers.offer(w);
-            while (!w.isDone() && w != writers.peekFirst()) {
-                wcv.await();
+            if (options.getSnapshot() != null) {
+                view.snapshot = options.getSnapshot().sequenceNumber();
+            } else {
+                view.snapshot = versions.lastSequence();
             }
-            if (w.isDone()) {
-                return Status.of(null);
+            view.mem = this.mem;
+            view.imm = this.imm;
+            view.current = versions.current();
+            view.mem.ref();
+            if (view.imm != null) {
+                view.imm.ref();
             }
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            view.current.ref();
         } finally {
             lock.unlock();
         }
+        return view;
+    }
+
+    private void unrefReadView(ReadView view) {
+        lock.lock();
         try {
-            Status status = makeRoomForWrite(updates == null);
-            long lastSequence = versions.lastSequence();
-            AtomicReference<Writer> lastWriter = new AtomicReference<>(w);
-            if (status.isOk() && updates != null) {
-                WriteBatch writeBatch = buildBatchGroup(lastWriter);
+            view.mem.unref();
+            if (view.imm != null) {
+                view.imm.unref();
+            }
+            view.current.unref();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        lock.lock();
+        try {
+            return snapshots.newSnapshot(versions.lastSequence());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void releaseSnapshot(Snapshot snapshot) {
+        lock.lock();
+        try {
+            snapshots.delete(snapshot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Status write(WriteOptions options, WriteBatch updates, Writer w) {
+        if (this.options.enablePipelinedWrite) {
+            return pipelinedWrite(options, updates, w);
+        }
+        w.setBatch(updates);
+        w.setSync(options.isSync());
+        w.setDone(false);
+
+        if (!writers.join(w)) {
+            int state = writers.await(w, Writer.STATE_GROUP_LEADER
+                    | Writer.STATE_PARALLEL_MEMTABLE_WRITER | Writer.STATE_COMPLETED);
+            if (state == Writer.STATE_PARALLEL_MEMTABLE_WRITER) {
+                // The group is in the log, insert this writer's part of it
+                w.parallelWrite.insert(w);
+                state = writers.await(w, Writer.STATE_COMPLETED);
+            }
+            if (state == Writer.STATE_COMPLETED) {
+                return w.getStatus();
+            }
+        }
+
+        // w leads the queue until writers.exit, which protects against concurrent
+        // loggers and concurrent writes into mem, the lock only guards state shared
+        // with the background work.
+        Status status = Status.of(null);
+        long lastSequence = 0;
+        AtomicReference<Writer> lastWriter = new AtomicReference<>(w);
+        try {
+            lock.lock();
+            try {
+                // May temporarily unlock and wait.
+                status = makeRoomForWrite(updates == null);
+                lastSequence = versions.lastSequence();
+            } finally {
+                lock.unlock();
+            }
+            if (status.isOk() && updates != null) {  // null batch is for compactions
+                WriteBatch writeBatch = buildBatchGroup(w, lastWriter, tmpBatch);
+                lastBatchGroupSize = WriteBatchInternal.byteSize(writeBatch);
                 WriteBatchInternal.setSequence(writeBatch, lastSequence + 1);
                 lastSequence += WriteBatchInternal.count(writeBatch);
 
-                // Add to log and apply to memtable.  We can release the lock
-                // during this phase since &w is currently responsible for logging
-                // and protects against concurrent loggers and concurrent writes
-                // into mem_.
-                status = log.addRecord(WriteBatchInternal.contents(writeBatch));
-                boolean syncError = false;
-                if (status.isOk() && options.isSync()) {
-                    status = logFile.sync();
-                    if (!status.isOk()) {
-                        syncError = true;
-                    }
-                }
+                // Add to log and apply to memtable.
+                status = writeToLog(writeBatch, w.isSync());
                 if (status.isOk()) {
-                    status = WriteBatchInternal.insertInto(writeBatch, mem);
-                }
-                lock.lock();
-                if (syncError) {
-                    // The state of the log file is indeterminate: the log record we
-                    // just added may or may not show up when the DB is re-opened.
-                    // So we force the DB into a mode where all future writes fail.
-                    recordBackgroundError(status.getEx());
+                    if (this.options.allowConcurrentMemtableWrite && writeBatch == tmpBatch) {
+                        // A group of several batches, each writer inserts its own
+                        status = insertInParallel(w, lastWriter.getAcquire(), WriteBatchInternal.sequence(writeBatch));
+                    } else {
+                        status = WriteBatchInternal.insertInto(writeBatch, mem);
+                    }
                 }
-                if (writeBatch == tmpBatch) tmpBatch.clear();
 
                 versions.setLastSequence(lastSequence);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = statusOf(e);
+        } catch (Throwable e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            // Whatever happened, the followers learn it and the queue moves on,
+            // or every later writer parks forever
+            tmpBatch.clear();
+            writers.exit(lastWriter.getAcquire());
+            completeFollowers(w, lastWriter.getAcquire(), status, lastSequence);
+        }
+        return status;
+    }
+
+    // Same queue as write(), but the leader only holds the queue while it appends to
+    // the log. It then hands its group to the memtable stage and the next leader can
+    // start logging while this group is inserted. Groups are applied to mem and
+    // published in sequence order, so readers never see part of a group.
+    private Status pipelinedWrite(WriteOptions options, WriteBatch updates, Writer w) {
+        w.setBatch(updates);
+        w.setSync(options.isSync());
+        w.setDone(false);
+
+        if (!writers.join(w)
+                && writers.await(w, Writer.STATE_GROUP_LEADER | Writer.STATE_COMPLETED) == Writer.STATE_COMPLETED) {
+            return w.getStatus();
+        }
 
-            while (true) {
-                Writer ready = writers.pollFirst();
-                if (ready != null && ready != w) {
-                    // ready.status = status;
-                    ready.setDone(true);
-                    ready.getCv().signal();
+        // WAL stage
+        Status status = Status.of(null);
+        WriteGroup group = new WriteGroup();
+        group.leader = w;
+        AtomicReference<Writer> lastWriter = new AtomicReference<>(w);
+        boolean queued = false;
+        try {
+            lock.lock();
+            try {
+                status = makeRoomForWrite(updates == null);
+                group.lastSequence = memtableGroups.isEmpty()
+                        ? versions.lastSequence() : memtableGroups.peekLast().lastSequence;
+            } finally {
+                lock.unlock();
+            }
+            if (status.isOk() && updates != null) {
+                // The group is still being applied after the next leader builds its own,
+                // so it cannot share tmpBatch
+                WriteBatch scratch = batchPool.acquire();
+                group.batch = buildBatchGroup(w, lastWriter, scratch);
+                lastBatchGroupSize = WriteBatchInternal.byteSize(group.batch);
+                if (group.batch != scratch) {
+                    batchPool.release(scratch);
                 }
-                if (ready == lastWriter.getAcquire()) {
-                    break;
+                WriteBatchInternal.setSequence(group.batch, group.lastSequence + 1);
+                group.lastSequence += WriteBatchInternal.count(group.batch);
+                status = writeToLog(group.batch, w.isSync());
+            }
+            group.status = status;
+            lock.lock();
+            try {
+                memtableGroups.offerLast(group);
+                if (memtableGroups.peekFirst() == group) {
+                    w.state = Writer.STATE_MEMTABLE_LEADER;
                 }
+            } finally {
+                lock.unlock();
             }
-            // Notify new head of write queue
-            if (!writers.isEmpty()) {
-                writers.peekFirst().getCv().signal();
+            queued = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = statusOf(e);
+        } catch (Throwable e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            // Let the next leader start on the log
+            writers.exit(lastWriter.getAcquire());
+            if (!queued) {
+                // Never reached the memtable stage, nothing of it is in mem
+                if (group.batch != null && group.batch != updates) {
+                    batchPool.release(group.batch);
+                }
+                completeFollowers(w, lastWriter.getAcquire(), status, group.lastSequence);
             }
+        }
+        if (!queued) {
             return status;
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         }
+
+        // Memtable stage
+        writers.await(w, Writer.STATE_MEMTABLE_LEADER);
+        try {
+            if (status.isOk() && group.batch != null) {
+                status = WriteBatchInternal.insertInto(group.batch, mem);
+            }
+        } catch (Throwable e) {
+            status = statusOf(e);
+            throw e;
+        } finally {
+            if (group.batch != null && group.batch != updates) {
+                batchPool.release(group.batch);
+            }
+            WriteGroup next;
+            lock.lock();
+            try {
+                versions.setLastSequence(group.lastSequence);
+                memtableGroups.pollFirst();
+                next = memtableGroups.peekFirst();
+                memtableCv.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (next != null) {
+                WriteQueue.setState(next.leader, Writer.STATE_MEMTABLE_LEADER);
+            }
+            completeFollowers(w, lastWriter.getAcquire(), status, group.lastSequence);
+        }
+        return status;
+    }
+
+    // A Status holds a RuntimeException, anything else is wrapped
+    static Status statusOf(Throwable e) {
+        return Status.of(e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e));
+    }
+
+    // REQUIRES: this thread leads the write queue, lock is not held
+    private Status writeToLog(WriteBatch writeBatch, boolean sync) {
+        Status status = log.addRecord(WriteBatchInternal.contents(writeBatch));
+        long lastSequence = WriteBatchInternal.sequence(writeBatch) + WriteBatchInternal.count(writeBatch) - 1;
+        if (status.isOk() && !sync && logSyncer != null) {
+            logSyncer.appended(lastSequence, WriteBatchInternal.byteSize(writeBatch));
+        }
+        if (status.isOk() && sync) {
+            status = logFile.sync();
+            if (status.isOk() && logSyncer != null) {
+                logSyncer.synced(lastSequence);
+            }
+            if (!status.isOk()) {
+                // The state of the log file is indeterminate: the log record we
+                // just added may or may not show up when the DB is re-opened.
+                // So we force the DB into a mode where all future writes fail.
+                lock.lock();
+                try {
+                    recordBackgroundError(status.getEx());
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return status;
+    }
+
+    // Has every writer in [leader, lastWriter] with a batch insert it into mem,
+    // all at once, and returns when they are done. Batches take their sequences
+    // in queue order from "sequence" on, as in the group's log record.
+    // REQUIRES: leader leads the write queue and the group is in the log
+    private Status insertInParallel(Writer leader, Writer lastWriter, long sequence) {
+        int inserters = 0;
+        for (Writer w = leader; ; w = w.newer) {
+            if (w.getBatch() != null) {
+                inserters++;
+            }
+            if (w == lastWriter) {
+                break;
+            }
+        }
+        ParallelMemTableWrite parallelWrite = new ParallelMemTableWrite(mem, inserters);
+        for (Writer w = leader; ; w = w.newer) {
+            if (w.getBatch() != null) {
+                WriteBatchInternal.setSequence(w.getBatch(), sequence);
+                sequence += WriteBatchInternal.count(w.getBatch());
+                if (w != leader) {
+                    w.parallelWrite = parallelWrite;
+                    WriteQueue.setState(w, Writer.STATE_PARALLEL_MEMTABLE_WRITER);
+                }
+            }
+            if (w == lastWriter) {
+                break;
+            }
+        }
+        parallelWrite.insert(leader);
+        return parallelWrite.await();
+    }
+
+    // Wakes every writer of the group after leader up to and including lastWriter
+    private static void completeFollowers(Writer leader, Writer lastWriter, Status status, long lastSequence) {
+        leader.sequence = lastSequence;
+        Writer ready = leader;
+        while (ready != lastWriter) {
+            Writer next = ready.newer;
+            next.sequence = lastSequence;
+            next.setStatus(status);
+            next.setDone(true);
+            WriteQueue.setState(next, Writer.STATE_COMPLETED);
+            ready = next;
+        }
+    }
+
+    private static class WriteGroup {
+        private Writer leader;
+        private WriteBatch batch;
+        private long lastSequence;
+        private Status status;
     }
 
-    private WriteBatch buildBatchGroup(AtomicReference<Writer> lastWriter) {
-        return new WriteBatch();
+    // REQUIRES: first leads the write queue and has a non-null batch
+    // REQUIRES: scratch is empty, it receives the merged batch when the group has more than one batch
+    private WriteBatch buildBatchGroup(Writer first, AtomicReference<Writer> lastWriter, WriteBatch scratch) {
+        WriteBatch result = first.getBatch();
+        assert (result != null);
+
+        int size = WriteBatchInternal.byteSize(first.getBatch());
+
+        // Allow the group to grow up to a maximum size, but if the
+        // original write is small, limit the growth so we do not slow
+        // down the small write too much.
+        int maxSize = Config.kMaxBatchGroupSize;
+        if (size <= Config.kSmallBatchGroupSize) {
+            maxSize = size + Config.kSmallBatchGroupSize;
+        }
+
+        lastWriter.setRelease(first);
+        Writer newest = writers.newest();
+        Writer w = first;
+        while (w != newest) {
+            w = w.newer;
+            if (w.isSync() && !first.isSync()) {
+                // Do not include a sync write into a batch handled by a non-sync write.
+                break;
+            }
+
+            if (w.getBatch() != null) {
+                size += WriteBatchInternal.byteSize(w.getBatch());
+                if (size > maxSize) {
+                    // Do not make batch too big
+                    break;
+                }
+
+                // Append to result
+                if (result == first.getBatch()) {
+                    // Switch to temporary batch instead of disturbing caller's batch
+                    result = scratch;
+                    assert (WriteBatchInternal.count(result) == 0);
+                    WriteBatchInternal.append(result, first.getBatch());
+                }
+                WriteBatchInternal.append(result, w.getBatch());
+            }
+            lastWriter.setRelease(w);
+        }
+        return result;
     }
 
+    // Deletes log files that hold no data missing from the tables, keeping up to
+    // options.recycleLogFileNum of them for newLogFile.
     public void removeObsoleteFiles() {
+        List<String> filesToDelete = new ArrayList<>();
+        lock.lock();
+        try {
+            if (!bgError.isOk()) {
+                // After a background error, we don't know whether a new version may
+                // or may not have been committed, so we cannot safely garbage collect.
+                return;
+            }
+            List<String> filenames;
+            try {
+                filenames = env.getChildren(dbName);
+            } catch (RuntimeException e) {
+                return;  // Ignoring errors on purpose
+            }
+            Collections.sort(filenames);
+            for (String filename : filenames) {
+                long number = parseLogNumber(filename);
+                if (number <= 0) {
+                    continue;
+                }
+                boolean keep = number >= versions.logNumber()
+                        || number == versions.prevLogNumber()
+                        || number == logFileNumber
+                        || logsToRecycle.contains(number);
+                if (keep) {
+                    continue;
+                }
+                if (logsToRecycle.size() < options.recycleLogFileNum) {
+                    logsToRecycle.offerLast(number);
+                } else {
+                    filesToDelete.add(filename);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // While deleting all files unblock other threads. All files being deleted
+        // have unique names which will not collide with newly created files and
+        // are therefore safe to delete while allowing other threads to proceed.
+        for (String filename : filesToDelete) {
+            LOG.info("Delete type=log {}", filename);
+            try {
+                env.removeFile(dbName + "/" + filename);
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    // Opens the file for log "number", writing over a recycled log if there is one.
+    // REQUIRES: lock is held, or the DB is still being opened
+    public WritableFile newLogFile(long number) {
+        Long oldNumber = logsToRecycle.pollFirst();
+        if (oldNumber != null) {
+            LOG.info("Recycling log {} as {}", oldNumber, number);
+            return options.useMmapWrites
+                    ? env.reuseMmapWritableFile(logFileName(dbName, number), logFileName(dbName, oldNumber))
+                    : env.reuseWritableFile(logFileName(dbName, number), logFileName(dbName, oldNumber));
+        }
+        return options.useMmapWrites
+                ? env.newMmapWritableFile(logFileName(dbName, number), options.logPreallocateSize)
+                : env.newWritableFile(logFileName(dbName, number), options.logPreallocateSize);
+    }
 
+    public com.ldb.log.Writer newLogWriter(WritableFile file, long number) {
+        // Once recycling is on any log may be written over an old one, so every log
+        // uses the format that tells its own records apart
+        return new com.ldb.log.Writer(file, 0, options.recycleLogFileNum > 0, number);
     }
 
     public Optional<MemTable> getMemTable() {
@@ -142,50 +794,72 @@ public class DBImpl implements DB {
     }
 
 
+    // REQUIRES: lock is held
+    // REQUIRES: this thread is currently at the front of the writer queue
     private Status makeRoomForWrite(boolean force) throws InterruptedException {
-        lock.lock();
-        try {
-            if (writers.isEmpty()) {
-                throw new IllegalStateException("No writer available");
-            }
-        } finally {
-            lock.unlock();
+        if (writers.isEmpty()) {
+            throw new IllegalStateException("No writer available");
         }
         boolean allowDelay = !force;
         while (true) {
             if (!bgError.isOk()) {
-                throw new IllegalStateException("background has an error: " + bgError.getEx());
+                // Yield previous error
+                return Status.of(bgError.getEx());
             }
-            if (allowDelay && versions.numLevelFiles(0) >= Config.kL0_SlowdownWritesTrigger) {
-                waitFor(1000);
+            writeController.update(versions.numLevelFiles(0), versions.pendingCompactionBytes(),
+                    imm == null ? 0 : 1, (double) mem.approximateMemoryUsage() / options.writeBufferSize);
+            if (allowDelay && writeController.isDelayed()) {
+                // We are getting close to hitting a hard limit. Rather than delaying
+                // a single write by several seconds when we hit the hard limit, pace
+                // writes at the controller's rate to reduce latency variance. The
+                // group pays for the bytes of the group before it.
+                long delay = writeController.delayNanos(lastBatchGroupSize);
+                if (delay > 0) {
+                    lock.unlock();
+                    try {
+                        LockSupport.parkNanos(delay);
+                    } finally {
+                        lock.lock();
+                    }
+                }
                 allowDelay = false; // Do not delay a single write more than once
             } else if (!force && mem.approximateMemoryUsage() <= options.writeBufferSize) {
                 break;
             } else if (imm != null) {
                 LOG.info("Current mem table full; waiting...\n");
-                backgroundWorkFinishedSignal.await();
-            } else if (versions.numLevelFiles(0) >= Config.kL0_StopWritesTrigger) {
-                LOG.info("Too many L0 files; waiting...\n");
-                backgroundWorkFinishedSignal.await();
+                awaitBackgroundWork();
+            } else if (writeController.isStopped()) {
+                LOG.info("Writes stopped ({}); waiting...\n", writeController.stallReason());
+                awaitBackgroundWork();
+            } else if (!memtableGroups.isEmpty()) {
+                // Pipelined groups still write into mem, let them finish before switching
+                memtableCv.await();
             } else {
                 assert(versions.prevLogNumber() == 0);
                 long newLogNumber = versions.newFileNumber();
                 WritableFile logFile;
                 try {
-                    logFile = env.newWritableFile(logFileName(dbName, newLogNumber));
+                    logFile = newLogFile(newLogNumber);
                 } catch (RuntimeException e) {
                     // Avoid chewing through file number space in a tight loop.
                     versions.reuseFileNumber(newLogNumber);
                     break;
                 }
-                try {
-                    this.logFile.close();
-                } catch (RuntimeException e) {
-                    recordBackgroundError(e);
+                if (logSyncer != null) {
+                    // Deferred writes in the old log must not wait for a sync that
+                    // never comes
+                    Status syncStatus = logSyncer.switchFile(logFile);
+                    if (!syncStatus.isOk()) {
+                        recordBackgroundError(syncStatus.getEx());
+                    }
+                }
+                Status closeStatus = this.logFile.close();
+                if (!closeStatus.isOk()) {
+                    recordBackgroundError(closeStatus.getEx());
                 }
                 this.logFile = logFile;
                 this.logFileNumber = newLogNumber;
-                log = new com.ldb.log.Writer(logFile);
+                log = newLogWriter(logFile, newLogNumber);
                 imm = mem;
                 hasImm.setRelease(true);
                 mem = new MemTable(internalComparator);
@@ -197,6 +871,43 @@ public class DBImpl implements DB {
         return Status.of(null);
     }
 
+    // Starts background log syncs if options ask for them.
+    // REQUIRES: the log is open and no write has started
+    public void startLogSyncer() {
+        if (options.logSyncIntervalMillis > 0) {
+            logSyncer = new LogSyncer(logFile, versions.lastSequence(), options.logSyncIntervalMillis,
+                    options.logSyncIntervalBytes, status -> {
+                lock.lock();
+                try {
+                    recordBackgroundError(status.getEx());
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+    }
+
+    // Syncs and closes the log and closes the tables, no write may be in
+    // progress or follow
+    public void close() {
+        shuttingDown.setRelease(true);
+        if (logSyncer != null) {
+            logSyncer.close();
+        }
+        Status status = logFile.close();
+        if (!status.isOk()) {
+            LOG.warn("Failed to close log {}: {}", logFileNumber, status.getEx().getMessage());
+        }
+        versions.tableCache().close();
+    }
+
+    // REQUIRES: lock is held
+    private void awaitBackgroundWork() throws InterruptedException {
+        long start = System.nanoTime();
+        backgroundWorkFinishedSignal.await();
+        writeController.recordStop(System.nanoTime() - start);
+    }
+
     public void maybeScheduleCompaction() {
         if (backgroundCompactionScheduled) {
             // Already scheduled
@@ -224,13 +935,34 @@ public class DBImpl implements DB {
         }
     }
 
-    public static WritableFile logFileName(String dbName, long newLogNumber) {
-        return null;
+    // Table files share Options.maxOpenFiles with the log, manifest and others
+    private static int tableCacheSize(Options options) {
+        return Math.max(options.maxOpenFiles - Config.kNumNonTableCacheFiles, 1);
+    }
+
+    public static String logFileName(String dbName, long number) {
+        assert (number > 0);
+        return String.format("%s/%06d.log", dbName, number);
     }
 
-    private void waitFor(long timeout) throws InterruptedException {
-        synchronized (this) {
-            this.wait(timeout);
+    public static String tableFileName(String dbName, long number) {
+        assert (number > 0);
+        return String.format("%s/%06d.ldb", dbName, number);
+    }
+
+    // Returns the number of a log file name as made by logFileName, or 0
+    static long parseLogNumber(String filename) {
+        if (!filename.endsWith(".log") || filename.length() == 4) {
+            return 0;
+        }
+        long number = 0;
+        for (int i = 0; i < filename.length() - 4; i++) {
+            char c = filename.charAt(i);
+            if (c < '0' || c > '9' || number > (Long.MAX_VALUE - 9) / 10) {
+                return 0;
+            }
+            number = number * 10 + (c - '0');
         }
+        return number;
     }
 }
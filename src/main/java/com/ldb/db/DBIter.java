@@ -0,0 +1,340 @@
+package com.ldb.db;
+
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.utils.BytewiseComparator;
+import com.ldb.utils.KeyValueIterator;
+
+import java.nio.ByteBuffer;
+
+// Memtables and sstables that make the DB representation contain
+// (userkey,seq,type) => uservalue entries.  DBIter combines multiple
+// entries for the same userkey found in the DB representation into a
+// single entry while accounting for sequence numbers, deletion markers,
+// overwrites, etc.
+class DBIter implements DBIterator {
+    // Which direction is the iterator currently moving?
+    // (1) When moving forward, the internal iterator is positioned at
+    //     the exact entry that yields this->key(), this->value()
+    // (2) When moving backwards, the internal iterator is positioned
+    //     just before all entries whose user key == this->key().
+    private enum Direction {
+        kForward,
+        kReverse
+    }
+
+    private final KeyValueIterator iter;
+    private final long sequence;
+    // User keys in [lowerBound, upperBound) are visible, null is unbounded
+    private final ByteBuffer lowerBound;
+    private final ByteBuffer upperBound;
+    // Unrefs what the iterator reads, run once by close()
+    private Runnable cleanup;
+
+    private Status status = Status.of(null);
+    private Direction direction = Direction.kForward;
+    private boolean valid;
+    // Current key when direction == kReverse, or the key being skipped
+    private final Saved savedKey = new Saved();
+    // Current value when direction == kReverse
+    private final Saved savedValue = new Saved();
+    private final Saved seekKey = new Saved();
+
+    DBIter(KeyValueIterator iter, long sequence, ReadOptions options, Runnable cleanup) {
+        this.iter = iter;
+        this.sequence = sequence;
+        this.lowerBound = options.getIterateLowerBound();
+        this.upperBound = options.getIterateUpperBound();
+        this.cleanup = cleanup;
+    }
+
+    // A growable copy of a key or value
+    private static class Saved {
+        private ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        private void set(ByteBuffer src, int offset, int length) {
+            if (buffer.capacity() < length) {
+                buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+            }
+            buffer.clear();
+            buffer.put(src.duplicate().limit(offset + length).position(offset));
+            buffer.flip();
+        }
+
+        private void clear() {
+            buffer.clear().limit(0);
+        }
+
+        private ByteBuffer view() {
+            return buffer.asReadOnlyBuffer();
+        }
+    }
+
+    @Override
+    public boolean valid() {
+        return valid;
+    }
+
+    private void checkValid() {
+        if (!valid) {
+            throw new IllegalStateException("Key is not valid");
+        }
+    }
+
+    @Override
+    public ByteBuffer key() {
+        checkValid();
+        if (direction == Direction.kForward) {
+            ByteBuffer ikey = iter.key().slice();
+            return ikey.limit(ikey.limit() - InternalKey.kTrailerSize).asReadOnlyBuffer();
+        }
+        return savedKey.view();
+    }
+
+    @Override
+    public ByteBuffer value() {
+        checkValid();
+        return direction == Direction.kForward ? iter.value().asReadOnlyBuffer() : savedValue.view();
+    }
+
+    @Override
+    public Status status() {
+        return status;
+    }
+
+    @Override
+    public void next() {
+        checkValid();
+        try {
+            if (direction == Direction.kReverse) {  // Switch directions?
+                direction = Direction.kForward;
+                // iter is pointing just before the entries for this->key(),
+                // so advance into the range of entries for this->key() and then
+                // use the normal skipping code below.
+                if (!iter.valid()) {
+                    iter.seekToFirst();
+                } else {
+                    iter.next();
+                }
+                if (!iter.valid()) {
+                    valid = false;
+                    savedKey.clear();
+                    return;
+                }
+                // savedKey already contains the key to skip past.
+            } else {
+                // Store in savedKey the current key so we skip it below.
+                saveUserKey(savedKey, iter.key());
+                // iter is pointing to current key. We can now safely move to the next to
+                // avoid checking current key.
+                iter.next();
+                if (!iter.valid()) {
+                    valid = false;
+                    savedKey.clear();
+                    return;
+                }
+            }
+            findNextUserEntry(true);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void findNextUserEntry(boolean skipping) {
+        // Loop until we hit an acceptable entry to yield
+        do {
+            ByteBuffer ikey = iter.key();
+            int userKeyLength = ikey.remaining() - InternalKey.kTrailerSize;
+            if (upperBound != null && compareUserKey(ikey, userKeyLength, upperBound) >= 0) {
+                // Everything after this is out of range as well
+                break;
+            }
+            long trailer = ikey.getLong(ikey.position() + userKeyLength);
+            if ((trailer >>> 8) <= sequence) {
+                if ((trailer & 0xff) == InternalKey.ValueType.kTypeDeletion.code()) {
+                    // Arrange to skip all upcoming entries for this key since
+                    // they are hidden by this deletion.
+                    saveUserKey(savedKey, ikey);
+                    skipping = true;
+                } else if (!skipping || compareUserKey(ikey, userKeyLength, savedKey.buffer) > 0) {
+                    valid = true;
+                    savedKey.clear();
+                    return;
+                }
+            }
+            iter.next();
+        } while (iter.valid());
+        savedKey.clear();
+        valid = false;
+    }
+
+    @Override
+    public void prev() {
+        checkValid();
+        try {
+            if (direction == Direction.kForward) {  // Switch directions?
+                // iter is pointing at the current entry.  Scan backwards until
+                // the key changes so we can use the normal reverse scanning code.
+                saveUserKey(savedKey, iter.key());
+                while (true) {
+                    iter.prev();
+                    if (!iter.valid()) {
+                        valid = false;
+                        savedKey.clear();
+                        savedValue.clear();
+                        return;
+                    }
+                    ByteBuffer ikey = iter.key();
+                    if (compareUserKey(ikey, ikey.remaining() - InternalKey.kTrailerSize, savedKey.buffer) < 0) {
+                        break;
+                    }
+                }
+                direction = Direction.kReverse;
+            }
+            findPrevUserEntry();
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void findPrevUserEntry() {
+        boolean deleted = true;
+        if (iter.valid()) {
+            do {
+                ByteBuffer ikey = iter.key();
+                int userKeyLength = ikey.remaining() - InternalKey.kTrailerSize;
+                if (lowerBound != null && compareUserKey(ikey, userKeyLength, lowerBound) < 0) {
+                    // Everything before this is out of range as well
+                    break;
+                }
+                long trailer = ikey.getLong(ikey.position() + userKeyLength);
+                if ((trailer >>> 8) <= sequence) {
+                    if (!deleted && compareUserKey(ikey, userKeyLength, savedKey.buffer) < 0) {
+                        // We encountered a non-deleted value in entries for previous keys,
+                        break;
+                    }
+                    deleted = (trailer & 0xff) == InternalKey.ValueType.kTypeDeletion.code();
+                    if (deleted) {
+                        savedKey.clear();
+                        savedValue.clear();
+                    } else {
+                        saveUserKey(savedKey, ikey);
+                        ByteBuffer value = iter.value();
+                        savedValue.set(value, value.position(), value.remaining());
+                    }
+                }
+                iter.prev();
+            } while (iter.valid());
+        }
+
+        if (deleted) {
+            // End
+            valid = false;
+            savedKey.clear();
+            savedValue.clear();
+            direction = Direction.kForward;
+        } else {
+            valid = true;
+        }
+    }
+
+    @Override
+    public void seek(ByteBuffer target) {
+        if (lowerBound != null && BytewiseComparator.compare(target, target.position(), target.remaining(),
+                lowerBound, lowerBound.position(), lowerBound.remaining()) < 0) {
+            target = lowerBound;
+        }
+        direction = Direction.kForward;
+        savedKey.clear();
+        savedValue.clear();
+        try {
+            iter.seek(internalKey(target, sequence));
+            if (iter.valid()) {
+                findNextUserEntry(false);
+            } else {
+                valid = false;
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void seekToFirst() {
+        if (lowerBound != null) {
+            seek(lowerBound);
+            return;
+        }
+        direction = Direction.kForward;
+        savedValue.clear();
+        try {
+            iter.seekToFirst();
+            if (iter.valid()) {
+                findNextUserEntry(false);
+            } else {
+                valid = false;
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void seekToLast() {
+        direction = Direction.kReverse;
+        savedValue.clear();
+        try {
+            if (upperBound != null) {
+                // The first entry of the bound sorts before every other entry of that
+                // user key, the one before it is the last in range
+                iter.seek(internalKey(upperBound, InternalKey.kMaxSequenceNumber));
+                if (iter.valid()) {
+                    iter.prev();
+                } else {
+                    iter.seekToLast();
+                }
+            } else {
+                iter.seekToLast();
+            }
+            findPrevUserEntry();
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (cleanup != null) {
+            iter.close();
+            cleanup.run();
+            cleanup = null;
+        }
+    }
+
+    private ByteBuffer internalKey(ByteBuffer userKey, long sequence) {
+        int length = InternalKey.encodedLength(userKey);
+        if (seekKey.buffer.capacity() < length) {
+            seekKey.buffer = ByteBuffer.allocate(Math.max(length, seekKey.buffer.capacity() * 2));
+        }
+        ByteBuffer buffer = seekKey.buffer;
+        buffer.clear();
+        InternalKey.encodeTo(buffer, 0, userKey, sequence, InternalKey.ValueType.kValueTypeForSeek);
+        buffer.limit(length).position(0);
+        return buffer;
+    }
+
+    private static void saveUserKey(Saved saved, ByteBuffer ikey) {
+        saved.set(ikey, ikey.position(), ikey.remaining() - InternalKey.kTrailerSize);
+    }
+
+    private static int compareUserKey(ByteBuffer ikey, int userKeyLength, ByteBuffer userKey) {
+        return BytewiseComparator.compare(ikey, ikey.position(), userKeyLength,
+                userKey, userKey.position(), userKey.remaining());
+    }
+
+    private void fail(RuntimeException e) {
+        if (status.isOk()) {
+            status = Status.of(e);
+        }
+        valid = false;
+    }
+}
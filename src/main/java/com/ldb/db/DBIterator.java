@@ -0,0 +1,16 @@
+package com.ldb.db;
+
+import com.ldb.utils.KeyValueIterator;
+
+// Iterates the user keys of a DB in order, with the newest value of each key
+// visible at the iterator's snapshot. Keys and values are read-only views,
+// valid until the iterator moves. The memtables and files the iterator reads
+// stay alive until close(), which must be called.
+public interface DBIterator extends KeyValueIterator {
+
+    // OK unless reading failed, in which case the iterator is no longer valid
+    Status status();
+
+    @Override
+    void close();
+}
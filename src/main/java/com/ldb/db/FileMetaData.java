@@ -1,7 +1,14 @@
 package com.ldb.db;
 
+import com.ldb.db.memtable.InternalKey;
+import lombok.Data;
+
+@Data
 public class FileMetaData {
-    public int size() {
-        return 0;
-    }
+    private int refs;
+    private int allowedSeeks = 1 << 30;  // Seeks allowed until compaction
+    private long number;
+    private long fileSize;               // File size in bytes
+    private InternalKey smallest;        // Smallest internal key served by table
+    private InternalKey largest;         // Largest internal key served by table
 }
@@ -0,0 +1,140 @@
+package com.ldb.db;
+
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.utils.BytewiseComparator;
+import com.ldb.utils.KeyValueIterator;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Iterates the sorted, non-overlapping files of one level as one sequence,
+// opening a file only when the iteration reaches it. A file that starts at or
+// after the upper bound (ends before the lower bound when moving backward) is
+// never opened, so a bounded scan does not read past its range.
+class LevelIterator implements KeyValueIterator {
+    private final ReadOptions options;
+    private final List<FileMetaData> files;
+    private final TableCache tableCache;
+    private int index;
+    private KeyValueIterator fileIter;  // Iterator of files[index], null when invalid
+
+    LevelIterator(ReadOptions options, List<FileMetaData> files, TableCache tableCache) {
+        this.options = options;
+        this.files = files;
+        this.tableCache = tableCache;
+        this.index = files.size();
+    }
+
+    @Override
+    public boolean valid() {
+        return fileIter != null && fileIter.valid();
+    }
+
+    private KeyValueIterator checkValid() {
+        if (!valid()) {
+            throw new IllegalStateException("Key is not valid");
+        }
+        return fileIter;
+    }
+
+    @Override
+    public ByteBuffer key() {
+        return checkValid().key();
+    }
+
+    @Override
+    public ByteBuffer value() {
+        return checkValid().value();
+    }
+
+    @Override
+    public void next() {
+        checkValid().next();
+        skipEmptyFilesForward();
+    }
+
+    @Override
+    public void prev() {
+        checkValid().prev();
+        skipEmptyFilesBackward();
+    }
+
+    @Override
+    public void seek(ByteBuffer target) {
+        if (openFile(Version.findFile(files, target.slice(), target.remaining()), true)) {
+            fileIter.seek(target);
+        }
+        skipEmptyFilesForward();
+    }
+
+    @Override
+    public void seekToFirst() {
+        if (openFile(0, true)) {
+            fileIter.seekToFirst();
+        }
+        skipEmptyFilesForward();
+    }
+
+    @Override
+    public void seekToLast() {
+        if (openFile(files.size() - 1, false)) {
+            fileIter.seekToLast();
+        }
+        skipEmptyFilesBackward();
+    }
+
+    @Override
+    public void close() {
+        setFileIter(null);
+    }
+
+    private void skipEmptyFilesForward() {
+        while (fileIter != null && !fileIter.valid()) {
+            if (openFile(index + 1, true)) {
+                fileIter.seekToFirst();
+            }
+        }
+    }
+
+    private void skipEmptyFilesBackward() {
+        while (fileIter != null && !fileIter.valid()) {
+            if (openFile(index - 1, false)) {
+                fileIter.seekToLast();
+            }
+        }
+    }
+
+    // Opens files[i] unless it is out of range or outside the bound in the
+    // direction of movement, returns whether it did
+    private boolean openFile(int i, boolean forward) {
+        if (i < 0 || i >= files.size() || outOfBounds(files.get(i), forward)) {
+            index = i;
+            setFileIter(null);
+            return false;
+        }
+        if (i != index || fileIter == null) {
+            FileMetaData f = files.get(i);
+            index = i;
+            setFileIter(tableCache.newIterator(options, f.getNumber(), f.getFileSize()));
+        }
+        return true;
+    }
+
+    private boolean outOfBounds(FileMetaData f, boolean forward) {
+        ByteBuffer bound = forward ? options.getIterateUpperBound() : options.getIterateLowerBound();
+        if (bound == null) {
+            return false;
+        }
+        ByteBuffer rep = (forward ? f.getSmallest() : f.getLargest()).getRep();
+        int r = BytewiseComparator.compare(rep, 0, rep.capacity() - InternalKey.kTrailerSize,
+                bound, bound.position(), bound.remaining());
+        return forward ? r >= 0 : r < 0;
+    }
+
+    private void setFileIter(KeyValueIterator iter) {
+        if (fileIter != null) {
+            fileIter.close();
+        }
+        fileIter = iter;
+    }
+}
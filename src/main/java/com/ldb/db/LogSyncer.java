@@ -0,0 +1,272 @@
+package com.ldb.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Syncs the current log from its own thread once it has unsynced data that is
+// intervalMillis old or intervalBytes large, and completes the futures of
+// deferred writes the sync covered. Write leaders only report what they appended
+// and never wait for a sync here.
+class LogSyncer {
+    private final long intervalNanos;
+    private final long intervalBytes;
+    // Told about sync failures, the log is in an unknown state afterwards
+    private final Consumer<Status> onError;
+    private final Thread thread;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private final Condition syncDone = lock.newCondition();
+    // Everything below is guarded by lock
+    private WritableFile file;
+    private long appendedSequence;  // Last sequence in the log
+    private long syncedSequence;    // Last sequence known to be durable
+    private long unsyncedBytes;
+    private long dirtySince;        // System.nanoTime() of the first unsynced append
+    private boolean syncing;        // file.sync() is running without lock held
+    private boolean closed;
+    private Status error = Status.of(null);
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final long sequence;
+        private final CompletableFuture<Status> future = new CompletableFuture<>();
+
+        private Waiter(long sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+
+    LogSyncer(WritableFile file, long lastSequence, long intervalMillis, long intervalBytes, Consumer<Status> onError) {
+        this.file = file;
+        this.appendedSequence = lastSequence;
+        this.syncedSequence = lastSequence;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.intervalBytes = intervalBytes;
+        this.onError = onError;
+        this.thread = new Thread(this::run, "ldb-log-syncer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // The log now holds records through lastSequence, "bytes" of them unsynced.
+    // REQUIRES: called by the thread that appended, in log order
+    void appended(long lastSequence, long bytes) {
+        lock.lock();
+        try {
+            boolean wasClean = unsyncedBytes == 0;
+            if (wasClean) {
+                dirtySince = System.nanoTime();
+            }
+            appendedSequence = lastSequence;
+            unsyncedBytes += bytes;
+            // Start the interval timer, or sync now
+            if (wasClean || unsyncedBytes >= intervalBytes) {
+                work.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The appender synced the log itself through lastSequence
+    void synced(long lastSequence) {
+        List<Waiter> ready;
+        lock.lock();
+        try {
+            // A running sync subtracts the bytes it covers once it is done, let
+            // it finish before the count is cleared
+            while (syncing) {
+                syncDone.awaitUninterruptibly();
+            }
+            appendedSequence = lastSequence;
+            unsyncedBytes = 0;
+            ready = advance(lastSequence);
+        } finally {
+            lock.unlock();
+        }
+        complete(ready, Status.of(null));
+    }
+
+    // Returns a future completed with the status of the first sync covering "sequence"
+    CompletableFuture<Status> waitFor(long sequence) {
+        lock.lock();
+        try {
+            if (sequence <= syncedSequence) {
+                return CompletableFuture.completedFuture(Status.of(null));
+            }
+            if (!error.isOk() || closed) {
+                return CompletableFuture.completedFuture(closed && error.isOk()
+                        ? Status.of(new IllegalStateException("log syncer is closed")) : error);
+            }
+            Waiter waiter = new Waiter(sequence);
+            waiters.add(waiter);
+            return waiter.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes everything in the current log durable before the caller closes it,
+    // later appends go to newFile.
+    // REQUIRES: called by the thread that appends
+    Status switchFile(WritableFile newFile) {
+        Status status = Status.of(null);
+        List<Waiter> ready;
+        lock.lock();
+        try {
+            while (syncing) {
+                syncDone.awaitUninterruptibly();
+            }
+            WritableFile old = file;
+            file = newFile;
+            if (!error.isOk()) {
+                return error;
+            }
+            if (unsyncedBytes > 0) {
+                status = old.sync();
+            }
+            if (!status.isOk()) {
+                return fail(status);
+            }
+            unsyncedBytes = 0;
+            ready = advance(appendedSequence);
+        } finally {
+            lock.unlock();
+        }
+        complete(ready, status);
+        return status;
+    }
+
+    // Syncs what is left and stops the thread
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            WritableFile target;
+            long sequence;
+            long bytes;
+            lock.lock();
+            try {
+                while (!closed && error.isOk() && !due()) {
+                    if (unsyncedBytes == 0) {
+                        work.awaitUninterruptibly();
+                    } else {
+                        work.awaitNanos(intervalNanos - (System.nanoTime() - dirtySince));
+                    }
+                }
+                if (unsyncedBytes == 0 || !error.isOk()) {
+                    if (closed || !error.isOk()) {
+                        break;
+                    }
+                    continue;
+                }
+                target = file;
+                sequence = appendedSequence;
+                bytes = unsyncedBytes;
+                syncing = true;
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            Status status = target.sync();
+            List<Waiter> ready;
+            lock.lock();
+            try {
+                syncing = false;
+                syncDone.signalAll();
+                if (!status.isOk()) {
+                    ready = null;
+                    fail(status);
+                } else {
+                    // Appends made while syncing stay unsynced
+                    unsyncedBytes -= bytes;
+                    if (unsyncedBytes > 0) {
+                        dirtySince = System.nanoTime();
+                    }
+                    ready = advance(sequence);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (ready != null) {
+                complete(ready, status);
+            } else {
+                onError.accept(status);
+            }
+        }
+        // Nothing can be synced any more
+        List<Waiter> rest;
+        Status status;
+        lock.lock();
+        try {
+            rest = new ArrayList<>(waiters);
+            waiters.clear();
+            status = error.isOk() ? Status.of(new IllegalStateException("log syncer is closed")) : error;
+        } finally {
+            lock.unlock();
+        }
+        complete(rest, status);
+    }
+
+    // REQUIRES: lock is held
+    private boolean due() {
+        return unsyncedBytes > 0
+                && (unsyncedBytes >= intervalBytes || System.nanoTime() - dirtySince >= intervalNanos);
+    }
+
+    // REQUIRES: lock is held
+    private List<Waiter> advance(long sequence) {
+        if (sequence > syncedSequence) {
+            syncedSequence = sequence;
+        }
+        List<Waiter> ready = new ArrayList<>();
+        while (!waiters.isEmpty() && waiters.peek().sequence <= syncedSequence) {
+            ready.add(waiters.poll());
+        }
+        return ready;
+    }
+
+    // REQUIRES: lock is held
+    private Status fail(Status status) {
+        if (error.isOk()) {
+            error = status;
+        }
+        work.signal();
+        return status;
+    }
+
+    // Outside lock, futures run their dependents on this thread
+    private static void complete(List<Waiter> ready, Status status) {
+        for (Waiter waiter : ready) {
+            waiter.future.complete(status);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.ldb.db;
+
+import com.ldb.db.memtable.InternalKeyComparator;
+import com.ldb.utils.KeyValueIterator;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// Merges children that are each sorted by internal key into one sorted stream.
+// The children are kept in a binary heap ordered by their current key: a min
+// heap while moving forward and a max heap while moving backward, so a step
+// costs O(log n) comparisons for n children instead of a scan over all of them.
+// Entries are not deduplicated, equal user keys come out newest first.
+class MergingIterator implements KeyValueIterator {
+    private static final InternalKeyComparator icmp = new InternalKeyComparator();
+
+    private final Child[] children;
+    // heap[0, size) holds the valid children, heap[0] is the current one
+    private final Child[] heap;
+    private int size;
+    private boolean reverse;
+
+    MergingIterator(List<? extends KeyValueIterator> children) {
+        this.children = new Child[children.size()];
+        for (int i = 0; i < this.children.length; i++) {
+            this.children[i] = new Child(children.get(i));
+        }
+        this.heap = new Child[this.children.length];
+    }
+
+    // Caches the key of a child, the heap compares it at every step
+    private static class Child {
+        private final KeyValueIterator iter;
+        private ByteBuffer key;
+
+        private Child(KeyValueIterator iter) {
+            this.iter = iter;
+        }
+
+        private void update() {
+            key = iter.valid() ? iter.key() : null;
+        }
+    }
+
+    @Override
+    public boolean valid() {
+        return size > 0;
+    }
+
+    private Child current() {
+        if (size == 0) {
+            throw new IllegalStateException("Key is not valid");
+        }
+        return heap[0];
+    }
+
+    @Override
+    public ByteBuffer key() {
+        return current().key;
+    }
+
+    @Override
+    public ByteBuffer value() {
+        return current().iter.value();
+    }
+
+    @Override
+    public void next() {
+        Child current = current();
+        // Ensure that all children are positioned after key(). If we are moving
+        // in the forward direction, it is already true for all of the non-current
+        // children since current is the smallest child and key() == current.key.
+        // Otherwise, we explicitly position the non-current children.
+        if (reverse) {
+            for (Child child : children) {
+                if (child != current) {
+                    child.iter.seek(current.key);
+                    if (child.iter.valid() && compare(current.key, child.iter.key()) == 0) {
+                        child.iter.next();
+                    }
+                    child.update();
+                }
+            }
+            reverse = false;
+            rebuild();
+        }
+        current.iter.next();
+        current.update();
+        fixTop();
+    }
+
+    @Override
+    public void prev() {
+        Child current = current();
+        // Ensure that all children are positioned before key(), see next()
+        if (!reverse) {
+            for (Child child : children) {
+                if (child != current) {
+                    child.iter.seek(current.key);
+                    if (child.iter.valid()) {
+                        // Child is at first entry >= key(). Step back one to be < key()
+                        child.iter.prev();
+                    } else {
+                        // Child has no entries >= key(). Position at last entry.
+                        child.iter.seekToLast();
+                    }
+                    child.update();
+                }
+            }
+            reverse = true;
+            rebuild();
+        }
+        current.iter.prev();
+        current.update();
+        fixTop();
+    }
+
+    @Override
+    public void seek(ByteBuffer target) {
+        for (Child child : children) {
+            child.iter.seek(target);
+            child.update();
+        }
+        reverse = false;
+        rebuild();
+    }
+
+    @Override
+    public void seekToFirst() {
+        for (Child child : children) {
+            child.iter.seekToFirst();
+            child.update();
+        }
+        reverse = false;
+        rebuild();
+    }
+
+    @Override
+    public void seekToLast() {
+        for (Child child : children) {
+            child.iter.seekToLast();
+            child.update();
+        }
+        reverse = true;
+        rebuild();
+    }
+
+    @Override
+    public void close() {
+        for (Child child : children) {
+            child.iter.close();
+        }
+        size = 0;
+    }
+
+    private static int compare(ByteBuffer a, ByteBuffer b) {
+        return icmp.compare(a, a.position(), a.remaining(), b, b.position(), b.remaining());
+    }
+
+    // a comes out before b in the current direction
+    private boolean before(Child a, Child b) {
+        int r = compare(a.key, b.key);
+        return reverse ? r > 0 : r < 0;
+    }
+
+    private void rebuild() {
+        size = 0;
+        for (Child child : children) {
+            if (child.key != null) {
+                heap[size++] = child;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    // The top child moved, drop it if it ran out and restore the heap order
+    private void fixTop() {
+        if (heap[0].key == null) {
+            heap[0] = heap[--size];
+            heap[size] = null;
+        }
+        if (size > 1) {
+            siftDown(0);
+        }
+    }
+
+    private void siftDown(int i) {
+        Child child = heap[i];
+        while (true) {
+            int smallest = 2 * i + 1;
+            if (smallest >= size) {
+                break;
+            }
+            if (smallest + 1 < size && before(heap[smallest + 1], heap[smallest])) {
+                smallest++;
+            }
+            if (!before(heap[smallest], child)) {
+                break;
+            }
+            heap[i] = heap[smallest];
+            i = smallest;
+        }
+        heap[i] = child;
+    }
+}
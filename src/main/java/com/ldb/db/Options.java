@@ -1,11 +1,64 @@
 package com.ldb.db;
 
 import com.ldb.Env;
+import com.ldb.utils.cache.Cache;
+import com.ldb.utils.filter.FilterPolicy;
+
+import java.nio.ByteBuffer;
 
 public class Options {
     public int writeBufferSize = 4 * 1024 * 1024;
+    // Split each write into a log stage and a memtable stage with their own leader,
+    // so the next group's log write overlaps the previous group's memtable insert.
+    public boolean enablePipelinedWrite = false;
+    // Once a group is in the log, each of its writers inserts its own batch into
+    // the memtable, all at once, instead of the leader inserting the whole group.
+    // Applies to write groups that are not pipelined.
+    public boolean allowConcurrentMemtableWrite = true;
+    // Keep up to this many obsolete log files and write new logs over them
+    // instead of creating files. 0 disables recycling.
+    public int recycleLogFileNum = 0;
+    // Size new log files up front so appends do not extend the file. A little
+    // over writeBufferSize covers one memtable. 0 disables preallocation.
+    public long logPreallocateSize = 0;
+    // Append to the log through a memory mapping instead of a write per record
+    public boolean useMmapWrites = false;
+    // Sync the log from a background thread once unsynced data is this old or
+    // this large, for DB.writeDeferred. 0 disables the thread and deferred
+    // writes sync like sync writes.
+    public long logSyncIntervalMillis = 0;
+    public long logSyncIntervalBytes = 1 << 20;
+    // Write rate in bytes/s when background work starts falling behind, it is
+    // lowered further as the backlog nears the point where writes stop.
+    public long delayedWriteRate = 16 << 20;
+
+    // Approximate size of user data packed per table block, before the block
+    // trailer
+    public int blockSize = 4096;
+    // Number of keys between restart points for delta encoding of keys
+    public int blockRestartInterval = 16;
+    // Tables get a filter block built by this policy from the user keys of
+    // each 2KB of data, null leaves them without
+    public FilterPolicy<ByteBuffer> filterPolicy = null;
+    // Read tables through a read-only mapping of each file, blocks are views of
+    // the page cache. Turn off where address space or page cache is short, tables
+    // are then read with positional reads into heap buffers.
+    public boolean useMmapReads = true;
+    // Number of open files that can be used by the DB, all but a few of them
+    // table files whose index and filter stay parsed while open
+    public int maxOpenFiles = 1000;
+    // Uncompressed data blocks of tables read with positional reads are kept
+    // here, charged by their size. Mapped tables do not need it, their blocks
+    // stay in the page cache. null caches nothing. An LRUCache keeps blocks on
+    // the heap, a ClockCache keeps them off it for caches of many GB.
+    public Cache<ByteBuffer> blockCache = null;
+    // Keep index and filter blocks in blockCache at high priority instead of
+    // holding them for as long as the table is open
+    public boolean cacheIndexAndFilterBlocks = false;
+
+    public Env env = new Env();
 
     public Env getEnv() {
-        return null;
+        return env;
     }
 }
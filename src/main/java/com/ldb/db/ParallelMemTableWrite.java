@@ -0,0 +1,55 @@
+package com.ldb.db;
+
+import com.ldb.db.memtable.MemTable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// A write group whose writers insert their own batches into mem at the same
+// time, once the leader has put the whole group in the log. The leader waits
+// for the last insert before it publishes the group's sequence, so readers
+// never see part of a group.
+class ParallelMemTableWrite {
+    private final MemTable mem;
+    private final Thread leader = Thread.currentThread();
+    private final AtomicInteger running;
+    private final AtomicReference<Status> error = new AtomicReference<>();
+
+    // REQUIRES: called by the leader, "writers" of the group will call insert
+    ParallelMemTableWrite(MemTable mem, int writers) {
+        this.mem = mem;
+        this.running = new AtomicInteger(writers);
+    }
+
+    // Inserts the batch of w, the leader has set its sequence
+    void insert(Writer w) {
+        Status status = Status.of(null);
+        try {
+            status = WriteBatchInternal.insertInto(w.getBatch(), mem, true);
+        } catch (RuntimeException e) {
+            status = Status.of(e);
+        } catch (Throwable e) {
+            // Errors too, or the leader waits for this writer forever
+            status = DBImpl.statusOf(e);
+            throw e;
+        } finally {
+            if (!status.isOk()) {
+                error.compareAndSet(null, status);
+            }
+            if (running.decrementAndGet() == 0) {
+                LockSupport.unpark(leader);
+            }
+        }
+    }
+
+    // REQUIRES: called by the leader
+    // Waits until every writer has inserted, returns the first failure if any
+    Status await() {
+        while (running.get() > 0) {
+            LockSupport.park(this);
+        }
+        Status status = error.get();
+        return status == null ? Status.of(null) : status;
+    }
+}
@@ -0,0 +1,80 @@
+package com.ldb.db;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+// Yields copies of the entries of partitions [from, to), each read with its own
+// iterator. Splitting hands the first half of the partitions not yet started to
+// the new spliterator, so a parallel stream scans partitions on different threads and
+// keeps them in key order.
+class PartitionSpliterator implements Spliterator<Map.Entry<ByteBuffer, ByteBuffer>> {
+    private final IntFunction<DBIterator> openPartition;
+    private int from;
+    private final int to;
+    private DBIterator iter;  // Iterator of partition from - 1, null between partitions
+
+    PartitionSpliterator(IntFunction<DBIterator> openPartition, int from, int to) {
+        this.openPartition = openPartition;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<ByteBuffer, ByteBuffer>> action) {
+        while (true) {
+            if (iter == null) {
+                if (from == to) {
+                    return false;
+                }
+                iter = openPartition.apply(from++);
+                iter.seekToFirst();
+            }
+            if (iter.valid()) {
+                Map.Entry<ByteBuffer, ByteBuffer> entry =
+                        new AbstractMap.SimpleImmutableEntry<>(copy(iter.key()), copy(iter.value()));
+                iter.next();
+                action.accept(entry);
+                return true;
+            }
+            Status status = iter.status();
+            iter.close();
+            iter = null;
+            if (!status.isOk()) {
+                throw status.getEx();
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<Map.Entry<ByteBuffer, ByteBuffer>> trySplit() {
+        // The prefix goes to the new spliterator, a partition in progress can not
+        int remaining = to - from;
+        if (remaining < 2 || iter != null) {
+            return null;
+        }
+        int mid = from + remaining / 2;
+        PartitionSpliterator split = new PartitionSpliterator(openPartition, from, mid);
+        from = mid;
+        return split;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+
+    private static ByteBuffer copy(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+}
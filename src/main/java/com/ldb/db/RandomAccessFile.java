@@ -0,0 +1,19 @@
+package com.ldb.db;
+
+import java.nio.ByteBuffer;
+
+// A file abstraction for randomly reading the contents of a file, safe for
+// concurrent use by multiple threads. Failures surface as UncheckedIOException.
+public interface RandomAccessFile {
+
+    // Returns up to n bytes starting at "offset" in [position, limit), fewer
+    // only when the file ends first. A mapped file returns a read-only view of
+    // the mapping, others read into a new buffer.
+    ByteBuffer read(long offset, int n);
+
+    // Whether read() returns views of a mapping rather than copies, which are
+    // as cheap to read again as to keep
+    boolean isMapped();
+
+    Status close();
+}
@@ -0,0 +1,84 @@
+package com.ldb.db;
+
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.utils.BytewiseComparator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Splits the user key range [lower, upper) into sub-ranges holding about the
+// same amount of data. Where the data lies is told by weighted samples: the
+// boundaries of table files weighted by file size, keys sampled from the
+// memtables weighted by their share of the memtable. Bounds are null when the
+// range is open on that side.
+class RangePartitioner {
+    private final ByteBuffer lower;
+    private final ByteBuffer upper;
+    private final List<Sample> samples = new ArrayList<>();
+
+    private static class Sample {
+        private final ByteBuffer userKey;
+        private final double weight;
+
+        private Sample(ByteBuffer userKey, double weight) {
+            this.userKey = userKey;
+            this.weight = weight;
+        }
+    }
+
+    RangePartitioner(ByteBuffer lower, ByteBuffer upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    // Records "weight" bytes of data ending near internal key ikey, ikey is not copied
+    void add(ByteBuffer ikey, double weight) {
+        ByteBuffer userKey = ikey.duplicate();
+        userKey.limit(userKey.limit() - InternalKey.kTrailerSize);
+        userKey = userKey.slice();
+        if ((lower == null || compare(userKey, lower) >= 0) && (upper == null || compare(userKey, upper) < 0)) {
+            samples.add(new Sample(userKey, weight));
+        }
+    }
+
+    // Returns the boundaries of at most "partitions" sub-ranges: lower, the split
+    // points in increasing order, then upper. Partition i is [b[i], b[i + 1]).
+    // Split points are copies and never equal to one another or to lower.
+    List<ByteBuffer> split(int partitions) {
+        samples.sort((a, b) -> compare(a.userKey, b.userKey));
+        double total = 0;
+        for (Sample sample : samples) {
+            total += sample.weight;
+        }
+        List<ByteBuffer> bounds = new ArrayList<>();
+        bounds.add(lower);
+        double sum = 0;
+        int next = 1;
+        ByteBuffer last = lower;
+        for (Sample sample : samples) {
+            if (next >= partitions) {
+                break;
+            }
+            // A split at a sample puts its weight in the partition it starts
+            if (sum >= total * next / partitions && (last == null || compare(sample.userKey, last) > 0)) {
+                last = copy(sample.userKey);
+                bounds.add(last);
+                next++;
+            }
+            sum += sample.weight;
+        }
+        bounds.add(upper);
+        return bounds;
+    }
+
+    private static int compare(ByteBuffer a, ByteBuffer b) {
+        return BytewiseComparator.compare(a, a.position(), a.remaining(), b, b.position(), b.remaining());
+    }
+
+    private static ByteBuffer copy(ByteBuffer src) {
+        ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+        copy.put(src.duplicate()).flip();
+        return copy.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,28 @@
+package com.ldb.db;
+
+import lombok.Data;
+
+import java.nio.ByteBuffer;
+
+@Data
+public class ReadOptions {
+    // If true, all data read from underlying storage will be
+    // verified against corresponding checksums.
+    private boolean verifyChecksums = false;
+    // Should the data read for this iteration be cached in memory?
+    // Callers may wish to set this field to false for bulk scans.
+    private boolean fillCache = true;
+    // If "snapshot" is non-null, read as of the supplied snapshot
+    // (which must belong to the DB that is being read and which must
+    // not have been released).  If "snapshot" is null, use an implicit
+    // snapshot of the state at the beginning of this read operation.
+    private Snapshot snapshot = null;
+    // Iterators stop before user keys >= iterateUpperBound and after user keys
+    // < iterateLowerBound, and do not open files outside that range. null
+    // leaves the side unbounded.
+    private ByteBuffer iterateLowerBound = null;
+    private ByteBuffer iterateUpperBound = null;
+    // Bytes table files read ahead of an iterator once it has read sequentially
+    // for a while, 0 turns readahead off. Point lookups never read ahead.
+    private int readaheadSize = 256 << 10;
+}
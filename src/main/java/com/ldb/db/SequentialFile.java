@@ -0,0 +1,17 @@
+package com.ldb.db;
+
+import java.nio.ByteBuffer;
+
+// A file abstraction for reading sequentially through a file
+public interface SequentialFile {
+
+    // Reads into dst until it is full or the end of the file is reached, so on
+    // success fewer than dst.remaining() bytes means end of file.
+    Status read(ByteBuffer dst);
+
+    // Skip n bytes from the file. This is guaranteed to be no slower than
+    // reading the same data, but may be faster.
+    Status skip(long n);
+
+    Status close();
+}
@@ -0,0 +1,18 @@
+package com.ldb.db;
+
+// A consistent read-only view of the DB at one sequence number. Kept in the
+// DB's SnapshotList until released.
+public class Snapshot {
+    private final long sequenceNumber;
+    // Linked in SnapshotList, guarded by the DB lock
+    Snapshot prev;
+    Snapshot next;
+
+    Snapshot(long sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+    }
+
+    public long sequenceNumber() {
+        return sequenceNumber;
+    }
+}
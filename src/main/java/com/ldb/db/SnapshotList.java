@@ -0,0 +1,46 @@
+package com.ldb.db;
+
+// Snapshots in creation order, so in increasing sequence order, as a circular
+// doubly-linked list around a dummy head. Guarded by the DB lock.
+class SnapshotList {
+    private final Snapshot head = new Snapshot(0);
+
+    SnapshotList() {
+        head.prev = head;
+        head.next = head;
+    }
+
+    boolean isEmpty() {
+        return head.next == head;
+    }
+
+    Snapshot oldest() {
+        assert (!isEmpty());
+        return head.next;
+    }
+
+    Snapshot newest() {
+        assert (!isEmpty());
+        return head.prev;
+    }
+
+    // Creates a snapshot and appends it to the end of the list
+    Snapshot newSnapshot(long sequenceNumber) {
+        assert (isEmpty() || newest().sequenceNumber() <= sequenceNumber);
+        Snapshot snapshot = new Snapshot(sequenceNumber);
+        snapshot.next = head;
+        snapshot.prev = head.prev;
+        snapshot.prev.next = snapshot;
+        snapshot.next.prev = snapshot;
+        return snapshot;
+    }
+
+    // Removes a snapshot from this list.
+    // REQUIRES: snapshot was returned by newSnapshot on this list and is not released
+    void delete(Snapshot snapshot) {
+        snapshot.prev.next = snapshot.next;
+        snapshot.next.prev = snapshot.prev;
+        snapshot.prev = null;
+        snapshot.next = null;
+    }
+}
@@ -0,0 +1,163 @@
+package com.ldb.db;
+
+import com.ldb.Env;
+import com.ldb.db.memtable.LookupKey;
+import com.ldb.db.memtable.LookupResult;
+import com.ldb.table.Table;
+import com.ldb.utils.KeyValueIterator;
+import com.ldb.utils.cache.Cache;
+import com.ldb.utils.cache.LRUCache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps up to "entries" tables open, keyed by file number, with their footer,
+// index and filter parsed. The least recently used table is closed to make room
+// once no read uses it any more. Values handed out stay valid after the table
+// is closed, see RandomAccessFile.read.
+// Blocks in options.blockCache are cached under an id made of this cache's own
+// id from the block cache and the file number.
+public class TableCache {
+    private final String dbName;
+    private final Options options;
+    private final Env env;
+    private final long cacheIdBase;
+    private final Cache<Table> cache;
+    // Opens under way. A read that misses the cache while the file is being
+    // opened waits for that open instead of starting its own.
+    private final ConcurrentHashMap<Long, CompletableFuture<Void>> opening = new ConcurrentHashMap<>();
+
+    public TableCache(String dbName, Options options, int entries) {
+        this.dbName = dbName;
+        this.options = options;
+        this.env = options.getEnv();
+        // Ids from newId() stay far below 2^40, so these do not collide with
+        // the ids of tables opened elsewhere
+        this.cacheIdBase = options.blockCache == null ? 0 : options.blockCache.newId() << 40;
+        this.cache = new LRUCache<>(entries, shardBits(entries), 0, Table::close);
+    }
+
+    // Up to 16 shards of at least 64 tables each. Shards round their share of
+    // the entries up, so the cache may hold a few more.
+    private static int shardBits(int entries) {
+        int bits = 0;
+        while (bits < 4 && (entries >> (bits + 1)) >= 64) {
+            bits++;
+        }
+        return bits;
+    }
+
+    // Seeks to the first entry at or after key in the file and hands it to
+    // result.save
+    public void get(ReadOptions options, long fileNumber, long fileSize, LookupKey key, LookupResult result) {
+        Cache.Handle handle = findTable(fileNumber, fileSize);
+        try {
+            cache.value(handle).get(options, key, result);
+        } finally {
+            cache.release(handle);
+        }
+    }
+
+    // Returns an iterator over the internal keys of the file, with readahead
+    // sized by options.readaheadSize for long scans. The table is kept open
+    // until the iterator is closed.
+    public KeyValueIterator newIterator(ReadOptions options, long fileNumber, long fileSize) {
+        Cache.Handle handle = findTable(fileNumber, fileSize);
+        try {
+            return cache.value(handle).newIterator(options, () -> cache.release(handle));
+        } catch (RuntimeException e) {
+            cache.release(handle);
+            throw e;
+        }
+    }
+
+    // Looks up keys[batch[0]], ..., keys[batch[count - 1]] in one file, results
+    // go to the matching slots of "results". The batch is in key order, which
+    // lets the table probe its index once per key and read each data block once.
+    public void multiGet(ReadOptions options, long fileNumber, long fileSize,
+                         LookupKey[] keys, LookupResult[] results, int[] batch, int count) {
+        Cache.Handle handle = findTable(fileNumber, fileSize);
+        try {
+            cache.value(handle).multiGet(options, keys, results, batch, count);
+        } finally {
+            cache.release(handle);
+        }
+    }
+
+    // Evict any entry for the specified file number. A table that reads still
+    // use is closed when the last of them is done.
+    public void evict(long fileNumber) {
+        cache.erase(cacheKey(fileNumber));
+    }
+
+    // Closes every table no read is using
+    public void close() {
+        cache.prune();
+    }
+
+    private static ByteBuffer cacheKey(long fileNumber) {
+        ByteBuffer key = ByteBuffer.allocate(Long.BYTES);
+        key.putLong(0, fileNumber);
+        return key;
+    }
+
+    private Cache.Handle findTable(long fileNumber, long fileSize) {
+        ByteBuffer key = cacheKey(fileNumber);
+        while (true) {
+            Cache.Handle handle = cache.lookup(key);
+            if (handle != null) {
+                return handle;
+            }
+            CompletableFuture<Void> open = new CompletableFuture<>();
+            CompletableFuture<Void> pending = opening.putIfAbsent(fileNumber, open);
+            if (pending != null) {
+                // Look again once it is done, or fail with it
+                try {
+                    pending.join();
+                } catch (CompletionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw e;
+                }
+                continue;
+            }
+            try {
+                // An open may have finished between the lookup and putIfAbsent
+                handle = cache.lookup(key);
+                if (handle == null) {
+                    // We do not cache error results so that if the error is
+                    // transient, or somebody repairs the file, we recover
+                    // automatically.
+                    handle = cache.insert(key, openTable(fileNumber, fileSize), 1, Cache.Priority.LOW);
+                }
+                open.complete(null);
+                return handle;
+            } catch (Throwable e) {
+                // Errors too, or the readers waiting for this open never wake up
+                open.completeExceptionally(e);
+                throw e;
+            } finally {
+                opening.remove(fileNumber, open);
+            }
+        }
+    }
+
+    private Table openTable(long fileNumber, long fileSize) {
+        String fname = DBImpl.tableFileName(dbName, fileNumber);
+        RandomAccessFile file = options.useMmapReads
+                ? env.newMmapRandomAccessFile(fname) : env.newRandomAccessFile(fname);
+        try {
+            return Table.open(options, file, fileSize, cacheIdBase | fileNumber);
+        } catch (RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+}
@@ -1,11 +1,226 @@
 package com.ldb.db;
 
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.InternalKeyComparator;
+import com.ldb.db.memtable.LookupKey;
+import com.ldb.db.memtable.LookupResult;
+import com.ldb.utils.BytewiseComparator;
+import com.ldb.utils.KeyValueIterator;
 import lombok.Getter;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 
 @Getter
 public class Version {
-    List<FileMetaData> files = new ArrayList<>(Config.kNumLevels);
+    private static final InternalKeyComparator icmp = new InternalKeyComparator();
+    private static final Comparator<FileMetaData> newestFirst =
+            Comparator.comparingLong(FileMetaData::getNumber).reversed();
+
+    // List of files per level
+    List<List<FileMetaData>> files = new ArrayList<>(Config.kNumLevels);
+    // Number of live refs to this version, guarded by the DB lock
+    private int refs;
+
+    public Version() {
+        for (int level = 0; level < Config.kNumLevels; level++) {
+            files.add(new ArrayList<>());
+        }
+    }
+
+    public void ref() {
+        ++refs;
+    }
+
+    public void unref() {
+        assert (refs >= 1);
+        --refs;
+    }
+
+    // Looks up key in the files of this version and records in result what the
+    // newest file holding the user key has for it. Level-0 files may overlap and
+    // are searched newest first, deeper levels hold at most one candidate file.
+    public void get(ReadOptions options, LookupKey key, LookupResult result, TableCache tableCache) {
+        ByteBuffer ikey = key.internalKey();
+        int userKeyLength = key.userKeyLength();
+
+        // Level-0 files may overlap each other.  Find all files that
+        // overlap user_key and process them in order from newest to oldest.
+        List<FileMetaData> level0 = files.get(0);
+        if (!level0.isEmpty()) {
+            List<FileMetaData> overlapping = new ArrayList<>();
+            for (FileMetaData f : level0) {
+                if (compareUserKey(ikey, userKeyLength, f.getSmallest()) >= 0
+                        && compareUserKey(ikey, userKeyLength, f.getLargest()) <= 0) {
+                    overlapping.add(f);
+                }
+            }
+            overlapping.sort(newestFirst);
+            for (FileMetaData f : overlapping) {
+                tableCache.get(options, f.getNumber(), f.getFileSize(), key, result);
+                if (result.isDone()) {
+                    return;
+                }
+            }
+        }
+
+        for (int level = 1; level < Config.kNumLevels; level++) {
+            List<FileMetaData> levelFiles = files.get(level);
+            if (levelFiles.isEmpty()) {
+                continue;
+            }
+            // Binary search to find earliest index whose largest key >= ikey.
+            int index = findFile(levelFiles, ikey, key.length());
+            if (index < levelFiles.size()) {
+                FileMetaData f = levelFiles.get(index);
+                if (compareUserKey(ikey, userKeyLength, f.getSmallest()) >= 0) {
+                    // All of "f" is past any data for user_key otherwise
+                    tableCache.get(options, f.getNumber(), f.getFileSize(), key, result);
+                    if (result.isDone()) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // Appends iterators that together yield the contents of this version: one
+    // per level-0 file, since those overlap, and one per deeper level that opens
+    // the files of the level as it reaches them.
+    public void addIterators(ReadOptions options, List<KeyValueIterator> iters, TableCache tableCache) {
+        for (FileMetaData f : files.get(0)) {
+            iters.add(tableCache.newIterator(options, f.getNumber(), f.getFileSize()));
+        }
+        for (int level = 1; level < Config.kNumLevels; level++) {
+            if (!files.get(level).isEmpty()) {
+                iters.add(new LevelIterator(options, files.get(level), tableCache));
+            }
+        }
+    }
+
+    // Tells the partitioner where the data of this version lies: half of each
+    // file at either end of its key range
+    void addRangeSamples(RangePartitioner partitioner) {
+        for (List<FileMetaData> levelFiles : files) {
+            for (FileMetaData f : levelFiles) {
+                partitioner.add(f.getSmallest().getRep().duplicate().clear(), f.getFileSize() / 2.0);
+                partitioner.add(f.getLargest().getRep().duplicate().clear(), f.getFileSize() / 2.0);
+            }
+        }
+    }
+
+    // get() for many keys at once. keys[0, n) are sorted by user key and only those
+    // whose result is not done yet are looked up. Each level is searched once for
+    // all of them: a file gets the keys that fall in its range as one batch, and
+    // on deeper levels the file index only moves forward.
+    public void multiGet(ReadOptions options, LookupKey[] keys, LookupResult[] results, int n, TableCache tableCache) {
+        int[] pending = new int[n];
+        int pendingCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (!results[i].isDone()) {
+                pending[pendingCount++] = i;
+            }
+        }
+        int[] batch = new int[pendingCount];
+
+        // Newest file first for every key, as in get()
+        List<FileMetaData> level0 = new ArrayList<>(files.get(0));
+        level0.sort(newestFirst);
+        for (FileMetaData f : level0) {
+            if (pendingCount == 0) {
+                return;
+            }
+            int count = 0;
+            for (int j = 0; j < pendingCount; j++) {
+                LookupKey key = keys[pending[j]];
+                if (compareUserKey(key.internalKey(), key.userKeyLength(), f.getSmallest()) >= 0
+                        && compareUserKey(key.internalKey(), key.userKeyLength(), f.getLargest()) <= 0) {
+                    batch[count++] = pending[j];
+                }
+            }
+            if (count > 0) {
+                tableCache.multiGet(options, f.getNumber(), f.getFileSize(), keys, results, batch, count);
+                pendingCount = retainPending(pending, pendingCount, results);
+            }
+        }
+
+        for (int level = 1; level < Config.kNumLevels && pendingCount > 0; level++) {
+            List<FileMetaData> levelFiles = files.get(level);
+            if (levelFiles.isEmpty()) {
+                continue;
+            }
+            LookupKey first = keys[pending[0]];
+            int index = findFile(levelFiles, first.internalKey(), first.length());
+            int batchIndex = index;
+            int count = 0;
+            for (int j = 0; j < pendingCount && index < levelFiles.size(); j++) {
+                LookupKey key = keys[pending[j]];
+                ByteBuffer ikey = key.internalKey();
+                // Earliest file whose largest key >= ikey, at or after the last one
+                while (index < levelFiles.size()) {
+                    ByteBuffer largest = levelFiles.get(index).getLargest().getRep();
+                    if (icmp.compare(largest, 0, largest.capacity(), ikey, 0, key.length()) >= 0) {
+                        break;
+                    }
+                    index++;
+                }
+                if (index == levelFiles.size()
+                        || compareUserKey(ikey, key.userKeyLength(), levelFiles.get(index).getSmallest()) < 0) {
+                    continue;
+                }
+                if (index != batchIndex && count > 0) {
+                    FileMetaData f = levelFiles.get(batchIndex);
+                    tableCache.multiGet(options, f.getNumber(), f.getFileSize(), keys, results, batch, count);
+                    count = 0;
+                }
+                batchIndex = index;
+                batch[count++] = pending[j];
+            }
+            if (count > 0) {
+                FileMetaData f = levelFiles.get(batchIndex);
+                tableCache.multiGet(options, f.getNumber(), f.getFileSize(), keys, results, batch, count);
+            }
+            pendingCount = retainPending(pending, pendingCount, results);
+        }
+    }
+
+    // Drops the keys that are done from pending[0, count) and returns the new count
+    private static int retainPending(int[] pending, int count, LookupResult[] results) {
+        int kept = 0;
+        for (int j = 0; j < count; j++) {
+            if (!results[pending[j]].isDone()) {
+                pending[kept++] = pending[j];
+            }
+        }
+        return kept;
+    }
+
+    // Returns the smallest index i such that files[i].largest >= key, or
+    // files.size() if there is no such file. The key is internalKey[0, length).
+    // REQUIRES: "files" contains a sorted list of non-overlapping files.
+    static int findFile(List<FileMetaData> files, ByteBuffer internalKey, int length) {
+        int left = 0;
+        int right = files.size();
+        while (left < right) {
+            int mid = (left + right) >>> 1;
+            ByteBuffer largest = files.get(mid).getLargest().getRep();
+            if (icmp.compare(largest, 0, largest.capacity(), internalKey, 0, length) < 0) {
+                // Key at "mid.largest" is < "target".  Therefore all
+                // files at or before "mid" are uninteresting.
+                left = mid + 1;
+            } else {
+                // Key at "mid.largest" is >= "target".  Therefore all files
+                // after "mid" are uninteresting.
+                right = mid;
+            }
+        }
+        return right;
+    }
+
+    private static int compareUserKey(ByteBuffer ikey, int userKeyLength, InternalKey fileKey) {
+        ByteBuffer rep = fileKey.getRep();
+        return BytewiseComparator.compare(ikey, 0, userKeyLength, rep, 0, rep.capacity() - InternalKey.kTrailerSize);
+    }
 }
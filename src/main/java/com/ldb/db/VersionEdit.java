@@ -1,9 +1,22 @@
 package com.ldb.db;
 
 public class VersionEdit {
-    public void setPrevLogNumber(int i) {
+    private Long logNumber;
+    private Long prevLogNumber;
+
+    public void setPrevLogNumber(long num) {
+        prevLogNumber = num;
+    }
+
+    public void setLogNumber(long num) {
+        logNumber = num;
+    }
+
+    public Long getLogNumber() {
+        return logNumber;
     }
 
-    public void setLogNumber(Object logFileNumber) {
+    public Long getPrevLogNumber() {
+        return prevLogNumber;
     }
 }
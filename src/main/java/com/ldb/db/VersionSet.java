@@ -1,10 +1,37 @@
 package com.ldb.db;
 
+import java.util.List;
+
 public class VersionSet {
-    Version current;
+    Version current = new Version();
+    private TableCache tableCache;
+    private long logNumber;
     private long prevLogNumber;
+    // File number 1 is reserved for the manifest
+    private long nextFileNumber = 2;
+    private volatile long lastSequence;
 
     public void logAndApply(VersionEdit edit) {
+        if (edit.getLogNumber() != null) {
+            assert (edit.getLogNumber() >= logNumber);
+            assert (edit.getLogNumber() < nextFileNumber);
+            logNumber = edit.getLogNumber();
+        }
+        if (edit.getPrevLogNumber() != null) {
+            prevLogNumber = edit.getPrevLogNumber();
+        }
+    }
+
+    public Version current() {
+        return current;
+    }
+
+    public TableCache tableCache() {
+        return tableCache;
+    }
+
+    public void setTableCache(TableCache tableCache) {
+        this.tableCache = tableCache;
     }
 
     public int numLevelFiles(int level) {
@@ -13,16 +40,64 @@ public class VersionSet {
         return current.getFiles().get(level).size();
     }
 
+    // Logs older than this hold no data that is missing from the tables
+    public long logNumber() {
+        return logNumber;
+    }
+
     public long prevLogNumber() {
         return prevLogNumber;
     }
 
+    // Allocate and return a new file number
     public long newFileNumber() {
-        return 0;
+        return nextFileNumber++;
+    }
+
+    // Arrange to reuse "fileNumber" unless a newer file number has
+    // already been allocated.
+    // REQUIRES: "fileNumber" was returned by a call to newFileNumber().
+    public void reuseFileNumber(long fileNumber) {
+        if (nextFileNumber == fileNumber + 1) {
+            nextFileNumber = fileNumber;
+        }
+    }
+
+    // Bytes compaction has to rewrite to bring every level back within its target
+    // size, an estimate of how far compaction is behind
+    public long pendingCompactionBytes() {
+        long bytes = 0;
+        if (current.getFiles().get(0).size() >= Config.kL0_CompactionTrigger) {
+            bytes += totalFileSize(current.getFiles().get(0));
+        }
+        for (int level = 1; level < Config.kNumLevels - 1; level++) {
+            long excess = totalFileSize(current.getFiles().get(level)) - maxBytesForLevel(level);
+            if (excess > 0) {
+                bytes += excess;
+            }
+        }
+        return bytes;
+    }
+
+    private static long totalFileSize(List<FileMetaData> files) {
+        long sum = 0;
+        for (FileMetaData file : files) {
+            sum += file.getFileSize();
+        }
+        return sum;
     }
 
-    public void reuseFileNumber(long newLogNumber) {
+    private static long maxBytesForLevel(int level) {
+        // Note: the result for level zero is not really used since we set
+        // the level-0 compaction threshold based on number of files.
 
+        // Result for both level-0 and level-1
+        long result = 10L * 1048576;
+        while (level > 1) {
+            result *= 10;
+            level--;
+        }
+        return result;
     }
 
     public boolean needsCompaction() {
@@ -30,10 +105,11 @@ public class VersionSet {
     }
 
     public long lastSequence() {
-        return 0;
+        return lastSequence;
     }
 
     public void setLastSequence(long lastSequence) {
-
+        assert (lastSequence >= this.lastSequence);
+        this.lastSequence = lastSequence;
     }
 }
@@ -1,13 +1,25 @@
 package com.ldb.db;
 
-public class WritableFile {
+import java.nio.ByteBuffer;
 
+// A file abstraction for sequential writing. There is no buffering in between,
+// callers hand all fragments of a write to one gathering append instead.
+// Not thread-safe, the log writer is driven by one write leader at a time.
+// The exception is sync(), which LogSyncer runs concurrently with appends.
+public interface WritableFile {
 
-    public void close() {
+    // Appends the remaining bytes of srcs[offset, offset + length) in order,
+    // with a single gathering write where the file supports it. Advances the
+    // positions of the buffers.
+    Status append(ByteBuffer[] srcs, int offset, int length);
 
+    default Status append(ByteBuffer src) {
+        return append(new ByteBuffer[]{src}, 0, 1);
     }
 
-    public Status sync() {
-        return null;
-    }
+    Status flush();
+
+    Status sync();
+
+    Status close();
 }
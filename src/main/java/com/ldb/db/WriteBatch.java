@@ -1,6 +1,128 @@
 package com.ldb.db;
 
+import com.ldb.db.memtable.InternalKey.ValueType;
+import com.ldb.utils.ByteBuffers;
+import com.ldb.utils.Coding;
+
+import java.nio.ByteBuffer;
+
+// WriteBatch::rep :=
+//    sequence: fixed64
+//    count: fixed32
+//    data: record[count]
+// record :=
+//    kTypeValue varstring varstring         |
+//    kTypeDeletion varstring
+// varstring :=
+//    len: varint32
+//    data: uint8[len]
 public class WriteBatch {
+    // WriteBatch header has an 8-byte sequence number followed by a 4-byte count.
+    static final int kHeader = 12;
+
+    // [0, rep.position()) holds the encoded batch
+    ByteBuffer rep;
+
+    public WriteBatch() {
+        rep = ByteBuffer.allocate(64);
+        clear();
+    }
+
+    public void put(ByteBuffer key, ByteBuffer value) {
+        WriteBatchInternal.setCount(this, WriteBatchInternal.count(this) + 1);
+        ensureCapacity(1 + Coding.kMaxVarint32Length * 2 + key.remaining() + value.remaining());
+        rep.put((byte) ValueType.kTypeValue.code());
+        putLengthPrefixed(key);
+        putLengthPrefixed(value);
+    }
+
+    public void delete(ByteBuffer key) {
+        WriteBatchInternal.setCount(this, WriteBatchInternal.count(this) + 1);
+        ensureCapacity(1 + Coding.kMaxVarint32Length + key.remaining());
+        rep.put((byte) ValueType.kTypeDeletion.code());
+        putLengthPrefixed(key);
+    }
+
     public void clear() {
+        rep.clear();
+        rep.putLong(0, 0);
+        rep.putInt(8, 0);
+        rep.position(kHeader);
+    }
+
+    // The size of the database changes caused by this batch.
+    public int approximateSize() {
+        return rep.position();
+    }
+
+    private void putLengthPrefixed(ByteBuffer data) {
+        int length = data.remaining();
+        Coding.putVarint32(rep, length);
+        ByteBuffers.copy(data, data.position(), rep, rep.position(), length);
+        rep.position(rep.position() + length);
+    }
+
+    // Bytes the batch can hold before it has to grow
+    public int capacity() {
+        return rep.capacity();
+    }
+
+    void ensureCapacity(int extra) {
+        if (rep.remaining() < extra) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(rep.capacity() * 2, rep.position() + extra));
+            rep.flip();
+            bigger.put(rep);
+            rep = bigger;
+        }
+    }
+
+    // Support for iterating over the contents of a batch. Keys and values are
+    // passed as ranges of rep, valid only for the duration of the call.
+    public interface Handler {
+        void put(ByteBuffer rep, int keyOffset, int keyLength, int valueOffset, int valueLength);
+
+        void delete(ByteBuffer rep, int keyOffset, int keyLength);
+    }
+
+    public Status iterate(Handler handler) {
+        int limit = rep.position();
+        if (limit < kHeader) {
+            return Status.of(new IllegalStateException("malformed WriteBatch (too small)"));
+        }
+        int offset = kHeader;
+        int found = 0;
+        try {
+            while (offset < limit) {
+                found++;
+                int tag = rep.get(offset++);
+                if (tag != ValueType.kTypeValue.code() && tag != ValueType.kTypeDeletion.code()) {
+                    return Status.of(new IllegalStateException("unknown WriteBatch tag"));
+                }
+                int keyLength = Coding.getVarint32(rep, offset);
+                int keyOffset = offset + Coding.varintLength(keyLength);
+                offset = keyOffset + keyLength;
+                if (keyLength < 0 || offset > limit) {
+                    return Status.of(new IllegalStateException("bad WriteBatch " +
+                            (tag == ValueType.kTypeValue.code() ? "Put" : "Delete")));
+                }
+                if (tag == ValueType.kTypeValue.code()) {
+                    int valueLength = Coding.getVarint32(rep, offset);
+                    int valueOffset = offset + Coding.varintLength(valueLength);
+                    offset = valueOffset + valueLength;
+                    if (valueLength < 0 || offset > limit) {
+                        return Status.of(new IllegalStateException("bad WriteBatch Put"));
+                    }
+                    handler.put(rep, keyOffset, keyLength, valueOffset, valueLength);
+                } else {
+                    handler.delete(rep, keyOffset, keyLength);
+                }
+            }
+        } catch (RuntimeException e) {
+            return Status.of(new IllegalStateException("bad WriteBatch record", e));
+        }
+        if (found != WriteBatchInternal.count(this)) {
+            return Status.of(new IllegalStateException("WriteBatch has wrong count"));
+        }
+        return Status.of(null);
     }
 }
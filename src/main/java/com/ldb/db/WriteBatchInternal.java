@@ -1,22 +1,83 @@
 package com.ldb.db;
 
+import com.ldb.db.memtable.InternalKey.ValueType;
 import com.ldb.db.memtable.MemTable;
 
 import java.nio.ByteBuffer;
 
 public class WriteBatchInternal {
     public static void setSequence(WriteBatch writeBatch, long l) {
+        writeBatch.rep.putLong(0, l);
+    }
+
+    public static long sequence(WriteBatch writeBatch) {
+        return writeBatch.rep.getLong(0);
     }
 
     public static Status insertInto(WriteBatch writeBatch, MemTable mem) {
-        return null;
+        return insertInto(writeBatch, mem, false);
+    }
+
+    // With concurrent set, other writers may insert into mem at the same time
+    public static Status insertInto(WriteBatch writeBatch, MemTable mem, boolean concurrent) {
+        MemTableInserter inserter = new MemTableInserter(sequence(writeBatch), mem, concurrent);
+        return writeBatch.iterate(inserter);
     }
 
+    // Zero-copy view of the encoded batch, valid until the batch is modified
     public static ByteBuffer contents(WriteBatch writeBatch) {
-        return null;
+        ByteBuffer contents = writeBatch.rep.duplicate();
+        contents.flip();
+        return contents;
+    }
+
+    public static int byteSize(WriteBatch writeBatch) {
+        return writeBatch.rep.position();
     }
 
     public static long count(WriteBatch writeBatch) {
-        return 0;
+        return writeBatch.rep.getInt(8);
+    }
+
+    public static void setCount(WriteBatch writeBatch, long n) {
+        writeBatch.rep.putInt(8, (int) n);
+    }
+
+    public static void append(WriteBatch dst, WriteBatch src) {
+        setCount(dst, count(dst) + count(src));
+        ByteBuffer records = contents(src).position(WriteBatch.kHeader);
+        dst.ensureCapacity(records.remaining());
+        dst.rep.put(records);
+    }
+
+    private static class MemTableInserter implements WriteBatch.Handler {
+        private long sequence;
+        private final MemTable mem;
+        private final boolean concurrent;
+
+        MemTableInserter(long sequence, MemTable mem, boolean concurrent) {
+            this.sequence = sequence;
+            this.mem = mem;
+            this.concurrent = concurrent;
+        }
+
+        @Override
+        public void put(ByteBuffer rep, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+            add(ValueType.kTypeValue, rep, keyOffset, keyLength, valueOffset, valueLength);
+        }
+
+        @Override
+        public void delete(ByteBuffer rep, int keyOffset, int keyLength) {
+            add(ValueType.kTypeDeletion, rep, keyOffset, keyLength, 0, 0);
+        }
+
+        private void add(ValueType type, ByteBuffer rep, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+            if (concurrent) {
+                mem.addConcurrently(sequence, type, rep, keyOffset, keyLength, valueOffset, valueLength);
+            } else {
+                mem.add(sequence, type, rep, keyOffset, keyLength, valueOffset, valueLength);
+            }
+            sequence++;
+        }
     }
 }
@@ -0,0 +1,51 @@
+package com.ldb.db;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Recycles batches for writers sending many batches, so the batch buffer is
+// allocated once per pooled batch instead of once per write. release() clears the
+// batch; batches grown beyond maxRetainedBytes are dropped rather than pinned.
+// Slots are claimed with a CAS starting at a per-thread index, an empty pool
+// allocates and a full pool drops the batch.
+public class WriteBatchPool {
+    private final AtomicReferenceArray<WriteBatch> slots;
+    private final int maxRetainedBytes;
+
+    public WriteBatchPool(int size, int maxRetainedBytes) {
+        this.slots = new AtomicReferenceArray<>(size);
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    public WriteBatch acquire() {
+        int n = slots.length();
+        int start = probe(n);
+        for (int i = 0; i < n; i++) {
+            int index = (start + i) % n;
+            WriteBatch batch = slots.get(index);
+            if (batch != null && slots.compareAndSet(index, batch, null)) {
+                return batch;
+            }
+        }
+        return new WriteBatch();
+    }
+
+    // REQUIRES: the batch is no longer used by the caller or by a pending write
+    public void release(WriteBatch batch) {
+        if (batch.capacity() > maxRetainedBytes) {
+            return;
+        }
+        batch.clear();
+        int n = slots.length();
+        int start = probe(n);
+        for (int i = 0; i < n; i++) {
+            int index = (start + i) % n;
+            if (slots.get(index) == null && slots.compareAndSet(index, null, batch)) {
+                return;
+            }
+        }
+    }
+
+    private static int probe(int n) {
+        return (int) (Thread.currentThread().getId() % n);
+    }
+}
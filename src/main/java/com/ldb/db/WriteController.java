@@ -0,0 +1,158 @@
+package com.ldb.db;
+
+// Decides whether writes run freely, are paced or stop, from how far background
+// work is behind. Between the soft and the hard threshold of an input, writes
+// are paced by a token bucket whose rate falls from delayedWriteRate towards
+// kMinWriteRate as the input nears its hard threshold, so latency rises
+// gradually instead of jumping when a trigger is crossed.
+//
+// update() and delayNanos() are called by the write leader with the DB lock
+// held; the rate, reason and counters may be read from any thread.
+public class WriteController {
+    static final long kMinWriteRate = 16 << 10;  // bytes/s
+
+    public enum StallReason {
+        NONE,
+        L0_FILES_SLOWDOWN,
+        PENDING_COMPACTION_SLOWDOWN,
+        MEMTABLE_SLOWDOWN,
+        // Writes wait for background work
+        L0_FILES_STOP,
+        PENDING_COMPACTION_STOP,
+        MEMTABLE_STOP;
+
+        public boolean isStop() {
+            return this == L0_FILES_STOP || this == PENDING_COMPACTION_STOP || this == MEMTABLE_STOP;
+        }
+    }
+
+    private final long delayedWriteRate;
+    private volatile long rate;
+    private volatile StallReason reason = StallReason.NONE;
+    // Token bucket, bytes that may be written without delay. Negative when
+    // writers are behind schedule.
+    private double credit;
+    private long lastRefill;
+
+    private volatile long delayedWrites;
+    private volatile long totalDelayNanos;
+    private volatile long stops;
+    private volatile long stopNanos;
+
+    public WriteController(long delayedWriteRate) {
+        this.delayedWriteRate = delayedWriteRate;
+        this.rate = delayedWriteRate;
+    }
+
+    // Recomputes the state from the current backlog.
+    // "memtableFill" is mem's usage over the write buffer size.
+    void update(int l0Files, long pendingCompactionBytes, int immutableMemTables, double memtableFill) {
+        StallReason next = StallReason.NONE;
+        double pressure = -1;
+        if (l0Files >= Config.kL0_StopWritesTrigger) {
+            next = StallReason.L0_FILES_STOP;
+        } else if (pendingCompactionBytes >= Config.kHardPendingCompactionBytesLimit) {
+            next = StallReason.PENDING_COMPACTION_STOP;
+        } else if (immutableMemTables > 0 && memtableFill >= 1) {
+            next = StallReason.MEMTABLE_STOP;
+        } else {
+            if (l0Files >= Config.kL0_SlowdownWritesTrigger) {
+                pressure = fraction(l0Files, Config.kL0_SlowdownWritesTrigger, Config.kL0_StopWritesTrigger);
+                next = StallReason.L0_FILES_SLOWDOWN;
+            }
+            if (pendingCompactionBytes >= Config.kSoftPendingCompactionBytesLimit) {
+                double p = fraction(pendingCompactionBytes,
+                        Config.kSoftPendingCompactionBytesLimit, Config.kHardPendingCompactionBytesLimit);
+                if (p > pressure) {
+                    pressure = p;
+                    next = StallReason.PENDING_COMPACTION_SLOWDOWN;
+                }
+            }
+            // The flush is behind and the next switch would have to wait for it
+            if (immutableMemTables > 0 && memtableFill >= Config.kMemTableSlowdownFill) {
+                double p = fraction(memtableFill, Config.kMemTableSlowdownFill, 1);
+                if (p > pressure) {
+                    pressure = p;
+                    next = StallReason.MEMTABLE_SLOWDOWN;
+                }
+            }
+        }
+        if (pressure >= 0) {
+            rate = Math.max(kMinWriteRate, (long) (delayedWriteRate * (1 - pressure)));
+        } else {
+            rate = delayedWriteRate;
+        }
+        if (reason != next && !isDelayed(reason)) {
+            // Start with an empty bucket, no burst is owed from before the slowdown
+            credit = 0;
+            lastRefill = System.nanoTime();
+        }
+        reason = next;
+    }
+
+    private static double fraction(double value, double soft, double hard) {
+        return hard > soft ? Math.min(1, (value - soft) / (hard - soft)) : 1;
+    }
+
+    private static boolean isDelayed(StallReason reason) {
+        return reason != StallReason.NONE && !reason.isStop();
+    }
+
+    public boolean isDelayed() {
+        return isDelayed(reason);
+    }
+
+    public boolean isStopped() {
+        return reason.isStop();
+    }
+
+    // Returns how long a write of "bytes" has to wait to keep to the current rate
+    long delayNanos(long bytes) {
+        if (!isDelayed()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long rate = this.rate;
+        // Up to a millisecond worth of writes may pass without delay
+        credit = Math.min(credit + (now - lastRefill) * 1e-9 * rate, rate / 1000.0);
+        lastRefill = now;
+        credit -= bytes;
+        if (credit >= 0) {
+            return 0;
+        }
+        long delay = (long) (-credit * 1e9 / rate);
+        delayedWrites++;
+        totalDelayNanos += delay;
+        return delay;
+    }
+
+    void recordStop(long nanos) {
+        stops++;
+        stopNanos += nanos;
+    }
+
+    // Current write rate while delayed, in bytes/s
+    public long delayedWriteRate() {
+        return rate;
+    }
+
+    public StallReason stallReason() {
+        return reason;
+    }
+
+    public long delayedWrites() {
+        return delayedWrites;
+    }
+
+    public long totalDelayNanos() {
+        return totalDelayNanos;
+    }
+
+    public long stops() {
+        return stops;
+    }
+
+    public long totalStopNanos() {
+        return stopNanos;
+    }
+}
@@ -0,0 +1,113 @@
+package com.ldb.db;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Writers waiting to commit, as a lock-free list linked from the newest writer
+// backwards through Writer.older. Joining is a CAS on newest, the writer that
+// finds the list empty leads. A leader owns everything from itself up to the
+// newest writer it saw: it fills in the newer links, builds its group from them
+// and on exit hands leadership straight to the writer after its group.
+// Waiting writers spin briefly, then park on their own thread, so a handoff
+// wakes exactly one thread.
+class WriteQueue {
+    private static final int kMinSpins = 16;
+    private static final int kMaxSpins = 1 << 10;
+
+    private final AtomicReference<Writer> newest = new AtomicReference<>();
+    // Adapted on every wait: grows while handoffs arrive during the spin, shrinks
+    // while writers end up parking anyway
+    private volatile int spins = kMaxSpins;
+
+    // Returns true if w is the leader
+    boolean join(Writer w) {
+        Writer prev = newest.get();
+        while (true) {
+            w.older = prev;
+            if (newest.compareAndSet(prev, w)) {
+                break;
+            }
+            prev = newest.get();
+        }
+        if (prev == null) {
+            w.state = Writer.STATE_GROUP_LEADER;
+            return true;
+        }
+        return false;
+    }
+
+    // Blocks until one of the bits in mask is set in w.state, returns the state
+    int await(Writer w, int mask) {
+        int limit = spins;
+        for (int i = 0; i < limit; i++) {
+            int state = w.state;
+            if ((state & mask) != 0) {
+                if (limit < kMaxSpins) {
+                    spins = limit * 2;
+                }
+                return state;
+            }
+            Thread.onSpinWait();
+        }
+        if (limit > kMinSpins) {
+            spins = limit / 2;
+        }
+        int state;
+        while (((state = w.state) & mask) == 0) {
+            LockSupport.park(this);
+        }
+        return state;
+    }
+
+    static void setState(Writer w, int state) {
+        w.state = state;
+        LockSupport.unpark(w.thread);
+    }
+
+    // REQUIRES: called by the leader
+    // Returns the newest writer, with newer links filled in from the leader up to it
+    Writer newest() {
+        Writer head = newest.get();
+        createMissingNewerLinks(head);
+        return head;
+    }
+
+    // REQUIRES: called by the leader, every writer in [leader, lastWriter] is done
+    // Passes leadership to the writer after lastWriter, if there is one.
+    void exit(Writer lastWriter) {
+        Writer head = newest.get();
+        // A failed CAS means somebody joined behind lastWriter. Only a departing
+        // leader removes writers, so there is no need to retry.
+        if (head != lastWriter || !newest.compareAndSet(head, null)) {
+            createMissingNewerLinks(newest.get());
+            Writer next = lastWriter.newer;
+            // Stops later walks from running into writers that have left
+            next.older = null;
+            setState(next, Writer.STATE_GROUP_LEADER);
+        }
+    }
+
+    private static void createMissingNewerLinks(Writer head) {
+        while (true) {
+            Writer next = head.older;
+            if (next == null || next.newer != null) {
+                break;
+            }
+            next.newer = head;
+            head = next;
+        }
+    }
+
+    boolean isEmpty() {
+        return newest.get() == null;
+    }
+
+    // Number of writers from the current leader to the newest, racy, for tests and stats
+    int size() {
+        int n = 0;
+        for (Writer w = newest.get(); w != null; w = w.older) {
+            n++;
+        }
+        return n;
+    }
+}
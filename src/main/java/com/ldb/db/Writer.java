@@ -1,13 +1,34 @@
 package com.ldb.db;
 
-import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
-import java.util.concurrent.locks.Condition;
-
-@Data
+// Identity matters here: writers are linked into WriteQueue and compared with ==
 public class Writer {
-    private Condition cv;
+    static final int STATE_INIT = 1;
+    static final int STATE_GROUP_LEADER = 2;
+    static final int STATE_MEMTABLE_LEADER = 4;
+    static final int STATE_COMPLETED = 8;
+    static final int STATE_PARALLEL_MEMTABLE_WRITER = 16;
+
+    @Getter @Setter
     private WriteBatch batch;
+    @Getter @Setter
     private boolean sync;
+    @Getter @Setter
     private boolean done;
+    @Getter @Setter
+    private Status status;
+
+    // Written by the thread changing the state, which then unparks thread
+    volatile int state = STATE_INIT;
+    // Last sequence of the writer's group, set before it is completed
+    long sequence;
+    // Set by the leader before it makes this writer a parallel memtable writer
+    ParallelMemTableWrite parallelWrite;
+    final Thread thread = Thread.currentThread();
+    // Set before the CAS that publishes this writer on WriteQueue.newest
+    Writer older;
+    // Filled in lazily by the leader, only ever read by a leader
+    Writer newer;
 }
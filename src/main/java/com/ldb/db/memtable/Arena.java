@@ -0,0 +1,132 @@
+package com.ldb.db.memtable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Slab allocator backing a memtable. Memory is handed out from large blocks and
+ * addressed by a long: the block index in the high 32 bits and the offset inside
+ * the block in the low 32 bits. Nothing is freed individually, all blocks are
+ * dropped together by {@link #release()}.
+ * <p>
+ * Allocation is safe from several threads: the current block is carved with a CAS
+ * on {@code cursor}, only switching to a new block takes {@code lock}.
+ */
+public class Arena {
+    static final int kBlockSize = 1 << 20;
+    private static final int kAlign = Long.BYTES;
+
+    private final int blockSize;
+    private final boolean direct;
+    private final Lock lock = new ReentrantLock();
+    // 读线程通过地址访问block，扩容时整体替换数组保证可见性
+    private volatile ByteBuffer[] blocks = new ByteBuffer[16];
+    private int blockCount;
+    // Address of the first free byte of the current block. Starts as a full block
+    // so that the first allocation installs one.
+    private final AtomicLong cursor;
+    private final AtomicLong memoryUsage = new AtomicLong(0);
+
+    public Arena() {
+        this(kBlockSize, true);
+    }
+
+    public Arena(int blockSize, boolean direct) {
+        this.blockSize = blockSize;
+        this.direct = direct;
+        this.cursor = new AtomicLong(address(-1, blockSize));
+    }
+
+    /**
+     * Returns the address of {@code bytes} bytes aligned to 8 bytes, so that
+     * longs stored at the start of the allocation can be accessed atomically.
+     */
+    public long allocateAligned(int bytes) {
+        while (true) {
+            long current = cursor.get();
+            int offset = offset(current);
+            int aligned = (offset + kAlign - 1) & -kAlign;
+            if (aligned + bytes <= blockSize) {
+                if (cursor.compareAndSet(current, current - offset + aligned + bytes)) {
+                    memoryUsage.addAndGet(aligned + bytes - offset);
+                    return current - offset + aligned;
+                }
+            } else {
+                long result = allocateFallback(bytes, current);
+                if (result >= 0) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    private long allocateFallback(int bytes, long observed) {
+        lock.lock();
+        try {
+            if (bytes > blockSize / 4) {
+                // Object is more than a quarter of our block size.  Allocate it separately
+                // to avoid wasting too much space in leftover bytes.
+                memoryUsage.addAndGet(bytes);
+                return address(newBlock(bytes), 0);
+            }
+            if (cursor.get() != observed) {
+                // Another thread already moved on, retry against its block.
+                return -1;
+            }
+            // We waste the remaining space in the current block.
+            memoryUsage.addAndGet(blockSize - offset(observed) + bytes);
+            int index = newBlock(blockSize);
+            cursor.set(address(index, bytes));
+            return address(index, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int newBlock(int size) {
+        ByteBuffer block = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        ByteBuffer[] current = blocks;
+        if (blockCount == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[blockCount] = block;
+        blocks = current;
+        return blockCount++;
+    }
+
+    public ByteBuffer block(long address) {
+        return blocks[(int) (address >>> 32)];
+    }
+
+    public static int offset(long address) {
+        return (int) address;
+    }
+
+    private static long address(int block, int offset) {
+        return ((long) block << 32) | offset;
+    }
+
+    /**
+     * Bytes handed out so far, including alignment padding and the unused tails
+     * of abandoned blocks.
+     */
+    public long memoryUsage() {
+        return memoryUsage.get();
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            // Direct blocks are returned to the OS by their cleaners once unreachable.
+            blocks = new ByteBuffer[0];
+            blockCount = 0;
+            cursor.set(address(-1, blockSize));
+            memoryUsage.set(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.ldb.db.memtable;
+
+import com.ldb.utils.Coding;
+import com.ldb.utils.KeyValueIterator;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * SkipList whose nodes live in an {@link Arena}. A node is addressed by its arena
+ * address and laid out as
+ * <pre>
+ * [int height][int keyLength][long keyPrefix][long prev][long next_0 ... next_{height-1}][key][varint valueLength][value]
+ * </pre>
+ * prev is the level 0 back pointer used by reverse iteration, see SkipList.Node.
+ * Same concurrency model as {@link SkipList}: {@link #insert} needs external
+ * synchronization between writers, {@link #insertConcurrently} does not. Readers
+ * never block.
+ */
+public class ArenaSkipList {
+    public interface KeyComparator {
+        int compare(ByteBuffer a, int aOffset, int aLength, ByteBuffer b, int bOffset, int bLength);
+
+        /**
+         * An 8-byte summary of the key cached in its node. Keys whose prefixes differ
+         * must compare like {@link Long#compareUnsigned} on the prefixes; returning
+         * the same value for every key is always correct.
+         */
+        default long prefix(ByteBuffer key, int offset, int length) {
+            return 0;
+        }
+    }
+
+    private static final int kBranching = 4;
+    private static final int kMaxHeight = 12;
+    private static final int kHeightOffset = 0;
+    private static final int kKeyLengthOffset = Integer.BYTES;
+    private static final int kPrefixOffset = 2 * Integer.BYTES;
+    private static final int kPrevOffset = kPrefixOffset + Long.BYTES;
+    private static final int kNextOffset = kPrevOffset + Long.BYTES;
+    // head总是arena中第一个分配的节点（地址为0），不会出现在任何next指针中，所以0可以当作null
+    private static final long NIL = 0L;
+    private static final VarHandle NEXT =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle MAX_HEIGHT;
+
+    static {
+        try {
+            MAX_HEIGHT = MethodHandles.lookup().findVarHandle(ArenaSkipList.class, "maxHeight", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Arena arena;
+    private final KeyComparator comparator;
+    private final Random rnd = ThreadLocalRandom.current();
+    private final long head;
+    private volatile int maxHeight;
+    private final Splice seqSplice = new Splice();
+
+    public ArenaSkipList(Arena arena, KeyComparator comparator) {
+        this.arena = arena;
+        this.comparator = comparator;
+        this.head = newNode(0, 0, kMaxHeight);
+        if (head != NIL) {
+            throw new IllegalStateException("Head must be the first allocation of the arena");
+        }
+        this.maxHeight = 1;
+    }
+
+    /**
+     * Allocates a node for a key and value of the given sizes. The caller fills
+     * the key and value through {@link #keyOffset} and {@link #valueOffset} and
+     * then links the node with {@link #insert(long)}.
+     */
+    public long newNode(int keyLength, int valueLength) {
+        return newNode(keyLength, valueLength, randomHeight());
+    }
+
+    private long newNode(int keyLength, int valueLength, int height) {
+        int size = kNextOffset + height * Long.BYTES + keyLength + Coding.varintLength(valueLength) + valueLength;
+        long node = arena.allocateAligned(size);
+        ByteBuffer block = arena.block(node);
+        int offset = Arena.offset(node);
+        block.putInt(offset + kHeightOffset, height);
+        block.putInt(offset + kKeyLengthOffset, keyLength);
+        Coding.putVarint32(block, offset + kNextOffset + height * Long.BYTES + keyLength, valueLength);
+        return node;
+    }
+
+    public void insert(long node) {
+        insert(node, seqSplice, false);
+    }
+
+    // See SkipList#insertWithHint
+    public void insertWithHint(long node, Splice hint) {
+        insert(node, hint, false);
+    }
+
+    // See SkipList#insertConcurrently, the node must come from newNode of this list.
+    public boolean insertConcurrently(long node) {
+        return insert(node, new Splice(), true);
+    }
+
+    public boolean insertConcurrently(long node, Splice splice) {
+        return insert(node, splice, true);
+    }
+
+    public Splice newSplice() {
+        return new Splice();
+    }
+
+    private boolean insert(long node, Splice splice, boolean concurrent) {
+        int height = height(node);
+        arena.block(node).putLong(Arena.offset(node) + kPrefixOffset,
+                comparator.prefix(arena.block(node), keyOffset(node), keyLength(node)));
+        int max = maxHeight;
+        while (height > max) {
+            if (concurrent) {
+                if (MAX_HEIGHT.compareAndSet(this, max, height)) {
+                    max = height;
+                    break;
+                }
+                max = maxHeight;
+            } else {
+                maxHeight = height;
+                max = height;
+            }
+        }
+
+        int recomputeHeight = 0;
+        if (splice.height < max) {
+            splice.prev[max] = head;
+            splice.next[max] = NIL;
+            splice.height = max;
+            recomputeHeight = max;
+        } else {
+            while (recomputeHeight < max) {
+                long p = splice.prev[recomputeHeight];
+                long n = splice.next[recomputeHeight];
+                if (next(p, recomputeHeight) != n) {
+                    recomputeHeight++;
+                } else if (p != head && !keyIsAfterNode(node, p)) {
+                    recomputeHeight = max;
+                } else if (keyIsAfterNode(node, n)) {
+                    recomputeHeight++;
+                } else {
+                    break;
+                }
+            }
+        }
+        for (int i = recomputeHeight - 1; i >= 0; i--) {
+            findSpliceForLevel(node, splice.prev[i + 1], splice.next[i + 1], i, splice);
+        }
+        if (splice.next[0] != NIL && compare(splice.next[0], node) == 0) {
+            if (concurrent) {
+                return false;
+            }
+            // Internal keys are unique, a duplicate means the caller reused a sequence number.
+            throw new IllegalArgumentException("Key already exists");
+        }
+
+        if (concurrent) {
+            for (int i = 0; i < height; i++) {
+                while (true) {
+                    unprotectedSetNext(node, i, splice.next[i]);
+                    if (i == 0) {
+                        NEXT.set(arena.block(node), Arena.offset(node) + kPrevOffset, splice.prev[0]);
+                    }
+                    if (casNext(splice.prev[i], i, splice.next[i], node)) {
+                        break;
+                    }
+                    findSpliceForLevel(node, splice.prev[i], NIL, i, splice);
+                    if (i == 0 && splice.next[0] != NIL && compare(splice.next[0], node) == 0) {
+                        return false;
+                    }
+                }
+            }
+        } else {
+            NEXT.set(arena.block(node), Arena.offset(node) + kPrevOffset, splice.prev[0]);
+            for (int i = 0; i < height; i++) {
+                unprotectedSetNext(node, i, splice.next[i]);
+                setNext(splice.prev[i], i, node);
+            }
+        }
+        if (splice.next[0] != NIL) {
+            NEXT.setRelease(arena.block(splice.next[0]), Arena.offset(splice.next[0]) + kPrevOffset, node);
+        }
+        for (int i = 0; i < height; i++) {
+            splice.prev[i] = node;
+        }
+        return true;
+    }
+
+    private boolean keyIsAfterNode(long key, long node) {
+        return node != NIL && compare(node, key) < 0;
+    }
+
+    private void findSpliceForLevel(long key, long before, long after, int level, Splice splice) {
+        long x = before;
+        while (true) {
+            long n = next(x, level);
+            if (n == after || n == NIL || compare(n, key) >= 0) {
+                splice.prev[level] = x;
+                splice.next[level] = n;
+                return;
+            }
+            x = n;
+        }
+    }
+
+    private int randomHeight() {
+        int height = 1;
+        while (height < kMaxHeight && (rnd.nextInt() & (kBranching - 1)) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    public ByteBuffer block(long node) {
+        return arena.block(node);
+    }
+
+    private int height(long node) {
+        return arena.block(node).getInt(Arena.offset(node) + kHeightOffset);
+    }
+
+    public int keyOffset(long node) {
+        return Arena.offset(node) + kNextOffset + height(node) * Long.BYTES;
+    }
+
+    public int keyLength(long node) {
+        return arena.block(node).getInt(Arena.offset(node) + kKeyLengthOffset);
+    }
+
+    public int valueOffset(long node) {
+        return keyOffset(node) + keyLength(node) + Coding.varintLength(valueLength(node));
+    }
+
+    // Read-only view of the value of node, valid as long as the owning memtable is referenced
+    public ByteBuffer value(long node) {
+        return slice(node, valueOffset(node), valueLength(node));
+    }
+
+    // Same as above for the key
+    public ByteBuffer key(long node) {
+        return slice(node, keyOffset(node), keyLength(node));
+    }
+
+    private ByteBuffer slice(long node, int offset, int length) {
+        ByteBuffer dup = arena.block(node).asReadOnlyBuffer();
+        dup.limit(offset + length).position(offset);
+        return dup.slice();
+    }
+
+    /**
+     * Returns at least {@code count} keys spread evenly over the list, or all of
+     * them if there are fewer. Node heights are random, so the nodes linked at one
+     * level are a uniform sample of the list: this walks the highest level that
+     * has {@code count} nodes, about 4 * count keys at most.
+     */
+    public List<ByteBuffer> sampleKeys(int count) {
+        int level = maxHeight - 1;
+        for (; level > 0; level--) {
+            int n = 0;
+            for (long x = next(head, level); x != NIL && n < count; x = next(x, level)) {
+                n++;
+            }
+            if (n >= count) {
+                break;
+            }
+        }
+        List<ByteBuffer> keys = new ArrayList<>();
+        for (long x = next(head, level); x != NIL; x = next(x, level)) {
+            keys.add(key(x));
+        }
+        return keys;
+    }
+
+    public int valueLength(long node) {
+        return Coding.getVarint32(arena.block(node), keyOffset(node) + keyLength(node));
+    }
+
+    private long next(long node, int level) {
+        return (long) NEXT.getAcquire(arena.block(node), nextOffset(node, level));
+    }
+
+    private void setNext(long node, int level, long next) {
+        NEXT.setRelease(arena.block(node), nextOffset(node, level), next);
+    }
+
+    private boolean casNext(long node, int level, long expected, long next) {
+        return NEXT.compareAndSet(arena.block(node), nextOffset(node, level), expected, next);
+    }
+
+    private void unprotectedSetNext(long node, int level, long next) {
+        NEXT.set(arena.block(node), nextOffset(node, level), next);
+    }
+
+    private static int nextOffset(long node, int level) {
+        return Arena.offset(node) + kNextOffset + level * Long.BYTES;
+    }
+
+    private long prefix(long node) {
+        return arena.block(node).getLong(Arena.offset(node) + kPrefixOffset);
+    }
+
+    private int compare(long a, long b) {
+        int r = Long.compareUnsigned(prefix(a), prefix(b));
+        if (r != 0) {
+            return r;
+        }
+        return comparator.compare(arena.block(a), keyOffset(a), keyLength(a),
+                arena.block(b), keyOffset(b), keyLength(b));
+    }
+
+    private int compare(long node, ByteBuffer key, long keyPrefix) {
+        int r = Long.compareUnsigned(prefix(node), keyPrefix);
+        if (r != 0) {
+            return r;
+        }
+        return comparator.compare(arena.block(node), keyOffset(node), keyLength(node),
+                key, key.position(), key.remaining());
+    }
+
+    private long prefix(ByteBuffer key) {
+        return comparator.prefix(key, key.position(), key.remaining());
+    }
+
+    public boolean contains(ByteBuffer key) {
+        long x = findGreaterOrEqual(key);
+        return x != NIL && compare(x, key, prefix(key)) == 0;
+    }
+
+    /**
+     * Returns the first node at or after key, or 0 if there is none. The finger
+     * remembers the search path: when keys are sought in ascending order the next
+     * search starts from the lowest level whose bracket around the previous key
+     * also holds this key, so nearby keys cost O(log distance) instead of a walk
+     * down from head. A new splice is an empty finger.
+     */
+    public long seek(ByteBuffer key, Splice finger) {
+        long keyPrefix = prefix(key);
+        int max = maxHeight;
+        int level = 0;
+        if (finger.height < max) {
+            // First use, or the list grew: search from head
+            finger.prev[max] = head;
+            finger.next[max] = NIL;
+            finger.height = max;
+            level = max;
+        } else {
+            while (level < max && finger.next[level] != NIL && compare(finger.next[level], key, keyPrefix) < 0) {
+                level++;
+            }
+        }
+        long x = finger.prev[level];
+        // Rescan from the start of the bracket at every level, nodes may have been
+        // linked in since the finger was recorded
+        for (int i = Math.min(level, max - 1); i >= 0; i--) {
+            long next = next(x, i);
+            while (next != NIL && compare(next, key, keyPrefix) < 0) {
+                x = next;
+                next = next(x, i);
+            }
+            finger.prev[i] = x;
+            finger.next[i] = next;
+        }
+        return finger.next[0];
+    }
+
+    private long findGreaterOrEqual(ByteBuffer key) {
+        long keyPrefix = prefix(key);
+        long x = head;
+        int level = maxHeight - 1;
+        while (true) {
+            long next = next(x, level);
+            if (next == NIL || compare(next, key, keyPrefix) >= 0) {
+                if (level == 0) {
+                    return next;
+                }
+                level--;
+            } else {
+                x = next;
+            }
+        }
+    }
+
+    // See SkipList#findPrev
+    private long findPrev(long node) {
+        long x = (long) NEXT.getAcquire(arena.block(node), Arena.offset(node) + kPrevOffset);
+        while (true) {
+            long next = next(x, 0);
+            if (next == node) {
+                return x;
+            }
+            x = next;
+        }
+    }
+
+    private long findLast() {
+        long x = head;
+        int level = maxHeight - 1;
+        while (true) {
+            long next = next(x, level);
+            if (next == NIL) {
+                if (level == 0) {
+                    return x;
+                }
+                level--;
+            } else {
+                x = next;
+            }
+        }
+    }
+
+    // See SkipList.Splice
+    public static final class Splice {
+        private int height;
+        private final long[] prev = new long[kMaxHeight + 1];
+        private final long[] next = new long[kMaxHeight + 1];
+
+        private Splice() {
+        }
+    }
+
+    public Iterator iterator() {
+        return new Iterator();
+    }
+
+    /**
+     * Iterates the nodes in key order. {@link #key()} and {@link #value()} return
+     * read-only views of the arena, valid as long as the owning memtable is referenced.
+     */
+    public class Iterator implements KeyValueIterator {
+        private long node = NIL;
+
+        @Override
+        public boolean valid() {
+            return node != NIL;
+        }
+
+        private void checkValid() {
+            if (!valid()) {
+                throw new IllegalStateException("Key is not valid");
+            }
+        }
+
+        public long node() {
+            checkValid();
+            return node;
+        }
+
+        @Override
+        public ByteBuffer key() {
+            checkValid();
+            return ArenaSkipList.this.key(node);
+        }
+
+        @Override
+        public ByteBuffer value() {
+            checkValid();
+            return ArenaSkipList.this.value(node);
+        }
+
+        @Override
+        public void next() {
+            checkValid();
+            node = ArenaSkipList.this.next(node, 0);
+        }
+
+        @Override
+        public void prev() {
+            checkValid();
+            node = findPrev(node);
+            if (node == head) {
+                node = NIL;
+            }
+        }
+
+        @Override
+        public void seek(ByteBuffer target) {
+            node = findGreaterOrEqual(target);
+        }
+
+        @Override
+        public void seekToFirst() {
+            node = ArenaSkipList.this.next(head, 0);
+        }
+
+        @Override
+        public void seekToLast() {
+            node = findLast();
+            if (node == head) {
+                node = NIL;
+            }
+        }
+    }
+}
@@ -1,19 +1,67 @@
 package com.ldb.db.memtable;
 
+import com.ldb.utils.ByteBuffers;
+import com.ldb.utils.BytewiseComparator;
 import lombok.Getter;
-import lombok.Setter;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
-@Setter
+// rep holds the encoded key in [0, capacity): user key followed by an 8-byte
+// trailer packing (sequence << 8 | type), same as LevelDB
 @Getter
 public class InternalKey {
+    public static final int kTrailerSize = Long.BYTES;
+    // Sequence numbers use the 56 bits left above the type byte
+    public static final long kMaxSequenceNumber = (1L << 56) - 1;
     private ByteBuffer rep;
-    enum ValueType {kTypeDeletion, kTypeValue,}
+    // 用户key的前8字节（大端序），比较时多数情况一次long比较即可得出结果
+    private long prefix;
+
+    // The code is what gets persisted in the trailer, never reorder or reuse codes,
+    // new record types are appended with the next free code.
+    public enum ValueType {
+        kTypeDeletion(0x0),
+        kTypeValue(0x1);
+
+        // Types are ordered by decreasing code within one sequence number, so a seek
+        // key built with the highest code sorts before every entry of that sequence.
+        public static final ValueType kValueTypeForSeek = kTypeValue;
+        private static final ValueType[] BY_CODE = new ValueType[0x100];
+
+        static {
+            for (ValueType t : values()) {
+                BY_CODE[t.code] = t;
+            }
+        }
+
+        private final int code;
+
+        ValueType(int code) {
+            this.code = code;
+        }
+
+        public int code() {
+            return code;
+        }
+
+        public static ValueType fromCode(int code) {
+            ValueType t = code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+            if (t == null) {
+                throw new IllegalArgumentException("Bad value type: " + code);
+            }
+            return t;
+        }
+    }
 
     InternalKey() {}  // Leave rep as empty to indicate it is invalid
-    InternalKey(ByteBuffer userKey, long sequenceNumber, ValueType t) {
-        rep = appendInternalKey(new ParsedInternalKey(userKey, sequenceNumber, t));
+    public InternalKey(ByteBuffer userKey, long sequenceNumber, ValueType t) {
+        setRep(appendInternalKey(new ParsedInternalKey(userKey, sequenceNumber, t)));
+    }
+
+    public void setRep(ByteBuffer rep) {
+        this.rep = rep;
+        this.prefix = BytewiseComparator.prefix(rep, 0, rep.capacity() - getSuffix());
     }
 
     public ByteBuffer userKey() {
@@ -30,22 +78,51 @@ public class InternalKey {
         }
     }
 
+    // Zero-copy view of the user key part of rep
     private static ByteBuffer extractUserKey(ByteBuffer rep) {
-        byte[] bytes = new byte[rep.capacity() - getSuffix()];
-        rep.get(bytes, 0, bytes.length);
-        return ByteBuffer.wrap(bytes);
+        ByteBuffer userKey = rep.duplicate();
+        userKey.limit(rep.capacity() - getSuffix()).position(0);
+        return userKey.slice();
     }
 
     private static ByteBuffer appendInternalKey(ParsedInternalKey key) {
-        ByteBuffer result = ByteBuffer.allocate(key.userKey.capacity() + getSuffix());
-        result.put(key.userKey);
-        result.putLong(key.sequenceNumber);
-        result.putInt(key.type.ordinal());
+        ByteBuffer result = ByteBuffer.allocate(key.userKey.remaining() + getSuffix());
+        encodeTo(result, 0, key.userKey, key.sequenceNumber, key.type);
         return result;
     }
 
+    public static long packSequenceAndType(long sequenceNumber, ValueType t) {
+        assert (sequenceNumber <= kMaxSequenceNumber);
+        return (sequenceNumber << 8) | t.code();
+    }
+
+    static InternalKey wrap(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer rep = buffer.duplicate();
+        rep.limit(offset + length).position(offset);
+        InternalKey key = new InternalKey();
+        key.setRep(rep.slice());
+        return key;
+    }
+
+    public static int encodedLength(ByteBuffer userKey) {
+        return userKey.remaining() + getSuffix();
+    }
+
+    // Writes the encoded key at dst[offset], returns the number of bytes written
+    public static int encodeTo(ByteBuffer dst, int offset, ByteBuffer userKey, long sequenceNumber, ValueType t) {
+        return encodeTo(dst, offset, userKey, userKey.position(), userKey.remaining(), sequenceNumber, t);
+    }
+
+    // Same as above with the user key given as src[userKeyOffset, userKeyOffset + userKeyLength)
+    public static int encodeTo(ByteBuffer dst, int offset, ByteBuffer src, int userKeyOffset, int userKeyLength,
+                               long sequenceNumber, ValueType t) {
+        ByteBuffers.copy(src, userKeyOffset, dst, offset, userKeyLength);
+        dst.putLong(offset + userKeyLength, packSequenceAndType(sequenceNumber, t));
+        return userKeyLength + kTrailerSize;
+    }
+
     private static int getSuffix() {
-        return Long.BYTES + Integer.BYTES;
+        return kTrailerSize;
     }
 
     public static class ParsedInternalKey {
@@ -60,20 +137,21 @@ public class InternalKey {
         }
 
         public String debugString() {
-            return '\\' + new String(userKey.array()) + "' @ " + sequenceNumber + " : " + type;
+            byte[] bytes = new byte[userKey.remaining()];
+            userKey.duplicate().get(bytes);
+            return '\'' + new String(bytes, StandardCharsets.UTF_8) + "' @ " + sequenceNumber + " : " + type;
         }
 
+        // Parses buffer[position, limit) without moving the position, userKey is a view of buffer
         public static ParsedInternalKey fromBytes(ByteBuffer buffer) {
-            byte[] bytes = new byte[buffer.capacity() - getSuffix()];
-            buffer.get(bytes, 0, bytes.length);
-            ByteBuffer userKey = ByteBuffer.wrap(bytes);
-            long sequenceNumber = buffer.getLong();
-            int type = buffer.getInt();
-            if (type > ValueType.kTypeValue.ordinal()) {
-                throw new IllegalArgumentException();
-            } else {
-                return new ParsedInternalKey(userKey, sequenceNumber, ValueType.values()[type]);
+            int userKeyLength = buffer.remaining() - getSuffix();
+            if (userKeyLength < 0) {
+                throw new IllegalArgumentException("Internal key too short: " + buffer.remaining());
             }
+            ByteBuffer userKey = buffer.duplicate();
+            userKey.limit(buffer.position() + userKeyLength);
+            long trailer = buffer.getLong(buffer.position() + userKeyLength);
+            return new ParsedInternalKey(userKey.slice(), trailer >>> 8, ValueType.fromCode((int) (trailer & 0xff)));
         }
     }
 }
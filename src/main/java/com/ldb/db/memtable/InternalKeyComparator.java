@@ -0,0 +1,103 @@
+package com.ldb.db.memtable;
+
+import com.ldb.utils.ByteBuffers;
+import com.ldb.utils.BytewiseComparator;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Orders internal keys by increasing user key (bytewise), then decreasing packed
+ * (sequence, type) trailer. Works on the packed encoding in place: no copies,
+ * no allocation and the positions of the buffers are left alone. Most comparisons
+ * are decided by the 8-byte user key prefix cached with every key.
+ */
+public class InternalKeyComparator implements Comparator<InternalKey>, ArenaSkipList.KeyComparator {
+
+    @Override
+    public int compare(InternalKey a, InternalKey b) {
+        int r = Long.compareUnsigned(a.getPrefix(), b.getPrefix());
+        if (r != 0) {
+            return r;
+        }
+        ByteBuffer aRep = a.getRep();
+        ByteBuffer bRep = b.getRep();
+        return compare(aRep, 0, aRep.capacity(), bRep, 0, bRep.capacity());
+    }
+
+    @Override
+    public int compare(ByteBuffer a, int aOffset, int aLength, ByteBuffer b, int bOffset, int bLength) {
+        int aUserLength = aLength - InternalKey.kTrailerSize;
+        int bUserLength = bLength - InternalKey.kTrailerSize;
+        int r = BytewiseComparator.compare(a, aOffset, aUserLength, b, bOffset, bUserLength);
+        if (r == 0) {
+            // Decreasing sequence number, then decreasing type
+            // The trailer is unsigned, sequences reach into the sign bit
+            r = Long.compareUnsigned(b.getLong(bOffset + bUserLength), a.getLong(aOffset + aUserLength));
+        }
+        return r;
+    }
+
+    /**
+     * Writes to dst[0, n) and returns n: a short internal key k with
+     * start <= k < limit, for separating blocks in an index. The user key of start
+     * is cut after the first byte that differs from limit, and that byte is
+     * incremented when the result still sorts before limit; otherwise k is start.
+     * dst must have room for startLength bytes.
+     */
+    public int findShortestSeparator(ByteBuffer start, int startOffset, int startLength,
+                                     ByteBuffer limit, int limitOffset, int limitLength, ByteBuffer dst) {
+        // Attempt to shorten the user portion of the key
+        int startUserLength = startLength - InternalKey.kTrailerSize;
+        int minLength = Math.min(startUserLength, limitLength - InternalKey.kTrailerSize);
+        int diffIndex = 0;
+        while (diffIndex < minLength && start.get(startOffset + diffIndex) == limit.get(limitOffset + diffIndex)) {
+            diffIndex++;
+        }
+        if (diffIndex < minLength) {
+            int diffByte = Byte.toUnsignedInt(start.get(startOffset + diffIndex));
+            if (diffByte < 0xff && diffByte + 1 < Byte.toUnsignedInt(limit.get(limitOffset + diffIndex))
+                    && diffIndex + 1 < startUserLength) {
+                ByteBuffers.copy(start, startOffset, dst, 0, diffIndex);
+                dst.put(diffIndex, (byte) (diffByte + 1));
+                return shortened(dst, diffIndex + 1);
+            }
+        }
+        ByteBuffers.copy(start, startOffset, dst, 0, startLength);
+        return startLength;
+    }
+
+    /**
+     * Writes to dst[0, n) and returns n: a short internal key k >= key, for the
+     * index entry of the last block. The user key is cut after its first byte
+     * that is not 0xff, which is incremented. dst must have room for length bytes.
+     */
+    public int findShortSuccessor(ByteBuffer key, int offset, int length, ByteBuffer dst) {
+        int userLength = length - InternalKey.kTrailerSize;
+        // Find first character that can be incremented
+        for (int i = 0; i + 1 < userLength; i++) {
+            int b = Byte.toUnsignedInt(key.get(offset + i));
+            if (b != 0xff) {
+                ByteBuffers.copy(key, offset, dst, 0, i);
+                dst.put(i, (byte) (b + 1));
+                return shortened(dst, i + 1);
+            }
+        }
+        // key is a run of 0xffs, or too short to gain anything. Leave it alone.
+        ByteBuffers.copy(key, offset, dst, 0, length);
+        return length;
+    }
+
+    // The user key has become shorter physically, but larger logically. Tack on
+    // the earliest possible number to the shortened user key.
+    private static int shortened(ByteBuffer dst, int userLength) {
+        dst.putLong(userLength, InternalKey.packSequenceAndType(
+                InternalKey.kMaxSequenceNumber, InternalKey.ValueType.kValueTypeForSeek));
+        return userLength + InternalKey.kTrailerSize;
+    }
+
+    @Override
+    public long prefix(ByteBuffer key, int offset, int length) {
+        return BytewiseComparator.prefix(key, offset, length - InternalKey.kTrailerSize);
+    }
+}
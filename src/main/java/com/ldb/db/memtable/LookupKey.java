@@ -0,0 +1,49 @@
+package com.ldb.db.memtable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable encoder for the internal key of a point lookup: user key plus a trailer
+ * for the snapshot sequence that sorts before every entry of that user key visible
+ * at the snapshot. One instance can serve any number of lookups, it only allocates
+ * when a user key does not fit the current buffer.
+ */
+public class LookupKey {
+    private ByteBuffer buffer;
+    private int userKeyLength;
+    private int length;
+
+    public LookupKey() {
+        this(ByteBuffer.allocate(200));
+    }
+
+    public LookupKey(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public LookupKey set(ByteBuffer userKey, long sequenceNumber) {
+        int needed = InternalKey.encodedLength(userKey);
+        if (buffer.capacity() < needed) {
+            buffer = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+        }
+        userKeyLength = userKey.remaining();
+        // The limit is still that of the last key, which may be shorter
+        buffer.clear();
+        length = InternalKey.encodeTo(buffer, 0, userKey, sequenceNumber, InternalKey.ValueType.kValueTypeForSeek);
+        buffer.limit(length).position(0);
+        return this;
+    }
+
+    // The encoded internal key in [position, limit), valid until the next set
+    public ByteBuffer internalKey() {
+        return buffer;
+    }
+
+    public int userKeyLength() {
+        return userKeyLength;
+    }
+
+    public int length() {
+        return length;
+    }
+}
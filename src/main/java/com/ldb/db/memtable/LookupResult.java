@@ -0,0 +1,60 @@
+package com.ldb.db.memtable;
+
+import com.ldb.utils.BytewiseComparator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What a point lookup found for its key in one memtable or table: nothing, a
+ * value or a deletion. Sources are asked newest first until one of them finds
+ * the key. The value is a view of the source, valid while it is referenced.
+ */
+public class LookupResult {
+    public enum State {
+        kNotFound,
+        kFound,
+        kDeleted
+    }
+
+    private State state = State.kNotFound;
+    private ByteBuffer value;
+
+    public State state() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state != State.kNotFound;
+    }
+
+    public ByteBuffer value() {
+        return value;
+    }
+
+    /**
+     * Records the entry a source found at or after the lookup key, given as an
+     * encoded internal key in entry[offset, offset + length). Returns true if
+     * the entry is for the lookup's user key, which ends the lookup.
+     */
+    public boolean save(LookupKey key, ByteBuffer entry, int offset, int length, ByteBuffer value) {
+        int userKeyLength = length - InternalKey.kTrailerSize;
+        if (BytewiseComparator.compare(entry, offset, userKeyLength,
+                key.internalKey(), 0, key.userKeyLength()) != 0) {
+            return false;
+        }
+        int type = (int) (entry.getLong(offset + userKeyLength) & 0xff);
+        if (type == InternalKey.ValueType.kTypeValue.code()) {
+            this.state = State.kFound;
+            this.value = value;
+        } else {
+            this.state = State.kDeleted;
+            this.value = null;
+        }
+        return true;
+    }
+
+    public void reset() {
+        state = State.kNotFound;
+        value = null;
+    }
+}
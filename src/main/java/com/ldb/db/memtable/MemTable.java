@@ -1,20 +1,149 @@
 package com.ldb.db.memtable;
 
+import com.ldb.utils.ByteBuffers;
+
+import java.nio.ByteBuffer;
 import java.util.Comparator;
+import java.util.List;
 
 public class MemTable {
     private int ref;
     private final Comparator<InternalKey> comparator;
+    private final Arena arena;
+    private final ArenaSkipList table;
+    // Each concurrent writer keeps its own splice, so ascending keys from one writer stay cheap
+    private final ThreadLocal<ArenaSkipList.Splice> writerSplice;
+
+    public MemTable() {
+        this(new InternalKeyComparator());
+    }
 
     public MemTable(Comparator<InternalKey> comparator) {
+        this(comparator, new Arena());
+    }
+
+    public MemTable(Comparator<InternalKey> comparator, Arena arena) {
         this.comparator = comparator;
+        this.arena = arena;
+        this.table = new ArenaSkipList(arena, keyComparator(comparator));
+        this.writerSplice = ThreadLocal.withInitial(table::newSplice);
+    }
+
+    private static ArenaSkipList.KeyComparator keyComparator(Comparator<InternalKey> comparator) {
+        if (comparator instanceof ArenaSkipList.KeyComparator) {
+            return (ArenaSkipList.KeyComparator) comparator;
+        }
+        // Any other comparator needs key objects, which costs two allocations per comparison
+        return (a, aOffset, aLength, b, bOffset, bLength) -> comparator.compare(
+                InternalKey.wrap(a, aOffset, aLength), InternalKey.wrap(b, bOffset, bLength));
+    }
+
+    // Format of an entry is the internal key (user key, sequence, type) followed by the
+    // value, both encoded straight into the node allocated from the arena.
+    public void add(long sequenceNumber, InternalKey.ValueType type, ByteBuffer key, ByteBuffer value) {
+        table.insert(newEntry(sequenceNumber, type, key, key.position(), key.remaining(),
+                value, value == null ? 0 : value.position(), value == null ? 0 : value.remaining()));
+    }
+
+    // Same as above with key and value given as ranges of src, so a caller decoding
+    // a larger buffer such as a WriteBatch does not need a view per record.
+    public void add(long sequenceNumber, InternalKey.ValueType type, ByteBuffer src,
+                    int keyOffset, int keyLength, int valueOffset, int valueLength) {
+        table.insert(newEntry(sequenceNumber, type, src, keyOffset, keyLength, src, valueOffset, valueLength));
+    }
+
+    /**
+     * Same as {@link #add} but safe to call from several writers at once, each
+     * with its own sequence numbers.
+     */
+    public void addConcurrently(long sequenceNumber, InternalKey.ValueType type, ByteBuffer key, ByteBuffer value) {
+        long node = newEntry(sequenceNumber, type, key, key.position(), key.remaining(),
+                value, value == null ? 0 : value.position(), value == null ? 0 : value.remaining());
+        if (!table.insertConcurrently(node, writerSplice.get())) {
+            throw new IllegalArgumentException("Key already exists");
+        }
+    }
+
+    // Same as above with key and value given as ranges of src, see add
+    public void addConcurrently(long sequenceNumber, InternalKey.ValueType type, ByteBuffer src,
+                                int keyOffset, int keyLength, int valueOffset, int valueLength) {
+        long node = newEntry(sequenceNumber, type, src, keyOffset, keyLength, src, valueOffset, valueLength);
+        if (!table.insertConcurrently(node, writerSplice.get())) {
+            throw new IllegalArgumentException("Key already exists");
+        }
+    }
+
+    private long newEntry(long sequenceNumber, InternalKey.ValueType type, ByteBuffer keySrc, int keyOffset, int keyLength,
+                          ByteBuffer valueSrc, int valueOffset, int valueLength) {
+        long node = table.newNode(keyLength + InternalKey.kTrailerSize, valueLength);
+        ByteBuffer block = table.block(node);
+        InternalKey.encodeTo(block, table.keyOffset(node), keySrc, keyOffset, keyLength, sequenceNumber, type);
+        if (valueLength > 0) {
+            ByteBuffers.copy(valueSrc, valueOffset, block, table.valueOffset(node), valueLength);
+        }
+        return node;
+    }
+
+    // If memtable contains a value for key, stores it in result. If memtable
+    // contains a deletion for key, records the deletion in result. Returns true
+    // in both cases, false if the key is not in the memtable at the snapshot
+    // sequence of key.
+    public boolean get(LookupKey key, LookupResult result) {
+        ArenaSkipList.Iterator iter = table.iterator();
+        iter.seek(key.internalKey());
+        if (!iter.valid()) {
+            return false;
+        }
+        return save(iter.node(), key, result);
+    }
+
+    // Same as above for keys looked up in ascending order, "finger" carries the
+    // search path from one key to the next, see newFinger.
+    public boolean get(LookupKey key, LookupResult result, ArenaSkipList.Splice finger) {
+        long node = table.seek(key.internalKey(), finger);
+        if (node == 0) {
+            return false;
+        }
+        return save(node, key, result);
+    }
+
+    // Returns a finger for get() calls with ascending keys, private to one thread
+    public ArenaSkipList.Splice newFinger() {
+        return table.newSplice();
+    }
+
+    private boolean save(long node, LookupKey key, LookupResult result) {
+        // entry format is:
+        //    internal key (user key, packed sequence and type)
+        //    value
+        // Check that it belongs to same user key.  We do not check the
+        // sequence number since the seek above should have skipped
+        // all entries with overly large sequence numbers.
+        return result.save(key, table.block(node), table.keyOffset(node), table.keyLength(node), table.value(node));
+    }
+
+    public ArenaSkipList.Iterator iterator() {
+        return table.iterator();
+    }
+
+    // Internal keys spread evenly over the table, see ArenaSkipList.sampleKeys
+    public List<ByteBuffer> sampleKeys(int count) {
+        return table.sampleKeys(count);
     }
 
     public long approximateMemoryUsage() {
-        return 0L;
+        return arena.memoryUsage();
     }
 
     public void ref() {
         ref++;
     }
+
+    public void unref() {
+        --ref;
+        assert (ref >= 0);
+        if (ref <= 0) {
+            arena.release();
+        }
+    }
 }
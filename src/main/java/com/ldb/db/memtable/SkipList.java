@@ -2,21 +2,29 @@ package com.ldb.db.memtable;
 
 import com.ldb.utils.SeekableIterator;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Comparator;
-import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class SkipList<KEY extends Comparable<? super KEY>> {
     private final Node<KEY> head;
     private final Random rnd = ThreadLocalRandom.current();
     private final Comparator<? super KEY> comparator;
     private volatile int maxHeight; // 保证修改后，其他线程立即可见
+    private final Splice<KEY> seqSplice = new Splice<>();
     private static final int kBranching = 4;
     private static final int kMaxHeight = 12;
+    private static final VarHandle MAX_HEIGHT;
+
+    static {
+        try {
+            MAX_HEIGHT = MethodHandles.lookup().findVarHandle(SkipList.class, "maxHeight", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public SkipList() {
         this.head = newNode(null, kMaxHeight);
@@ -31,23 +39,143 @@ public class SkipList<KEY extends Comparable<? super KEY>> {
     }
 
     public void insert(KEY key) {
-        List<Node<KEY>> prev = new ArrayList<>(Collections.nCopies(kMaxHeight, null));
-        Node<KEY> x = findGreaterOrEqual(key, prev);
-        if (x != null && equal(key, x.key)) {
-            // throw new IllegalArgumentException("Key " + key + " already exists");
-            return;
-        }
+        insert(key, seqSplice, false);
+    }
+
+    /**
+     * Inserts using the caller's splice as a starting point. The splice remembers
+     * where the previous insert through it happened, so keys inserted in ascending
+     * order only touch the bottom levels. Needs external synchronization like
+     * {@link #insert}.
+     */
+    public void insertWithHint(KEY key, Splice<KEY> hint) {
+        insert(key, hint, false);
+    }
+
+    /**
+     * Like {@link #insert} but may be called by several writers at the same time.
+     * Each level is linked with a CAS on the predecessor's next pointer, a failed CAS
+     * recomputes the splice of that level starting from the old predecessor.
+     * Returns false if the key is already present.
+     */
+    public boolean insertConcurrently(KEY key) {
+        return insert(key, new Splice<>(), true);
+    }
+
+    // Concurrent insert reusing a splice owned by the calling writer.
+    public boolean insertConcurrently(KEY key, Splice<KEY> splice) {
+        return insert(key, splice, true);
+    }
+
+    public Splice<KEY> newSplice() {
+        return new Splice<>();
+    }
+
+    private boolean insert(KEY key, Splice<KEY> splice, boolean concurrent) {
         int height = randomHeight();
-        if (height > maxHeight) {
-            for (int i = maxHeight; i < height; i++) {
-                prev.set(i, head);
+        int max = maxHeight;
+        while (height > max) {
+            if (concurrent) {
+                if (MAX_HEIGHT.compareAndSet(this, max, height)) {
+                    max = height;
+                    break;
+                }
+                max = maxHeight;
+            } else {
+                // It is ok to mutate maxHeight without any synchronization with concurrent
+                // readers. A reader that observes the new value will see either the old
+                // value of the new level pointers from head (null), or a new value set
+                // in the loop below.
+                maxHeight = height;
+                max = height;
+            }
+        }
+
+        int recomputeHeight = 0;
+        if (splice.height < max) {
+            // Either the splice has never been used or maxHeight has grown since
+            // its last use, start the search from head.
+            splice.prev[max] = head;
+            splice.next[max] = null;
+            splice.height = max;
+            recomputeHeight = max;
+        } else {
+            // 从最低层开始，找到第一层仍然夹住key的splice，只需重新计算这一层以下
+            while (recomputeHeight < max) {
+                Node<KEY> p = splice.prev[recomputeHeight];
+                Node<KEY> n = splice.next[recomputeHeight];
+                if (p.next(recomputeHeight) != n) {
+                    // Another insert landed inside the splice at this level.
+                    recomputeHeight++;
+                } else if (p != head && !keyIsAfterNode(key, p)) {
+                    // Key is before the splice, it can only be found from the top.
+                    recomputeHeight = max;
+                } else if (keyIsAfterNode(key, n)) {
+                    recomputeHeight++;
+                } else {
+                    break;
+                }
             }
-            maxHeight = height;
         }
-        x = newNode(key, height);
+        for (int i = recomputeHeight - 1; i >= 0; i--) {
+            findSpliceForLevel(key, splice.prev[i + 1], splice.next[i + 1], i, splice);
+        }
+        if (splice.next[0] != null && equal(key, splice.next[0].key)) {
+            return false;
+        }
+
+        Node<KEY> x = newNode(key, height);
+        if (concurrent) {
+            for (int i = 0; i < height; i++) {
+                while (true) {
+                    x.unprotectedSetNext(i, splice.next[i]);
+                    if (i == 0) {
+                        x.unprotectedSetPrev(splice.prev[0]);
+                    }
+                    if (splice.prev[i].casNext(i, splice.next[i], x)) {
+                        break;
+                    }
+                    // 其他线程在prev[i]之后插入了节点，从prev[i]开始重新查找这一层
+                    findSpliceForLevel(key, splice.prev[i], null, i, splice);
+                    if (i == 0 && splice.next[0] != null && equal(key, splice.next[0].key)) {
+                        return false;
+                    }
+                }
+            }
+        } else {
+            x.unprotectedSetPrev(splice.prev[0]);
+            for (int i = 0; i < height; i++) {
+                x.unprotectedSetNext(i, splice.next[i]);
+                splice.prev[i].setNext(i, x);
+            }
+        }
+        if (splice.next[0] != null) {
+            // A racing insert in front of next[0] may overwrite this with a smaller
+            // node, either way prev stays a hint that is less than next[0].
+            splice.next[0].setPrev(x);
+        }
+        // The next key in ascending order goes right after x.
         for (int i = 0; i < height; i++) {
-            x.unprotectedSetNext(i, prev.get(i).unprotectedNext(i));
-            prev.get(i).setNext(i, x);
+            splice.prev[i] = x;
+        }
+        return true;
+    }
+
+    private boolean keyIsAfterNode(KEY key, Node<KEY> node) {
+        return node != null && comparator.compare(node.key, key) < 0;
+    }
+
+    // Finds prev/next of key at the given level, starting at before and never moving past after
+    private void findSpliceForLevel(KEY key, Node<KEY> before, Node<KEY> after, int level, Splice<KEY> splice) {
+        Node<KEY> x = before;
+        while (true) {
+            Node<KEY> n = x.next(level);
+            if (n == after || n == null || greaterOrEqual(n.key, key)) {
+                splice.prev[level] = x;
+                splice.next[level] = n;
+                return;
+            }
+            x = n;
         }
     }
 
@@ -61,7 +189,7 @@ public class SkipList<KEY extends Comparable<? super KEY>> {
     }
 
     private Node<KEY> newNode(KEY key, int height) {
-        // TODO：使用对象池/内存池分配节点
+        // 节点分配在堆上；memtable使用ArenaSkipList，节点整体分配在Arena中
         return new Node<>(key, height);
     }
 
@@ -80,18 +208,11 @@ public class SkipList<KEY extends Comparable<? super KEY>> {
     }
 
     private Node<KEY> findGreaterOrEqual(KEY key) {
-        return findGreaterOrEqual(key, null);
-    }
-
-    private Node<KEY> findGreaterOrEqual(KEY key,List<Node<KEY>> prev) {
         Node<KEY> x = head;
         int level = maxHeight - 1;
         while (true) {
             Node<KEY> next = x.next(level);
             if (next == null || greaterOrEqual(next.key, key)) {
-                if (prev != null) {
-                    prev.set(level, x);
-                }
                 if (level == 0) {
                     return next;
                 }
@@ -102,19 +223,16 @@ public class SkipList<KEY extends Comparable<? super KEY>> {
         }
     }
 
-    private Node<KEY> findLessThan(KEY key) {
-        Node<KEY> x = head;
-        int level = maxHeight - 1;
+    // Level 0 predecessor of node. The back pointer only guarantees a smaller key,
+    // walk forward from it until reaching node.
+    private Node<KEY> findPrev(Node<KEY> node) {
+        Node<KEY> x = node.prev();
         while (true) {
-            Node<KEY> next = x.next(level);
-            if (next == null || greaterOrEqual(next.key, key)) {
-                if (level == 0) {
-                    return x;
-                }
-                level--;
-            } else {
-                x = next;
+            Node<KEY> next = x.next(0);
+            if (next == node) {
+                return x;
             }
+            x = next;
         }
     }
 
@@ -166,7 +284,7 @@ public class SkipList<KEY extends Comparable<? super KEY>> {
             @Override
             public void prev() {
                 checkValid();
-                node = list.findLessThan(node.key);
+                node = list.findPrev(node);
                 if (node == list.head) {
                     node = null;
                 }
@@ -192,41 +310,106 @@ public class SkipList<KEY extends Comparable<? super KEY>> {
         };
     }
 
+    /**
+     * Level 0 link is a field of the node, links of higher levels live in a plain
+     * array, both accessed through VarHandles. Three out of four nodes have height 1
+     * and therefore need no array at all. Levels are trusted to be in
+     * [0, height), callers never pass anything else.
+     * <p>
+     * prev is a level 0 back pointer used by reverse iteration. It always points
+     * to some node with a smaller key (or head), not necessarily the direct one.
+     */
     static class Node<KEY> {
+        private static final VarHandle NEXT0;
+        private static final VarHandle PREV;
+        private static final VarHandle UPPER = MethodHandles.arrayElementVarHandle(Object[].class);
+
+        static {
+            try {
+                NEXT0 = MethodHandles.lookup().findVarHandle(Node.class, "next0", Node.class);
+                PREV = MethodHandles.lookup().findVarHandle(Node.class, "prev", Node.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
         private final KEY key;
-        // TODO: 变长数组更好一些，自定义VarHandle优化内存？
-        private final AtomicReferenceArray<Node<KEY>> next;
+        private Node<KEY> next0;
+        private Node<KEY> prev;
+        // upper[i - 1] is the link at level i
+        private final Object[] upper;
+
         private Node(KEY key, int height) {
             this.key = key;
-            this.next = new AtomicReferenceArray<>(height);
+            this.upper = height > 1 ? new Object[height - 1] : null;
         }
 
+        @SuppressWarnings("unchecked")
         protected Node<KEY> next(int level) {
-            if (level < 0) {
-                throw new IllegalArgumentException();
+            if (level == 0) {
+                return (Node<KEY>) NEXT0.getAcquire(this);
             }
-            return next.getAcquire(level);
+            return (Node<KEY>) UPPER.getAcquire(upper, level - 1);
         }
 
         protected void setNext(int level, Node<KEY> next) {
-            if (level < 0) {
-                throw new IllegalArgumentException();
+            if (level == 0) {
+                NEXT0.setRelease(this, next);
+            } else {
+                UPPER.setRelease(upper, level - 1, next);
             }
-            this.next.setRelease(level, next);
         }
 
+        @SuppressWarnings("unchecked")
+        protected Node<KEY> prev() {
+            return (Node<KEY>) PREV.getAcquire(this);
+        }
+
+        protected void setPrev(Node<KEY> prev) {
+            PREV.setRelease(this, prev);
+        }
+
+        protected void unprotectedSetPrev(Node<KEY> prev) {
+            this.prev = prev;
+        }
+
+        protected boolean casNext(int level, Node<KEY> expected, Node<KEY> next) {
+            if (level == 0) {
+                return NEXT0.compareAndSet(this, expected, next);
+            }
+            return UPPER.compareAndSet(upper, level - 1, expected, next);
+        }
+
+        @SuppressWarnings("unchecked")
         protected Node<KEY> unprotectedNext(int level) {
-            if (level < 0) {
-                throw new IllegalArgumentException();
+            if (level == 0) {
+                return next0;
             }
-            return next.getPlain(level);
+            return (Node<KEY>) upper[level - 1];
         }
 
         protected void unprotectedSetNext(int level, Node<KEY> next) {
-            if (level < 0) {
-                throw new IllegalArgumentException();
+            if (level == 0) {
+                next0 = next;
+            } else {
+                upper[level - 1] = next;
             }
-            this.next.setPlain(level, next);
+        }
+    }
+
+    /**
+     * Predecessors and successors of the last key inserted through this splice at
+     * every level. Owned by one writer at a time.
+     */
+    public static final class Splice<KEY> {
+        private int height;
+        private final Node<KEY>[] prev;
+        private final Node<KEY>[] next;
+
+        @SuppressWarnings("unchecked")
+        private Splice() {
+            this.prev = (Node<KEY>[]) new Node[kMaxHeight + 1];
+            this.next = (Node<KEY>[]) new Node[kMaxHeight + 1];
         }
     }
 
@@ -0,0 +1,49 @@
+package com.ldb.log;
+
+// Log format information shared by reader and writer.
+// The file is a sequence of kBlockSize blocks, each holding physical records:
+//    checksum: uint32    // masked crc32c of type and data[], little-endian
+//    length: uint16      // little-endian
+//    type: uint8         // One of the record types below
+//    data: uint8[length]
+// A record never starts within the last six bytes of a block, they are zero filled.
+//
+// Logs that may be written over a recycled file use the recyclable record types,
+// whose header also carries the low 32 bits of the log number. Records left over
+// from the file's previous life fail that check and end the log.
+//    checksum: uint32    // masked crc32c of type, log number and data[]
+//    length: uint16
+//    type: uint8         // kRecyclableFullType ... kRecyclableLastType
+//    log number: uint32  // little-endian
+//    data: uint8[length]
+public class LogFormat {
+    // Zero is reserved for preallocated files
+    public static final int kZeroType = 0;
+
+    public static final int kFullType = 1;
+
+    // For fragments
+    public static final int kFirstType = 2;
+    public static final int kMiddleType = 3;
+    public static final int kLastType = 4;
+
+    // For recycled log files
+    public static final int kRecyclableFullType = 5;
+    public static final int kRecyclableFirstType = 6;
+    public static final int kRecyclableMiddleType = 7;
+    public static final int kRecyclableLastType = 8;
+
+    public static final int kMaxRecordType = kRecyclableLastType;
+
+    public static final int kBlockSize = 32768;
+
+    // Header is checksum (4 bytes), length (2 bytes), type (1 byte).
+    public static final int kHeaderSize = 4 + 2 + 1;
+
+    // Recyclable header is checksum (4 bytes), length (2 bytes), type (1 byte),
+    // log number (4 bytes).
+    public static final int kRecyclableHeaderSize = 4 + 2 + 1 + 4;
+
+    // Recyclable types are the plain types shifted by this much
+    static final int kRecyclableTypeOffset = kRecyclableFullType - kFullType;
+}
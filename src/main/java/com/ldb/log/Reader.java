@@ -0,0 +1,397 @@
+package com.ldb.log;
+
+import com.ldb.db.SequentialFile;
+import com.ldb.db.Status;
+import com.ldb.utils.Crc32c;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32C;
+
+import static com.ldb.log.LogFormat.kBlockSize;
+import static com.ldb.log.LogFormat.kFirstType;
+import static com.ldb.log.LogFormat.kFullType;
+import static com.ldb.log.LogFormat.kHeaderSize;
+import static com.ldb.log.LogFormat.kLastType;
+import static com.ldb.log.LogFormat.kMaxRecordType;
+import static com.ldb.log.LogFormat.kMiddleType;
+import static com.ldb.log.LogFormat.kRecyclableFullType;
+import static com.ldb.log.LogFormat.kRecyclableHeaderSize;
+import static com.ldb.log.LogFormat.kRecyclableLastType;
+import static com.ldb.log.LogFormat.kRecyclableTypeOffset;
+import static com.ldb.log.LogFormat.kZeroType;
+
+public class Reader {
+    // Extend record types with the following special values
+    // Returned whenever we reach the end of the input
+    private static final int kEof = kMaxRecordType + 1;
+    // Returned whenever we find an invalid physical record.
+    // Currently there are three situations in which this happens:
+    // * The record has an invalid CRC (readPhysicalRecord reports a drop)
+    // * The record is a 0-length record (No drop is reported)
+    // * The record is below constructor's initialOffset (No drop is reported)
+    private static final int kBadRecord = kMaxRecordType + 2;
+    // Returned when we find a record written before the file was recycled, or
+    // the remains of one. Ends the log like kEof, no drop is reported.
+    private static final int kOldRecord = kMaxRecordType + 3;
+
+    // Interface for reporting errors.
+    public interface Reporter {
+        // Some corruption was detected.  "bytes" is the approximate number
+        // of bytes dropped due to the corruption.
+        void corruption(long bytes, Status status);
+    }
+
+    private final SequentialFile file;
+    private final Reporter reporter;
+    private final boolean checksum;
+    private final CRC32C crc = new CRC32C();
+    // [position, limit) is the unread part of the current block
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(kBlockSize).order(ByteOrder.LITTLE_ENDIAN);
+    // Last fragment returned by readPhysicalRecord, a view of buffer
+    private final ByteBuffer fragment = buffer.duplicate();
+    // Reassembles fragmented records
+    private ByteBuffer scratch = ByteBuffer.allocate(kBlockSize);
+    private boolean eof;  // Last read() indicated EOF by returning < kBlockSize
+
+    // Offset of the last record returned by readRecord.
+    private long lastRecordOffset;
+    // Offset of the first location past the end of buffer.
+    private long endOfBufferOffset;
+
+    // Offset at which to start looking for the first record to return
+    private final long initialOffset;
+
+    // True if we are resynchronizing after a seek (initialOffset > 0). In
+    // particular, a run of kMiddleType and kLastType records can be silently
+    // skipped in this mode
+    private boolean resyncing;
+
+    // Recyclable records must carry this log number
+    private final int logNumber;
+    // Set once a recyclable record is seen: the file may hold older records past
+    // the end of this log, so damage after a good record is the end of the log
+    private boolean recycled;
+    // Header size of the last record returned by readPhysicalRecord
+    private int physicalHeaderSize = kHeaderSize;
+
+    // Create a reader that will return log records from "file".
+    // "file" must remain live while this Reader is in use.
+    //
+    // If "reporter" is non-null, it is notified whenever some data is
+    // dropped due to a detected corruption.
+    //
+    // If "checksum" is true, verify checksums if available.
+    //
+    // The Reader will start reading at the first record located at physical
+    // position >= initialOffset within the file.
+    public Reader(SequentialFile file, Reporter reporter, boolean checksum, long initialOffset) {
+        this(file, reporter, checksum, initialOffset, 0);
+    }
+
+    // Same as above for a log that may have been written over a recycled file,
+    // "logNumber" is the number of the log being read.
+    public Reader(SequentialFile file, Reporter reporter, boolean checksum, long initialOffset, long logNumber) {
+        this.file = file;
+        this.reporter = reporter;
+        this.checksum = checksum;
+        this.initialOffset = initialOffset;
+        this.resyncing = initialOffset > 0;
+        this.logNumber = (int) logNumber;
+        buffer.limit(0);
+    }
+
+    // Returns the next record, or null at the end of the input. The record is a
+    // view of internal buffers and is only valid until the next call.
+    public ByteBuffer readRecord() {
+        if (lastRecordOffset < initialOffset) {
+            if (!skipToInitialBlock()) {
+                return null;
+            }
+        }
+
+        scratch.clear();
+        boolean inFragmentedRecord = false;
+        // Record offset of the logical record that we're reading
+        // 0 is a dummy value to make compilers happy
+        long prospectiveRecordOffset = 0;
+
+        while (true) {
+            int recordType = readPhysicalRecord();
+
+            // readPhysicalRecord may have only had an empty trailer remaining in its
+            // internal buffer. Calculate the offset of the next physical record now
+            // that it has returned, properly accounting for its header size.
+            long physicalRecordOffset = endOfBufferOffset - buffer.remaining() - physicalHeaderSize - fragment.remaining();
+
+            if (resyncing) {
+                if (recordType == kMiddleType) {
+                    continue;
+                } else if (recordType == kLastType) {
+                    resyncing = false;
+                    continue;
+                } else {
+                    resyncing = false;
+                }
+            }
+
+            switch (recordType) {
+                case kFullType:
+                    if (inFragmentedRecord) {
+                        // Handle bug in earlier versions of log::Writer where
+                        // it could emit an empty kFirstType record at the tail end
+                        // of a block followed by a kFullType or kFirstType record
+                        // at the beginning of the next block.
+                        if (scratch.position() > 0) {
+                            reportCorruption(scratch.position(), "partial record without end(1)");
+                        }
+                    }
+                    prospectiveRecordOffset = physicalRecordOffset;
+                    scratch.clear();
+                    lastRecordOffset = prospectiveRecordOffset;
+                    return fragment;
+
+                case kFirstType:
+                    if (inFragmentedRecord) {
+                        // Handle bug in earlier versions of log::Writer where
+                        // it could emit an empty kFirstType record at the tail end
+                        // of a block followed by a kFullType or kFirstType record
+                        // at the beginning of the next block.
+                        if (scratch.position() > 0) {
+                            reportCorruption(scratch.position(), "partial record without end(2)");
+                        }
+                    }
+                    prospectiveRecordOffset = physicalRecordOffset;
+                    scratch.clear();
+                    appendToScratch(fragment);
+                    inFragmentedRecord = true;
+                    break;
+
+                case kMiddleType:
+                    if (!inFragmentedRecord) {
+                        reportCorruption(fragment.remaining(), "missing start of fragmented record(1)");
+                    } else {
+                        appendToScratch(fragment);
+                    }
+                    break;
+
+                case kLastType:
+                    if (!inFragmentedRecord) {
+                        reportCorruption(fragment.remaining(), "missing start of fragmented record(2)");
+                    } else {
+                        appendToScratch(fragment);
+                        lastRecordOffset = prospectiveRecordOffset;
+                        return scratch.flip();
+                    }
+                    break;
+
+                case kEof:
+                case kOldRecord:
+                    if (inFragmentedRecord) {
+                        // This can be caused by the writer dying immediately after
+                        // writing a physical record but before completing the next; don't
+                        // treat it as a corruption, just ignore the entire logical record.
+                        scratch.clear();
+                    }
+                    return null;
+
+                case kBadRecord:
+                    if (inFragmentedRecord) {
+                        reportCorruption(scratch.position(), "error in middle of record");
+                        inFragmentedRecord = false;
+                        scratch.clear();
+                    }
+                    break;
+
+                default:
+                    reportCorruption(fragment.remaining() + (inFragmentedRecord ? scratch.position() : 0),
+                            "unknown record type " + recordType);
+                    inFragmentedRecord = false;
+                    scratch.clear();
+                    break;
+            }
+        }
+    }
+
+    // Returns the physical offset of the last record returned by readRecord.
+    //
+    // Undefined before the first call to readRecord.
+    public long lastRecordOffset() {
+        return lastRecordOffset;
+    }
+
+    // Skips all blocks that are completely before "initialOffset".
+    //
+    // Returns true on success. Handles reporting.
+    private boolean skipToInitialBlock() {
+        long offsetInBlock = initialOffset % kBlockSize;
+        long blockStartLocation = initialOffset - offsetInBlock;
+
+        // Don't search a block if we'd be in the trailer
+        if (offsetInBlock > kBlockSize - 6) {
+            blockStartLocation += kBlockSize;
+        }
+
+        endOfBufferOffset = blockStartLocation;
+
+        // Skip to start of first block that can contain the initial record
+        if (blockStartLocation > 0) {
+            Status skipStatus = file.skip(blockStartLocation);
+            if (!skipStatus.isOk()) {
+                reportDrop(blockStartLocation, skipStatus);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Return type, or one of the preceding special values. On a record type
+    // fragment holds the payload.
+    private int readPhysicalRecord() {
+        fragment.limit(0);
+        physicalHeaderSize = kHeaderSize;
+        while (true) {
+            if (buffer.remaining() < kHeaderSize) {
+                if (!eof) {
+                    // Last read was a full read, so this is a trailer to skip
+                    buffer.clear();
+                    Status status = file.read(buffer);
+                    buffer.flip();
+                    endOfBufferOffset += buffer.remaining();
+                    if (!status.isOk()) {
+                        buffer.limit(0);
+                        reportDrop(kBlockSize, status);
+                        eof = true;
+                        return kEof;
+                    } else if (buffer.remaining() < kBlockSize) {
+                        eof = true;
+                    }
+                    continue;
+                } else {
+                    // Note that if buffer is non-empty, we have a truncated header at the
+                    // end of the file, which can be caused by the writer crashing in the
+                    // middle of writing the header. Instead of considering this an error,
+                    // just report EOF.
+                    buffer.limit(buffer.position());
+                    return kEof;
+                }
+            }
+
+            // Parse the header
+            int header = buffer.position();
+            int length = Short.toUnsignedInt(buffer.getShort(header + 4));
+            int type = Byte.toUnsignedInt(buffer.get(header + 6));
+            int headerSize = kHeaderSize;
+            boolean recyclableType = type >= kRecyclableFullType && type <= kRecyclableLastType;
+            if (recyclableType) {
+                headerSize = kRecyclableHeaderSize;
+            } else if (recycled) {
+                // Writers of recycled logs only emit recyclable records, this is
+                // left from before the file was recycled
+                return endOfLog();
+            }
+            if (headerSize + length > buffer.remaining()) {
+                int dropSize = buffer.remaining();
+                buffer.position(buffer.limit());
+                if (recycled) {
+                    // Most likely part of a record from before the file was recycled
+                    return endOfLog();
+                }
+                if (!eof) {
+                    reportCorruption(dropSize, "bad record length");
+                    return kBadRecord;
+                }
+                // If the end of the file has been reached without reading |length| bytes
+                // of payload, assume the writer died in the middle of writing the record.
+                // Don't report a corruption.
+                return kEof;
+            }
+
+            if (type == kZeroType && length == 0) {
+                // Skip zero length record without reporting any drops since
+                // such records are produced by the mmap based writing code
+                // that preallocates file regions.
+                buffer.position(buffer.limit());
+                return kBadRecord;
+            }
+
+            // Check crc, which covers the header from the type on and the payload
+            if (checksum) {
+                int expectedCrc = Crc32c.unmask(buffer.getInt(header));
+                crc.reset();
+                fragment.limit(header + headerSize + length).position(header + 6);
+                crc.update(fragment);
+                if ((int) crc.getValue() != expectedCrc) {
+                    if (recycled) {
+                        fragment.limit(0);
+                        return endOfLog();
+                    }
+                    // Drop the rest of the buffer since "length" itself may have
+                    // been corrupted and if we trust it, we could find some
+                    // fragment of a real log record that just happens to look
+                    // like a valid log record.
+                    int dropSize = buffer.remaining();
+                    buffer.position(buffer.limit());
+                    fragment.limit(0);
+                    reportCorruption(dropSize, "checksum mismatch");
+                    return kBadRecord;
+                }
+            }
+
+            fragment.limit(header + headerSize + length).position(header + headerSize);
+            buffer.position(header + headerSize + length);
+
+            if (recyclableType) {
+                if (buffer.getInt(header + 7) != logNumber) {
+                    // Written by an earlier log that used this file
+                    fragment.limit(0);
+                    return endOfLog();
+                }
+                recycled = true;
+                type -= kRecyclableTypeOffset;
+            }
+
+            // Skip physical record that started before initialOffset
+            if (endOfBufferOffset - buffer.remaining() - headerSize - length < initialOffset) {
+                fragment.limit(0);
+                return kBadRecord;
+            }
+
+            physicalHeaderSize = headerSize;
+            return type;
+        }
+    }
+
+    private int endOfLog() {
+        buffer.position(buffer.limit());
+        eof = true;
+        return kOldRecord;
+    }
+
+    private void appendToScratch(ByteBuffer data) {
+        if (scratch.remaining() < data.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + data.remaining()));
+            scratch.flip();
+            bigger.put(scratch);
+            scratch = bigger;
+        }
+        int position = data.position();
+        scratch.put(data);
+        data.position(position);
+    }
+
+    // Reports dropped bytes to the reporter.
+    // buffer must be updated to remove the dropped bytes prior to invocation.
+    private void reportCorruption(long bytes, String reason) {
+        reportDrop(bytes, Status.of(new IllegalStateException(reason)));
+    }
+
+    private void reportDrop(long bytes, Status reason) {
+        // Unsigned like LevelDB: a drop reaching back before the file start still counts
+        if (reporter != null
+                && Long.compareUnsigned(endOfBufferOffset - buffer.remaining() - bytes, initialOffset) >= 0) {
+            reporter.corruption(bytes, reason);
+        }
+    }
+}
@@ -2,20 +2,168 @@ package com.ldb.log;
 
 import com.ldb.db.Status;
 import com.ldb.db.WritableFile;
-import com.ldb.db.WriteBatch;
-import lombok.Data;
+import com.ldb.utils.Crc32c;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
 
-@Data
+import static com.ldb.log.LogFormat.kBlockSize;
+import static com.ldb.log.LogFormat.kFirstType;
+import static com.ldb.log.LogFormat.kFullType;
+import static com.ldb.log.LogFormat.kHeaderSize;
+import static com.ldb.log.LogFormat.kLastType;
+import static com.ldb.log.LogFormat.kMiddleType;
+import static com.ldb.log.LogFormat.kRecyclableHeaderSize;
+import static com.ldb.log.LogFormat.kRecyclableTypeOffset;
+
+// Record bytes are never copied: headers are encoded into a reused direct buffer
+// and handed to the file together with views of the record in one gathering write.
 public class Writer {
-    WritableFile dest;
+    private final WritableFile dest;
+    private int blockOffset;  // Current offset in block
+    // Recyclable records carry the log number, see LogFormat
+    private final boolean recyclable;
+    private final int logNumber;
+    private final int headerSize;
+    private final CRC32C crc = new CRC32C();
+    // One header slot per fragment, all views of one direct buffer
+    private ByteBuffer[] headers = new ByteBuffer[0];
+    private final ByteBuffer trailer = ByteBuffer.allocateDirect(kRecyclableHeaderSize - 1);
+    private ByteBuffer[] iov = new ByteBuffer[0];
 
+    // Create a writer that will append data to "dest".
+    // "dest" must be initially empty.
     public Writer(WritableFile dest) {
+        this(dest, 0);
+    }
+
+    // Create a writer that will append data to "dest".
+    // "dest" must have initial length "destLength".
+    public Writer(WritableFile dest, long destLength) {
+        this(dest, destLength, false, 0);
+    }
+
+    // Create a writer whose records can be told apart from older contents of
+    // "dest", for writing over a recycled log file.
+    public Writer(WritableFile dest, long destLength, boolean recyclable, long logNumber) {
         this.dest = dest;
+        this.blockOffset = (int) (destLength % kBlockSize);
+        this.recyclable = recyclable;
+        this.logNumber = (int) logNumber;
+        this.headerSize = recyclable ? kRecyclableHeaderSize : kHeaderSize;
     }
 
+    // Appends contents[position, limit) as one record, the position is left unchanged
     public Status addRecord(ByteBuffer contents) {
-        return null;
+        int start = contents.position();
+        int left = contents.remaining();
+        // Each fragment but the last fills the rest of a block
+        int maxFragments = left / (kBlockSize - headerSize) + 2;
+        ensureSlots(maxFragments);
+
+        // Fragment the record if necessary and emit it.  Note that if contents
+        // is empty, we still want to iterate once to emit a single
+        // zero-length record
+        int count = 0;
+        int fragments = 0;
+        int ptr = start;
+        boolean begin = true;
+        do {
+            int leftover = kBlockSize - blockOffset;
+            assert (leftover >= 0);
+            if (leftover < headerSize) {
+                // Switch to a new block
+                if (leftover > 0) {
+                    // Fill the trailer, only the first fragment of a record can start here
+                    trailer.clear().limit(leftover);
+                    iov[count++] = trailer;
+                }
+                blockOffset = 0;
+            }
+
+            // Invariant: we never leave < headerSize bytes in a block.
+            assert (kBlockSize - blockOffset - headerSize >= 0);
+
+            int avail = kBlockSize - blockOffset - headerSize;
+            int fragmentLength = Math.min(left, avail);
+
+            int type;
+            boolean end = (left == fragmentLength);
+            if (begin && end) {
+                type = kFullType;
+            } else if (begin) {
+                type = kFirstType;
+            } else if (end) {
+                type = kLastType;
+            } else {
+                type = kMiddleType;
+            }
+
+            ByteBuffer fragment;
+            if (begin && end) {
+                fragment = contents;
+            } else {
+                fragment = contents.duplicate();
+                fragment.limit(ptr + fragmentLength).position(ptr);
+            }
+            iov[count++] = encodeHeader(headers[fragments++], type, fragment);
+            iov[count++] = fragment;
+            blockOffset += headerSize + fragmentLength;
+
+            ptr += fragmentLength;
+            left -= fragmentLength;
+            begin = false;
+        } while (left > 0);
+
+        Status s = dest.append(iov, 0, count);
+        if (s.isOk()) {
+            s = dest.flush();
+        }
+        contents.position(start);
+        // Do not pin the caller's buffers until the next record
+        Arrays.fill(iov, 0, count, null);
+        return s;
+    }
+
+    private ByteBuffer encodeHeader(ByteBuffer header, int type, ByteBuffer fragment) {
+        int length = fragment.remaining();
+        assert (length <= 0xffff);  // Must fit in two bytes
+        if (recyclable) {
+            type += kRecyclableTypeOffset;
+        }
+
+        header.clear();
+        header.putShort(4, (short) length);
+        header.put(6, (byte) type);
+        if (recyclable) {
+            header.putInt(7, logNumber);
+        }
+
+        // Compute the crc of the record type, the log number and the payload.
+        int position = fragment.position();
+        crc.reset();
+        header.position(6);
+        crc.update(header);
+        crc.update(fragment);
+        fragment.position(position);
+
+        header.clear();
+        header.putInt(0, Crc32c.mask((int) crc.getValue()));
+        return header;
+    }
+
+    private void ensureSlots(int fragments) {
+        if (headers.length < fragments) {
+            ByteBuffer block = ByteBuffer.allocateDirect(fragments * headerSize);
+            headers = new ByteBuffer[fragments];
+            for (int i = 0; i < fragments; i++) {
+                block.limit((i + 1) * headerSize).position(i * headerSize);
+                headers[i] = block.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            // A trailer, then a header and a fragment each
+            iov = new ByteBuffer[1 + 2 * fragments];
+        }
     }
 }
@@ -0,0 +1,252 @@
+package com.ldb.table;
+
+import com.ldb.db.memtable.ArenaSkipList;
+import com.ldb.utils.ByteBuffers;
+import com.ldb.utils.Coding;
+import com.ldb.utils.KeyValueIterator;
+
+import java.nio.ByteBuffer;
+
+// The contents of one block of a table, in the format BlockBuilder writes.
+// Nothing is copied or decoded up front: an iterator binary-searches the
+// restart array in place and decodes the keys it passes into one reused
+// buffer, values are views of the contents.
+public class Block {
+    private final ByteBuffer data;
+    private final int restartOffset;  // Offset in data of restart array
+    private final int numRestarts;
+
+    // Reads the block in contents[position, limit), which must stay unchanged
+    // while the block is in use
+    public Block(ByteBuffer contents) {
+        this.data = contents.slice();
+        int size = data.limit();
+        if (size < Integer.BYTES) {
+            throw new IllegalArgumentException("bad block contents");
+        }
+        int maxRestartsAllowed = (size - Integer.BYTES) / Integer.BYTES;
+        numRestarts = Integer.reverseBytes(data.getInt(size - Integer.BYTES));
+        if (numRestarts < 1 || numRestarts > maxRestartsAllowed) {
+            throw new IllegalArgumentException("bad block contents");
+        }
+        restartOffset = size - (1 + numRestarts) * Integer.BYTES;
+    }
+
+    public int size() {
+        return data.limit();
+    }
+
+    private int restartPoint(int index) {
+        return Integer.reverseBytes(data.getInt(restartOffset + index * Integer.BYTES));
+    }
+
+    // Returns an iterator over the entries, keys ordered by "comparator". Not
+    // thread-safe, each reader takes its own.
+    public KeyValueIterator iterator(ArenaSkipList.KeyComparator comparator) {
+        return new Iter(comparator, null);
+    }
+
+    // Same as above, "cleanup" is run once by the iterator's close()
+    public KeyValueIterator iterator(ArenaSkipList.KeyComparator comparator, Runnable cleanup) {
+        return new Iter(comparator, cleanup);
+    }
+
+    private class Iter implements KeyValueIterator {
+        private final ArenaSkipList.KeyComparator comparator;
+        // current is the offset in data of the current entry, >= restartOffset if !valid
+        private int current = restartOffset;
+        private int restartIndex = numRestarts;  // Index of restart block in which current falls
+        private ByteBuffer key = ByteBuffer.allocate(64);
+        private int keyLength;
+        private int valueOffset;
+        private int valueLength;
+        private final ByteBuffer value = data.asReadOnlyBuffer();
+        private Runnable cleanup;
+
+        private Iter(ArenaSkipList.KeyComparator comparator, Runnable cleanup) {
+            this.comparator = comparator;
+            this.cleanup = cleanup;
+        }
+
+        @Override
+        public void close() {
+            current = restartOffset;
+            restartIndex = numRestarts;
+            if (cleanup != null) {
+                Runnable c = cleanup;
+                cleanup = null;
+                c.run();
+            }
+        }
+
+        @Override
+        public boolean valid() {
+            return current < restartOffset;
+        }
+
+        private void checkValid() {
+            if (!valid()) {
+                throw new IllegalStateException("Key is not valid");
+            }
+        }
+
+        // The reused key buffer, valid until the iterator moves
+        @Override
+        public ByteBuffer key() {
+            checkValid();
+            key.limit(keyLength).position(0);
+            return key;
+        }
+
+        @Override
+        public ByteBuffer value() {
+            checkValid();
+            value.limit(valueOffset + valueLength).position(valueOffset);
+            return value;
+        }
+
+        // Return the offset in data just past the end of the current entry.
+        private int nextEntryOffset() {
+            return valueOffset + valueLength;
+        }
+
+        @Override
+        public void next() {
+            checkValid();
+            parseNextKey();
+        }
+
+        @Override
+        public void prev() {
+            checkValid();
+
+            // Scan backwards to a restart point before current
+            int original = current;
+            while (restartPoint(restartIndex) >= original) {
+                if (restartIndex == 0) {
+                    // No more entries
+                    current = restartOffset;
+                    restartIndex = numRestarts;
+                    return;
+                }
+                restartIndex--;
+            }
+
+            seekToRestartPoint(restartIndex);
+            do {
+                // Loop until end of current entry hits the start of original entry
+            } while (parseNextKey() && nextEntryOffset() < original);
+        }
+
+        @Override
+        public void seek(ByteBuffer target) {
+            // Binary search in restart array to find the last restart point
+            // with a key < target
+            int left = 0;
+            int right = numRestarts - 1;
+            while (left < right) {
+                int mid = (left + right + 1) / 2;
+                int regionOffset = restartPoint(mid);
+                int p = regionOffset;
+                int shared = Coding.getVarint32(data, p);
+                p += Coding.varintLength(shared);
+                int nonShared = Coding.getVarint32(data, p);
+                p += Coding.varintLength(nonShared);
+                int length = Coding.getVarint32(data, p);
+                p += Coding.varintLength(length);
+                if (shared != 0 || p + nonShared > restartOffset) {
+                    throw corruption();
+                }
+                // The key at a restart point is stored whole
+                if (comparator.compare(data, p, nonShared, target, target.position(), target.remaining()) < 0) {
+                    // Key at "mid" is smaller than "target".  Therefore all
+                    // blocks before "mid" are uninteresting.
+                    left = mid;
+                } else {
+                    // Key at "mid" is >= "target".  Therefore all blocks at or
+                    // after "mid" are uninteresting.
+                    right = mid - 1;
+                }
+            }
+
+            // Linear search (within restart block) for first key >= target
+            seekToRestartPoint(left);
+            while (parseNextKey()) {
+                if (comparator.compare(key, 0, keyLength, target, target.position(), target.remaining()) >= 0) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void seekToFirst() {
+            seekToRestartPoint(0);
+            parseNextKey();
+        }
+
+        @Override
+        public void seekToLast() {
+            seekToRestartPoint(numRestarts - 1);
+            while (parseNextKey() && nextEntryOffset() < restartOffset) {
+                // Keep skipping
+            }
+        }
+
+        private void seekToRestartPoint(int index) {
+            keyLength = 0;
+            restartIndex = index;
+            // current will be fixed by parseNextKey();
+            // parseNextKey() starts at the end of value, so set value accordingly
+            valueOffset = restartPoint(index);
+            valueLength = 0;
+        }
+
+        private boolean parseNextKey() {
+            current = nextEntryOffset();
+            if (current >= restartOffset) {
+                // No more entries to return.  Mark as invalid.
+                current = restartOffset;
+                restartIndex = numRestarts;
+                return false;
+            }
+
+            // Decode next entry, the three lengths are usually one byte each
+            int p = current;
+            int shared = data.get(p);
+            int nonShared = data.get(p + 1);
+            int length = data.get(p + 2);
+            if ((shared | nonShared | length) < 0) {
+                shared = Coding.getVarint32(data, p);
+                p += Coding.varintLength(shared);
+                nonShared = Coding.getVarint32(data, p);
+                p += Coding.varintLength(nonShared);
+                length = Coding.getVarint32(data, p);
+                p += Coding.varintLength(length);
+            } else {
+                p += 3;
+            }
+            if (keyLength < shared || p + nonShared + length > restartOffset) {
+                throw corruption();
+            }
+            if (key.capacity() < shared + nonShared) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(shared + nonShared, key.capacity() * 2));
+                ByteBuffers.copy(key, 0, grown, 0, shared);
+                key = grown;
+            }
+            ByteBuffers.copy(data, p, key, shared, nonShared);
+            keyLength = shared + nonShared;
+            valueOffset = p + nonShared;
+            valueLength = length;
+            while (restartIndex + 1 < numRestarts && restartPoint(restartIndex + 1) < current) {
+                ++restartIndex;
+            }
+            return true;
+        }
+
+        private RuntimeException corruption() {
+            current = restartOffset;
+            restartIndex = numRestarts;
+            return new IllegalArgumentException("bad entry in block");
+        }
+    }
+}
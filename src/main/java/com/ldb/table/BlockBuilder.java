@@ -0,0 +1,153 @@
+package com.ldb.table;
+
+import com.ldb.utils.ByteBuffers;
+import com.ldb.utils.Coding;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// BlockBuilder generates blocks where keys are prefix-compressed:
+//
+// When we store a key, we drop the prefix shared with the previous
+// string.  This helps reduce the space requirement significantly.
+// Furthermore, once every K keys, we do not apply the prefix
+// compression and store the entire key.  We call this a "restart
+// point".  The tail end of the block stores the offsets of all of the
+// restart points, and can be used to do a binary search when looking
+// for a particular key.  Values are stored as-is (without compression)
+// immediately following the corresponding key.
+//
+// An entry for a particular key-value pair has the form:
+//     shared_bytes: varint32
+//     unshared_bytes: varint32
+//     value_length: varint32
+//     key_delta: char[unshared_bytes]
+//     value: char[value_length]
+// shared_bytes == 0 for restart points.
+//
+// The trailer of the block has the form:
+//     restarts: uint32[num_restarts]
+//     num_restarts: uint32
+// restarts[i] contains the offset within the block of the ith restart point.
+//
+// The buffers are kept across reset(), a builder that has reached its usual
+// block size allocates nothing more.
+public class BlockBuilder {
+    private final int blockRestartInterval;
+    private ByteBuffer buffer;          // Destination buffer
+    private int[] restarts;             // Restart points
+    private int numRestarts;
+    private int counter;                // Number of entries emitted since restart
+    private boolean finished;           // Has finish() been called?
+    private ByteBuffer lastKey;
+    private int lastKeyLength;
+
+    public BlockBuilder(int blockRestartInterval) {
+        assert (blockRestartInterval >= 1);
+        this.blockRestartInterval = blockRestartInterval;
+        this.buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        this.restarts = new int[16];
+        this.lastKey = ByteBuffer.allocate(64);
+        reset();
+    }
+
+    // Reset the contents as if the BlockBuilder was just constructed.
+    public void reset() {
+        buffer.clear();
+        numRestarts = 1;
+        restarts[0] = 0;  // First restart point is at offset 0
+        counter = 0;
+        finished = false;
+        lastKeyLength = 0;
+    }
+
+    // REQUIRES: finish() has not been called since the last call to reset().
+    // REQUIRES: key is larger than any previously added key
+    // Adds key[position, limit) and value[position, limit), the positions are
+    // left unchanged.
+    public void add(ByteBuffer key, ByteBuffer value) {
+        assert (!finished);
+        assert (counter <= blockRestartInterval);
+        int keyLength = key.remaining();
+        int valueLength = value.remaining();
+        int shared = 0;
+        if (counter < blockRestartInterval) {
+            // See how much sharing to do with previous string
+            int minLength = Math.min(lastKeyLength, keyLength);
+            while (shared < minLength && lastKey.get(shared) == key.get(key.position() + shared)) {
+                shared++;
+            }
+        } else {
+            // Restart compression
+            if (numRestarts == restarts.length) {
+                int[] grown = new int[restarts.length * 2];
+                System.arraycopy(restarts, 0, grown, 0, numRestarts);
+                restarts = grown;
+            }
+            restarts[numRestarts++] = buffer.position();
+            counter = 0;
+        }
+        int nonShared = keyLength - shared;
+
+        ensureRoom(3 * Coding.kMaxVarint32Length + nonShared + valueLength);
+        // Add "<shared><non_shared><value_size>" to buffer
+        Coding.putVarint32(buffer, shared);
+        Coding.putVarint32(buffer, nonShared);
+        Coding.putVarint32(buffer, valueLength);
+
+        // Add string delta to buffer followed by value
+        int p = buffer.position();
+        ByteBuffers.copy(key, key.position() + shared, buffer, p, nonShared);
+        ByteBuffers.copy(value, value.position(), buffer, p + nonShared, valueLength);
+        buffer.position(p + nonShared + valueLength);
+
+        // Update state
+        if (lastKey.capacity() < keyLength) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(keyLength, lastKey.capacity() * 2));
+            ByteBuffers.copy(lastKey, 0, grown, 0, shared);
+            lastKey = grown;
+        }
+        ByteBuffers.copy(key, key.position() + shared, lastKey, shared, nonShared);
+        lastKeyLength = keyLength;
+        counter++;
+    }
+
+    // Finish building the block and return a view of the block contents in
+    // [position, limit). The view remains valid for the lifetime of this
+    // builder or until reset() is called.
+    public ByteBuffer finish() {
+        // Append restart array
+        ensureRoom((numRestarts + 1) * Integer.BYTES);
+        for (int i = 0; i < numRestarts; i++) {
+            buffer.putInt(restarts[i]);
+        }
+        buffer.putInt(numRestarts);
+        finished = true;
+        ByteBuffer contents = buffer.duplicate();
+        contents.flip();
+        return contents;
+    }
+
+    // Returns an estimate of the current (uncompressed) size of the block
+    // we are building.
+    public int currentSizeEstimate() {
+        return buffer.position()                // Raw data buffer
+                + numRestarts * Integer.BYTES   // Restart array
+                + Integer.BYTES;                // Restart array length
+    }
+
+    // Return true iff no entries have been added since the last reset()
+    public boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    private void ensureRoom(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
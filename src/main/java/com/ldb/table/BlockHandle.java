@@ -0,0 +1,51 @@
+package com.ldb.table;
+
+import com.ldb.utils.Coding;
+
+import java.nio.ByteBuffer;
+
+// BlockHandle is a pointer to the extent of a file that stores a data
+// block or a meta block.
+public class BlockHandle {
+    // Maximum encoding length of a BlockHandle
+    public static final int kMaxEncodedLength = 10 + 10;
+
+    private long offset;
+    private long size;
+
+    public BlockHandle() {
+    }
+
+    public BlockHandle(long offset, long size) {
+        this.offset = offset;
+        this.size = size;
+    }
+
+    // The offset of the block in the file.
+    public long offset() {
+        return offset;
+    }
+
+    // The size of the stored block, without the trailer
+    public long size() {
+        return size;
+    }
+
+    public void set(long offset, long size) {
+        this.offset = offset;
+        this.size = size;
+    }
+
+    // Writes the two varints at dst's position and advances it
+    public void encodeTo(ByteBuffer dst) {
+        Coding.putVarint64(dst, offset);
+        Coding.putVarint64(dst, size);
+    }
+
+    // Reads the two varints at src's position and advances it
+    public static BlockHandle decodeFrom(ByteBuffer src) {
+        long offset = Coding.getVarint64(src);
+        long size = Coding.getVarint64(src);
+        return new BlockHandle(offset, size);
+    }
+}
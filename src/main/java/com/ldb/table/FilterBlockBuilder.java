@@ -0,0 +1,120 @@
+package com.ldb.table;
+
+import com.ldb.utils.ByteBuffers;
+import com.ldb.utils.filter.FilterPolicy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// A FilterBlockBuilder is used to construct all of the filters for a
+// particular Table.  It generates a single string which is stored as
+// a special block in the Table:
+//     [filter 0]
+//     ...
+//     [filter N-1]
+//     [offset of filter 0]                  : 4 bytes
+//     ...
+//     [offset of filter N-1]                : 4 bytes
+//     [offset of beginning of offset array] : 4 bytes
+//     lg(base)                              : 1 byte
+// Filter i covers the keys of the data blocks starting in
+// [i * kFilterBase, (i + 1) * kFilterBase) of the file.
+//
+// The sequence of calls to FilterBlockBuilder must match the regexp:
+//      (startBlock addKey*)* finish
+public class FilterBlockBuilder {
+    // Generate new filter every 2KB of data
+    public static final int kFilterBaseLg = 11;
+    public static final int kFilterBase = 1 << kFilterBaseLg;
+
+    private final FilterPolicy<ByteBuffer> policy;
+    private ByteBuffer keys = ByteBuffer.allocate(4096);  // Flattened key contents
+    private int[] starts = new int[64];                  // Starting index in keys of each key
+    private int numKeys;
+    private ByteBuffer result = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);  // Filter data computed so far
+    private int[] filterOffsets = new int[64];
+    private int numFilters;
+
+    public FilterBlockBuilder(FilterPolicy<ByteBuffer> policy) {
+        this.policy = policy;
+    }
+
+    public void startBlock(long blockOffset) {
+        long filterIndex = blockOffset / kFilterBase;
+        assert (filterIndex >= numFilters);
+        while (filterIndex > numFilters) {
+            generateFilter();
+        }
+    }
+
+    // Adds key[offset, offset + length)
+    public void addKey(ByteBuffer key, int offset, int length) {
+        if (numKeys + 1 >= starts.length) {
+            starts = grow(starts);
+        }
+        starts[numKeys++] = keys.position();
+        keys = ensureRoom(keys, length);
+        ByteBuffers.copy(key, offset, keys, keys.position(), length);
+        keys.position(keys.position() + length);
+    }
+
+    // Returns a view of the block contents in [position, limit), valid until
+    // the builder is dropped
+    public ByteBuffer finish() {
+        if (numKeys > 0) {
+            generateFilter();
+        }
+
+        // Append array of per-filter offsets
+        int arrayOffset = result.position();
+        result = ensureRoom(result, (numFilters + 1) * Integer.BYTES + 1);
+        for (int i = 0; i < numFilters; i++) {
+            result.putInt(filterOffsets[i]);
+        }
+
+        result.putInt(arrayOffset);
+        result.put((byte) kFilterBaseLg);  // Save encoding parameter in result
+        ByteBuffer contents = result.duplicate();
+        contents.flip();
+        return contents;
+    }
+
+    private void generateFilter() {
+        if (numFilters == filterOffsets.length) {
+            filterOffsets = grow(filterOffsets);
+        }
+        filterOffsets[numFilters++] = result.position();
+        if (numKeys == 0) {
+            // Fast path if there are no keys for this filter
+            return;
+        }
+
+        // Make list of keys from flattened key structure
+        starts[numKeys] = keys.position();  // Simplify length computation
+        ByteBuffer filter = policy.createFilter(keys, starts, numKeys);
+        filter = filter.duplicate();
+        filter.position(0);
+        result = ensureRoom(result, filter.remaining());
+        result.put(filter);
+
+        keys.clear();
+        numKeys = 0;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private static ByteBuffer ensureRoom(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes))
+                .order(buffer.order());
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -0,0 +1,56 @@
+package com.ldb.table;
+
+import com.ldb.utils.filter.FilterPolicy;
+
+import java.nio.ByteBuffer;
+
+// Reads the filter block FilterBlockBuilder writes, in place
+public class FilterBlockReader {
+    private final FilterPolicy<ByteBuffer> policy;
+    private final ByteBuffer data;  // Filter data, then the offset array
+    private final int offset;       // Offset of the offset array in data
+    private final int num;          // Number of entries in offset array
+    private final int baseLg;       // Encoding parameter (see kFilterBaseLg in FilterBlockBuilder)
+
+    // REQUIRES: "contents" and policy must stay live while this is live.
+    public FilterBlockReader(FilterPolicy<ByteBuffer> policy, ByteBuffer contents) {
+        this.policy = policy;
+        this.data = contents.slice();
+        int n = data.limit();
+        if (n < 5) {
+            // 1 byte for baseLg and 4 for start of offset array
+            this.offset = 0;
+            this.num = 0;
+            this.baseLg = 0;
+            return;
+        }
+        int lastWord = Integer.reverseBytes(data.getInt(n - 5));
+        if (lastWord < 0 || lastWord > n - 5) {
+            this.offset = 0;
+            this.num = 0;
+            this.baseLg = 0;
+            return;
+        }
+        this.baseLg = data.get(n - 1);
+        this.offset = lastWord;
+        this.num = (n - 5 - lastWord) / Integer.BYTES;
+    }
+
+    // Whether the data block at blockOffset may hold key[keyOffset, keyOffset + keyLength)
+    public boolean keyMayMatch(long blockOffset, ByteBuffer key, int keyOffset, int keyLength) {
+        long index = blockOffset >> baseLg;
+        if (index < num) {
+            int start = Integer.reverseBytes(data.getInt(offset + (int) index * Integer.BYTES));
+            int limit = Integer.reverseBytes(data.getInt(offset + (int) index * Integer.BYTES + Integer.BYTES));
+            if (start <= limit && limit <= offset) {
+                ByteBuffer filter = data.duplicate();
+                filter.limit(limit).position(start);
+                return policy.keyMayMatch(key, keyOffset, keyLength, filter.slice());
+            } else if (start == limit) {
+                // Empty filters do not match any keys
+                return false;
+            }
+        }
+        return true;  // Errors are treated as potential matches
+    }
+}
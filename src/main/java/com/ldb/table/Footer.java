@@ -0,0 +1,56 @@
+package com.ldb.table;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.ldb.table.TableFormat.kTableMagicNumber;
+
+// Footer encapsulates the fixed information stored at the tail
+// end of every table file: the metaindex and index block handles,
+// zero padded, then the magic number as fixed64.
+public class Footer {
+    // Encoded length of a Footer.  Note that the serialization of a
+    // Footer will always occupy exactly this many bytes.  It consists
+    // of two block handles and a magic number.
+    public static final int kEncodedLength = 2 * BlockHandle.kMaxEncodedLength + 8;
+
+    private final BlockHandle metaindexHandle;
+    private final BlockHandle indexHandle;
+
+    public Footer(BlockHandle metaindexHandle, BlockHandle indexHandle) {
+        this.metaindexHandle = metaindexHandle;
+        this.indexHandle = indexHandle;
+    }
+
+    public BlockHandle metaindexHandle() {
+        return metaindexHandle;
+    }
+
+    public BlockHandle indexHandle() {
+        return indexHandle;
+    }
+
+    // Writes kEncodedLength bytes at dst's position and advances it
+    public void encodeTo(ByteBuffer dst) {
+        int start = dst.position();
+        metaindexHandle.encodeTo(dst);
+        indexHandle.encodeTo(dst);
+        while (dst.position() < start + 2 * BlockHandle.kMaxEncodedLength) {
+            dst.put((byte) 0);  // Padding
+        }
+        dst.putLong(dst.order() == ByteOrder.LITTLE_ENDIAN ? kTableMagicNumber : Long.reverseBytes(kTableMagicNumber));
+    }
+
+    // Decodes src[position, position + kEncodedLength), the position is left alone
+    public static Footer decodeFrom(ByteBuffer src) {
+        ByteBuffer input = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = input.position();
+        long magic = input.getLong(start + kEncodedLength - 8);
+        if (magic != kTableMagicNumber) {
+            throw new IllegalArgumentException("not an sstable (bad magic number)");
+        }
+        BlockHandle metaindexHandle = BlockHandle.decodeFrom(input);
+        BlockHandle indexHandle = BlockHandle.decodeFrom(input);
+        return new Footer(metaindexHandle, indexHandle);
+    }
+}
@@ -0,0 +1,44 @@
+package com.ldb.table;
+
+import com.ldb.db.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+// Reads for one iterator of a file that is not mapped. Once a few reads in a
+// row have each started where the last one ended, reads fetch readaheadSize
+// bytes at a time and the following blocks are served from that chunk.
+// Returned buffers are never reused, a block read earlier stays valid.
+class Readahead {
+    // Sequential reads seen before reading ahead, a seek resets the count
+    private static final int kSequentialReads = 2;
+
+    private final RandomAccessFile file;
+    private final int readaheadSize;
+    private long lastEnd = -1;
+    private int sequentialReads;
+    private ByteBuffer chunk;  // File contents from chunkOffset in [0, limit)
+    private long chunkOffset;
+
+    Readahead(RandomAccessFile file, int readaheadSize) {
+        this.file = file;
+        this.readaheadSize = readaheadSize;
+    }
+
+    ByteBuffer read(long offset, int n) {
+        sequentialReads = offset == lastEnd ? sequentialReads + 1 : 0;
+        lastEnd = offset + n;
+        if (chunk != null && offset >= chunkOffset && offset + n <= chunkOffset + chunk.limit()) {
+            ByteBuffer result = chunk.duplicate();
+            result.limit((int) (offset - chunkOffset + n)).position((int) (offset - chunkOffset));
+            return result.slice();
+        }
+        if (sequentialReads < kSequentialReads || n >= readaheadSize) {
+            return file.read(offset, n);
+        }
+        chunk = file.read(offset, readaheadSize);
+        chunkOffset = offset;
+        ByteBuffer result = chunk.duplicate();
+        result.limit(Math.min(n, chunk.limit()));
+        return result.slice();
+    }
+}
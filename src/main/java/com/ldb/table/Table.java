@@ -0,0 +1,324 @@
+package com.ldb.table;
+
+import com.ldb.db.Options;
+import com.ldb.db.RandomAccessFile;
+import com.ldb.db.ReadOptions;
+import com.ldb.db.Status;
+import com.ldb.db.memtable.InternalKeyComparator;
+import com.ldb.db.memtable.LookupKey;
+import com.ldb.db.memtable.LookupResult;
+import com.ldb.utils.BytewiseComparator;
+import com.ldb.utils.Crc32c;
+import com.ldb.utils.KeyValueIterator;
+import com.ldb.utils.cache.Cache;
+import com.ldb.utils.filter.FilterPolicy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+import static com.ldb.table.TableFormat.kBlockTrailerSize;
+import static com.ldb.table.TableFormat.kNoCompression;
+
+// A Table is a sorted map from internal keys to values, read from a file
+// TableBuilder wrote. The index and filter blocks are read once by open(),
+// data blocks on every access: as views of the mapping when the file is
+// mapped, with one positional read each otherwise. Blocks read with positional
+// reads go through options.blockCache if set, keyed by the table's cache id
+// and the block offset, and stay pinned there while in use.
+// Tables are immutable and persistent. A Table may be safely accessed from
+// multiple threads without external synchronization.
+public class Table {
+    private static final InternalKeyComparator icmp = new InternalKeyComparator();
+
+    private final RandomAccessFile file;
+    private final Cache<ByteBuffer> blockCache;  // null if blocks are not cached
+    private final long cacheId;
+    private final FilterPolicy<ByteBuffer> filterPolicy;
+    private final BlockHandle indexHandle;
+    private final BlockHandle filterHandle;  // null if the table has none for options.filterPolicy
+    private final Meta meta;                 // null if index and filter are kept in blockCache
+
+    // The index and filter blocks, and the cache handles pinning them if they
+    // came from the block cache
+    private final class Meta {
+        final Block index;
+        final FilterBlockReader filter;  // null if the table has none
+        final Cache.Handle indexPin;
+        final Cache.Handle filterPin;
+
+        Meta(Block index, FilterBlockReader filter, Cache.Handle indexPin, Cache.Handle filterPin) {
+            this.index = index;
+            this.filter = filter;
+            this.indexPin = indexPin;
+            this.filterPin = filterPin;
+        }
+
+        void release() {
+            if (indexPin != null) {
+                blockCache.release(indexPin);
+            }
+            if (filterPin != null) {
+                blockCache.release(filterPin);
+            }
+        }
+    }
+
+    private Table(Options options, RandomAccessFile file, long cacheId, BlockHandle indexHandle,
+                  BlockHandle filterHandle, Block indexBlock, FilterBlockReader filter) {
+        this.file = file;
+        this.blockCache = file.isMapped() ? null : options.blockCache;
+        this.cacheId = cacheId;
+        this.filterPolicy = options.filterPolicy;
+        this.indexHandle = indexHandle;
+        this.filterHandle = filterHandle;
+        this.meta = indexBlock == null ? null : new Meta(indexBlock, filter, null, null);
+    }
+
+    // Attempt to open the table that is stored in bytes [0..size) of "file",
+    // and read the metadata entries necessary to allow retrieving data from
+    // the table. Throws IllegalArgumentException if the file is not a table or
+    // is corrupt, read failures surface as UncheckedIOException.
+    // The returned table owns "file" from then on and closes it in close(), on
+    // failure the caller still does.
+    public static Table open(Options options, RandomAccessFile file, long size) {
+        return open(options, file, size, options.blockCache == null ? 0 : options.blockCache.newId());
+    }
+
+    // Same as above, the blocks of the table are cached under "cacheId", which
+    // no other table using options.blockCache may share while this one is open.
+    public static Table open(Options options, RandomAccessFile file, long size, long cacheId) {
+        if (size < Footer.kEncodedLength) {
+            throw new IllegalArgumentException("file is too short to be an sstable");
+        }
+        ByteBuffer footerInput = file.read(size - Footer.kEncodedLength, Footer.kEncodedLength);
+        if (footerInput.remaining() < Footer.kEncodedLength) {
+            throw new IllegalArgumentException("truncated sstable footer");
+        }
+        Footer footer = Footer.decodeFrom(footerInput);
+        BlockHandle filterHandle = findFilter(options, file, footer);
+
+        Table table = new Table(options, file, cacheId, footer.indexHandle(), filterHandle, null, null);
+        if (table.blockCache != null && options.cacheIndexAndFilterBlocks) {
+            // Make sure the blocks are readable and cached, they are pinned
+            // again on every access
+            table.pinMeta().release();
+            return table;
+        }
+        // Metadata is read once per open, always verify it
+        Block indexBlock = new Block(readBlock(file, footer.indexHandle(), true));
+        FilterBlockReader filter = filterHandle == null
+                ? null : new FilterBlockReader(options.filterPolicy, readBlock(file, filterHandle, true));
+        return new Table(options, file, cacheId, footer.indexHandle(), filterHandle, indexBlock, filter);
+    }
+
+    private static BlockHandle findFilter(Options options, RandomAccessFile file, Footer footer) {
+        if (options.filterPolicy == null) {
+            return null;  // Do not need any metadata
+        }
+        Block meta = new Block(readBlock(file, footer.metaindexHandle(), true));
+        KeyValueIterator iter = meta.iterator(BytewiseComparator::compare);
+        ByteBuffer key = ByteBuffer.wrap(
+                (TableFormat.kFilterPrefix + options.filterPolicy.name()).getBytes(StandardCharsets.UTF_8));
+        iter.seek(key);
+        if (!iter.valid() || !iter.key().equals(key)) {
+            return null;
+        }
+        return BlockHandle.decodeFrom(iter.value().duplicate());
+    }
+
+    // Returns the index and filter, pinned in the block cache until release()
+    // if they are kept there
+    private Meta pinMeta() {
+        if (meta != null) {
+            return meta;
+        }
+        Cache.Handle indexPin = pinMetaBlock(indexHandle);
+        try {
+            Cache.Handle filterPin = filterHandle == null ? null : pinMetaBlock(filterHandle);
+            return new Meta(new Block(blockCache.value(indexPin)),
+                    filterPin == null ? null : new FilterBlockReader(filterPolicy, blockCache.value(filterPin)),
+                    indexPin, filterPin);
+        } catch (RuntimeException e) {
+            blockCache.release(indexPin);
+            throw e;
+        }
+    }
+
+    private Cache.Handle pinMetaBlock(BlockHandle handle) {
+        ByteBuffer key = cacheKey(handle.offset());
+        Cache.Handle pin = blockCache.lookup(key);
+        if (pin == null) {
+            ByteBuffer contents = readBlock(file, handle, true);
+            pin = blockCache.insert(key, contents, contents.remaining(), Cache.Priority.HIGH);
+        }
+        return pin;
+    }
+
+    private ByteBuffer cacheKey(long offset) {
+        ByteBuffer key = ByteBuffer.allocate(2 * Long.BYTES);
+        key.putLong(0, cacheId).putLong(Long.BYTES, offset);
+        return key;
+    }
+
+    // Returns the contents of the block at "handle", "raw" is the block as read
+    // from the file with its trailer
+    private static ByteBuffer checkBlock(ByteBuffer raw, BlockHandle handle, boolean verifyChecksums) {
+        int n = (int) handle.size();
+        if (raw.remaining() != n + kBlockTrailerSize) {
+            throw new IllegalArgumentException("truncated block read");
+        }
+        int p = raw.position();
+        ByteBuffer contents = raw.duplicate();
+        contents.limit(p + n);
+        byte type = raw.get(p + n);
+        if (verifyChecksums) {
+            CRC32C crc = new CRC32C();
+            crc.update(contents.duplicate());
+            crc.update(type);
+            // The crc is stored little-endian
+            if ((int) crc.getValue() != Crc32c.unmask(Integer.reverseBytes(raw.getInt(p + n + 1)))) {
+                throw new IllegalArgumentException("block checksum mismatch");
+            }
+        }
+        if (type != kNoCompression) {
+            throw new IllegalArgumentException("bad block type");
+        }
+        return contents;
+    }
+
+    private static ByteBuffer readBlock(RandomAccessFile file, BlockHandle handle, boolean verifyChecksums) {
+        return checkBlock(file.read(handle.offset(), (int) handle.size() + kBlockTrailerSize), handle,
+                verifyChecksums);
+    }
+
+    // Returns an iterator over the data block at "handle", read through the
+    // block cache if there is one and pinned there until the iterator is closed
+    private KeyValueIterator blockIterator(ReadOptions options, BlockHandle handle, Readahead readahead) {
+        int n = (int) handle.size() + kBlockTrailerSize;
+        if (blockCache == null) {
+            ByteBuffer raw = readahead == null ? file.read(handle.offset(), n) : readahead.read(handle.offset(), n);
+            return new Block(checkBlock(raw, handle, options.isVerifyChecksums())).iterator(icmp);
+        }
+        ByteBuffer key = cacheKey(handle.offset());
+        Cache.Handle pin = blockCache.lookup(key);
+        if (pin == null) {
+            ByteBuffer raw = readahead == null ? file.read(handle.offset(), n) : readahead.read(handle.offset(), n);
+            ByteBuffer contents = checkBlock(raw, handle, options.isVerifyChecksums());
+            if (!options.isFillCache()) {
+                return new Block(contents).iterator(icmp);
+            }
+            if (readahead != null && blockCache.valuesOutliveRelease()) {
+                // A view of the readahead buffer, copy it so the cache does not
+                // keep the whole buffer alive
+                contents = ByteBuffer.allocate(contents.remaining()).put(contents).flip();
+            }
+            pin = blockCache.insert(key, contents, contents.remaining(), Cache.Priority.LOW);
+        }
+        Cache.Handle pinned = pin;
+        return new Block(blockCache.value(pin)).iterator(icmp, () -> blockCache.release(pinned));
+    }
+
+    // Returns a new iterator over the table contents, "cleanup" is run by its
+    // close() unless null. Long scans of a file that is not mapped read ahead
+    // options.readaheadSize bytes at a time.
+    public KeyValueIterator newIterator(ReadOptions options, Runnable cleanup) {
+        Readahead readahead = file.isMapped() || options.getReadaheadSize() == 0
+                ? null : new Readahead(file, options.getReadaheadSize());
+        Meta pinned = pinMeta();
+        return new TwoLevelIterator(pinned.index.iterator(icmp),
+                indexValue -> blockIterator(options, BlockHandle.decodeFrom(indexValue.duplicate()), readahead),
+                () -> {
+                    pinned.release();
+                    if (cleanup != null) {
+                        cleanup.run();
+                    }
+                });
+    }
+
+    // Seeks to the first entry at or after key and hands it to result.save,
+    // returns what that did. Blocks the filter rules out are not read.
+    public boolean get(ReadOptions options, LookupKey key, LookupResult result) {
+        Meta pinned = pinMeta();
+        try {
+            KeyValueIterator indexIter = pinned.index.iterator(icmp);
+            ByteBuffer ikey = key.internalKey();
+            indexIter.seek(ikey);
+            if (!indexIter.valid()) {
+                return false;
+            }
+            BlockHandle handle = BlockHandle.decodeFrom(indexIter.value().duplicate());
+            if (pinned.filter != null
+                    && !pinned.filter.keyMayMatch(handle.offset(), ikey, ikey.position(), key.userKeyLength())) {
+                // Not found
+                return false;
+            }
+            try (KeyValueIterator blockIter = blockIterator(options, handle, null)) {
+                return save(blockIter, key, result);
+            }
+        } finally {
+            pinned.release();
+        }
+    }
+
+    // Same as get() for keys[batch[0]], ..., keys[batch[count - 1]] in key
+    // order: the index is searched by one iterator and consecutive keys that
+    // fall in the same data block read it once.
+    public void multiGet(ReadOptions options, LookupKey[] keys, LookupResult[] results, int[] batch, int count) {
+        Meta pinned = pinMeta();
+        KeyValueIterator blockIter = null;
+        try {
+            KeyValueIterator indexIter = pinned.index.iterator(icmp);
+            long blockOffset = -1;
+            for (int i = 0; i < count; i++) {
+                LookupKey key = keys[batch[i]];
+                ByteBuffer ikey = key.internalKey();
+                indexIter.seek(ikey);
+                if (!indexIter.valid()) {
+                    // Past the last block, and so are the keys after it
+                    return;
+                }
+                BlockHandle handle = BlockHandle.decodeFrom(indexIter.value().duplicate());
+                if (pinned.filter != null
+                        && !pinned.filter.keyMayMatch(handle.offset(), ikey, ikey.position(), key.userKeyLength())) {
+                    continue;
+                }
+                if (handle.offset() != blockOffset) {
+                    if (blockIter != null) {
+                        blockIter.close();
+                    }
+                    blockIter = blockIterator(options, handle, null);
+                    blockOffset = handle.offset();
+                }
+                save(blockIter, key, results[batch[i]]);
+            }
+        } finally {
+            if (blockIter != null) {
+                blockIter.close();
+            }
+            pinned.release();
+        }
+    }
+
+    private boolean save(KeyValueIterator blockIter, LookupKey key, LookupResult result) {
+        blockIter.seek(key.internalKey());
+        if (!blockIter.valid()) {
+            return false;
+        }
+        // The key buffer is reused by the iterator, the value is a view of the
+        // block and so outlives it, unless the block goes back to a cache
+        // that reuses its memory
+        ByteBuffer entry = blockIter.key();
+        ByteBuffer value = blockIter.value();
+        if (blockCache != null && !blockCache.valuesOutliveRelease()) {
+            value = ByteBuffer.allocate(value.remaining()).put(value.duplicate()).flip();
+        } else {
+            value = value.slice();
+        }
+        return result.save(key, entry, 0, entry.remaining(), value);
+    }
+
+    public Status close() {
+        return file.close();
+    }
+}
@@ -0,0 +1,296 @@
+package com.ldb.table;
+
+import com.ldb.db.Options;
+import com.ldb.db.Status;
+import com.ldb.db.WritableFile;
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.InternalKeyComparator;
+import com.ldb.utils.ByteBuffers;
+import com.ldb.utils.Crc32c;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+import static com.ldb.table.TableFormat.kBlockTrailerSize;
+import static com.ldb.table.TableFormat.kNoCompression;
+
+// TableBuilder provides the interface used to build a Table
+// (an immutable and sorted map from keys to values), see TableFormat.
+//
+// Everything is written in one pass from buffers the builder keeps: a data
+// block is encoded in place, then copied with its trailer into a write buffer
+// that goes to the file in kWriteBufferSize appends. Once the buffers have
+// grown to the block size a table of any size is built without further
+// allocation, apart from the filters.
+//
+// Multiple threads can invoke const methods on a TableBuilder without
+// external synchronization, but if any of the threads may call a
+// non-const method, all threads accessing the same TableBuilder must use
+// external synchronization.
+public class TableBuilder {
+    static final int kWriteBufferSize = 256 << 10;
+    private static final InternalKeyComparator icmp = new InternalKeyComparator();
+
+    private final Options options;
+    private final WritableFile file;
+    private long offset;
+    private Status status = Status.of(null);
+    private final BlockBuilder dataBlock;
+    private final BlockBuilder indexBlock;
+    private ByteBuffer lastKey = ByteBuffer.allocate(64);
+    private int lastKeyLength;
+    private long numEntries;
+    private boolean closed;  // Either finish() or abandon() has been called.
+    private final FilterBlockBuilder filterBlock;
+
+    // We do not emit the index entry for a block until we have seen the
+    // first key for the next data block.  This allows us to use shorter
+    // keys in the index block.  For example, consider a block boundary
+    // between the keys "the quick brown fox" and "the who".  We can use
+    // "the r" as the key for the index block entry since it is >= all
+    // entries in the first block and < all entries in subsequent
+    // blocks.
+    //
+    // Invariant: pendingIndexEntry is true only if dataBlock is empty.
+    private boolean pendingIndexEntry;
+    private final BlockHandle pendingHandle = new BlockHandle();  // Handle to add to index block
+
+    private ByteBuffer separator = ByteBuffer.allocate(64);
+    private final ByteBuffer encodedHandle = ByteBuffer.allocate(BlockHandle.kMaxEncodedLength);
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer trailer = ByteBuffer.allocate(kBlockTrailerSize).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(kWriteBufferSize);
+    private final ByteBuffer[] iov = new ByteBuffer[1];
+
+    // Create a builder that will store the contents of the table it is
+    // building in "file".  Does not close the file.  It is up to the
+    // caller to close the file after calling finish().
+    public TableBuilder(Options options, WritableFile file) {
+        this.options = options;
+        this.file = file;
+        this.dataBlock = new BlockBuilder(options.blockRestartInterval);
+        this.indexBlock = new BlockBuilder(1);
+        this.filterBlock = options.filterPolicy == null ? null : new FilterBlockBuilder(options.filterPolicy);
+        if (filterBlock != null) {
+            filterBlock.startBlock(0);
+        }
+    }
+
+    // Add key,value to the table being constructed, key[position, limit) is an
+    // internal key. The positions of key and value are left unchanged.
+    // REQUIRES: key is after any previously added key in internal key order.
+    // REQUIRES: finish(), abandon() have not been called
+    public void add(ByteBuffer key, ByteBuffer value) {
+        assert (!closed);
+        if (!ok()) {
+            return;
+        }
+        int keyOffset = key.position();
+        int keyLength = key.remaining();
+        if (numEntries > 0) {
+            assert (icmp.compare(key, keyOffset, keyLength, lastKey, 0, lastKeyLength) > 0);
+        }
+
+        if (pendingIndexEntry) {
+            assert (dataBlock.isEmpty());
+            ensureSeparatorRoom(lastKeyLength);
+            int n = icmp.findShortestSeparator(lastKey, 0, lastKeyLength, key, keyOffset, keyLength, separator);
+            addIndexEntry(n);
+            pendingIndexEntry = false;
+        }
+
+        if (filterBlock != null) {
+            filterBlock.addKey(key, keyOffset, keyLength - InternalKey.kTrailerSize);
+        }
+
+        if (lastKey.capacity() < keyLength) {
+            lastKey = ByteBuffer.allocate(Math.max(keyLength, lastKey.capacity() * 2));
+        }
+        ByteBuffers.copy(key, keyOffset, lastKey, 0, keyLength);
+        lastKeyLength = keyLength;
+        numEntries++;
+        dataBlock.add(key, value);
+
+        int estimatedBlockSize = dataBlock.currentSizeEstimate();
+        if (estimatedBlockSize >= options.blockSize) {
+            flush();
+        }
+    }
+
+    // Advanced operation: flush any buffered key/value pairs to file.
+    // Can be used to ensure that two adjacent entries never live in
+    // the same data block.  Most clients should not need to use this method.
+    // REQUIRES: finish(), abandon() have not been called
+    public void flush() {
+        assert (!closed);
+        if (!ok()) {
+            return;
+        }
+        if (dataBlock.isEmpty()) {
+            return;
+        }
+        assert (!pendingIndexEntry);
+        writeBlock(dataBlock, pendingHandle);
+        if (ok()) {
+            pendingIndexEntry = true;
+        }
+        if (filterBlock != null) {
+            filterBlock.startBlock(offset);
+        }
+    }
+
+    private void writeBlock(BlockBuilder block, BlockHandle handle) {
+        writeRawBlock(block.finish(), kNoCompression, handle);
+        block.reset();
+    }
+
+    private void writeRawBlock(ByteBuffer blockContents, byte type, BlockHandle handle) {
+        handle.set(offset, blockContents.remaining());
+        crc.reset();
+        crc.update(blockContents.duplicate());
+        crc.update(type);
+        trailer.clear();
+        trailer.put(type).putInt(Crc32c.mask((int) crc.getValue())).flip();
+        emit(blockContents);
+        emit(trailer);
+        if (ok()) {
+            offset += handle.size() + kBlockTrailerSize;
+        }
+    }
+
+    // Copies src into the write buffer, what does not fit the buffer goes to
+    // the file directly
+    private void emit(ByteBuffer src) {
+        if (out.remaining() < src.remaining()) {
+            drain();
+            if (!ok()) {
+                return;
+            }
+            if (out.remaining() < src.remaining()) {
+                iov[0] = src.duplicate();
+                status = file.append(iov, 0, 1);
+                iov[0] = null;
+                return;
+            }
+        }
+        out.put(src.duplicate());
+    }
+
+    private void drain() {
+        out.flip();
+        if (out.hasRemaining()) {
+            iov[0] = out;
+            status = file.append(iov, 0, 1);
+            iov[0] = null;
+        }
+        out.clear();
+    }
+
+    private void addIndexEntry(int separatorLength) {
+        encodedHandle.clear();
+        pendingHandle.encodeTo(encodedHandle);
+        encodedHandle.flip();
+        separator.limit(separatorLength).position(0);
+        indexBlock.add(separator, encodedHandle);
+        separator.clear();
+    }
+
+    private void ensureSeparatorRoom(int bytes) {
+        if (separator.capacity() < bytes) {
+            separator = ByteBuffer.allocate(Math.max(bytes, separator.capacity() * 2));
+        }
+    }
+
+    // Return non-ok iff some error has been detected.
+    public Status status() {
+        return status;
+    }
+
+    private boolean ok() {
+        return status.isOk();
+    }
+
+    // Finish building the table.  Stops using the file passed to the
+    // constructor after this function returns.
+    // REQUIRES: finish(), abandon() have not been called
+    public Status finish() {
+        flush();
+        assert (!closed);
+        closed = true;
+
+        BlockHandle filterBlockHandle = new BlockHandle();
+        BlockHandle metaindexBlockHandle = new BlockHandle();
+        BlockHandle indexBlockHandle = new BlockHandle();
+
+        // Write filter block
+        if (ok() && filterBlock != null) {
+            writeRawBlock(filterBlock.finish(), kNoCompression, filterBlockHandle);
+        }
+
+        // Write metaindex block
+        if (ok()) {
+            BlockBuilder metaIndexBlock = new BlockBuilder(options.blockRestartInterval);
+            if (filterBlock != null) {
+                // Add mapping from "filter.Name" to location of filter data
+                ByteBuffer key = ByteBuffer.wrap(
+                        (TableFormat.kFilterPrefix + options.filterPolicy.name()).getBytes(StandardCharsets.UTF_8));
+                ByteBuffer handleEncoding = ByteBuffer.allocate(BlockHandle.kMaxEncodedLength);
+                filterBlockHandle.encodeTo(handleEncoding);
+                handleEncoding.flip();
+                metaIndexBlock.add(key, handleEncoding);
+            }
+            writeBlock(metaIndexBlock, metaindexBlockHandle);
+        }
+
+        // Write index block
+        if (ok()) {
+            if (pendingIndexEntry) {
+                ensureSeparatorRoom(lastKeyLength);
+                addIndexEntry(icmp.findShortSuccessor(lastKey, 0, lastKeyLength, separator));
+                pendingIndexEntry = false;
+            }
+            writeBlock(indexBlock, indexBlockHandle);
+        }
+
+        // Write footer
+        if (ok()) {
+            ByteBuffer footerEncoding = ByteBuffer.allocate(Footer.kEncodedLength);
+            new Footer(metaindexBlockHandle, indexBlockHandle).encodeTo(footerEncoding);
+            footerEncoding.flip();
+            emit(footerEncoding);
+            if (ok()) {
+                offset += Footer.kEncodedLength;
+            }
+        }
+        if (ok()) {
+            drain();
+        }
+        if (ok()) {
+            status = file.flush();
+        }
+        return status;
+    }
+
+    // Indicate that the contents of this builder should be abandoned.  Stops
+    // using the file passed to the constructor after this function returns.
+    // If the caller is not going to call finish(), it must call abandon()
+    // before destroying this builder.
+    // REQUIRES: finish(), abandon() have not been called
+    public void abandon() {
+        assert (!closed);
+        closed = true;
+    }
+
+    // Number of calls to add() so far.
+    public long numEntries() {
+        return numEntries;
+    }
+
+    // Size of the file generated so far.  If invoked after a successful
+    // finish() call, returns the size of the final generated file.
+    public long fileSize() {
+        return offset;
+    }
+}
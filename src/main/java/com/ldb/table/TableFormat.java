@@ -0,0 +1,26 @@
+package com.ldb.table;
+
+// Table format information shared by builder and reader, same as LevelDB's.
+// A table file is:
+//    [data block 1]
+//    ...
+//    [data block N]
+//    [filter block]        // Only when a filter policy is set
+//    [metaindex block]     // "filter.<policy name>" -> filter block handle
+//    [index block]         // One entry per data block, see TableBuilder
+//    [footer]              // kEncodedLength bytes, see Footer
+// Each block is followed by a trailer:
+//    type: uint8           // Compression type, only kNoCompression so far
+//    crc: uint32           // masked crc32c of the block contents and type, little-endian
+public class TableFormat {
+    // Picked by running `echo http://code.google.com/p/leveldb/ | sha1sum`
+    // and taking the leading 64 bits.
+    public static final long kTableMagicNumber = 0xdb4775248b80fb57L;
+
+    // 1-byte type + 32-bit crc
+    public static final int kBlockTrailerSize = 5;
+
+    public static final byte kNoCompression = 0x0;
+
+    public static final String kFilterPrefix = "filter.";
+}
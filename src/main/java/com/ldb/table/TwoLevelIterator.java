@@ -0,0 +1,155 @@
+package com.ldb.table;
+
+import com.ldb.utils.KeyValueIterator;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+// Iterates the entries of a sequence of blocks: the index iterator yields one
+// value per block, blockFunction turns it into an iterator over that block.
+// A block is only read when the iteration reaches it.
+class TwoLevelIterator implements KeyValueIterator {
+    private final KeyValueIterator indexIter;
+    private final Function<ByteBuffer, KeyValueIterator> blockFunction;
+    private final Runnable cleanup;
+    private KeyValueIterator dataIter;  // May be null
+    // If dataIter is non-null, then "dataBlockHandle" holds the
+    // index value passed to blockFunction to create the dataIter.
+    private ByteBuffer dataBlockHandle = ByteBuffer.allocate(BlockHandle.kMaxEncodedLength);
+
+    TwoLevelIterator(KeyValueIterator indexIter, Function<ByteBuffer, KeyValueIterator> blockFunction,
+                     Runnable cleanup) {
+        this.indexIter = indexIter;
+        this.blockFunction = blockFunction;
+        this.cleanup = cleanup;
+    }
+
+    @Override
+    public boolean valid() {
+        return dataIter != null && dataIter.valid();
+    }
+
+    private KeyValueIterator checkValid() {
+        if (!valid()) {
+            throw new IllegalStateException("Key is not valid");
+        }
+        return dataIter;
+    }
+
+    @Override
+    public ByteBuffer key() {
+        return checkValid().key();
+    }
+
+    @Override
+    public ByteBuffer value() {
+        return checkValid().value();
+    }
+
+    @Override
+    public void seek(ByteBuffer target) {
+        indexIter.seek(target);
+        initDataBlock();
+        if (dataIter != null) {
+            dataIter.seek(target);
+        }
+        skipEmptyDataBlocksForward();
+    }
+
+    @Override
+    public void seekToFirst() {
+        indexIter.seekToFirst();
+        initDataBlock();
+        if (dataIter != null) {
+            dataIter.seekToFirst();
+        }
+        skipEmptyDataBlocksForward();
+    }
+
+    @Override
+    public void seekToLast() {
+        indexIter.seekToLast();
+        initDataBlock();
+        if (dataIter != null) {
+            dataIter.seekToLast();
+        }
+        skipEmptyDataBlocksBackward();
+    }
+
+    @Override
+    public void next() {
+        checkValid().next();
+        skipEmptyDataBlocksForward();
+    }
+
+    @Override
+    public void prev() {
+        checkValid().prev();
+        skipEmptyDataBlocksBackward();
+    }
+
+    @Override
+    public void close() {
+        setDataIterator(null);
+        indexIter.close();
+        if (cleanup != null) {
+            cleanup.run();
+        }
+    }
+
+    private void skipEmptyDataBlocksForward() {
+        while (dataIter == null || !dataIter.valid()) {
+            // Move to next block
+            if (!indexIter.valid()) {
+                setDataIterator(null);
+                return;
+            }
+            indexIter.next();
+            initDataBlock();
+            if (dataIter != null) {
+                dataIter.seekToFirst();
+            }
+        }
+    }
+
+    private void skipEmptyDataBlocksBackward() {
+        while (dataIter == null || !dataIter.valid()) {
+            // Move to previous block
+            if (!indexIter.valid()) {
+                setDataIterator(null);
+                return;
+            }
+            indexIter.prev();
+            initDataBlock();
+            if (dataIter != null) {
+                dataIter.seekToLast();
+            }
+        }
+    }
+
+    private void setDataIterator(KeyValueIterator iter) {
+        if (dataIter != null) {
+            dataIter.close();
+        }
+        dataIter = iter;
+    }
+
+    private void initDataBlock() {
+        if (!indexIter.valid()) {
+            setDataIterator(null);
+            return;
+        }
+        ByteBuffer handle = indexIter.value();
+        if (dataIter != null && handle.equals(dataBlockHandle)) {
+            // dataIter is already constructed with this iterator, so
+            // no need to change anything
+            return;
+        }
+        if (dataBlockHandle.capacity() < handle.remaining()) {
+            dataBlockHandle = ByteBuffer.allocate(handle.remaining());
+        }
+        dataBlockHandle.clear();
+        dataBlockHandle.put(handle.duplicate()).flip();
+        setDataIterator(blockFunction.apply(handle));
+    }
+}
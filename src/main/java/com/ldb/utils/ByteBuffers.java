@@ -0,0 +1,27 @@
+package com.ldb.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Absolute bulk copies between buffers. Positions and limits are never touched
+ * and no views are created, so copying into arena blocks allocates nothing.
+ */
+public class ByteBuffers {
+
+    public static void copy(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset, int length) {
+        if (src.hasArray() && dst.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + srcOffset,
+                    dst.array(), dst.arrayOffset() + dstOffset, length);
+            return;
+        }
+        boolean swap = src.order() != dst.order();
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            long v = src.getLong(srcOffset + i);
+            dst.putLong(dstOffset + i, swap ? Long.reverseBytes(v) : v);
+        }
+        for (; i < length; i++) {
+            dst.put(dstOffset + i, src.get(srcOffset + i));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.ldb.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Unsigned lexicographic order of byte ranges, same as memcmp. All methods use
+ * absolute reads, the position and limit of the buffers are never touched.
+ * Multi-byte reads assume the default big-endian order of the buffers.
+ */
+public class BytewiseComparator implements Comparator<ByteBuffer> {
+    public static final BytewiseComparator INSTANCE = new BytewiseComparator();
+
+    @Override
+    public int compare(ByteBuffer a, ByteBuffer b) {
+        return compare(a, a.position(), a.remaining(), b, b.position(), b.remaining());
+    }
+
+    public static int compare(ByteBuffer a, int aOffset, int aLength, ByteBuffer b, int bOffset, int bLength) {
+        if (a.hasArray() && b.hasArray()) {
+            return Arrays.compareUnsigned(
+                    a.array(), a.arrayOffset() + aOffset, a.arrayOffset() + aOffset + aLength,
+                    b.array(), b.arrayOffset() + bOffset, b.arrayOffset() + bOffset + bLength);
+        }
+        int minLength = Math.min(aLength, bLength);
+        int i = 0;
+        // 8字节一组比较，大端序下long的无符号比较等价于逐字节比较
+        for (; i + Long.BYTES <= minLength; i += Long.BYTES) {
+            long x = a.getLong(aOffset + i);
+            long y = b.getLong(bOffset + i);
+            if (x != y) {
+                return Long.compareUnsigned(x, y);
+            }
+        }
+        for (; i < minLength; i++) {
+            int r = Byte.toUnsignedInt(a.get(aOffset + i)) - Byte.toUnsignedInt(b.get(bOffset + i));
+            if (r != 0) {
+                return r;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * First 8 bytes of the range as a big-endian long, zero padded. Comparing two
+     * prefixes with {@link Long#compareUnsigned} agrees with {@link #compare} whenever
+     * the prefixes differ.
+     */
+    public static long prefix(ByteBuffer buffer, int offset, int length) {
+        if (length >= Long.BYTES) {
+            return buffer.getLong(offset);
+        }
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix <<= 8;
+            if (i < length) {
+                prefix |= Byte.toUnsignedLong(buffer.get(offset + i));
+            }
+        }
+        return prefix;
+    }
+}
@@ -0,0 +1,97 @@
+package com.ldb.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LevelDB varint encoding: 7 bits per byte, little end first, high bit set on
+ * every byte but the last. Absolute variants read or write at an offset and leave
+ * the position alone, relative variants advance it.
+ */
+public class Coding {
+    public static final int kMaxVarint32Length = 5;
+    public static final int kMaxVarint64Length = 10;
+
+    public static int varintLength(long v) {
+        int len = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            len++;
+        }
+        return len;
+    }
+
+    public static void putVarint32(ByteBuffer dst, int v) {
+        putVarint64(dst, Integer.toUnsignedLong(v));
+    }
+
+    public static void putVarint64(ByteBuffer dst, long v) {
+        while ((v & ~0x7FL) != 0) {
+            dst.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        dst.put((byte) v);
+    }
+
+    // Returns the number of bytes written
+    public static int putVarint32(ByteBuffer dst, int offset, int v) {
+        return putVarint64(dst, offset, Integer.toUnsignedLong(v));
+    }
+
+    public static int putVarint64(ByteBuffer dst, int offset, long v) {
+        int p = offset;
+        while ((v & ~0x7FL) != 0) {
+            dst.put(p++, (byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        dst.put(p++, (byte) v);
+        return p - offset;
+    }
+
+    public static int getVarint32(ByteBuffer src) {
+        int result = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            int b = src.get();
+            if ((b & 0x80) == 0) {
+                return result | (b << shift);
+            }
+            result |= (b & 0x7F) << shift;
+        }
+        throw new IllegalArgumentException("Bad varint32");
+    }
+
+    public static long getVarint64(ByteBuffer src) {
+        long result = 0;
+        for (int shift = 0; shift <= 63; shift += 7) {
+            long b = src.get();
+            if ((b & 0x80) == 0) {
+                return result | (b << shift);
+            }
+            result |= (b & 0x7F) << shift;
+        }
+        throw new IllegalArgumentException("Bad varint64");
+    }
+
+    public static int getVarint32(ByteBuffer src, int offset) {
+        int result = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            int b = src.get(offset++);
+            if ((b & 0x80) == 0) {
+                return result | (b << shift);
+            }
+            result |= (b & 0x7F) << shift;
+        }
+        throw new IllegalArgumentException("Bad varint32");
+    }
+
+    public static long getVarint64(ByteBuffer src, int offset) {
+        long result = 0;
+        for (int shift = 0; shift <= 63; shift += 7) {
+            long b = src.get(offset++);
+            if ((b & 0x80) == 0) {
+                return result | (b << shift);
+            }
+            result |= (b & 0x7F) << shift;
+        }
+        throw new IllegalArgumentException("Bad varint64");
+    }
+}
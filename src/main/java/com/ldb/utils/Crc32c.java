@@ -0,0 +1,22 @@
+package com.ldb.utils;
+
+/**
+ * Masking of stored CRC32C values, same as LevelDB's crc32c::Mask. Computing the
+ * CRC of a string that contains embedded CRCs is problematic, so every stored
+ * CRC is rotated and offset first.
+ */
+public class Crc32c {
+    private static final int kMaskDelta = 0xa282ead8;
+
+    // Return a masked representation of crc.
+    public static int mask(int crc) {
+        // Rotate right by 15 bits and add a constant.
+        return ((crc >>> 15) | (crc << 17)) + kMaskDelta;
+    }
+
+    // Return the crc whose masked representation is masked.
+    public static int unmask(int masked) {
+        int rot = masked - kMaskDelta;
+        return ((rot >>> 17) | (rot << 15));
+    }
+}
@@ -0,0 +1,14 @@
+package com.ldb.utils;
+
+import java.nio.ByteBuffer;
+
+// A SeekableIterator over key/value entries. key() and value() are views that
+// stay valid until the iterator is moved or closed.
+public interface KeyValueIterator extends SeekableIterator<ByteBuffer>, AutoCloseable {
+    ByteBuffer value();
+
+    // Releases what the iterator holds on to, it must not be used afterwards
+    @Override
+    default void close() {
+    }
+}
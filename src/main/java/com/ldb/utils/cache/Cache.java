@@ -0,0 +1,87 @@
+package com.ldb.utils.cache;
+
+import java.nio.ByteBuffer;
+
+// A Cache is an interface that maps keys to values.  It has internal
+// synchronization and may be safely accessed concurrently from
+// multiple threads.  It may automatically evict entries to make room
+// for new entries.  Values have a specified charge against the cache
+// capacity.  For example, a cache where the values are variable
+// length strings, may use the length of the string as the charge for
+// the string.
+//
+// Every insert and successful lookup returns a handle that pins the entry:
+// it is not evicted, and its value stays valid, until the handle is released.
+public interface Cache<V> {
+
+    // Where an entry is inserted into the eviction order. High priority
+    // entries go into a pool that takes up to a share of the capacity and
+    // is evicted from only once the rest of the cache is empty.
+    enum Priority {
+        HIGH,
+        LOW
+    }
+
+    // Opaque handle to an entry stored in the cache.
+    interface Handle {
+    }
+
+    // Insert a mapping from key->value into the cache and assign it
+    // the specified charge against the total cache capacity.
+    //
+    // Returns a handle that corresponds to the mapping.  The caller
+    // must call this.release(handle) when the returned mapping is no
+    // longer needed. The key is copied, its position is left alone.
+    Handle insert(ByteBuffer key, V value, long charge, Priority priority);
+
+    // If the cache has no mapping for "key", returns null.
+    //
+    // Else return a handle that corresponds to the mapping.  The caller
+    // must call this.release(handle) when the returned mapping is no
+    // longer needed.
+    Handle lookup(ByteBuffer key);
+
+    // Release a mapping returned by a previous lookup().
+    // REQUIRES: handle must not have been released yet.
+    // REQUIRES: handle must have been returned by a method on this instance.
+    void release(Handle handle);
+
+    // Return the value encapsulated in a handle returned by a
+    // successful lookup().
+    // REQUIRES: handle must not have been released yet.
+    // REQUIRES: handle must have been returned by a method on this instance.
+    V value(Handle handle);
+
+    // If the cache contains entry for key, erase it.  Note that the
+    // underlying entry will be kept around until all existing handles
+    // to it have been released.
+    void erase(ByteBuffer key);
+
+    // Return a new numeric id.  May be used by multiple clients who are
+    // sharing the same cache to partition the key space.  Typically the
+    // client will allocate a new id at startup and prepend the id to
+    // its cache keys.
+    long newId();
+
+    // Remove all cache entries that are not actively in use.  Memory-constrained
+    // applications may wish to call this method to reduce memory usage.
+    void prune();
+
+    // Return an estimate of the combined charges of all elements stored in the
+    // cache.
+    long totalCharge();
+
+    // Whether a value stays valid after the last handle to it is released. If
+    // not, a value used after release must be copied out first.
+    default boolean valuesOutliveRelease() {
+        return true;
+    }
+
+    // Lookups that found their key, lookups that did not, and entries
+    // dropped to stay within capacity, since the cache was created
+    long hits();
+
+    long misses();
+
+    long evictions();
+}
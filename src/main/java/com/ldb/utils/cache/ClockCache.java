@@ -0,0 +1,794 @@
+package com.ldb.utils.cache;
+
+import com.ldb.utils.filter.Utils;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A block cache that keeps its entries off the Java heap, for caches too large
+// for the garbage collector to walk and move.
+//
+// Memory is allocated with ByteBuffer.allocateDirect in arenas of up to 1GB,
+// so the JVM needs -XX:MaxDirectMemorySize of at least the capacity. Arenas are
+// cut into pages of pageSize bytes, and each page into equal chunks of one of
+// a series of size classes 25% apart, like memcached's slab allocator. An
+// entry takes the smallest chunk that holds its header, key and value, a page
+// goes to a size class when that class first runs out of chunks. Entries
+// larger than a page are not cached: insert() hands back a handle on the
+// caller's value instead.
+//
+// Keys map to chunks through an open-addressing table of longs, hash in the
+// upper half and chunk reference in the lower, so the index is a single
+// primitive array however many entries there are.
+//
+// Each chunk starts with a state word holding its pin count, a CLOCK counter
+// and the free/erased flags. lookup() takes no lock: it probes the index,
+// pins the chunk with a compare-and-set of its state word, then checks the
+// key, so it writes to nothing but the entry it finds. insert(), erase() and
+// eviction take the shard's lock. To make room a class's CLOCK hand sweeps its
+// chunks, decrementing counters and evicting the first unpinned entry at zero;
+// a hit raises the counter. High priority entries are passed over while they
+// take up to half of the shard, like LRUCache's high priority pool. If
+// all of a class's chunks are pinned, or it has no pages, a page is taken from
+// the class with the most pages. Its new chunks start at other offsets, so the
+// page is only laid out again once every lookup that could have read a
+// reference into it from the index is done.
+//
+// Values are read-only views of the chunk and valid only while their handle
+// is pinned, see valuesOutliveRelease(). Entries are charged the size of their
+// chunk, the charge passed to insert() is not used.
+public class ClockCache implements Cache<ByteBuffer> {
+    public static final int kDefaultPageSize = 1 << 20;
+    private static final int kArenaSize = 1 << 30;
+    private static final int kMinChunkSize = 64;
+    private static final int kInitialIndexSize = 1024;
+
+    // Chunk header. Chunks are 8 byte aligned, the header is in native order
+    private static final int kHashOffset = 4;
+    private static final int kKeyLengthOffset = 8;
+    private static final int kValueLengthOffset = 12;
+    private static final int kHeaderSize = 16;
+
+    // The state word at the start of every chunk
+    private static final int kRefsMask = 0x00ffffff;
+    private static final int kClockShift = 24;
+    private static final int kClockMask = 3 << kClockShift;
+    private static final int kHighPri = 1 << 29;  // Inserted at Priority.HIGH
+    private static final int kErased = 1 << 30;   // Out of the index, freed when unpinned
+    private static final int kFree = 1 << 31;     // Unused, on its class's free list
+
+    // CLOCK counters: entries survive this many sweeps without a hit
+    private static final int kLowPriClock = 1;
+    private static final int kHitClock = 2;
+    private static final int kHighPriClock = 3;
+    // Share of a shard high priority entries may take before the CLOCK hand
+    // counts them down like the others
+    private static final double kHighPriPoolRatio = 0.5;
+
+    private static final VarHandle STATE = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+
+    private final int pageSize;
+    private final int[] chunkSizes;  // Size classes, ascending, the last is pageSize
+    private final Shard[] shards;
+    private final int numShardBits;
+    private final AtomicLong lastId = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ClockCache(long capacity) {
+        this(capacity, defaultShardBits(capacity, kDefaultPageSize), kDefaultPageSize);
+    }
+
+    // REQUIRES: pageSize is a power of two of at least 4KB, shards of 16GB or
+    // more are not supported.
+    public ClockCache(long capacity, int numShardBits, int pageSize) {
+        if (pageSize < 4096 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("bad page size " + pageSize);
+        }
+        int numShards = 1 << numShardBits;
+        long pagesPerShard = capacity / pageSize / numShards;
+        if (pagesPerShard * pageSize >= (1L << 34)) {
+            throw new IllegalArgumentException("shards of 16GB or more");
+        }
+        this.pageSize = pageSize;
+        this.chunkSizes = sizeClasses(pageSize);
+        this.numShardBits = numShardBits;
+        this.shards = new Shard[numShards];
+        for (int s = 0; s < numShards; s++) {
+            shards[s] = new Shard((int) pagesPerShard);
+        }
+    }
+
+    // At least 16 pages per shard, at most 64 shards
+    static int defaultShardBits(long capacity, int pageSize) {
+        int numShardBits = 0;
+        long numShards = capacity / pageSize / 16;
+        while ((numShards >>= 1) > 0 && numShardBits < 6) {
+            numShardBits++;
+        }
+        return numShardBits;
+    }
+
+    static int[] sizeClasses(int pageSize) {
+        int[] sizes = new int[128];
+        int n = 0;
+        for (long size = kMinChunkSize; size < pageSize; size = (size * 5 / 4 + 7) & ~7) {
+            sizes[n++] = (int) size;
+        }
+        sizes[n++] = pageSize;
+        return Arrays.copyOf(sizes, n);
+    }
+
+    // Returns the smallest size class holding n bytes, -1 if there is none
+    private int sizeClass(long n) {
+        if (n > pageSize) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(chunkSizes, (int) n);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    private static int hashKey(ByteBuffer key) {
+        return (int) Utils.hash(key, key.position(), key.remaining());
+    }
+
+    private Shard shard(int hash) {
+        return shards[numShardBits == 0 ? 0 : hash >>> (32 - numShardBits)];
+    }
+
+    private static int refs(int state) {
+        return state & kRefsMask;
+    }
+
+    private static int clock(int state) {
+        return (state & kClockMask) >>> kClockShift;
+    }
+
+    // A pinned entry, or a value insert() could not cache
+    private static final class Entry implements Handle {
+        final Shard shard;  // null if not cached
+        final int ref;
+        final ByteBuffer value;
+
+        Entry(Shard shard, int ref, ByteBuffer value) {
+            this.shard = shard;
+            this.ref = ref;
+            this.value = value;
+        }
+    }
+
+    @Override
+    public Handle insert(ByteBuffer key, ByteBuffer value, long charge, Priority priority) {
+        int hash = hashKey(key);
+        int cls = sizeClass((long) kHeaderSize + key.remaining() + value.remaining());
+        Entry e = cls < 0 ? null : shard(hash).insert(key, hash, value, cls, priority);
+        return e != null ? e : new Entry(null, 0, value.asReadOnlyBuffer());
+    }
+
+    @Override
+    public Handle lookup(ByteBuffer key) {
+        int hash = hashKey(key);
+        Entry e = shard(hash).lookup(key, hash);
+        if (e != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return e;
+    }
+
+    @Override
+    public void release(Handle handle) {
+        Entry e = (Entry) handle;
+        if (e.shard != null) {
+            e.shard.unpin(e.ref);
+        }
+    }
+
+    @Override
+    public ByteBuffer value(Handle handle) {
+        return ((Entry) handle).value;
+    }
+
+    @Override
+    public void erase(ByteBuffer key) {
+        int hash = hashKey(key);
+        shard(hash).erase(key, hash);
+    }
+
+    @Override
+    public long newId() {
+        return lastId.incrementAndGet();
+    }
+
+    @Override
+    public void prune() {
+        for (Shard shard : shards) {
+            shard.prune();
+        }
+    }
+
+    @Override
+    public long totalCharge() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.usage();
+        }
+        return total;
+    }
+
+    @Override
+    public long hits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long misses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // Chunks are reused as soon as they are unpinned and evicted
+    @Override
+    public boolean valuesOutliveRelease() {
+        return false;
+    }
+
+    // The pages and index of one shard. A chunk is referred to by its offset
+    // in the shard's pages divided by 8, which fits an int.
+    private final class Shard {
+        private final ReentrantLock mutex = new ReentrantLock();
+        private final int maxPages;
+        private final int pagesPerArena;
+
+        // Written under mutex, read by lookups without it. A reference to a
+        // page that is not visible yet reads as null and is a miss.
+        private volatile ByteBuffer[] pages = new ByteBuffer[0];
+        private volatile long[] index = new long[kInitialIndexSize];
+        // Lookups in progress, counted by the parity of the epoch they started
+        // in, see quiesce()
+        private final AtomicLong epoch = new AtomicLong();
+        private final AtomicIntegerArray lookups = new AtomicIntegerArray(2);
+        private final ReentrantLock quiesceLock = new ReentrantLock();
+
+        // Guarded by mutex
+        private int numPages;      // Pages handed to a size class
+        private int[] pageClass = new int[0];
+        private final int[][] classPages = new int[chunkSizes.length][];
+        private final int[] classPageCount = new int[chunkSizes.length];
+        private final int[][] freeChunks = new int[chunkSizes.length][];
+        private final int[] freeCount = new int[chunkSizes.length];
+        private final int[] handPage = new int[chunkSizes.length];   // CLOCK hand, index in classPages
+        private final int[] handChunk = new int[chunkSizes.length];  // and chunk in that page
+        private int stealHand;
+        private int count;         // Entries in index
+        private long usage;        // Bytes of chunks holding entries
+        private long highPriUsage; // Of which high priority entries
+        private final long highPriPoolCapacity;
+
+        Shard(int maxPages) {
+            this.maxPages = maxPages;
+            this.highPriPoolCapacity = (long) ((long) maxPages * pageSize * kHighPriPoolRatio);
+            this.pagesPerArena = kArenaSize / pageSize;
+            for (int c = 0; c < chunkSizes.length; c++) {
+                classPages[c] = new int[4];
+                freeChunks[c] = new int[16];
+            }
+        }
+
+        private ByteBuffer page(int ref) {
+            ByteBuffer[] p = pages;
+            int page = (int) (((long) ref << 3) / pageSize);
+            return page < p.length ? p[page] : null;
+        }
+
+        private int offset(int ref) {
+            return (int) (((long) ref << 3) % pageSize);
+        }
+
+        private int chunkRef(int page, int offset) {
+            return (int) (((long) page * pageSize + offset) >>> 3);
+        }
+
+        private int state(ByteBuffer page, int offset) {
+            return (int) STATE.getVolatile(page, offset);
+        }
+
+        private boolean casState(ByteBuffer page, int offset, int expected, int state) {
+            return STATE.compareAndSet(page, offset, expected, state);
+        }
+
+        Entry lookup(ByteBuffer key, int hash) {
+            int parity = enter();
+            try {
+                return lookup(key, hash, index);
+            } finally {
+                lookups.decrementAndGet(parity);
+            }
+        }
+
+        // Counts a lookup in the current epoch, returns its parity
+        private int enter() {
+            while (true) {
+                long e = epoch.get();
+                int parity = (int) e & 1;
+                lookups.incrementAndGet(parity);
+                if (epoch.get() == e) {
+                    return parity;
+                }
+                // quiesce() may have checked the count already
+                lookups.decrementAndGet(parity);
+            }
+        }
+
+        // Waits until every lookup that started before the call is done. A
+        // later lookup sees the index as it was at the call.
+        // REQUIRES: mutex is not held, lookups take it to free erased chunks
+        private void quiesce() {
+            quiesceLock.lock();
+            try {
+                int parity = (int) epoch.getAndIncrement() & 1;
+                while (lookups.get(parity) > 0) {
+                    Thread.yield();
+                }
+            } finally {
+                quiesceLock.unlock();
+            }
+        }
+
+        private Entry lookup(ByteBuffer key, int hash, long[] t) {
+            int mask = t.length - 1;
+            for (int i = hash & mask; t[i] != 0; i = (i + 1) & mask) {
+                long slot = t[i];
+                if ((int) (slot >>> 32) != hash) {
+                    continue;
+                }
+                int ref = (int) slot - 1;
+                ByteBuffer page = page(ref);
+                if (page == null || !pin(page, offset(ref))) {
+                    continue;
+                }
+                // Pinned, the chunk cannot change under us. It may have been
+                // reused for another key since we read the index.
+                ByteBuffer view = entryKey(page, offset(ref));
+                if (page.getInt(offset(ref) + kHashOffset) == hash && view.equals(key)) {
+                    int valueOffset = view.limit();
+                    view.limit(valueOffset + page.getInt(offset(ref) + kValueLengthOffset)).position(valueOffset);
+                    return new Entry(this, ref, view.slice());
+                }
+                unpin(ref);
+            }
+            return null;
+        }
+
+        // A read-only view of the key of the entry at offset
+        private ByteBuffer entryKey(ByteBuffer page, int offset) {
+            ByteBuffer view = page.asReadOnlyBuffer();
+            int keyOffset = offset + kHeaderSize;
+            view.limit(keyOffset + page.getInt(offset + kKeyLengthOffset)).position(keyOffset);
+            return view;
+        }
+
+        private boolean pin(ByteBuffer page, int offset) {
+            while (true) {
+                int s = state(page, offset);
+                if ((s & (kFree | kErased)) != 0 || refs(s) == kRefsMask) {
+                    return false;
+                }
+                int clock = Math.max(clock(s), kHitClock);
+                if (casState(page, offset, s, ((s & ~kClockMask) | clock << kClockShift) + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin(int ref) {
+            ByteBuffer page = page(ref);
+            int offset = offset(ref);
+            while (true) {
+                int s = state(page, offset);
+                assert (refs(s) > 0);
+                if (casState(page, offset, s, s - 1)) {
+                    if (((s - 1) & ~kHighPri) == kErased) {  // erased() cleared the clock
+                        // The last pin of an erased entry
+                        mutex.lock();
+                        try {
+                            freeErased(ref);
+                        } finally {
+                            mutex.unlock();
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        Entry insert(ByteBuffer key, int hash, ByteBuffer value, int cls, Priority priority) {
+            mutex.lock();
+            try {
+                int ref = allocate(cls);
+                if (ref < 0) {
+                    return null;
+                }
+                ByteBuffer page = page(ref);
+                int offset = offset(ref);
+                page.putInt(offset + kHashOffset, hash);
+                page.putInt(offset + kKeyLengthOffset, key.remaining());
+                page.putInt(offset + kValueLengthOffset, value.remaining());
+                ByteBuffer dup = page.duplicate();
+                dup.position(offset + kHeaderSize);
+                dup.put(key.duplicate()).put(value.duplicate());
+                int state = 1;  // Pinned for the returned handle
+                if (priority == Priority.HIGH) {
+                    state |= kHighPri | kHighPriClock << kClockShift;
+                    highPriUsage += chunkSizes[cls];
+                } else {
+                    state |= kLowPriClock << kClockShift;
+                }
+                // Publishes the contents
+                STATE.setVolatile(page, offset, state);
+                usage += chunkSizes[cls];
+
+                long slot = (long) hash << 32 | (ref + 1L);
+                int i = find(key, hash);
+                if (i >= 0) {
+                    int old = (int) index[i] - 1;
+                    index[i] = slot;
+                    erased(old);
+                } else {
+                    add(slot);
+                }
+                ByteBuffer view = entryKey(page, offset);
+                int valueOffset = view.limit();
+                view.limit(valueOffset + value.remaining()).position(valueOffset);
+                return new Entry(this, ref, view.slice());
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        // Returns the index slot of key, -1 if there is none
+        private int find(ByteBuffer key, int hash) {
+            long[] t = index;
+            int mask = t.length - 1;
+            for (int i = hash & mask; t[i] != 0; i = (i + 1) & mask) {
+                if ((int) (t[i] >>> 32) == hash) {
+                    int ref = (int) t[i] - 1;
+                    if (entryKey(page(ref), offset(ref)).equals(key)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private void add(long slot) {
+            if (2 * (count + 1) > index.length) {
+                // Rehash into a table twice the size, lookups go on reading
+                // the old one until it is published
+                long[] t = new long[index.length * 2];
+                for (long s : index) {
+                    if (s != 0) {
+                        put(t, s);
+                    }
+                }
+                index = t;
+            }
+            put(index, slot);
+            count++;
+        }
+
+        private void put(long[] t, long slot) {
+            int mask = t.length - 1;
+            int i = (int) (slot >>> 32) & mask;
+            while (t[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            t[i] = slot;
+        }
+
+        // Removes the index slot of the chunk ref, whose key hashes to hash
+        private void remove(int ref, int hash) {
+            long[] t = index;
+            int mask = t.length - 1;
+            int i = hash & mask;
+            while ((int) t[i] != ref + 1) {
+                i = (i + 1) & mask;
+            }
+            // Shift later slots of the probe sequence back into the gap. A
+            // concurrent lookup may miss an entry while it moves.
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                long slot = t[j];
+                if (slot == 0) {
+                    break;
+                }
+                int home = (int) (slot >>> 32) & mask;
+                if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+                    continue;
+                }
+                t[i] = slot;
+                i = j;
+            }
+            t[i] = 0;
+            count--;
+        }
+
+        // Marks the chunk ref, no longer in the index, erased. It is freed now
+        // if unpinned, else by the last unpin.
+        private void erased(int ref) {
+            ByteBuffer page = page(ref);
+            int offset = offset(ref);
+            while (true) {
+                int s = state(page, offset);
+                if (refs(s) == 0) {
+                    if (casState(page, offset, s, kFree)) {
+                        free(ref, s);
+                        return;
+                    }
+                } else if (casState(page, offset, s, refs(s) | kErased | (s & kHighPri))) {
+                    return;
+                }
+            }
+        }
+
+        private void freeErased(int ref) {
+            ByteBuffer page = page(ref);
+            int s = state(page, offset(ref));
+            if ((s & ~kHighPri) == kErased && casState(page, offset(ref), s, kFree)) {
+                free(ref, s);
+            }
+        }
+
+        // Puts the chunk ref, now kFree, on its class's free list. Its state
+        // was s.
+        private void free(int ref, int s) {
+            int cls = pageClass[(int) (((long) ref << 3) / pageSize)];
+            released(cls, s);
+            pushFree(cls, ref);
+        }
+
+        private void released(int cls, int s) {
+            usage -= chunkSizes[cls];
+            if ((s & kHighPri) != 0) {
+                highPriUsage -= chunkSizes[cls];
+            }
+        }
+
+        private void pushFree(int cls, int ref) {
+            if (freeCount[cls] == freeChunks[cls].length) {
+                freeChunks[cls] = Arrays.copyOf(freeChunks[cls], freeCount[cls] * 2);
+            }
+            freeChunks[cls][freeCount[cls]++] = ref;
+        }
+
+        // Returns a free chunk of class cls, evicting to make one if needed,
+        // -1 if every chunk that could be used is pinned
+        private int allocate(int cls) {
+            if (freeCount[cls] > 0) {
+                return freeChunks[cls][--freeCount[cls]];
+            }
+            if (numPages < maxPages) {
+                addPage(cls, numPages++);
+                return freeChunks[cls][--freeCount[cls]];
+            }
+            int ref = sweep(cls);
+            if (ref >= 0) {
+                return ref;
+            }
+            int page = steal(cls);
+            if (page < 0) {
+                return -1;
+            }
+            // Lookups that read the index before the page was emptied may
+            // still pin chunks at their old offsets
+            mutex.unlock();
+            try {
+                quiesce();
+            } finally {
+                mutex.lock();
+            }
+            addPage(cls, page);
+            return freeChunks[cls][--freeCount[cls]];
+        }
+
+        // Hands the empty page to class cls, all its chunks free
+        private void addPage(int cls, int page) {
+            if (page >= pages.length) {
+                // The next arena
+                int n = Math.min(pagesPerArena, maxPages - page);
+                ByteBuffer arena = ByteBuffer.allocateDirect(n * pageSize).order(ByteOrder.nativeOrder());
+                ByteBuffer[] p = Arrays.copyOf(pages, page + n);
+                for (int i = 0; i < n; i++) {
+                    arena.limit((i + 1) * pageSize).position(i * pageSize);
+                    p[page + i] = arena.slice().order(ByteOrder.nativeOrder());
+                }
+                pageClass = Arrays.copyOf(pageClass, page + n);
+                pages = p;
+            }
+            pageClass[page] = cls;
+            if (classPageCount[cls] == classPages[cls].length) {
+                classPages[cls] = Arrays.copyOf(classPages[cls], classPageCount[cls] * 2);
+            }
+            classPages[cls][classPageCount[cls]++] = page;
+            ByteBuffer buffer = pages[page];
+            int size = chunkSizes[cls];
+            // Pushed last to first, so chunks are used in address order
+            for (int offset = (pageSize / size - 1) * size; offset >= 0; offset -= size) {
+                STATE.setVolatile(buffer, offset, kFree);
+                pushFree(cls, chunkRef(page, offset));
+            }
+        }
+
+        // Moves the CLOCK hand of class cls until it evicts an entry, returns
+        // its chunk or -1 if every entry stayed pinned for a full sweep
+        private int sweep(int cls) {
+            int size = chunkSizes[cls];
+            int chunksPerPage = pageSize / size;
+            long limit = (long) (kHighPriClock + 1) * classPageCount[cls] * chunksPerPage;
+            for (long n = 0; n < limit; n++) {
+                if (++handChunk[cls] >= chunksPerPage) {
+                    handChunk[cls] = 0;
+                    if (++handPage[cls] >= classPageCount[cls]) {
+                        handPage[cls] = 0;
+                    }
+                }
+                int page = classPages[cls][handPage[cls]];
+                int offset = handChunk[cls] * size;
+                ByteBuffer buffer = pages[page];
+                int s = state(buffer, offset);
+                if ((s & (kFree | kErased)) != 0 || refs(s) > 0) {
+                    continue;
+                }
+                if ((s & kHighPri) != 0 && highPriUsage <= highPriPoolCapacity) {
+                    // Within the high priority pool
+                    continue;
+                }
+                if (clock(s) > 0) {
+                    casState(buffer, offset, s, s - (1 << kClockShift));
+                } else if (evict(buffer, page, offset, s)) {
+                    evictions.increment();
+                    return chunkRef(page, offset);
+                }
+            }
+            return -1;
+        }
+
+        // Drops the unpinned entry at offset of page from the cache, unless a
+        // lookup pins it first. Its chunk is left kFree, but not on a free list.
+        private boolean evict(ByteBuffer buffer, int page, int offset, int s) {
+            if (!casState(buffer, offset, s, kFree)) {
+                return false;
+            }
+            int ref = chunkRef(page, offset);
+            remove(ref, buffer.getInt(offset + kHashOffset));
+            released(pageClass[page], s);
+            return true;
+        }
+
+        // Evicts a page with no pinned entries from the class with the most
+        // pages, returns it or -1 if there is none
+        private int steal(int cls) {
+            int donor = -1;
+            for (int c = 0; c < chunkSizes.length; c++) {
+                if (c != cls && classPageCount[c] > 1 && (donor < 0 || classPageCount[c] > classPageCount[donor])) {
+                    donor = c;
+                }
+            }
+            if (donor < 0) {
+                return -1;
+            }
+            int size = chunkSizes[donor];
+            for (int n = 0; n < classPageCount[donor]; n++) {
+                int i = stealHand++ % classPageCount[donor];
+                int page = classPages[donor][i];
+                ByteBuffer buffer = pages[page];
+                int offset = 0;
+                for (; offset + size <= pageSize; offset += size) {
+                    int s = state(buffer, offset);
+                    if ((s & kFree) == 0 && ((s & kErased) != 0 || refs(s) > 0 || !evict(buffer, page, offset, s))) {
+                        break;
+                    }
+                }
+                if (offset + size <= pageSize) {
+                    // Pinned: the chunks evicted so far go back to the donor
+                    for (int o = 0; o < offset; o += size) {
+                        int ref = chunkRef(page, o);
+                        if (!isFree(donor, ref)) {
+                            pushFree(donor, ref);
+                        }
+                    }
+                    continue;
+                }
+                // Take the page's chunks off the donor's free list, and the
+                // page out of its pages
+                for (int o = 0; o + size <= pageSize; o += size) {
+                    if (!isFree(donor, chunkRef(page, o))) {
+                        evictions.increment();
+                    }
+                }
+                int kept = 0;
+                for (int f = 0; f < freeCount[donor]; f++) {
+                    int ref = freeChunks[donor][f];
+                    if ((int) (((long) ref << 3) / pageSize) != page) {
+                        freeChunks[donor][kept++] = ref;
+                    }
+                }
+                freeCount[donor] = kept;
+                classPages[donor][i] = classPages[donor][--classPageCount[donor]];
+                if (handPage[donor] >= classPageCount[donor]) {
+                    handPage[donor] = 0;
+                }
+                return page;
+            }
+            return -1;
+        }
+
+        private boolean isFree(int cls, int ref) {
+            for (int f = 0; f < freeCount[cls]; f++) {
+                if (freeChunks[cls][f] == ref) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void erase(ByteBuffer key, int hash) {
+            mutex.lock();
+            try {
+                int i = find(key, hash);
+                if (i >= 0) {
+                    int ref = (int) index[i] - 1;
+                    remove(ref, hash);
+                    erased(ref);
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        void prune() {
+            mutex.lock();
+            try {
+                for (int cls = 0; cls < chunkSizes.length; cls++) {
+                    int size = chunkSizes[cls];
+                    for (int p = 0; p < classPageCount[cls]; p++) {
+                        int page = classPages[cls][p];
+                        ByteBuffer buffer = pages[page];
+                        for (int offset = 0; offset + size <= pageSize; offset += size) {
+                            int s = state(buffer, offset);
+                            if ((s & (kFree | kErased)) == 0 && refs(s) == 0 && evict(buffer, page, offset, s)) {
+                                pushFree(cls, chunkRef(page, offset));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        long usage() {
+            mutex.lock();
+            try {
+                return usage;
+            } finally {
+                mutex.unlock();
+            }
+        }
+    }
+}
@@ -1,4 +1,507 @@
 package com.ldb.utils.cache;
 
-public class LRUCache {
+import com.ldb.utils.filter.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// A sharded LRU cache, LevelDB's with RocksDB's high priority pool.
+//
+// Keys are spread over 2^numShardBits shards by their hash, each shard an
+// independent LRU cache with its own lock and an equal share of the capacity,
+// so concurrent readers rarely meet on one lock. A lock is held only for the
+// table and list updates, hashing and copying the key happen outside of it.
+//
+// Cache entries have an "inCache" boolean indicating whether the cache has a
+// reference on the entry.  The only ways that this can become false without the
+// entry being passed to its "deleter" are via erase(), via insert() when
+// an element with a duplicate key is inserted, or on destruction of the cache.
+//
+// The cache keeps two linked lists of items in the cache.  All items in the
+// cache are in one list or the other, and never both.  Items still referenced
+// by clients but erased from the cache are in neither list.  The lists are:
+// - inUse:  contains the items currently referenced by clients, in no
+//   particular order.  (This list is used for invariant checking.  If we
+//   removed the check, elements that would otherwise be on this list could be
+//   left as disconnected singleton lists.)
+// - lru:  contains the items not currently referenced by clients, in LRU order
+//   Elements are moved between these lists by the ref() and unref() methods,
+//   when they detect an element in the cache acquiring or losing its only
+//   external reference.
+//
+// The lru list is split in two: low priority entries from the oldest end up
+// to lruLowPri, then the high priority pool up to the newest end. High priority
+// entries, and entries that were looked up while cached, are inserted at the
+// newest end; others at lruLowPri, so one pass over cold data (a long scan)
+// evicts only other low priority entries. The pool is limited to
+// highPriPoolRatio of the capacity, its oldest entries overflow into the low
+// priority part.
+public class LRUCache<V> implements Cache<V> {
+    private final Shard<V>[] shards;
+    private final int numShardBits;
+    private final AtomicLong lastId = new AtomicLong();
+
+    public LRUCache(long capacity) {
+        this(capacity, defaultShardBits(capacity), 0.5);
+    }
+
+    public LRUCache(long capacity, int numShardBits, double highPriPoolRatio) {
+        this(capacity, numShardBits, highPriPoolRatio, null);
+    }
+
+    // Same as above, "deleter" is passed each value once it is out of the
+    // cache and no handle pins it any more, with the shard's lock held.
+    @SuppressWarnings("unchecked")
+    public LRUCache(long capacity, int numShardBits, double highPriPoolRatio, Consumer<V> deleter) {
+        assert (numShardBits >= 0 && numShardBits < 20);
+        assert (highPriPoolRatio >= 0 && highPriPoolRatio <= 1);
+        this.numShardBits = numShardBits;
+        int numShards = 1 << numShardBits;
+        this.shards = new Shard[numShards];
+        long perShard = (capacity + (numShards - 1)) / numShards;
+        for (int s = 0; s < numShards; s++) {
+            shards[s] = new Shard<>(perShard, highPriPoolRatio, deleter);
+        }
+    }
+
+    // As many shards as there are 512KB in the capacity, up to 64
+    static int defaultShardBits(long capacity) {
+        int numShardBits = 0;
+        long numShards = capacity / (512L << 10);
+        while ((numShards >>= 1) > 0 && numShardBits < 6) {
+            numShardBits++;
+        }
+        return numShardBits;
+    }
+
+    private static int hashKey(ByteBuffer key) {
+        return (int) Utils.hash(key, key.position(), key.remaining());
+    }
+
+    private Shard<V> shard(int hash) {
+        return shards[numShardBits == 0 ? 0 : hash >>> (32 - numShardBits)];
+    }
+
+    @Override
+    public Handle insert(ByteBuffer key, V value, long charge, Priority priority) {
+        int hash = hashKey(key);
+        ByteBuffer copy = ByteBuffer.allocate(key.remaining());
+        copy.put(key.duplicate()).flip();
+        return shard(hash).insert(new LRUHandle<>(copy, hash, value, charge, priority == Priority.HIGH));
+    }
+
+    @Override
+    public Handle lookup(ByteBuffer key) {
+        int hash = hashKey(key);
+        return shard(hash).lookup(key, hash);
+    }
+
+    @Override
+    public void release(Handle handle) {
+        LRUHandle<V> h = (LRUHandle<V>) handle;
+        shard(h.hash).release(h);
+    }
+
+    @Override
+    public V value(Handle handle) {
+        return ((LRUHandle<V>) handle).value;
+    }
+
+    @Override
+    public void erase(ByteBuffer key) {
+        int hash = hashKey(key);
+        shard(hash).erase(key, hash);
+    }
+
+    @Override
+    public long newId() {
+        return lastId.incrementAndGet();
+    }
+
+    @Override
+    public void prune() {
+        for (Shard<V> shard : shards) {
+            shard.prune();
+        }
+    }
+
+    @Override
+    public long totalCharge() {
+        long total = 0;
+        for (Shard<V> shard : shards) {
+            total += shard.totalCharge();
+        }
+        return total;
+    }
+
+    @Override
+    public long hits() {
+        long total = 0;
+        for (Shard<V> shard : shards) {
+            total += shard.counter(0);
+        }
+        return total;
+    }
+
+    @Override
+    public long misses() {
+        long total = 0;
+        for (Shard<V> shard : shards) {
+            total += shard.counter(1);
+        }
+        return total;
+    }
+
+    @Override
+    public long evictions() {
+        long total = 0;
+        for (Shard<V> shard : shards) {
+            total += shard.counter(2);
+        }
+        return total;
+    }
+
+    // An entry is a variable length heap-allocated structure.  Entries
+    // are kept in a circular doubly linked list ordered by access time.
+    private static final class LRUHandle<V> implements Handle {
+        final ByteBuffer key;
+        final int hash;      // Hash of key; used for fast sharding and comparisons
+        final V value;
+        final long charge;
+        final boolean highPri;
+        LRUHandle<V> nextHash;
+        LRUHandle<V> next;
+        LRUHandle<V> prev;
+        int refs;            // References, including cache reference, if present.
+        boolean inCache;     // Whether entry is in the cache.
+        boolean inHighPriPool;
+        boolean hit;         // Looked up while in the cache
+
+        LRUHandle(ByteBuffer key, int hash, V value, long charge, boolean highPri) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+            this.charge = charge;
+            this.highPri = highPri;
+        }
+    }
+
+    // We provide our own simple hash table since it removes a whole bunch
+    // of porting hacks and is also faster than some of the built-in hash
+    // table implementations in some of the compiler/runtime combinations
+    // we have tested.  E.g., readrandom speeds up by ~5% over the g++
+    // 4.4.3's builtin hashtable.
+    private static final class HandleTable<V> {
+        // The table consists of an array of buckets where each bucket is
+        // a linked list of cache entries that hash into the bucket.
+        private LRUHandle<V>[] list;
+        private int elems;
+
+        HandleTable() {
+            resize();
+        }
+
+        LRUHandle<V> lookup(ByteBuffer key, int hash) {
+            LRUHandle<V> h = list[hash & (list.length - 1)];
+            while (h != null && (h.hash != hash || !h.key.equals(key))) {
+                h = h.nextHash;
+            }
+            return h;
+        }
+
+        // Adds h and returns the entry it replaces, null if none
+        LRUHandle<V> insert(LRUHandle<V> h) {
+            int i = h.hash & (list.length - 1);
+            LRUHandle<V> prev = null;
+            LRUHandle<V> old = list[i];
+            while (old != null && (old.hash != h.hash || !old.key.equals(h.key))) {
+                prev = old;
+                old = old.nextHash;
+            }
+            h.nextHash = old == null ? null : old.nextHash;
+            if (prev == null) {
+                list[i] = h;
+            } else {
+                prev.nextHash = h;
+            }
+            if (old == null) {
+                ++elems;
+                if (elems > list.length) {
+                    // Since each cache entry is fairly large, we aim for a small
+                    // average linked list length (<= 1).
+                    resize();
+                }
+            }
+            return old;
+        }
+
+        LRUHandle<V> remove(ByteBuffer key, int hash) {
+            int i = hash & (list.length - 1);
+            LRUHandle<V> prev = null;
+            LRUHandle<V> result = list[i];
+            while (result != null && (result.hash != hash || !result.key.equals(key))) {
+                prev = result;
+                result = result.nextHash;
+            }
+            if (result != null) {
+                if (prev == null) {
+                    list[i] = result.nextHash;
+                } else {
+                    prev.nextHash = result.nextHash;
+                }
+                --elems;
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void resize() {
+            int newLength = 4;
+            while (newLength < elems) {
+                newLength *= 2;
+            }
+            LRUHandle<V>[] newList = new LRUHandle[newLength];
+            if (list != null) {
+                for (LRUHandle<V> h : list) {
+                    while (h != null) {
+                        LRUHandle<V> next = h.nextHash;
+                        int i = h.hash & (newLength - 1);
+                        h.nextHash = newList[i];
+                        newList[i] = h;
+                        h = next;
+                    }
+                }
+            }
+            list = newList;
+        }
+    }
+
+    // A single shard of sharded cache.
+    private static final class Shard<V> {
+        private final ReentrantLock mutex = new ReentrantLock();
+        private final long capacity;
+        private final double highPriPoolRatio;
+        private final Consumer<V> deleter;
+        private final long highPriPoolCapacity;
+
+        // Guarded by mutex
+        private long usage;
+        private long highPriPoolUsage;
+        // Dummy head of LRU list.
+        // lru.prev is newest entry, lru.next is oldest entry.
+        // Entries have refs==1 and inCache==true.
+        private final LRUHandle<V> lru = new LRUHandle<>(null, 0, null, 0, false);
+        // Newest entry of the low priority part of lru, lru itself if that is empty
+        private LRUHandle<V> lruLowPri = lru;
+        // Dummy head of in-use list.
+        // Entries are in use by clients, and have refs >= 2 and inCache==true.
+        private final LRUHandle<V> inUse = new LRUHandle<>(null, 0, null, 0, false);
+        private final HandleTable<V> table = new HandleTable<>();
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Shard(long capacity, double highPriPoolRatio, Consumer<V> deleter) {
+            this.capacity = capacity;
+            this.deleter = deleter;
+            this.highPriPoolRatio = highPriPoolRatio;
+            this.highPriPoolCapacity = (long) (capacity * highPriPoolRatio);
+            // Make empty circular linked lists.
+            lru.next = lru;
+            lru.prev = lru;
+            inUse.next = inUse;
+            inUse.prev = inUse;
+        }
+
+        private void ref(LRUHandle<V> e) {
+            if (e.refs == 1 && e.inCache) {  // If on lru list, move to inUse list.
+                lruRemove(e);
+                append(inUse, e);
+            }
+            e.refs++;
+        }
+
+        private void unref(LRUHandle<V> e) {
+            assert (e.refs > 0);
+            e.refs--;
+            if (e.refs == 0) {  // Deallocate.
+                assert (!e.inCache);
+                if (deleter != null) {
+                    deleter.accept(e.value);
+                }
+            } else if (e.inCache && e.refs == 1) {
+                // No longer in use; move to lru list.
+                unlink(e);
+                lruInsert(e);
+            }
+        }
+
+        private static <V> void unlink(LRUHandle<V> e) {
+            e.next.prev = e.prev;
+            e.prev.next = e.next;
+        }
+
+        private static <V> void append(LRUHandle<V> list, LRUHandle<V> e) {
+            // Make "e" newest entry by inserting just before list
+            e.next = list;
+            e.prev = list.prev;
+            e.prev.next = e;
+            e.next.prev = e;
+        }
+
+        private void lruInsert(LRUHandle<V> e) {
+            if (highPriPoolRatio > 0 && (e.highPri || e.hit)) {
+                // Insert "e" at the newest end, into the high priority pool
+                append(lru, e);
+                e.inHighPriPool = true;
+                highPriPoolUsage += e.charge;
+                maintainPoolSize();
+            } else {
+                // Insert "e" as the newest low priority entry
+                e.next = lruLowPri.next;
+                e.prev = lruLowPri;
+                e.prev.next = e;
+                e.next.prev = e;
+                e.inHighPriPool = false;
+                lruLowPri = e;
+            }
+        }
+
+        private void lruRemove(LRUHandle<V> e) {
+            if (lruLowPri == e) {
+                lruLowPri = e.prev;
+            }
+            unlink(e);
+            if (e.inHighPriPool) {
+                highPriPoolUsage -= e.charge;
+            }
+        }
+
+        // Overflows the oldest entries of the high priority pool into the low
+        // priority part until the pool is within its capacity
+        private void maintainPoolSize() {
+            while (highPriPoolUsage > highPriPoolCapacity) {
+                lruLowPri = lruLowPri.next;
+                assert (lruLowPri != lru);
+                lruLowPri.inHighPriPool = false;
+                highPriPoolUsage -= lruLowPri.charge;
+            }
+        }
+
+        Handle insert(LRUHandle<V> e) {
+            mutex.lock();
+            try {
+                e.refs = 1;  // for the returned handle.
+                if (capacity > 0) {
+                    e.refs++;  // for the cache's reference.
+                    e.inCache = true;
+                    append(inUse, e);
+                    usage += e.charge;
+                    finishErase(table.insert(e));
+                }
+                // else don't cache.  (Tests use capacity==0 to turn off caching.)
+
+                while (usage > capacity && lru.next != lru) {
+                    LRUHandle<V> old = lru.next;
+                    assert (old.refs == 1);
+                    finishErase(table.remove(old.key, old.hash));
+                    evictions++;
+                }
+                return e;
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        Handle lookup(ByteBuffer key, int hash) {
+            mutex.lock();
+            try {
+                LRUHandle<V> e = table.lookup(key, hash);
+                if (e != null) {
+                    ref(e);
+                    e.hit = true;
+                    hits++;
+                } else {
+                    misses++;
+                }
+                return e;
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        void release(LRUHandle<V> e) {
+            mutex.lock();
+            try {
+                unref(e);
+                if (e.inCache && e.refs == 1 && usage > capacity) {
+                    // Over capacity because of pinned entries, drop this one
+                    // now that it is no longer pinned
+                    finishErase(table.remove(e.key, e.hash));
+                    evictions++;
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        // If e != null, finish removing *e from the cache; it has already been
+        // removed from the hash table.
+        private void finishErase(LRUHandle<V> e) {
+            if (e != null) {
+                assert (e.inCache);
+                if (e.refs == 1) {
+                    lruRemove(e);
+                } else {
+                    unlink(e);
+                }
+                e.inCache = false;
+                usage -= e.charge;
+                unref(e);
+            }
+        }
+
+        void erase(ByteBuffer key, int hash) {
+            mutex.lock();
+            try {
+                finishErase(table.remove(key, hash));
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        void prune() {
+            mutex.lock();
+            try {
+                while (lru.next != lru) {
+                    LRUHandle<V> e = lru.next;
+                    assert (e.refs == 1);
+                    finishErase(table.remove(e.key, e.hash));
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        long totalCharge() {
+            mutex.lock();
+            try {
+                return usage;
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        // hits, misses or evictions
+        long counter(int which) {
+            mutex.lock();
+            try {
+                return which == 0 ? hits : which == 1 ? misses : evictions;
+            } finally {
+                mutex.unlock();
+            }
+        }
+    }
 }
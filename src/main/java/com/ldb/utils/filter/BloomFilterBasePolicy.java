@@ -1,7 +1,5 @@
 package com.ldb.utils.filter;
 
-import com.google.common.hash.Hashing;
-
 import java.nio.ByteBuffer;
 import java.util.List;
 
@@ -62,18 +60,46 @@ public class BloomFilterBasePolicy implements FilterPolicy<ByteBuffer> {
         return result;
     }
 
+    @Override
+    public ByteBuffer createFilter(ByteBuffer keys, int[] starts, int count) {
+        int bits = count * bitsPerKey;
+        if (bits < 64) {
+            bits = 64;
+        }
+        int bytes = (bits + 7) / 8;
+        bits = bytes * 8;
+
+        ByteBuffer result = ByteBuffer.allocate(bytes + 1);
+        result.put(bytes, (byte) k);
+        for (int i = 0; i < count; i++) {
+            long h = Utils.hash(keys, starts[i], starts[i + 1] - starts[i]);
+            long delta = reHashing(h);
+            for (int j = 0; j < k; j++) {
+                int bitPos = (int) (h % bits);
+                result.put(bitPos / 8, (byte) (result.get(bitPos / 8) | (1 << (bitPos % 8))));
+                h += delta;
+            }
+        }
+        return result;
+    }
+
     @Override
     public boolean keyMayMatch(byte[] key, ByteBuffer filter) {
+        return filter.limit() >= 2 && mayContain(bloomHash(key), filter);
+    }
+
+    @Override
+    public boolean keyMayMatch(ByteBuffer key, int offset, int length, ByteBuffer filter) {
+        return filter.limit() >= 2 && mayContain(Utils.hash(key, offset, length), filter);
+    }
+
+    private static boolean mayContain(long h, ByteBuffer filter) {
         int len = filter.limit();
-        if (len < 2) {
-            return false;
-        }
         int bits = (len - 1) * 8;
         byte k = filter.get(len - 1);
         if (k > 30) {
             return true;
         }
-        long h = bloomHash(key);
         long delta = reHashing(h);
         for (int j = 0; j < k; j++) {
             int bitPos = (int) (h % bits);
@@ -90,6 +116,6 @@ public class BloomFilterBasePolicy implements FilterPolicy<ByteBuffer> {
     }
 
     private static long reHashing(long h) {
-        return Utils.getUnsignedInt(Hashing.murmur3_128().hashLong(h).hashCode());
+        return Utils.getUnsignedInt(Utils.murmur3x64Of(h));
     }
 }
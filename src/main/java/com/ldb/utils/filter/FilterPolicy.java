@@ -1,5 +1,7 @@
 package com.ldb.utils.filter;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 public interface FilterPolicy<T> {
@@ -8,5 +10,24 @@ public interface FilterPolicy<T> {
 
     T createFilter(List<byte[]> keys);
 
+    // Same as above for the keys packed in keys[starts[i], starts[i + 1]) for
+    // i < count. Lets a policy hash keys where they are instead of copying each.
+    default T createFilter(ByteBuffer keys, int[] starts, int count) {
+        List<byte[]> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] key = new byte[starts[i + 1] - starts[i]];
+            keys.duplicate().position(starts[i]).get(key);
+            list.add(key);
+        }
+        return createFilter(list);
+    }
+
     boolean keyMayMatch(byte[] key, T filter);
+
+    // Same as above for key[offset, offset + length)
+    default boolean keyMayMatch(ByteBuffer key, int offset, int length, T filter) {
+        byte[] bytes = new byte[length];
+        key.duplicate().position(offset).get(bytes);
+        return keyMayMatch(bytes, filter);
+    }
 }
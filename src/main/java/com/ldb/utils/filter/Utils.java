@@ -1,16 +1,78 @@
 package com.ldb.utils.filter;
 
+import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class Utils {
     public static long getUnsignedInt(long data) {
         return data & 0xFFFFFFFFL;
     }
 
+    private static final HashFunction murmur3 = Hashing.murmur3_32_fixed(0xbc9f1d34);
+
     public static long hash(byte[] key) {
-        return Utils.getUnsignedInt(Hashing.murmur3_32_fixed(0xbc9f1d34).hashBytes(key).hashCode());
+        return Utils.getUnsignedInt(murmur3.hashBytes(key).hashCode());
+    }
+
+    // Same as above for buffer[offset, offset + length). A hand-rolled murmur3_32
+    // reading the buffer in place, so hashing a key allocates nothing.
+    public static long hash(ByteBuffer buffer, int offset, int length) {
+        int h1 = 0xbc9f1d34;
+        int i = 0;
+        for (; i + Integer.BYTES <= length; i += Integer.BYTES) {
+            int k1 = buffer.getInt(offset + i);
+            if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+                k1 = Integer.reverseBytes(k1);
+            }
+            h1 ^= mixK1(k1);
+            h1 = Integer.rotateLeft(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+        int k1 = 0;
+        for (int shift = 0; i < length; i++, shift += 8) {
+            k1 ^= (buffer.get(offset + i) & 0xff) << shift;
+        }
+        h1 ^= mixK1(k1);
+        h1 ^= length;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return Utils.getUnsignedInt(h1);
+    }
+
+    private static int mixK1(int k1) {
+        k1 *= 0xcc9e2d51;
+        k1 = Integer.rotateLeft(k1, 15);
+        return k1 * 0x1b873593;
+    }
+
+    // Same as Hashing.murmur3_128().hashLong(h).hashCode(), without the hasher
+    // and hash code objects
+    public static int murmur3x64Of(long h) {
+        long k1 = h * 0x87c37b91114253d5L;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= 0x4cf5ad432745937fL;
+        long h1 = k1 ^ Long.BYTES;
+        long h2 = Long.BYTES;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        return (int) (h1 + h2);
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
     }
 
     public static long hash1(byte[] keys) {
@@ -1,11 +1,15 @@
 import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Hashing;
 import com.ldb.utils.filter.BloomFilterGuavaPolicy;
 import com.ldb.utils.filter.BloomFilterBasePolicy;
+import com.ldb.utils.filter.Utils;
 import org.junit.jupiter.api.Test;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Assertions;
@@ -43,6 +47,32 @@ class BloomFilterPolicyTest {
         testRangeFalsePositiveRate(80, 100000, 0.0125, 0.01); // false positive rate < 1%
     }
 
+    @Test
+    void testPackedKeys() {
+        Random random = new Random(301);
+        for (int round = 0; round < 100; round++) {
+            List<byte[]> keys = new ArrayList<>();
+            ByteBuffer packed = ByteBuffer.allocate(64 * 100);
+            int[] starts = new int[101];
+            int count = random.nextInt(100);
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[random.nextInt(64)];
+                random.nextBytes(key);
+                keys.add(key);
+                starts[i] = packed.position();
+                packed.put(key);
+                long h = random.nextLong();
+                Assertions.assertEquals(Hashing.murmur3_128().hashLong(h).hashCode(), Utils.murmur3x64Of(h));
+            }
+            starts[count] = packed.position();
+            policy = new BloomFilterBasePolicy(10);
+            // Zero-copy hashing gives the same filter whatever the buffer order
+            Assertions.assertEquals(policy.createFilter(keys).clear(), policy.createFilter(packed, starts, count).clear());
+            packed.order(ByteOrder.LITTLE_ENDIAN);
+            Assertions.assertEquals(policy.createFilter(keys).clear(), policy.createFilter(packed, starts, count).clear());
+        }
+    }
+
     private static ByteBuffer buildFilter(List<String> keys) {
         policy = new BloomFilterBasePolicy(10);
         return policy.createFilter(keys.stream().map(String::getBytes).collect(Collectors.toList()));
@@ -1,11 +1,1636 @@
 package com.ldb.db;
 
+import com.ldb.Env;
+import com.ldb.Op;
+import com.ldb.db.memtable.ArenaSkipList;
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.LookupKey;
+import com.ldb.db.memtable.LookupResult;
+import com.ldb.db.memtable.MemTable;
+import com.ldb.log.Reader;
+import com.ldb.table.TableBuilder;
+import com.ldb.utils.KeyValueIterator;
+import com.ldb.utils.filter.BloomFilterBasePolicy;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 class DBTest {
 
     @Test
-    public void testWrite() {
+    public void testWrite(@TempDir Path dir) {
+        String dbName = dir.resolve("db").toString();
+        DBImpl db = (DBImpl) Op.Open(new Options(), dbName);
+        WriteOptions sync = new WriteOptions();
+        sync.setSync(true);
+        for (int i = 0; i < 100; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("key" + i), bytes("value" + i));
+            if (i % 10 == 0) {
+                batch.delete(bytes("key" + (i - 1)));
+            }
+            Assertions.assertTrue(db.write(sync, batch).isOk());
+        }
+
+        // Every write is in the log, in sequence order
+        Reader reader = new Reader(new Env().newSequentialFile(DBImpl.logFileName(dbName, db.getLogFileNumber())),
+                (bytes, status) -> Assertions.fail(status.getEx()), true, 0);
+        long sequence = 1;
+        int records = 0;
+        for (ByteBuffer record = reader.readRecord(); record != null; record = reader.readRecord()) {
+            Assertions.assertEquals(sequence, record.getLong(record.position()));
+            sequence += record.getInt(record.position() + 8);
+            records++;
+        }
+        Assertions.assertEquals(100, records);
+        Assertions.assertEquals(sequence - 1, db.getVersions().lastSequence());
+    }
+
+    @Test
+    public void testMmapLog(@TempDir Path dir) {
+        String dbName = dir.resolve("db").toString();
+        Options options = new Options();
+        options.useMmapWrites = true;
+        options.logSyncIntervalMillis = 1;
+        DBImpl db = (DBImpl) Op.Open(options, dbName);
+        List<CompletableFuture<Status>> durable = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("key" + i), ByteBuffer.allocate(1000));
+            durable.add(db.writeDeferred(new WriteOptions(), batch));
+        }
+        durable.forEach(future -> Assertions.assertTrue(future.join().isOk()));
+        db.close();
+
+        Reader reader = new Reader(new Env().newSequentialFile(DBImpl.logFileName(dbName, db.getLogFileNumber())),
+                (bytes, status) -> Assertions.fail(status.getEx()), true, 0);
+        int records = 0;
+        while (reader.readRecord() != null) {
+            records++;
+        }
+        Assertions.assertEquals(1000, records);
+    }
+
+    private static String get(DB db, ReadOptions options, String key) {
+        ByteBuffer value = db.get(options, bytes(key));
+        if (value == null) {
+            return "NOT_FOUND";
+        }
+        byte[] bytes = new byte[value.remaining()];
+        value.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void put(DB db, String key, String value) {
+        WriteBatch batch = new WriteBatch();
+        batch.put(bytes(key), bytes(value));
+        Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+    }
+
+    private static void delete(DB db, String key) {
+        WriteBatch batch = new WriteBatch();
+        batch.delete(bytes(key));
+        Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+    }
+
+    @Test
+    public void testGet(@TempDir Path dir) {
+        DBImpl db = (DBImpl) Op.Open(new Options(), dir.resolve("db").toString());
+        ReadOptions latest = new ReadOptions();
+        Assertions.assertEquals("NOT_FOUND", get(db, latest, "foo"));
+        put(db, "foo", "v1");
+        put(db, "bar", "v1");
+        Snapshot snapshot = db.getSnapshot();
+        put(db, "foo", "v2");
+        delete(db, "bar");
+        Assertions.assertEquals("v2", get(db, latest, "foo"));
+        Assertions.assertEquals("NOT_FOUND", get(db, latest, "bar"));
+
+        ReadOptions atSnapshot = new ReadOptions();
+        atSnapshot.setSnapshot(snapshot);
+        Assertions.assertEquals("v1", get(db, atSnapshot, "foo"));
+        Assertions.assertEquals("v1", get(db, atSnapshot, "bar"));
+
+        // Older data moves to the immutable memtable
+        Assertions.assertTrue(db.write(new WriteOptions(), null).isOk());
+        Assertions.assertNotNull(db.getImm());
+        put(db, "foo", "v3");
+        Assertions.assertEquals("v3", get(db, latest, "foo"));
+        Assertions.assertEquals("NOT_FOUND", get(db, latest, "bar"));
+        Assertions.assertEquals("v1", get(db, atSnapshot, "foo"));
+        Assertions.assertEquals("v1", get(db, atSnapshot, "bar"));
+        db.releaseSnapshot(snapshot);
+        db.close();
+    }
+
+    private static List<String> multiGet(DB db, ReadOptions options, String... keys) {
+        List<ByteBuffer> userKeys = new ArrayList<>();
+        for (String key : keys) {
+            userKeys.add(bytes(key));
+        }
+        List<String> values = new ArrayList<>();
+        for (ByteBuffer value : db.multiGet(options, userKeys)) {
+            if (value == null) {
+                values.add("NOT_FOUND");
+            } else {
+                byte[] bytes = new byte[value.remaining()];
+                value.duplicate().get(bytes);
+                values.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void testMultiGet(@TempDir Path dir) {
+        DBImpl db = (DBImpl) Op.Open(new Options(), dir.resolve("db").toString());
+        ReadOptions latest = new ReadOptions();
+        Assertions.assertEquals(List.of(), multiGet(db, latest));
+        Assertions.assertEquals(List.of("NOT_FOUND"), multiGet(db, latest, "foo"));
+        put(db, "foo", "v1");
+        put(db, "bar", "v1");
+        put(db, "baz", "v1");
+        Snapshot snapshot = db.getSnapshot();
+        put(db, "foo", "v2");
+        delete(db, "bar");
+        // Input order, duplicates and misses are kept
+        Assertions.assertEquals(List.of("v2", "NOT_FOUND", "v1", "NOT_FOUND", "v2"),
+                multiGet(db, latest, "foo", "bar", "baz", "qux", "foo"));
+        ReadOptions atSnapshot = new ReadOptions();
+        atSnapshot.setSnapshot(snapshot);
+        Assertions.assertEquals(List.of("v1", "v1", "v1"), multiGet(db, atSnapshot, "foo", "bar", "baz"));
+
+        // Older data moves to the immutable memtable
+        Assertions.assertTrue(db.write(new WriteOptions(), null).isOk());
+        Assertions.assertNotNull(db.getImm());
+        put(db, "foo", "v3");
+        put(db, "a", "v3");
+        Assertions.assertEquals(List.of("v3", "NOT_FOUND", "v1", "v3"), multiGet(db, latest, "foo", "bar", "baz", "a"));
+        Assertions.assertEquals(List.of("v1", "v1", "NOT_FOUND"), multiGet(db, atSnapshot, "foo", "bar", "a"));
+        db.releaseSnapshot(snapshot);
+
+        // Agrees with get() on random keys
+        Random rnd = new Random(301);
+        Map<String, String> model = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            String key = "k" + rnd.nextInt(500);
+            if (rnd.nextInt(4) == 0) {
+                delete(db, key);
+                model.remove(key);
+            } else {
+                put(db, key, "v" + i);
+                model.put(key, "v" + i);
+            }
+        }
+        String[] keys = new String[300];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "k" + rnd.nextInt(600);
+        }
+        List<String> values = multiGet(db, latest, keys);
+        for (int i = 0; i < keys.length; i++) {
+            Assertions.assertEquals(model.getOrDefault(keys[i], "NOT_FOUND"), values.get(i));
+        }
+        db.close();
+    }
+
+    @Test
+    public void testGetFromLevels() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        // Each fake table is a memtable
+        Map<Long, MemTable> tables = new HashMap<>();
+        List<Long> probed = new ArrayList<>();
+        List<String> batches = new ArrayList<>();
+        db.getVersions().setTableCache(new TableCache(db.getDbName(), db.getOptions(), 100) {
+            @Override
+            public void get(ReadOptions options, long fileNumber, long fileSize, LookupKey key, LookupResult result) {
+                probed.add(fileNumber);
+                tables.get(fileNumber).get(key, result);
+            }
+
+            @Override
+            public void multiGet(ReadOptions options, long fileNumber, long fileSize,
+                                 LookupKey[] keys, LookupResult[] results, int[] batch, int count) {
+                batches.add(fileNumber + ":" + count);
+                for (int i = 0; i < count; i++) {
+                    get(options, fileNumber, fileSize, keys[batch[i]], results[batch[i]]);
+                }
+            }
+        });
+        Version current = db.getVersions().current();
+        BiConsumer<Integer, FileMetaData> addFile = (level, f) -> current.getFiles().get(level).add(f);
+        long[] sequence = {0};
+        // Files are made of (key, value) pairs, a null value is a deletion
+        BiFunction<Long, String[], FileMetaData> table = (number, entries) -> {
+            MemTable mem = new MemTable(db.getInternalComparator());
+            mem.ref();
+            for (int i = 0; i < entries.length; i += 2) {
+                mem.add(++sequence[0], entries[i + 1] == null
+                                ? InternalKey.ValueType.kTypeDeletion : InternalKey.ValueType.kTypeValue,
+                        bytes(entries[i]), entries[i + 1] == null ? null : bytes(entries[i + 1]));
+            }
+            tables.put(number, mem);
+            FileMetaData f = new FileMetaData();
+            f.setNumber(number);
+            f.setSmallest(new InternalKey(bytes(entries[0]), sequence[0], InternalKey.ValueType.kTypeValue));
+            f.setLargest(new InternalKey(bytes(entries[entries.length - 2]), 0, InternalKey.ValueType.kTypeDeletion));
+            return f;
+        };
+        // Deepest level first, the oldest data
+        addFile.accept(2, table.apply(1L, new String[]{"a", "a@2", "c", "c@2"}));
+        addFile.accept(2, table.apply(2L, new String[]{"m", "m@2", "p", "p@2"}));
+        addFile.accept(1, table.apply(3L, new String[]{"b", "b@1", "c", null}));
+        addFile.accept(1, table.apply(4L, new String[]{"n", "n@1", "p", "p@1"}));
+        addFile.accept(0, table.apply(5L, new String[]{"a", "a@0-5", "n", "n@0-5"}));
+        addFile.accept(0, table.apply(6L, new String[]{"m", "m@0-6", "n", "n@0-6"}));
+        db.getVersions().setLastSequence(sequence[0]);
+
+        ReadOptions options = new ReadOptions();
+        Assertions.assertEquals("n@0-6", get(db, options, "n"));
+        Assertions.assertEquals(List.of(6L), probed);
+        probed.clear();
+        Assertions.assertEquals("a@0-5", get(db, options, "a"));
+        Assertions.assertEquals(List.of(5L), probed);
+        probed.clear();
+        // Tombstone at level 1 hides level 2
+        Assertions.assertEquals("NOT_FOUND", get(db, options, "c"));
+        Assertions.assertEquals(List.of(5L, 3L), probed);
+        probed.clear();
+        // One file per level below 0
+        Assertions.assertEquals("p@1", get(db, options, "p"));
+        Assertions.assertEquals(List.of(4L), probed);
+        probed.clear();
+        Assertions.assertEquals("m@0-6", get(db, options, "m"));
+        // Before the tombstone was written
+        ReadOptions old = new ReadOptions();
+        old.setSnapshot(new Snapshot(2));
+        Assertions.assertEquals("c@2", get(db, old, "c"));
+        probed.clear();
+        Assertions.assertEquals("NOT_FOUND", get(db, options, "z"));
+        Assertions.assertEquals(List.of(), probed);
+
+        // Same answers in one pass, each file is asked once for all its keys
+        probed.clear();
+        Assertions.assertEquals(List.of("p@1", "n@0-6", "a@0-5", "NOT_FOUND", "m@0-6", "b@1", "NOT_FOUND", "m@0-6"),
+                multiGet(db, options, "p", "n", "a", "c", "m", "b", "z", "m"));
+        Assertions.assertEquals(List.of("6:3", "5:3", "3:2", "4:1"), batches);
+        batches.clear();
+        Assertions.assertEquals(List.of("c@2", "NOT_FOUND", "NOT_FOUND"), multiGet(db, old, "c", "b", "p"));
+        Assertions.assertEquals(List.of("5:2", "3:2", "4:1", "1:2", "2:1"), batches);
+
+        // The memtable shadows every level
+        put(db, "p", "p@mem");
+        Assertions.assertEquals("p@mem", get(db, options, "p"));
+    }
+
+    @Test
+    public void testGetFromUnreadableTable() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        FileMetaData f = new FileMetaData();
+        f.setNumber(7);
+        f.setSmallest(new InternalKey(bytes("a"), 1, InternalKey.ValueType.kTypeValue));
+        f.setLargest(new InternalKey(bytes("c"), 1, InternalKey.ValueType.kTypeValue));
+        db.getVersions().current().getFiles().get(1).add(f);
+        put(db, "z", "z@mem");
+
+        ReadOptions options = new ReadOptions();
+        Assertions.assertEquals("z@mem", get(db, options, "z"));
+        // A key the file may hold is an error, not a miss
+        Assertions.assertThrows(RuntimeException.class, () -> get(db, options, "b"));
+        Assertions.assertEquals("NOT_FOUND", get(db, options, "d"));
+        // So is a scan over it
+        try (DBIterator iter = db.newIterator(options)) {
+            iter.seekToFirst();
+            Assertions.assertFalse(iter.valid());
+            Assertions.assertFalse(iter.status().isOk());
+        }
+    }
+
+    @Test
+    public void testReadFromTables(@TempDir Path dir) {
+        Options options = new Options();
+        options.blockSize = 256;
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        DBImpl db = (DBImpl) Op.Open(options, dir.resolve("db").toString());
+        Version current = db.getVersions().current();
+        long[] sequence = {0};
+        // Level 1 gets "a" to "m", level 2 "a" to "z" with every key one version older
+        BiFunction<Long, char[], FileMetaData> table = (number, range) -> {
+            String fname = DBImpl.tableFileName(db.getDbName(), number);
+            WritableFile file = options.getEnv().newWritableFile(fname);
+            TableBuilder builder = new TableBuilder(options, file);
+            FileMetaData f = new FileMetaData();
+            for (char c = range[0]; c <= range[1]; c++) {
+                for (int i = 0; i < 100; i++) {
+                    String key = String.format("%c%03d", c, i);
+                    InternalKey ikey = new InternalKey(bytes(key), ++sequence[0], i % 10 == 9
+                            ? InternalKey.ValueType.kTypeDeletion : InternalKey.ValueType.kTypeValue);
+                    builder.add(ikey.getRep().duplicate(), bytes(key + "@" + number));
+                    if (f.getSmallest() == null) {
+                        f.setSmallest(ikey);
+                    }
+                    f.setLargest(ikey);
+                }
+            }
+            Assertions.assertTrue(builder.finish().isOk());
+            Assertions.assertTrue(file.close().isOk());
+            f.setNumber(number);
+            f.setFileSize(builder.fileSize());
+            return f;
+        };
+        current.getFiles().get(2).add(table.apply(7L, new char[]{'a', 'z'}));
+        current.getFiles().get(1).add(table.apply(8L, new char[]{'a', 'm'}));
+        db.getVersions().setLastSequence(sequence[0]);
+
+        for (boolean mmap : new boolean[]{true, false}) {
+            options.useMmapReads = mmap;
+            // Reopened the other way
+            db.getVersions().tableCache().evict(7);
+            db.getVersions().tableCache().evict(8);
+            ReadOptions latest = new ReadOptions();
+            Assertions.assertEquals("c005@8", get(db, latest, "c005"));
+            Assertions.assertEquals("NOT_FOUND", get(db, latest, "c009"));
+            Assertions.assertEquals("x005@7", get(db, latest, "x005"));
+            Assertions.assertEquals("NOT_FOUND", get(db, latest, "x009"));
+            Assertions.assertEquals("NOT_FOUND", get(db, latest, "c100"));
+            Assertions.assertEquals(List.of("NOT_FOUND", "c005@8", "m098@8", "NOT_FOUND", "x005@7"),
+                    multiGet(db, latest, "0", "c005", "m098", "m100", "x005"));
+            // Before level 1 was written
+            ReadOptions old = new ReadOptions();
+            old.setSnapshot(new Snapshot(26 * 100));
+            Assertions.assertEquals("c005@7", get(db, old, "c005"));
+
+            DBIterator iter = db.newIterator(latest);
+            iter.seekToFirst();
+            List<String> entries = scan(iter, true);
+            // 9 of every 10 keys are live
+            Assertions.assertEquals(26 * 90, entries.size());
+            Assertions.assertEquals("a000=a000@8", entries.get(0));
+            Assertions.assertEquals("n000=n000@7", entries.get(13 * 90));
+            iter.seekToLast();
+            Assertions.assertEquals(entries.size(), scan(iter, false).size());
+            iter.close();
+        }
+        db.close();
+    }
+
+    @Test
+    public void testGetBenchmark() throws Exception {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        int keys = 100_000;
+        for (int i = 0; i < keys; i += 100) {
+            WriteBatch batch = new WriteBatch();
+            for (int j = i; j < i + 100; j++) {
+                batch.put(bytes(String.format("key%08d", j)), bytes("value" + j));
+            }
+            Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+        }
+        int getsPerThread = 200_000;
+        for (int threads : new int[]{1, 4, 8, 1, 4, 8}) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(() -> {
+                    ReadOptions options = new ReadOptions();
+                    Random rnd = new Random();
+                    for (int i = 0; i < getsPerThread; i++) {
+                        Assertions.assertNotNull(db.get(options, bytes(String.format("key%08d", rnd.nextInt(keys)))));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            executor.shutdown();
+            System.err.printf("%d readers: %.0f gets/s%n", threads, threads * getsPerThread * 1e9 / elapsed);
+        }
+    }
+
+    // All entries from the iterator's position on, "k=v" each
+    private static List<String> scan(DBIterator iter, boolean forward) {
+        List<String> entries = new ArrayList<>();
+        while (iter.valid()) {
+            entries.add(string(iter.key()) + "=" + string(iter.value()));
+            if (forward) {
+                iter.next();
+            } else {
+                iter.prev();
+            }
+        }
+        Assertions.assertTrue(iter.status().isOk());
+        return entries;
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testIterator(@TempDir Path dir) {
+        DBImpl db = (DBImpl) Op.Open(new Options(), dir.resolve("db").toString());
+        ReadOptions latest = new ReadOptions();
+        DBIterator iter = db.newIterator(latest);
+        iter.seekToFirst();
+        Assertions.assertFalse(iter.valid());
+        iter.close();
+
+        put(db, "a", "v1");
+        put(db, "b", "v1");
+        put(db, "c", "v1");
+        put(db, "d", "v1");
+        Snapshot snapshot = db.getSnapshot();
+        // Older data moves to the immutable memtable
+        Assertions.assertTrue(db.write(new WriteOptions(), null).isOk());
+        Assertions.assertNotNull(db.getImm());
+        put(db, "b", "v2");
+        delete(db, "c");
+        put(db, "e", "v2");
+
+        iter = db.newIterator(latest);
+        iter.seekToFirst();
+        Assertions.assertEquals(List.of("a=v1", "b=v2", "d=v1", "e=v2"), scan(iter, true));
+        iter.seekToLast();
+        Assertions.assertEquals(List.of("e=v2", "d=v1", "b=v2", "a=v1"), scan(iter, false));
+        iter.seek(bytes("c"));
+        Assertions.assertEquals("d", string(iter.key()));
+        // Change direction in the middle
+        iter.prev();
+        Assertions.assertEquals("b=v2", string(iter.key()) + "=" + string(iter.value()));
+        iter.next();
+        Assertions.assertEquals("d", string(iter.key()));
+        iter.next();
+        iter.prev();
+        Assertions.assertEquals("d", string(iter.key()));
+        iter.seek(bytes("f"));
+        Assertions.assertFalse(iter.valid());
+        // Writes after the iterator was created are not seen
+        put(db, "aa", "v3");
+        iter.seekToFirst();
+        Assertions.assertEquals(List.of("a=v1", "b=v2", "d=v1", "e=v2"), scan(iter, true));
+        iter.close();
+
+        ReadOptions atSnapshot = new ReadOptions();
+        atSnapshot.setSnapshot(snapshot);
+        iter = db.newIterator(atSnapshot);
+        iter.seekToFirst();
+        Assertions.assertEquals(List.of("a=v1", "b=v1", "c=v1", "d=v1"), scan(iter, true));
+        iter.seekToLast();
+        Assertions.assertEquals(List.of("d=v1", "c=v1", "b=v1", "a=v1"), scan(iter, false));
+        iter.close();
+        db.releaseSnapshot(snapshot);
+
+        ReadOptions bounded = new ReadOptions();
+        bounded.setIterateLowerBound(bytes("aa"));
+        bounded.setIterateUpperBound(bytes("d"));
+        iter = db.newIterator(bounded);
+        iter.seekToFirst();
+        Assertions.assertEquals(List.of("aa=v3", "b=v2"), scan(iter, true));
+        iter.seekToLast();
+        Assertions.assertEquals(List.of("b=v2", "aa=v3"), scan(iter, false));
+        iter.seek(bytes("a"));
+        Assertions.assertEquals("aa", string(iter.key()));
+        iter.close();
+
+        // Agrees with a sorted map on random data, both directions
+        Random rnd = new Random(301);
+        TreeMap<String, String> model = new TreeMap<>();
+        for (String key : new String[]{"a", "aa", "b", "d", "e"}) {
+            model.put(key, get(db, latest, key));
+        }
+        for (int i = 0; i < 3000; i++) {
+            String key = "k" + rnd.nextInt(300);
+            if (rnd.nextInt(4) == 0) {
+                delete(db, key);
+                model.remove(key);
+            } else {
+                put(db, key, "v" + i);
+                model.put(key, "v" + i);
+            }
+        }
+        List<String> expected = new ArrayList<>();
+        model.forEach((k, v) -> expected.add(k + "=" + v));
+        iter = db.newIterator(latest);
+        iter.seekToFirst();
+        Assertions.assertEquals(expected, scan(iter, true));
+        iter.seekToLast();
+        List<String> reversed = new ArrayList<>(expected);
+        Collections.reverse(reversed);
+        Assertions.assertEquals(reversed, scan(iter, false));
+        for (int i = 0; i < 200; i++) {
+            String target = "k" + rnd.nextInt(300);
+            iter.seek(bytes(target));
+            Map.Entry<String, String> e = model.ceilingEntry(target);
+            Assertions.assertEquals(e == null ? "NOT_FOUND" : e.getKey(), iter.valid() ? string(iter.key()) : "NOT_FOUND");
+            if (e != null && rnd.nextBoolean()) {
+                iter.prev();
+                Map.Entry<String, String> p = model.lowerEntry(e.getKey());
+                Assertions.assertEquals(p == null ? "NOT_FOUND" : p.getKey() + "=" + p.getValue(),
+                        iter.valid() ? string(iter.key()) + "=" + string(iter.value()) : "NOT_FOUND");
+            }
+        }
+        iter.close();
+        db.close();
+    }
+
+    @Test
+    public void testIteratorFromLevels() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        // Each fake table is a memtable
+        Map<Long, MemTable> tables = new HashMap<>();
+        List<Long> opened = new ArrayList<>();
+        AtomicInteger open = new AtomicInteger();
+        db.getVersions().setTableCache(new TableCache(db.getDbName(), db.getOptions(), 100) {
+            @Override
+            public KeyValueIterator newIterator(ReadOptions options, long fileNumber, long fileSize) {
+                opened.add(fileNumber);
+                open.incrementAndGet();
+                ArenaSkipList.Iterator iter = tables.get(fileNumber).iterator();
+                return new KeyValueIterator() {
+                    @Override
+                    public ByteBuffer value() {
+                        return iter.value();
+                    }
+
+                    @Override
+                    public boolean valid() {
+                        return iter.valid();
+                    }
+
+                    @Override
+                    public ByteBuffer key() {
+                        return iter.key();
+                    }
+
+                    @Override
+                    public void next() {
+                        iter.next();
+                    }
+
+                    @Override
+                    public void prev() {
+                        iter.prev();
+                    }
+
+                    @Override
+                    public void seek(ByteBuffer target) {
+                        iter.seek(target);
+                    }
+
+                    @Override
+                    public void seekToFirst() {
+                        iter.seekToFirst();
+                    }
+
+                    @Override
+                    public void seekToLast() {
+                        iter.seekToLast();
+                    }
+
+                    @Override
+                    public void close() {
+                        open.decrementAndGet();
+                    }
+                };
+            }
+        });
+        Version current = db.getVersions().current();
+        long[] sequence = {0};
+        // Files are made of (key, value) pairs, a null value is a deletion
+        BiFunction<Long, String[], FileMetaData> table = (number, entries) -> {
+            MemTable mem = new MemTable(db.getInternalComparator());
+            mem.ref();
+            for (int i = 0; i < entries.length; i += 2) {
+                mem.add(++sequence[0], entries[i + 1] == null
+                                ? InternalKey.ValueType.kTypeDeletion : InternalKey.ValueType.kTypeValue,
+                        bytes(entries[i]), entries[i + 1] == null ? null : bytes(entries[i + 1]));
+            }
+            tables.put(number, mem);
+            FileMetaData f = new FileMetaData();
+            f.setNumber(number);
+            f.setSmallest(new InternalKey(bytes(entries[0]), sequence[0], InternalKey.ValueType.kTypeValue));
+            f.setLargest(new InternalKey(bytes(entries[entries.length - 2]), 0, InternalKey.ValueType.kTypeDeletion));
+            return f;
+        };
+        // Deepest level first, the oldest data
+        current.getFiles().get(2).add(table.apply(1L, new String[]{"a", "a@2", "c", "c@2"}));
+        current.getFiles().get(2).add(table.apply(2L, new String[]{"m", "m@2", "p", "p@2"}));
+        current.getFiles().get(2).add(table.apply(3L, new String[]{"x", "x@2", "y", "y@2"}));
+        current.getFiles().get(1).add(table.apply(4L, new String[]{"b", "b@1", "c", null}));
+        current.getFiles().get(1).add(table.apply(5L, new String[]{"n", "n@1", "p", "p@1"}));
+        current.getFiles().get(0).add(table.apply(6L, new String[]{"a", "a@0", "n", "n@0"}));
+        db.getVersions().setLastSequence(sequence[0]);
+        put(db, "m", "m@mem");
+
+        DBIterator iter = db.newIterator(new ReadOptions());
+        iter.seekToFirst();
+        Assertions.assertEquals(List.of("a=a@0", "b=b@1", "m=m@mem", "n=n@0", "p=p@1", "x=x@2", "y=y@2"),
+                scan(iter, true));
+        iter.seekToLast();
+        Assertions.assertEquals(List.of("y=y@2", "x=x@2", "p=p@1", "n=n@0", "m=m@mem", "b=b@1", "a=a@0"),
+                scan(iter, false));
+        iter.close();
+        Assertions.assertEquals(0, open.get());
+
+        // A bounded scan opens only the files in range
+        ReadOptions bounded = new ReadOptions();
+        bounded.setIterateLowerBound(bytes("c"));
+        bounded.setIterateUpperBound(bytes("o"));
+        opened.clear();
+        iter = db.newIterator(bounded);
+        iter.seekToFirst();
+        Assertions.assertEquals(List.of("m=m@mem", "n=n@0"), scan(iter, true));
+        // File 3 starts past the upper bound
+        Assertions.assertEquals(List.of(6L, 4L, 1L, 5L, 2L), opened);
+        opened.clear();
+        iter.seekToLast();
+        Assertions.assertEquals(List.of("n=n@0", "m=m@mem"), scan(iter, false));
+        // Files 5 and 2 are still open from the forward scan
+        Assertions.assertEquals(List.of(4L, 1L), opened);
+        iter.close();
+        Assertions.assertEquals(0, open.get());
+    }
+
+    @Test
+    public void testIteratorBenchmark() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        int keys = 100_000;
+        for (int i = 0; i < keys; i += 100) {
+            WriteBatch batch = new WriteBatch();
+            for (int j = i; j < i + 100; j++) {
+                batch.put(bytes(String.format("key%08d", j)), bytes("value" + j));
+            }
+            Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+        }
+        for (int round = 0; round < 3; round++) {
+            DBIterator iter = db.newIterator(new ReadOptions());
+            long start = System.nanoTime();
+            int n = 0;
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                n++;
+            }
+            long forward = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (iter.seekToLast(); iter.valid(); iter.prev()) {
+                n--;
+            }
+            long backward = System.nanoTime() - start;
+            iter.close();
+            Assertions.assertEquals(0, n);
+            System.err.printf("scan %d keys: forward %.0f ns/key, backward %.0f ns/key%n",
+                    keys, (double) forward / keys, (double) backward / keys);
+        }
+    }
+
+    @Test
+    public void testSplitRange() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        // One partition is the whole range
+        Assertions.assertEquals(Arrays.asList(null, null), db.splitRange(new ReadOptions(), null, null, 4));
+        Version current = db.getVersions().current();
+        String[][] files = {{"a", "c"}, {"d", "f"}, {"g", "i"}, {"j", "l"}};
+        for (int i = 0; i < files.length; i++) {
+            FileMetaData f = new FileMetaData();
+            f.setNumber(i + 1);
+            f.setFileSize(1 << 20);
+            f.setSmallest(new InternalKey(bytes(files[i][0]), 1, InternalKey.ValueType.kTypeValue));
+            f.setLargest(new InternalKey(bytes(files[i][1]), 1, InternalKey.ValueType.kTypeValue));
+            current.getFiles().get(1).add(f);
+        }
+        Function<List<ByteBuffer>, List<String>> strings = bounds -> {
+            List<String> result = new ArrayList<>();
+            bounds.forEach(b -> result.add(b == null ? null : string(b)));
+            return result;
+        };
+        Assertions.assertEquals(Arrays.asList(null, "d", "g", "j", null),
+                strings.apply(db.splitRange(new ReadOptions(), null, null, 4)));
+        Assertions.assertEquals(Arrays.asList(null, "g", null),
+                strings.apply(db.splitRange(new ReadOptions(), null, null, 2)));
+        // Only part of the first file is in range
+        Assertions.assertEquals(Arrays.asList("e", "j", "z"),
+                strings.apply(db.splitRange(new ReadOptions(), bytes("e"), bytes("z"), 2)));
+        // More partitions than samples: one starting at each file boundary but the first
+        Assertions.assertEquals(9, db.splitRange(new ReadOptions(), null, null, 100).size());
+    }
+
+    @Test
+    public void testParallelScan() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        TreeMap<String, String> model = new TreeMap<>();
+        for (int i = 0; i < 20_000; i += 100) {
+            WriteBatch batch = new WriteBatch();
+            for (int j = i; j < i + 100; j++) {
+                String key = String.format("key%06d", j);
+                batch.put(bytes(key), bytes("value" + j));
+                model.put(key, "value" + j);
+            }
+            Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+        }
+        ReadOptions options = new ReadOptions();
+        ByteBuffer lower = bytes("key001000");
+        ByteBuffer upper = bytes("key019000");
+        List<String> expected = new ArrayList<>();
+        model.subMap("key001000", "key019000").forEach((k, v) -> expected.add(k + "=" + v));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<List<String>> partitions = Collections.synchronizedList(new ArrayList<>());
+        db.scanPartitions(options, lower, upper, 4, pool, iter -> {
+            List<String> entries = scan(iter, true);
+            partitions.add(entries);
+            // Writes during the scan are not seen
+            put(db, "key001500x", "new");
+        });
+        Assertions.assertEquals(4, partitions.size());
+        partitions.sort(Comparator.comparing(p -> p.isEmpty() ? "" : p.get(0)));
+        List<String> all = new ArrayList<>();
+        for (List<String> partition : partitions) {
+            // Roughly even
+            Assertions.assertTrue(partition.size() > expected.size() / 8, partition.size() + " entries");
+            all.addAll(partition);
+        }
+        Assertions.assertEquals(expected, all);
+
+        RuntimeException failure = Assertions.assertThrows(IllegalStateException.class,
+                () -> db.scanPartitions(options, null, null, 4, pool, iter -> {
+                    throw new IllegalStateException("scanner failed");
+                }));
+        Assertions.assertTrue(failure.getMessage().contains("scanner failed"));
+        pool.shutdown();
+
+        model.put("key001500x", "new");
+        expected.clear();
+        model.subMap("key001000", "key019000").forEach((k, v) -> expected.add(k + "=" + v));
+        try (Stream<Map.Entry<ByteBuffer, ByteBuffer>> stream = db.parallelScan(options, lower, upper, 4)) {
+            List<String> streamed = stream.map(e -> string(e.getKey()) + "=" + string(e.getValue()))
+                    .collect(Collectors.toList());
+            Assertions.assertEquals(expected, streamed);
+        }
+        try (Stream<Map.Entry<ByteBuffer, ByteBuffer>> stream = db.parallelScan(options, null, null, 8)) {
+            Assertions.assertEquals(model.size(), stream.count());
+        }
+        // Closing a stream that was not consumed releases what it holds
+        db.parallelScan(options, null, null, 8).limit(10).close();
+    }
+
+    @Test
+    public void testParallelScanBenchmark() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        int keys = 200_000;
+        for (int i = 0; i < keys; i += 100) {
+            WriteBatch batch = new WriteBatch();
+            for (int j = i; j < i + 100; j++) {
+                batch.put(bytes(String.format("key%08d", j)), bytes("value" + j));
+            }
+            Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+        }
+        for (int threads : new int[]{1, 2, 4, 1, 2, 4}) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            AtomicLong bytes = new AtomicLong();
+            long start = System.nanoTime();
+            db.scanPartitions(new ReadOptions(), null, null, threads * 4, pool, iter -> {
+                long sum = 0;
+                for (; iter.valid(); iter.next()) {
+                    sum += iter.value().remaining();
+                }
+                bytes.addAndGet(sum);
+            });
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            Assertions.assertTrue(bytes.get() > 0);
+            System.err.printf("%d scan threads: %.0f keys/s%n", threads, keys * 1e9 / elapsed);
+        }
+    }
+
+    @Test
+    public void testMultiGetBenchmark() {
+        DBImpl db = openWithLog(new Options(), new FakeWritableFile());
+        int keys = 100_000;
+        for (int i = 0; i < keys; i += 100) {
+            WriteBatch batch = new WriteBatch();
+            for (int j = i; j < i + 100; j++) {
+                batch.put(bytes(String.format("key%08d", j)), bytes("value" + j));
+            }
+            Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+        }
+        ReadOptions options = new ReadOptions();
+        Random rnd = new Random(301);
+        for (int batchSize : new int[]{10, 100, 1000, 10, 100, 1000}) {
+            int rounds = 200_000 / batchSize;
+            List<List<ByteBuffer>> batches = new ArrayList<>();
+            for (int r = 0; r < rounds; r++) {
+                List<ByteBuffer> batch = new ArrayList<>();
+                for (int i = 0; i < batchSize; i++) {
+                    batch.add(bytes(String.format("key%08d", rnd.nextInt(keys))));
+                }
+                batches.add(batch);
+            }
+            long start = System.nanoTime();
+            for (List<ByteBuffer> batch : batches) {
+                for (ByteBuffer key : batch) {
+                    Assertions.assertNotNull(db.get(options, key));
+                }
+            }
+            long single = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (List<ByteBuffer> batch : batches) {
+                for (ByteBuffer value : db.multiGet(options, batch)) {
+                    Assertions.assertNotNull(value);
+                }
+            }
+            long multi = System.nanoTime() - start;
+            System.err.printf("batch %d: get %.0f ns/key, multiGet %.0f ns/key%n", batchSize,
+                    (double) single / (rounds * batchSize), (double) multi / (rounds * batchSize));
+        }
+    }
+
+    @Test
+    public void testRecycleLogFiles(@TempDir Path dir) {
+        String dbName = dir.resolve("db").toString();
+        Options options = new Options();
+        options.recycleLogFileNum = 1;
+        DBImpl db = (DBImpl) Op.Open(options, dbName);
+        long firstLog = db.getLogFileNumber();
+        for (int i = 0; i < 100; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("key" + i), bytes("value" + i));
+            Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+        }
+
+        // Switch logs, then pretend the old memtable was flushed
+        Assertions.assertTrue(db.write(new WriteOptions(), null).isOk());
+        VersionEdit edit = new VersionEdit();
+        edit.setLogNumber(db.getLogFileNumber());
+        db.getVersions().logAndApply(edit);
+        db.setImm(null);
+        db.removeObsoleteFiles();
+        Assertions.assertEquals(List.of(firstLog), new ArrayList<>(db.getLogsToRecycle()));
+
+        // The next log is written over the first one
+        Assertions.assertTrue(db.write(new WriteOptions(), null).isOk());
+        long recycledLog = db.getLogFileNumber();
+        Assertions.assertTrue(db.getLogsToRecycle().isEmpty());
+        Assertions.assertFalse(Files.exists(Path.of(DBImpl.logFileName(dbName, firstLog))));
+        WriteOptions sync = new WriteOptions();
+        sync.setSync(true);
+        for (int i = 0; i < 2; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("new" + i), bytes("value" + i));
+            Assertions.assertTrue(db.write(sync, batch).isOk());
+        }
+
+        // Only the new records are read back, the rest of the old log is not corruption
+        Reader reader = new Reader(new Env().newSequentialFile(DBImpl.logFileName(dbName, recycledLog)),
+                (bytes, status) -> Assertions.fail(status.getEx()), true, 0, recycledLog);
+        Assertions.assertEquals(101, reader.readRecord().getLong());
+        Assertions.assertEquals(102, reader.readRecord().getLong());
+        Assertions.assertNull(reader.readRecord());
+    }
+
+    // Accepts everything and writes nothing
+    static class FakeWritableFile implements WritableFile {
+        @Override
+        public Status append(ByteBuffer[] srcs, int offset, int length) {
+            return Status.of(null);
+        }
+
+        @Override
+        public Status flush() {
+            return Status.of(null);
+        }
+
+        @Override
+        public Status sync() {
+            return Status.of(null);
+        }
+
+        @Override
+        public Status close() {
+            return Status.of(null);
+        }
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        AtomicInteger records = new AtomicInteger();
+        AtomicInteger syncs = new AtomicInteger();
+        WritableFile file = new FakeWritableFile() {
+            @Override
+            public Status sync() {
+                syncs.incrementAndGet();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return Status.of(null);
+            }
+        };
+        DBImpl db = new DBImpl(new Options(), "group-commit");
+        db.setLogFile(file);
+        db.setLog(new com.ldb.log.Writer(file) {
+            @Override
+            public Status addRecord(ByteBuffer contents) {
+                records.incrementAndGet();
+                return Status.of(null);
+            }
+        });
+        db.setMem(new MemTable(db.getInternalComparator()));
+        db.getMem().ref();
+
+        int threads = 64;
+        int writesPerThread = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        WriteOptions sync = new WriteOptions();
+        sync.setSync(true);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < writesPerThread; i++) {
+                    WriteBatch batch = new WriteBatch();
+                    batch.put(bytes("key-" + id + "-" + i), bytes("value"));
+                    Assertions.assertTrue(db.write(sync, batch).isOk());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        int writes = threads * writesPerThread;
+        System.err.printf("Group commit: %d sync writes, %d log records, %d syncs%n",
+                writes, records.get(), syncs.get());
+        Assertions.assertEquals(writes, db.getVersions().lastSequence());
+        Assertions.assertEquals(records.get(), syncs.get());
+        Assertions.assertTrue(syncs.get() * 5 < writes);
+    }
+
+    @Test
+    public void testSyncWriteNotGroupedBehindNonSync() throws Exception {
+        List<Boolean> syncedGroups = new ArrayList<>();
+        List<Integer> groupSizes = new ArrayList<>();
+        CountDownLatch queued = new CountDownLatch(1);
+        WritableFile file = new FakeWritableFile() {
+            @Override
+            public Status sync() {
+                syncedGroups.set(syncedGroups.size() - 1, true);
+                return Status.of(null);
+            }
+        };
+        DBImpl db = new DBImpl(new Options(), "group-sync");
+        db.setLogFile(file);
+        db.setLog(new com.ldb.log.Writer(file) {
+            @Override
+            public Status addRecord(ByteBuffer contents) {
+                syncedGroups.add(false);
+                groupSizes.add(contents.getInt(8));
+                try {
+                    // Hold the first group until everybody else is queued
+                    queued.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return Status.of(null);
+            }
+        });
+        db.setMem(new MemTable(db.getInternalComparator()));
+
+        List<Thread> threads = new ArrayList<>();
+        boolean[] syncFlags = {false, false, false, true, false};
+        for (int i = 0; i < syncFlags.length; i++) {
+            WriteOptions options = new WriteOptions();
+            options.setSync(syncFlags[i]);
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("k" + i), bytes("v" + i));
+            Thread thread = new Thread(() -> db.write(options, batch));
+            thread.start();
+            threads.add(thread);
+            while (db.getWriters().size() < i + 1) {
+                Thread.onSpinWait();
+            }
+        }
+        queued.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // The second non-sync leader takes the third write along but stops at the sync
+        // write, which then leads its own group and carries the last write.
+        Assertions.assertEquals(List.of(1, 2, 2), groupSizes);
+        Assertions.assertEquals(List.of(false, false, true), syncedGroups);
+        Assertions.assertEquals(5L, db.getVersions().lastSequence());
+    }
+
+    @Test
+    public void testParallelMemTableWrite() throws Exception {
+        for (boolean concurrent : new boolean[]{true, false}) {
+            CountDownLatch queued = new CountDownLatch(1);
+            AtomicInteger records = new AtomicInteger();
+            Set<Thread> inserters = ConcurrentHashMap.newKeySet();
+            WritableFile file = new FakeWritableFile();
+            Options options = new Options();
+            options.allowConcurrentMemtableWrite = concurrent;
+            DBImpl db = new DBImpl(options, "parallel-memtable");
+            db.setLogFile(file);
+            db.setLog(new com.ldb.log.Writer(file) {
+                @Override
+                public Status addRecord(ByteBuffer contents) {
+                    try {
+                        // Hold the first group until everybody else is queued
+                        if (records.incrementAndGet() == 1) {
+                            queued.await();
+                        }
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return Status.of(null);
+                }
+            });
+            db.setMem(new MemTable(db.getInternalComparator()) {
+                @Override
+                public void add(long sequenceNumber, InternalKey.ValueType type, ByteBuffer src,
+                                int keyOffset, int keyLength, int valueOffset, int valueLength) {
+                    inserters.add(Thread.currentThread());
+                    super.add(sequenceNumber, type, src, keyOffset, keyLength, valueOffset, valueLength);
+                }
+
+                @Override
+                public void addConcurrently(long sequenceNumber, InternalKey.ValueType type, ByteBuffer src,
+                                            int keyOffset, int keyLength, int valueOffset, int valueLength) {
+                    inserters.add(Thread.currentThread());
+                    super.addConcurrently(sequenceNumber, type, src, keyOffset, keyLength, valueOffset, valueLength);
+                }
+            });
+            db.getMem().ref();
+
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                WriteBatch batch = new WriteBatch();
+                for (int j = 0; j < 3; j++) {
+                    batch.put(bytes("k" + i + "-" + j), bytes("v" + i + "-" + j));
+                }
+                Thread thread = new Thread(() -> Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk()));
+                thread.start();
+                threads.add(thread);
+                while (db.getWriters().size() < i + 1) {
+                    Thread.onSpinWait();
+                }
+            }
+            queued.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            // The first writer is a group of its own, the other four are one group.
+            // Its writers insert their own batches, or its leader inserts them all.
+            Assertions.assertEquals(2, records.get());
+            Assertions.assertEquals(concurrent ? 5 : 2, inserters.size());
+            Assertions.assertEquals(15L, db.getVersions().lastSequence());
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < 3; j++) {
+                    Assertions.assertEquals("v" + i + "-" + j, string(db.get(new ReadOptions(), bytes("k" + i + "-" + j))));
+                }
+            }
+            // Every record got its own sequence
+            Set<Long> sequences = new HashSet<>();
+            ArenaSkipList.Iterator iter = db.getMem().iterator();
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                ByteBuffer key = iter.key();
+                sequences.add(key.getLong(key.limit() - InternalKey.kTrailerSize) >>> 8);
+            }
+            Assertions.assertEquals(LongStream.rangeClosed(1, 15).boxed().collect(Collectors.toSet()), sequences);
+        }
+    }
+
+    @Test
+    public void testParallelMemTableWriteError() {
+        // The follower's insert dies with an Error, not a RuntimeException
+        MemTable mem = new MemTable(new DBImpl(new Options(), "parallel-error").getInternalComparator()) {
+            @Override
+            public void addConcurrently(long sequenceNumber, InternalKey.ValueType type, ByteBuffer src,
+                                        int keyOffset, int keyLength, int valueOffset, int valueLength) {
+                if (sequenceNumber == 2) {
+                    throw new AssertionError("insert failed");
+                }
+                super.addConcurrently(sequenceNumber, type, src, keyOffset, keyLength, valueOffset, valueLength);
+            }
+        };
+        mem.ref();
+        Writer[] writers = new Writer[2];
+        for (int i = 0; i < 2; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("k" + i), bytes("v" + i));
+            WriteBatchInternal.setSequence(batch, i + 1);
+            writers[i] = new Writer();
+            writers[i].setBatch(batch);
+        }
+        // The leader still wakes up, with the failure as the group's status
+        Status status = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            ParallelMemTableWrite parallelWrite = new ParallelMemTableWrite(mem, 2);
+            Thread follower = new Thread(() -> Assertions.assertThrows(AssertionError.class,
+                    () -> parallelWrite.insert(writers[1])));
+            follower.start();
+            parallelWrite.insert(writers[0]);
+            return parallelWrite.await();
+        });
+        Assertions.assertFalse(status.isOk());
+        Assertions.assertEquals("insert failed", status.getEx().getCause().getMessage());
+    }
+
+    @Test
+    public void testPipelinedWriteOverlapsLogAndMemtable() throws Exception {
+        CountDownLatch logged = new CountDownLatch(2);
+        CountDownLatch releaseInsert = new CountDownLatch(1);
+        WritableFile file = new FakeWritableFile();
+        Options options = new Options();
+        options.enablePipelinedWrite = true;
+        DBImpl db = new DBImpl(options, "pipelined");
+        db.setLogFile(file);
+        db.setLog(new com.ldb.log.Writer(file) {
+            @Override
+            public Status addRecord(ByteBuffer contents) {
+                logged.countDown();
+                return Status.of(null);
+            }
+        });
+        db.setMem(new MemTable(db.getInternalComparator()) {
+            @Override
+            public void add(long sequenceNumber, InternalKey.ValueType type, ByteBuffer src,
+                            int keyOffset, int keyLength, int valueOffset, int valueLength) {
+                try {
+                    releaseInsert.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.add(sequenceNumber, type, src, keyOffset, keyLength, valueOffset, valueLength);
+            }
+        });
+
+        WriteOptions writeOptions = new WriteOptions();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("k" + i), bytes("v" + i));
+            Thread thread = new Thread(() -> db.write(writeOptions, batch));
+            thread.start();
+            threads.add(thread);
+            // Keep the second write out of the first group
+            while (i == 0 && logged.getCount() > 1) {
+                Thread.onSpinWait();
+            }
+        }
+        // The second group reaches the log while the first one is stuck in the memtable
+        Assertions.assertTrue(logged.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(0L, db.getVersions().lastSequence());
+        releaseInsert.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(2L, db.getVersions().lastSequence());
+        ArenaSkipList.Iterator iter = db.getMem().iterator();
+        int count = 0;
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+            count++;
+        }
+        Assertions.assertEquals(2, count);
+    }
+
+    @Test
+    public void testPipelinedWriteBenchmark() throws Exception {
+        for (boolean pipelined : new boolean[]{false, true, false, true}) {
+            WritableFile file = new FakeWritableFile();
+            Options options = new Options();
+            options.enablePipelinedWrite = pipelined;
+            DBImpl db = new DBImpl(options, "pipelined-bench");
+            db.setLogFile(file);
+            db.setLog(new com.ldb.log.Writer(file) {
+                @Override
+                public Status addRecord(ByteBuffer contents) {
+                    // Stand-in for the write(2) of one record
+                    long deadline = System.nanoTime() + 10_000;
+                    while (System.nanoTime() < deadline) {
+                        Thread.onSpinWait();
+                    }
+                    return Status.of(null);
+                }
+            });
+            db.setMem(new MemTable(db.getInternalComparator()));
+
+            int threads = 8;
+            int writesPerThread = 2000;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            WriteOptions writeOptions = new WriteOptions();
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < writesPerThread; i++) {
+                        WriteBatch batch = new WriteBatch();
+                        for (int j = 0; j < 16; j++) {
+                            batch.put(bytes("key-" + id + "-" + i + "-" + j), bytes("value-value-value"));
+                        }
+                        Assertions.assertTrue(db.write(writeOptions, batch).isOk());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long elapsed = System.nanoTime() - start;
+            executor.shutdown();
+            Assertions.assertEquals(threads * writesPerThread * 16L, db.getVersions().lastSequence());
+            System.err.printf("%s write: %.0f writes/s%n", pipelined ? "Pipelined" : "Grouped",
+                    threads * writesPerThread * 1e9 / elapsed);
+        }
+    }
+
+    // Log file whose sync takes about a millisecond, like a real device
+    @Test
+    public void testWritesAfterBackgroundError() throws Exception {
+        for (boolean pipelined : new boolean[]{false, true}) {
+            SlowSyncFile file = new SlowSyncFile();
+            file.syncStatus = Status.of(new IllegalStateException("sync failed"));
+            Options options = new Options();
+            options.enablePipelinedWrite = pipelined;
+            DBImpl db = openWithLog(options, file);
+            WriteOptions sync = new WriteOptions();
+            sync.setSync(true);
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("key"), bytes("value"));
+            Assertions.assertFalse(db.write(sync, batch).isOk());
+            Assertions.assertFalse(db.getBgError().isOk());
+
+            // Every later write gets the error, none throws or waits on a queue
+            // that nobody leads any more
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<Status>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(() -> db.write(new WriteOptions(), batch)));
+            }
+            for (Future<Status> result : results) {
+                Status status = result.get(10, TimeUnit.SECONDS);
+                Assertions.assertFalse(status.isOk());
+                Assertions.assertEquals("sync failed", status.getEx().getMessage());
+            }
+            executor.shutdown();
+        }
+    }
+
+    static class SlowSyncFile extends FakeWritableFile {
+        final AtomicInteger syncs = new AtomicInteger();
+        volatile Status syncStatus = Status.of(null);
+
+        @Override
+        public Status sync() {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            syncs.incrementAndGet();
+            return syncStatus;
+        }
+    }
+
+    private static DBImpl openWithLog(Options options, WritableFile file) {
+        DBImpl db = new DBImpl(options, "deferred-sync");
+        db.setLogFile(file);
+        db.setLog(new com.ldb.log.Writer(file));
+        db.setMem(new MemTable(db.getInternalComparator()));
+        db.getMem().ref();
+        db.startLogSyncer();
+        return db;
+    }
+
+    @Test
+    public void testDeferredSync() throws Exception {
+        SlowSyncFile file = new SlowSyncFile();
+        Options options = new Options();
+        options.logSyncIntervalMillis = 10;
+        DBImpl db = openWithLog(options, file);
+
+        int threads = 8;
+        int writesPerThread = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<List<CompletableFuture<Status>>>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            results.add(executor.submit(() -> {
+                List<CompletableFuture<Status>> durable = new ArrayList<>();
+                for (int i = 0; i < writesPerThread; i++) {
+                    WriteBatch batch = new WriteBatch();
+                    batch.put(bytes("key-" + id + "-" + i), bytes("value"));
+                    durable.add(db.writeDeferred(new WriteOptions(), batch));
+                }
+                return durable;
+            }));
+        }
+        for (Future<List<CompletableFuture<Status>>> result : results) {
+            for (CompletableFuture<Status> durable : result.get()) {
+                Assertions.assertTrue(durable.get(10, TimeUnit.SECONDS).isOk());
+            }
+        }
+        executor.shutdown();
+        int writes = threads * writesPerThread;
+        Assertions.assertEquals(writes, db.getVersions().lastSequence());
+        Assertions.assertTrue(file.syncs.get() * 5 < writes);
+
+        // A sync write is durable when it returns
+        WriteOptions sync = new WriteOptions();
+        sync.setSync(true);
+        WriteBatch batch = new WriteBatch();
+        batch.put(bytes("synced"), bytes("value"));
+        CompletableFuture<Status> durable = db.writeDeferred(sync, batch);
+        Assertions.assertTrue(durable.isDone());
+        Assertions.assertTrue(durable.get().isOk());
+        db.close();
+    }
+
+    @Test
+    public void testSyncWriteDuringBackgroundSync() throws Exception {
+        CountDownLatch syncing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger syncs = new AtomicInteger();
+        // The first sync, the background one, blocks until released
+        WritableFile file = new FakeWritableFile() {
+            @Override
+            public Status sync() {
+                if (syncs.incrementAndGet() == 1) {
+                    syncing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return Status.of(null);
+            }
+        };
+        Options options = new Options();
+        options.logSyncIntervalMillis = 1;
+        DBImpl db = openWithLog(options, file);
+        WriteBatch first = new WriteBatch();
+        first.put(bytes("key"), bytes("value"));
+        CompletableFuture<Status> firstDurable = db.writeDeferred(new WriteOptions(), first);
+        Assertions.assertTrue(syncing.await(10, TimeUnit.SECONDS));
+
+        // A sync write lands while the background sync runs
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        WriteOptions sync = new WriteOptions();
+        sync.setSync(true);
+        WriteBatch second = new WriteBatch();
+        second.put(bytes("key"), bytes("value"));
+        Future<Status> secondDone = executor.submit(() -> db.writeDeferred(sync, second).get());
+        Thread.sleep(50);
+        release.countDown();
+        Assertions.assertTrue(secondDone.get(10, TimeUnit.SECONDS).isOk());
+        Assertions.assertTrue(firstDurable.get(10, TimeUnit.SECONDS).isOk());
+        executor.shutdown();
+
+        // Later deferred writes still get synced
+        WriteBatch third = new WriteBatch();
+        third.put(bytes("key"), bytes("value"));
+        Assertions.assertTrue(db.writeDeferred(new WriteOptions(), third).get(10, TimeUnit.SECONDS).isOk());
+        db.close();
+    }
+
+    @Test
+    public void testDeferredSyncBySize() throws Exception {
+        SlowSyncFile file = new SlowSyncFile();
+        Options options = new Options();
+        options.logSyncIntervalMillis = TimeUnit.HOURS.toMillis(1);
+        options.logSyncIntervalBytes = 4096;
+        DBImpl db = openWithLog(options, file);
+
+        WriteBatch small = new WriteBatch();
+        small.put(bytes("small"), ByteBuffer.allocate(100));
+        CompletableFuture<Status> first = db.writeDeferred(new WriteOptions(), small);
+        Thread.sleep(50);
+        Assertions.assertFalse(first.isDone());
+
+        // Synced once 4KB are logged, long before the interval
+        WriteBatch large = new WriteBatch();
+        large.put(bytes("large"), ByteBuffer.allocate(5000));
+        CompletableFuture<Status> second = db.writeDeferred(new WriteOptions(), large);
+        Assertions.assertTrue(second.get(10, TimeUnit.SECONDS).isOk());
+        Assertions.assertTrue(first.isDone());
+        Assertions.assertEquals(1, file.syncs.get());
+
+        // Closing syncs the rest
+        CompletableFuture<Status> last = db.writeDeferred(new WriteOptions(), small);
+        db.close();
+        Assertions.assertTrue(last.get().isOk());
+        Assertions.assertEquals(2, file.syncs.get());
+    }
+
+    @Test
+    public void testDeferredSyncError() throws Exception {
+        SlowSyncFile file = new SlowSyncFile();
+        file.syncStatus = Status.of(new IllegalStateException("sync failed"));
+        Options options = new Options();
+        options.logSyncIntervalMillis = 1;
+        DBImpl db = openWithLog(options, file);
+
+        WriteBatch batch = new WriteBatch();
+        batch.put(bytes("key"), bytes("value"));
+        Status status = db.writeDeferred(new WriteOptions(), batch).get(10, TimeUnit.SECONDS);
+        Assertions.assertFalse(status.isOk());
+        Assertions.assertEquals("sync failed", status.getEx().getMessage());
+        // No later write can be made durable: each one, alone or racing others,
+        // completes with the error instead of throwing or waiting for a sync
+        Assertions.assertFalse(db.getBgError().isOk());
+        for (int i = 0; i < 3; i++) {
+            Status later = db.writeDeferred(new WriteOptions(), batch).get(10, TimeUnit.SECONDS);
+            Assertions.assertFalse(later.isOk());
+            Assertions.assertEquals("sync failed", later.getEx().getMessage());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<CompletableFuture<Status>>> results = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            results.add(executor.submit(() -> db.writeDeferred(new WriteOptions(), batch)));
+        }
+        for (Future<CompletableFuture<Status>> result : results) {
+            Status later = result.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+            Assertions.assertFalse(later.isOk());
+            Assertions.assertEquals("sync failed", later.getEx().getMessage());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDeferredSyncBenchmark() throws Exception {
+        for (boolean deferred : new boolean[]{false, true, false, true}) {
+            SlowSyncFile file = new SlowSyncFile();
+            Options options = new Options();
+            options.logSyncIntervalMillis = 5;
+            DBImpl db = openWithLog(options, file);
+
+            int threads = 8;
+            int writesPerThread = 1000;
+            WriteOptions writeOptions = new WriteOptions();
+            writeOptions.setSync(!deferred);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<CompletableFuture<Status>>> results = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                results.add(executor.submit(() -> {
+                    CompletableFuture<Status> durable = null;
+                    for (int i = 0; i < writesPerThread; i++) {
+                        WriteBatch batch = new WriteBatch();
+                        batch.put(bytes("key-" + id + "-" + i), bytes("value"));
+                        durable = db.writeDeferred(writeOptions, batch);
+                    }
+                    return durable;
+                }));
+            }
+            for (Future<CompletableFuture<Status>> result : results) {
+                Assertions.assertTrue(result.get().get(10, TimeUnit.SECONDS).isOk());
+            }
+            long elapsed = System.nanoTime() - start;
+            executor.shutdown();
+            db.close();
+            System.err.printf("%s: %.0f durable writes/s, %d syncs%n", deferred ? "Deferred sync" : "Sync",
+                    threads * writesPerThread * 1e9 / elapsed, file.syncs.get());
+        }
+    }
+
+    @Test
+    public void testWriteControllerPacesWrites() {
+        Options options = new Options();
+        options.delayedWriteRate = 1 << 20;
+        DBImpl db = new DBImpl(options, "write-controller");
+        WritableFile file = new FakeWritableFile();
+        db.setLogFile(file);
+        db.setLog(new com.ldb.log.Writer(file));
+        db.setMem(new MemTable(db.getInternalComparator()));
+        db.getMem().ref();
+        WriteController controller = db.getWriteController();
+
+        // Halfway from the slowdown to the stop trigger
+        List<FileMetaData> level0 = db.getVersions().current.getFiles().get(0);
+        for (int i = 0; i < (Config.kL0_SlowdownWritesTrigger + Config.kL0_StopWritesTrigger) / 2; i++) {
+            level0.add(new FileMetaData());
+        }
+        int writes = 40;
+        long start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            WriteBatch batch = new WriteBatch();
+            batch.put(bytes("key" + i), ByteBuffer.allocate(10 << 10));
+            Assertions.assertTrue(db.write(new WriteOptions(), batch).isOk());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Assertions.assertEquals(WriteController.StallReason.L0_FILES_SLOWDOWN, controller.stallReason());
+        Assertions.assertEquals(512 << 10, controller.delayedWriteRate());
+        Assertions.assertEquals(writes - 1, controller.delayedWrites());
+        // Every write but the first pays for the one before it
+        double expected = (writes - 1) * (10 << 10) / (512.0 * 1024);
+        Assertions.assertTrue(seconds >= expected * 0.9, seconds + "s");
+        System.err.printf("Paced %d 10KB writes at %dKB/s in %.2fs, %.2fs delayed%n",
+                writes, controller.delayedWriteRate() >> 10, seconds, controller.totalDelayNanos() / 1e9);
+
+        // At the stop trigger writes go on while mem has room, and are not paced
+        while (level0.size() < Config.kL0_StopWritesTrigger) {
+            level0.add(new FileMetaData());
+        }
+        Assertions.assertTrue(db.write(new WriteOptions(), new WriteBatch()).isOk());
+        Assertions.assertEquals(WriteController.StallReason.L0_FILES_STOP, controller.stallReason());
+        Assertions.assertTrue(controller.isStopped());
+
+        level0.clear();
+        Assertions.assertTrue(db.write(new WriteOptions(), new WriteBatch()).isOk());
+        Assertions.assertEquals(WriteController.StallReason.NONE, controller.stallReason());
+        Assertions.assertEquals(writes - 1, controller.delayedWrites());
+    }
+
+    @Test
+    public void testManyWriters() throws Exception {
+        for (boolean pipelined : new boolean[]{false, true}) {
+            WritableFile file = new FakeWritableFile();
+            Options options = new Options();
+            options.enablePipelinedWrite = pipelined;
+            DBImpl db = new DBImpl(options, "many-writers");
+            db.setLogFile(file);
+            db.setLog(new com.ldb.log.Writer(file) {
+                @Override
+                public Status addRecord(ByteBuffer contents) {
+                    return Status.of(null);
+                }
+            });
+            db.setMem(new MemTable(db.getInternalComparator()));
+
+            int threads = 256;
+            int writesPerThread = 200;
+            List<Thread> workers = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                Thread worker = new Thread(() -> {
+                    WriteOptions writeOptions = new WriteOptions();
+                    for (int i = 0; i < writesPerThread; i++) {
+                        WriteBatch batch = new WriteBatch();
+                        batch.put(bytes("key-" + id + "-" + i), bytes("value"));
+                        Assertions.assertTrue(db.write(writeOptions, batch).isOk());
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsed = System.nanoTime() - start;
+            System.err.printf("%d writers%s: %.0f writes/s%n", threads, pipelined ? " (pipelined)" : "",
+                    threads * writesPerThread * 1e9 / elapsed);
 
+            Assertions.assertTrue(db.getWriters().isEmpty());
+            Assertions.assertEquals(threads * writesPerThread, db.getVersions().lastSequence());
+            ArenaSkipList.Iterator iter = db.getMem().iterator();
+            int count = 0;
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                count++;
+            }
+            Assertions.assertEquals(threads * writesPerThread, count);
+        }
     }
-}
\ No newline at end of file
+}
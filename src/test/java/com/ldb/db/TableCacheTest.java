@@ -0,0 +1,266 @@
+package com.ldb.db;
+
+import com.ldb.Env;
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.LookupKey;
+import com.ldb.db.memtable.LookupResult;
+import com.ldb.table.TableBuilder;
+import com.ldb.utils.KeyValueIterator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TableCacheTest {
+    @TempDir
+    Path dir;
+
+    // Counts the files opened and closed, opens take openMillis and then
+    // throw openError if it is set
+    static class CountingEnv extends Env {
+        final AtomicInteger opens = new AtomicInteger();
+        final AtomicInteger closes = new AtomicInteger();
+        volatile long openMillis;
+        volatile Error openError;
+
+        private RandomAccessFile counted(RandomAccessFile target) {
+            if (openMillis > 0) {
+                try {
+                    Thread.sleep(openMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (openError != null) {
+                target.close();
+                throw openError;
+            }
+            opens.incrementAndGet();
+            return new RandomAccessFile() {
+                @Override
+                public ByteBuffer read(long offset, int n) {
+                    return target.read(offset, n);
+                }
+
+                @Override
+                public boolean isMapped() {
+                    return target.isMapped();
+                }
+
+                @Override
+                public Status close() {
+                    closes.incrementAndGet();
+                    return target.close();
+                }
+            };
+        }
+
+        @Override
+        public RandomAccessFile newRandomAccessFile(String fname) {
+            return counted(super.newRandomAccessFile(fname));
+        }
+
+        @Override
+        public RandomAccessFile newMmapRandomAccessFile(String fname) {
+            return counted(super.newMmapRandomAccessFile(fname));
+        }
+
+        int open() {
+            return opens.get() - closes.get();
+        }
+    }
+
+    private final CountingEnv env = new CountingEnv();
+    private final Options options = new Options();
+    private final Map<Long, Long> fileSizes = new HashMap<>();
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Table "number" maps "k<i>" to "<number>:<i>"
+    private void build(long number) {
+        WritableFile file = env.newWritableFile(DBImpl.tableFileName(dir.toString(), number));
+        TableBuilder builder = new TableBuilder(options, file);
+        for (int i = 0; i < 100; i++) {
+            builder.add(new InternalKey(bytes(String.format("k%03d", i)), i + 1,
+                    InternalKey.ValueType.kTypeValue).getRep().duplicate(), bytes(number + ":" + i));
+        }
+        Assertions.assertTrue(builder.finish().isOk());
+        Assertions.assertTrue(file.close().isOk());
+        fileSizes.put(number, builder.fileSize());
+    }
+
+    @BeforeEach
+    public void setUp() {
+        options.env = env;
+        for (long number = 1; number <= 5; number++) {
+            build(number);
+        }
+    }
+
+    private String get(TableCache cache, long number, int i) {
+        LookupResult result = new LookupResult();
+        cache.get(new ReadOptions(), number, fileSizes.get(number),
+                new LookupKey().set(bytes(String.format("k%03d", i)), 1L << 40), result);
+        return result.state() == LookupResult.State.kFound ? string(result.value()) : "NOT_FOUND";
+    }
+
+    @Test
+    public void testTablesStayOpen() {
+        TableCache cache = new TableCache(dir.toString(), options, 10);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals("3:" + i, get(cache, 3, i));
+        }
+        LookupKey[] keys = {new LookupKey().set(bytes("k005"), 1L << 40), new LookupKey().set(bytes("k050"), 1L << 40)};
+        LookupResult[] results = {new LookupResult(), new LookupResult()};
+        cache.multiGet(new ReadOptions(), 3, fileSizes.get(3L), keys, results, new int[]{0, 1}, 2);
+        Assertions.assertEquals("3:50", string(results[1].value()));
+        KeyValueIterator iter = cache.newIterator(new ReadOptions(), 3, fileSizes.get(3L));
+        iter.seekToFirst();
+        Assertions.assertEquals("3:0", string(iter.value()));
+        iter.close();
+        Assertions.assertEquals(1, env.opens.get());
+        Assertions.assertEquals(1, env.open());
+
+        cache.close();
+        Assertions.assertEquals(0, env.open());
+        // Values outlive the table
+        Assertions.assertEquals("3:50", string(results[1].value()));
+    }
+
+    @Test
+    public void testBounded() {
+        TableCache cache = new TableCache(dir.toString(), options, 3);
+        for (int round = 0; round < 10; round++) {
+            for (long number = 1; number <= 5; number++) {
+                Assertions.assertEquals(number + ":7", get(cache, number, 7));
+                Assertions.assertTrue(env.open() <= 3, env.open() + " open");
+            }
+        }
+        Assertions.assertEquals(50, env.opens.get());
+
+        // The most recently used tables are kept
+        TableCache recent = new TableCache(dir.toString(), options, 3);
+        env.opens.set(0);
+        env.closes.set(0);
+        for (int i = 0; i < 10; i++) {
+            get(recent, 1, i);
+            get(recent, 2, i);
+            get(recent, 1 + i % 5, i);
+        }
+        Assertions.assertTrue(env.opens.get() < 20, env.opens.get() + " opens");
+    }
+
+    @Test
+    public void testIteratorsPinTables() {
+        TableCache cache = new TableCache(dir.toString(), options, 1);
+        KeyValueIterator iter = cache.newIterator(new ReadOptions(), 1, fileSizes.get(1L));
+        // Over capacity, the pinned table stays open and the others are
+        // closed as soon as they are not used
+        Assertions.assertEquals("2:1", get(cache, 2, 1));
+        Assertions.assertEquals("3:1", get(cache, 3, 1));
+        Assertions.assertEquals(1, env.open());
+        iter.seekToFirst();
+        Assertions.assertEquals("1:0", string(iter.value()));
+
+        // Evicted while in use, it is closed by the iterator
+        cache.evict(1);
+        iter.seekToLast();
+        Assertions.assertEquals("1:99", string(iter.value()));
+        Assertions.assertEquals(1, env.open());
+        iter.close();
+        Assertions.assertEquals(0, env.open());
+        Assertions.assertEquals(3, env.opens.get());
+    }
+
+    @Test
+    public void testOpenFailure() {
+        TableCache cache = new TableCache(dir.toString(), options, 10);
+        fileSizes.put(9L, 1000L);
+        Assertions.assertThrows(UncheckedIOException.class, () -> get(cache, 9, 1));
+        // Errors are not cached
+        build(9);
+        Assertions.assertEquals("9:1", get(cache, 9, 1));
+        // Nor are tables that fail to parse
+        build(10);
+        fileSizes.put(10L, fileSizes.get(10L) - 1);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> get(cache, 10, 1));
+        Assertions.assertEquals(1, env.open());
+    }
+
+    @Test
+    public void testSingleFlightOpens() throws Exception {
+        TableCache cache = new TableCache(dir.toString(), options, 10);
+        env.openMillis = 50;
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int i = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                return get(cache, 4, i);
+            }));
+        }
+        start.countDown();
+        for (int t = 0; t < threads; t++) {
+            Assertions.assertEquals("4:" + t, futures.get(t).get());
+        }
+        executor.shutdown();
+        // One open for the burst of cold reads
+        Assertions.assertEquals(1, env.opens.get());
+    }
+
+    @Test
+    public void testSingleFlightOpenError() throws Exception {
+        TableCache cache = new TableCache(dir.toString(), options, 10);
+        env.openMillis = 50;
+        env.openError = new AssertionError("open failed");
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int i = t;
+            futures.add(executor.submit(() -> {
+                start.await();
+                return get(cache, 4, i);
+            }));
+        }
+        start.countDown();
+        // Readers waiting for the failed open get its error instead of hanging
+        for (Future<String> future : futures) {
+            ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                    () -> future.get(10, TimeUnit.SECONDS));
+            Assertions.assertSame(env.openError, e.getCause());
+        }
+        executor.shutdown();
+
+        env.openError = null;
+        Assertions.assertEquals("4:1", get(cache, 4, 1));
+    }
+}
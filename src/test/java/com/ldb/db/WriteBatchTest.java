@@ -0,0 +1,189 @@
+package com.ldb.db;
+
+import com.ldb.db.memtable.ArenaSkipList;
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.MemTable;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+class WriteBatchTest {
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Same format as LevelDB's write_batch_test PrintContents
+    private static String printContents(WriteBatch batch) {
+        StringBuilder state = new StringBuilder();
+        Status status = batch.iterate(new WriteBatch.Handler() {
+            @Override
+            public void put(ByteBuffer rep, int keyOffset, int keyLength, int valueOffset, int valueLength) {
+                state.append("Put(").append(string(rep, keyOffset, keyLength)).append(", ")
+                        .append(string(rep, valueOffset, valueLength)).append(")");
+            }
+
+            @Override
+            public void delete(ByteBuffer rep, int keyOffset, int keyLength) {
+                state.append("Delete(").append(string(rep, keyOffset, keyLength)).append(")");
+            }
+        });
+        if (!status.isOk()) {
+            state.append("ParseError()");
+        }
+        return state.toString();
+    }
+
+    @Test
+    public void testEmpty() {
+        WriteBatch batch = new WriteBatch();
+        Assertions.assertEquals("", printContents(batch));
+        Assertions.assertEquals(0, WriteBatchInternal.count(batch));
+        Assertions.assertEquals(WriteBatch.kHeader, WriteBatchInternal.byteSize(batch));
+    }
+
+    @Test
+    public void testMultiple() {
+        WriteBatch batch = new WriteBatch();
+        batch.put(bytes("foo"), bytes("bar"));
+        batch.delete(bytes("box"));
+        batch.put(bytes("baz"), bytes("boo"));
+        WriteBatchInternal.setSequence(batch, 100);
+        Assertions.assertEquals(100, WriteBatchInternal.sequence(batch));
+        Assertions.assertEquals(3, WriteBatchInternal.count(batch));
+        Assertions.assertEquals("Put(foo, bar)Delete(box)Put(baz, boo)", printContents(batch));
+
+        ByteBuffer contents = WriteBatchInternal.contents(batch);
+        Assertions.assertEquals(0, contents.position());
+        Assertions.assertEquals(WriteBatchInternal.byteSize(batch), contents.remaining());
+    }
+
+    @Test
+    public void testCorruption() {
+        WriteBatch batch = new WriteBatch();
+        batch.put(bytes("foo"), bytes("bar"));
+        batch.delete(bytes("box"));
+        WriteBatchInternal.setSequence(batch, 200);
+        batch.rep.position(batch.rep.position() - 1);
+        Assertions.assertEquals("Put(foo, bar)ParseError()", printContents(batch));
+
+        WriteBatch wrongCount = new WriteBatch();
+        wrongCount.put(bytes("foo"), bytes("bar"));
+        WriteBatchInternal.setCount(wrongCount, 2);
+        Assertions.assertEquals("Put(foo, bar)ParseError()", printContents(wrongCount));
+    }
+
+    @Test
+    public void testAppend() {
+        WriteBatch b1 = new WriteBatch();
+        WriteBatch b2 = new WriteBatch();
+        WriteBatchInternal.setSequence(b1, 200);
+        WriteBatchInternal.setSequence(b2, 300);
+        WriteBatchInternal.append(b1, b2);
+        Assertions.assertEquals("", printContents(b1));
+        b2.put(bytes("a"), bytes("va"));
+        WriteBatchInternal.append(b1, b2);
+        Assertions.assertEquals("Put(a, va)", printContents(b1));
+        b2.clear();
+        b2.put(bytes("b"), bytes("vb"));
+        WriteBatchInternal.append(b1, b2);
+        Assertions.assertEquals("Put(a, va)Put(b, vb)", printContents(b1));
+        b2.delete(bytes("foo"));
+        WriteBatchInternal.append(b1, b2);
+        Assertions.assertEquals("Put(a, va)Put(b, vb)Put(b, vb)Delete(foo)", printContents(b1));
+        Assertions.assertEquals(200, WriteBatchInternal.sequence(b1));
+    }
+
+    @Test
+    public void testInsertInto() {
+        WriteBatch batch = new WriteBatch();
+        batch.put(bytes("foo"), bytes("bar"));
+        batch.delete(bytes("box"));
+        batch.put(bytes("baz"), bytes("boo"));
+        WriteBatchInternal.setSequence(batch, 100);
+        MemTable mem = new MemTable();
+        Assertions.assertTrue(WriteBatchInternal.insertInto(batch, mem).isOk());
+
+        List<String> entries = new ArrayList<>();
+        ArenaSkipList.Iterator iter = mem.iterator();
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+            InternalKey.ParsedInternalKey key = InternalKey.ParsedInternalKey.fromBytes(iter.key());
+            ByteBuffer value = iter.value();
+            entries.add(key.debugString() + " -> " + string(value, value.position(), value.remaining()));
+        }
+        Assertions.assertEquals(List.of(
+                "'baz' @ 102 : kTypeValue -> boo",
+                "'box' @ 101 : kTypeDeletion -> ",
+                "'foo' @ 100 : kTypeValue -> bar"), entries);
+    }
+
+    @Test
+    public void testPool() {
+        WriteBatchPool pool = new WriteBatchPool(2, 4096);
+        WriteBatch batch = pool.acquire();
+        batch.put(bytes("foo"), bytes("bar"));
+        pool.release(batch);
+        WriteBatch reused = pool.acquire();
+        Assertions.assertSame(batch, reused);
+        Assertions.assertEquals(0, WriteBatchInternal.count(reused));
+        Assertions.assertEquals("", printContents(reused));
+
+        // Batches grown past the retained size are left to the GC
+        reused.put(bytes("big"), ByteBuffer.allocate(8192));
+        pool.release(reused);
+        Assertions.assertNotSame(reused, pool.acquire());
+    }
+
+    @Test
+    public void testPooledBulkLoadBenchmark() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteBuffer value = ByteBuffer.allocate(100);
+        ByteBuffer key = ByteBuffer.allocate(16);
+        // 1KB batches of 8 records
+        int batches = 200_000;
+        for (boolean pooled : new boolean[]{false, true, false, true}) {
+            WriteBatchPool pool = new WriteBatchPool(4, 64 << 10);
+            MemTable mem = new MemTable();
+            mem.ref();
+            long sequence = 0;
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            for (int i = 0; i < batches; i++) {
+                WriteBatch batch = pooled ? pool.acquire() : new WriteBatch();
+                for (int j = 0; j < 8; j++) {
+                    key.putLong(0, i).putLong(8, j);
+                    batch.put(key, value);
+                }
+                WriteBatchInternal.setSequence(batch, sequence + 1);
+                sequence += WriteBatchInternal.count(batch);
+                Assertions.assertTrue(WriteBatchInternal.insertInto(batch, mem).isOk());
+                if (pooled) {
+                    pool.release(batch);
+                }
+                if (mem.approximateMemoryUsage() > (64 << 20)) {
+                    mem.unref();
+                    mem = new MemTable();
+                    mem.ref();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            mem.unref();
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+            System.err.printf("%s 1KB batches: %.0f batches/s, %.0f bytes allocated per batch (memtable arena included)%n",
+                    pooled ? "Pooled" : "Fresh", batches * 1e9 / elapsed, (double) allocated / batches);
+        }
+    }
+}
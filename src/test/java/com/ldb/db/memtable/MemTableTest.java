@@ -0,0 +1,320 @@
+package com.ldb.db.memtable;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class MemTableTest {
+
+    static final InternalKeyComparator comparator = new InternalKeyComparator();
+
+    // user key ascending, sequence number descending, built on parsed keys
+    static final Comparator<InternalKey> parsingComparator = (a, b) -> {
+        InternalKey.ParsedInternalKey pa = InternalKey.ParsedInternalKey.fromBytes(a.getRep());
+        InternalKey.ParsedInternalKey pb = InternalKey.ParsedInternalKey.fromBytes(b.getRep());
+        int r = pa.userKey.compareTo(pb.userKey);
+        if (r == 0) {
+            r = Long.compare(pb.sequenceNumber, pa.sequenceNumber);
+        }
+        return r;
+    };
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testAddAndIterate() {
+        for (boolean direct : new boolean[]{true, false}) {
+            MemTable mem = new MemTable(comparator, new Arena(4096, direct));
+            mem.ref();
+            TreeMap<String, String> model = new TreeMap<>();
+            long seq = 0;
+            for (int i = 0; i < 2000; i++) {
+                String key = String.format("key%05d", (i * 7919) % 2000);
+                String value = "value" + i;
+                mem.add(++seq, InternalKey.ValueType.kTypeValue, bytes(key), bytes(value));
+                model.put(key, value);
+            }
+
+            ArenaSkipList.Iterator iter = mem.iterator();
+            iter.seekToFirst();
+            for (String key : model.keySet()) {
+                Assertions.assertTrue(iter.valid());
+                InternalKey.ParsedInternalKey parsed = InternalKey.ParsedInternalKey.fromBytes(iter.key());
+                Assertions.assertEquals(key, string(parsed.userKey));
+                Assertions.assertEquals(model.get(key), string(iter.value()));
+                iter.next();
+            }
+            Assertions.assertFalse(iter.valid());
+
+            iter.seekToLast();
+            for (String key : model.descendingKeySet()) {
+                Assertions.assertTrue(iter.valid());
+                Assertions.assertEquals(key, string(InternalKey.ParsedInternalKey.fromBytes(iter.key()).userKey));
+                iter.prev();
+            }
+            Assertions.assertFalse(iter.valid());
+            mem.unref();
+            Assertions.assertEquals(0, mem.approximateMemoryUsage());
+        }
+    }
+
+    @Test
+    public void testCustomComparator() {
+        MemTable mem = new MemTable(parsingComparator);
+        for (int i = 0; i < 100; i++) {
+            mem.add(i + 1, InternalKey.ValueType.kTypeValue, bytes(String.format("k%03d", 99 - i)), bytes("v"));
+        }
+        ArenaSkipList.Iterator iter = mem.iterator();
+        iter.seekToFirst();
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals(String.format("k%03d", i),
+                    string(InternalKey.ParsedInternalKey.fromBytes(iter.key()).userKey));
+            iter.next();
+        }
+        Assertions.assertFalse(iter.valid());
+    }
+
+    @Test
+    public void testComparatorMatchesParsedOrder() {
+        Random rnd = new Random(301);
+        String[] userKeys = {"", "a", "ab", "ab\0", "abcdefgh", "abcdefgh\0", "abcdefghi", "b", "\u00ff", "\u00ffz"};
+        for (int i = 0; i < 10000; i++) {
+            InternalKey a = new InternalKey(bytes(userKeys[rnd.nextInt(userKeys.length)]), rnd.nextInt(4),
+                    InternalKey.ValueType.values()[rnd.nextInt(2)]);
+            InternalKey b = new InternalKey(bytes(userKeys[rnd.nextInt(userKeys.length)]), rnd.nextInt(4),
+                    InternalKey.ValueType.values()[rnd.nextInt(2)]);
+            int expected = Integer.signum(Arrays.compareUnsigned(
+                    toArray(a.userKey()), toArray(b.userKey())));
+            if (expected == 0) {
+                InternalKey.ParsedInternalKey pa = InternalKey.ParsedInternalKey.fromBytes(a.getRep());
+                InternalKey.ParsedInternalKey pb = InternalKey.ParsedInternalKey.fromBytes(b.getRep());
+                expected = Long.compare(pb.sequenceNumber, pa.sequenceNumber);
+                if (expected == 0) {
+                    expected = Integer.compare(pb.type.code(), pa.type.code());
+                }
+            }
+            Assertions.assertEquals(expected, Integer.signum(comparator.compare(a, b)));
+            // in place comparison on a direct copy must agree and leave positions alone
+            ByteBuffer direct = ByteBuffer.allocateDirect(64);
+            direct.position(3);
+            direct.put(a.getRep().duplicate());
+            Assertions.assertEquals(expected, Integer.signum(comparator.compare(direct, 3, a.getRep().capacity(),
+                    b.getRep(), 0, b.getRep().capacity())));
+            Assertions.assertEquals(0, b.getRep().position());
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testNewerSequenceFirst() {
+        MemTable mem = new MemTable(comparator);
+        mem.add(1, InternalKey.ValueType.kTypeValue, bytes("k"), bytes("v1"));
+        mem.add(2, InternalKey.ValueType.kTypeValue, bytes("k"), bytes("v2"));
+        mem.add(3, InternalKey.ValueType.kTypeDeletion, bytes("k"), null);
+        ArenaSkipList.Iterator iter = mem.iterator();
+        iter.seekToFirst();
+        Assertions.assertEquals(InternalKey.ValueType.kTypeDeletion,
+                InternalKey.ParsedInternalKey.fromBytes(iter.key()).type);
+        Assertions.assertEquals(0, iter.value().remaining());
+        iter.next();
+        Assertions.assertEquals("v2", string(iter.value()));
+        iter.next();
+        Assertions.assertEquals("v1", string(iter.value()));
+    }
+
+    @Test
+    public void testMemoryUsage() {
+        MemTable mem = new MemTable(comparator);
+        Assertions.assertTrue(mem.approximateMemoryUsage() > 0);  // head node
+        long before = mem.approximateMemoryUsage();
+        ByteBuffer value = ByteBuffer.allocate(100);
+        for (int i = 0; i < 1000; i++) {
+            mem.add(i + 1, InternalKey.ValueType.kTypeValue, bytes("key" + i), value.duplicate());
+        }
+        long used = mem.approximateMemoryUsage() - before;
+        // every entry holds at least the key, the value and one next pointer
+        Assertions.assertTrue(used >= 1000 * (100 + 4 + 8 + 1 + 8));
+        Assertions.assertTrue(used < 1000 * (100 + 6 + 8 + 1 + 4 * 8 + 12 * 8));
+
+        // a value larger than a quarter block gets its own block
+        mem.add(10000, InternalKey.ValueType.kTypeValue, bytes("big"), ByteBuffer.allocate(Arena.kBlockSize));
+        Assertions.assertTrue(mem.approximateMemoryUsage() - before - used >= Arena.kBlockSize);
+    }
+
+    @Test
+    public void testArenaLargeAndSmallAllocations() {
+        for (boolean direct : new boolean[]{true, false}) {
+            Arena arena = new Arena(4096, direct);
+            long[] addresses = new long[40];
+            int[] sizes = new int[40];
+            for (int i = 0; i < addresses.length; i++) {
+                // every fourth allocation gets a block of its own
+                sizes[i] = i % 4 == 1 ? 2000 + i : 16 + i % 3 * 8;
+                addresses[i] = arena.allocateAligned(sizes[i]);
+                ByteBuffer block = arena.block(addresses[i]);
+                for (int j = 0; j < sizes[i]; j++) {
+                    block.put(Arena.offset(addresses[i]) + j, (byte) i);
+                }
+            }
+            for (int i = 0; i < addresses.length; i++) {
+                ByteBuffer block = arena.block(addresses[i]);
+                for (int j = 0; j < sizes[i]; j++) {
+                    Assertions.assertEquals((byte) i, block.get(Arena.offset(addresses[i]) + j), "allocation " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAddConcurrently() throws Exception {
+        int writers = 8;
+        int perWriter = 2000;
+        MemTable mem = new MemTable(comparator, new Arena(8192, true));
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int id = w;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    long seq = (long) i * writers + id + 1;
+                    mem.addConcurrently(seq, InternalKey.ValueType.kTypeValue,
+                            bytes(String.format("key%03d", i % 100)), bytes("v" + seq));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        ArenaSkipList.Iterator iter = mem.iterator();
+        iter.seekToFirst();
+        int count = 0;
+        InternalKey.ParsedInternalKey last = null;
+        while (iter.valid()) {
+            InternalKey.ParsedInternalKey parsed = InternalKey.ParsedInternalKey.fromBytes(iter.key());
+            Assertions.assertEquals("v" + parsed.sequenceNumber, string(iter.value()));
+            if (last != null) {
+                int r = last.userKey.compareTo(parsed.userKey);
+                Assertions.assertTrue(r < 0 || (r == 0 && last.sequenceNumber > parsed.sequenceNumber));
+            }
+            last = parsed;
+            count++;
+            iter.next();
+        }
+        Assertions.assertEquals(writers * perWriter, count);
+
+        // back pointers written by racing inserts must still give the exact predecessor
+        iter.seekToLast();
+        while (iter.valid()) {
+            count--;
+            iter.prev();
+        }
+        Assertions.assertEquals(0, count);
+    }
+
+    @Test
+    public void testLookupKey() {
+        LookupKey lookup = new LookupKey(ByteBuffer.allocate(4));
+        lookup.set(bytes("user-key"), 42);
+        InternalKey.ParsedInternalKey parsed = InternalKey.ParsedInternalKey.fromBytes(lookup.internalKey());
+        Assertions.assertEquals("user-key", string(parsed.userKey));
+        Assertions.assertEquals(42, parsed.sequenceNumber);
+        Assertions.assertEquals(InternalKey.ValueType.kValueTypeForSeek, parsed.type);
+        Assertions.assertEquals(8 + InternalKey.kTrailerSize, lookup.length());
+
+        // sorts before every entry of the same user key with sequence <= 42
+        ByteBuffer seek = lookup.internalKey();
+        InternalKey older = new InternalKey(bytes("user-key"), 42, InternalKey.ValueType.kTypeDeletion);
+        InternalKey newer = new InternalKey(bytes("user-key"), 43, InternalKey.ValueType.kTypeValue);
+        Assertions.assertTrue(comparator.compare(seek, 0, lookup.length(), older.getRep(), 0, older.getRep().capacity()) < 0);
+        Assertions.assertTrue(comparator.compare(seek, 0, lookup.length(), newer.getRep(), 0, newer.getRep().capacity()) > 0);
+
+        lookup.set(bytes("k"), InternalKey.kMaxSequenceNumber);
+        parsed = InternalKey.ParsedInternalKey.fromBytes(lookup.internalKey());
+        Assertions.assertEquals("k", string(parsed.userKey));
+        Assertions.assertEquals(InternalKey.kMaxSequenceNumber, parsed.sequenceNumber);
+        // sequences from 2^55 up fill the sign bit of the trailer and still sort
+        // after the larger ones
+        seek = lookup.internalKey();
+        for (long sequence : new long[]{0, 1, (1L << 55) - 1, 1L << 55, InternalKey.kMaxSequenceNumber - 1}) {
+            InternalKey entry = new InternalKey(bytes("k"), sequence, InternalKey.ValueType.kTypeValue);
+            Assertions.assertTrue(comparator.compare(seek, 0, lookup.length(), entry.getRep(), 0, entry.getRep().capacity()) < 0,
+                    "sequence " + sequence);
+            InternalKey next = new InternalKey(bytes("k"), sequence + 1, InternalKey.ValueType.kTypeValue);
+            Assertions.assertTrue(comparator.compare(next, entry) < 0, "sequence " + sequence);
+        }
+    }
+
+    @Test
+    public void testLookupKeyReuse() {
+        // A longer key after a shorter one fits the buffer but not its old limit
+        LookupKey lookup = new LookupKey(ByteBuffer.allocate(64));
+        lookup.set(bytes("a"), 1);
+        lookup.set(bytes("abcdef"), 2);
+        InternalKey.ParsedInternalKey parsed = InternalKey.ParsedInternalKey.fromBytes(lookup.internalKey());
+        Assertions.assertEquals("abcdef", string(parsed.userKey));
+        Assertions.assertEquals(2, parsed.sequenceNumber);
+        Assertions.assertEquals(6 + InternalKey.kTrailerSize, lookup.length());
+
+        lookup.set(bytes("ab"), 3);
+        parsed = InternalKey.ParsedInternalKey.fromBytes(lookup.internalKey());
+        Assertions.assertEquals("ab", string(parsed.userKey));
+        Assertions.assertEquals(3, parsed.sequenceNumber);
+    }
+
+    private static String get(MemTable mem, String key, long snapshot) {
+        LookupResult result = new LookupResult();
+        if (!mem.get(new LookupKey().set(bytes(key), snapshot), result)) {
+            return "NOT_FOUND";
+        }
+        return result.state() == LookupResult.State.kDeleted ? "DELETED" : string(result.value());
+    }
+
+    @Test
+    public void testGet() {
+        MemTable mem = new MemTable(comparator);
+        mem.ref();
+        mem.add(1, InternalKey.ValueType.kTypeValue, bytes("a"), bytes("a1"));
+        mem.add(2, InternalKey.ValueType.kTypeValue, bytes("b"), bytes("b2"));
+        mem.add(3, InternalKey.ValueType.kTypeValue, bytes("a"), bytes("a3"));
+        mem.add(4, InternalKey.ValueType.kTypeDeletion, bytes("b"), null);
+        mem.add(5, InternalKey.ValueType.kTypeValue, bytes("ab"), bytes("ab5"));
+
+        Assertions.assertEquals("a3", get(mem, "a", 5));
+        Assertions.assertEquals("a3", get(mem, "a", 3));
+        Assertions.assertEquals("a1", get(mem, "a", 2));
+        Assertions.assertEquals("NOT_FOUND", get(mem, "a", 0));
+        Assertions.assertEquals("DELETED", get(mem, "b", 4));
+        Assertions.assertEquals("b2", get(mem, "b", 3));
+        // Next user key, or past the end
+        Assertions.assertEquals("NOT_FOUND", get(mem, "aa", 5));
+        Assertions.assertEquals("NOT_FOUND", get(mem, "ab", 4));
+        Assertions.assertEquals("NOT_FOUND", get(mem, "c", 5));
+    }
+}
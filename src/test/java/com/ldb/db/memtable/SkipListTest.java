@@ -4,7 +4,10 @@ import com.ldb.utils.SeekableIterator;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
@@ -17,6 +20,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class SkipListTest {
 
@@ -158,4 +162,260 @@ class SkipListTest {
         }
         return builder.append(']').toString();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConcurrentInsertStress() throws InterruptedException, ExecutionException {
+        int writers = 8;
+        int perWriter = 5000;
+        ExecutorService executor = new ThreadPoolExecutor(writers + 2, writers + 2,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        SkipList<Integer> list = new SkipList<>();
+        AtomicBoolean writing = new AtomicBoolean(true);
+        List<Future<?>> readFutures = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            readFutures.add(executor.submit(() -> {
+                while (writing.get()) {
+                    // Keys must always come out in strictly increasing order
+                    SeekableIterator<Integer> iter = list.iterator();
+                    iter.seekToFirst();
+                    int last = -1;
+                    while (iter.valid()) {
+                        Assertions.assertTrue(iter.key() > last);
+                        last = iter.key();
+                        iter.next();
+                    }
+                }
+            }));
+        }
+        List<Future<?>> writeFutures = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int id = w;
+            writeFutures.add(executor.submit(() -> {
+                Random rnd = new Random(id);
+                for (int i = 0; i < perWriter; i++) {
+                    int key = rnd.nextInt(perWriter) * writers + id;
+                    boolean inserted = list.insertConcurrently(key);
+                    // A key is visible as soon as its insert returns, and was inserted at most once
+                    Assertions.assertTrue(list.contains(key));
+                    if (!inserted) {
+                        Assertions.assertFalse(list.insertConcurrently(key));
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writeFuture : writeFutures) {
+            writeFuture.get();
+        }
+        writing.set(false);
+        for (Future<?> readFuture : readFutures) {
+            readFuture.get();
+        }
+        executor.shutdown();
+
+        TreeSet<Integer> expected = new TreeSet<>();
+        for (int w = 0; w < writers; w++) {
+            Random rnd = new Random(w);
+            for (int i = 0; i < perWriter; i++) {
+                expected.add(rnd.nextInt(perWriter) * writers + w);
+            }
+        }
+        SeekableIterator<Integer> iter = list.iterator();
+        iter.seekToFirst();
+        for (Integer key : expected) {
+            Assertions.assertTrue(iter.valid());
+            Assertions.assertEquals(key, iter.key());
+            iter.next();
+        }
+        Assertions.assertFalse(iter.valid());
+    }
+
+    @Test
+    public void testInsertWithHint() {
+        SkipList<Integer> list = new SkipList<>();
+        SkipList.Splice<Integer> hint = list.newSplice();
+        TreeSet<Integer> keys = new TreeSet<>();
+        Random rnd = new Random(17);
+        // ascending runs interleaved with jumps back, the hint must survive both
+        for (int run = 0; run < 50; run++) {
+            int start = rnd.nextInt(100000);
+            for (int i = 0; i < 200; i++) {
+                int key = start + i * 3;
+                list.insertWithHint(key, hint);
+                keys.add(key);
+            }
+        }
+        SeekableIterator<Integer> iter = list.iterator();
+        iter.seekToFirst();
+        for (Integer key : keys) {
+            Assertions.assertTrue(iter.valid());
+            Assertions.assertEquals(key, iter.key());
+            iter.next();
+        }
+        Assertions.assertFalse(iter.valid());
+    }
+
+    @Test
+    public void testSequentialInsertBenchmark() {
+        int n = 500000;
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i;
+        }
+        for (int round = 0; round < 3; round++) {
+            SkipList<Integer> list = new SkipList<>();
+            long start = System.nanoTime();
+            for (Integer key : keys) {
+                list.insert(key);
+            }
+            long sequential = System.nanoTime() - start;
+
+            list = new SkipList<>();
+            start = System.nanoTime();
+            for (Integer key : keys) {
+                list.insertConcurrently(key);
+            }
+            long fromHead = System.nanoTime() - start;
+            System.err.printf("SkipList ascending insert: %.1f ns/op with splice hint, %.1f ns/op from head%n",
+                    sequential / (double) n, fromHead / (double) n);
+        }
+    }
+
+    @Test
+    public void testMemTableSequentialInsertBenchmark() {
+        int n = 500000;
+        ByteBuffer key = ByteBuffer.allocate(Long.BYTES);
+        ByteBuffer value = ByteBuffer.allocate(16);
+        for (int round = 0; round < 3; round++) {
+            // add() reuses the list's own splice, addConcurrently() the writer's
+            MemTable mem = new MemTable(new InternalKeyComparator());
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                key.putLong(0, i);
+                mem.add(i + 1, InternalKey.ValueType.kTypeValue, key, value.duplicate());
+            }
+            long sequential = System.nanoTime() - start;
+
+            mem = new MemTable(new InternalKeyComparator());
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                key.putLong(0, i);
+                mem.addConcurrently(i + 1, InternalKey.ValueType.kTypeValue, key, value.duplicate());
+            }
+            long writerSplice = System.nanoTime() - start;
+
+            // The same entries, each searched for from the head with a fresh splice
+            ArenaSkipList list = new ArenaSkipList(new Arena(), new InternalKeyComparator());
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                key.putLong(0, i);
+                long node = list.newNode(Long.BYTES + InternalKey.kTrailerSize, value.remaining());
+                InternalKey.encodeTo(list.block(node), list.keyOffset(node), key, i + 1, InternalKey.ValueType.kTypeValue);
+                list.insertConcurrently(node);
+            }
+            long fromHead = System.nanoTime() - start;
+            System.err.printf("MemTable ascending insert: %.1f ns/op with splice hint, %.1f ns/op with writer splice, "
+                            + "%.1f ns/op from head%n",
+                    sequential / (double) n, writerSplice / (double) n, fromHead / (double) n);
+        }
+    }
+
+    @Test
+    public void testReverseScanBenchmark() {
+        int n = 200000;
+        SkipList<Integer> list = new SkipList<>();
+        Random rnd = new Random(5);
+        for (int i = 0; i < n; i++) {
+            list.insert(rnd.nextInt());
+        }
+        for (int round = 0; round < 3; round++) {
+            SeekableIterator<Integer> iter = list.iterator();
+            long start = System.nanoTime();
+            int forward = 0;
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                forward++;
+            }
+            long forwardTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            int backward = 0;
+            for (iter.seekToLast(); iter.valid(); iter.prev()) {
+                backward++;
+            }
+            long backwardTime = System.nanoTime() - start;
+            Assertions.assertEquals(forward, backward);
+            System.err.printf("SkipList scan: %.1f ns/key forward, %.1f ns/key backward%n",
+                    forwardTime / (double) forward, backwardTime / (double) backward);
+        }
+    }
+
+    @Test
+    public void testMemTableReverseScanBenchmark() {
+        int n = 200000;
+        MemTable mem = new MemTable(new InternalKeyComparator());
+        Random rnd = new Random(5);
+        ByteBuffer key = ByteBuffer.allocate(Integer.BYTES);
+        ByteBuffer value = ByteBuffer.allocate(16);
+        for (int i = 0; i < n; i++) {
+            key.clear();
+            key.putInt(0, rnd.nextInt());
+            mem.add(i + 1, InternalKey.ValueType.kTypeValue, key, value.duplicate());
+        }
+        for (int round = 0; round < 3; round++) {
+            ArenaSkipList.Iterator iter = mem.iterator();
+            long start = System.nanoTime();
+            int forward = 0;
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                forward++;
+            }
+            long forwardTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            int backward = 0;
+            for (iter.seekToLast(); iter.valid(); iter.prev()) {
+                backward++;
+            }
+            long backwardTime = System.nanoTime() - start;
+            Assertions.assertEquals(n, forward);
+            Assertions.assertEquals(forward, backward);
+            System.err.printf("MemTable scan: %.1f ns/key forward, %.1f ns/key backward%n",
+                    forwardTime / (double) forward, backwardTime / (double) backward);
+        }
+    }
+
+    @Test
+    public void testFootprintAndSeekBenchmark() {
+        int n = 200000;
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i;
+        }
+        Collections.shuffle(Arrays.asList(keys), new Random(301));
+        long before = usedHeap();
+        SkipList<Integer> list = new SkipList<>();
+        for (Integer key : keys) {
+            list.insert(key);
+        }
+        long after = usedHeap();
+        System.err.printf("SkipList heap per entry: %.1f bytes%n", (after - before) / (double) n);
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (Integer key : keys) {
+                if (list.contains(key)) {
+                    found++;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            Assertions.assertEquals(n, found);
+            System.err.printf("SkipList seek: %.1f ns/op%n", elapsed / (double) n);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
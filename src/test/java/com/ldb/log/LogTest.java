@@ -0,0 +1,848 @@
+package com.ldb.log;
+
+import com.ldb.Env;
+import com.ldb.MmapWritableFile;
+import com.ldb.db.SequentialFile;
+import com.ldb.db.Status;
+import com.ldb.db.WritableFile;
+import com.ldb.utils.Crc32c;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static com.ldb.log.LogFormat.kBlockSize;
+import static com.ldb.log.LogFormat.kHeaderSize;
+
+// Mostly a port of LevelDB's log_test
+class LogTest {
+
+    // Construct a string of the specified length made out of the supplied partial string.
+    private static String bigString(String partialString, int n) {
+        StringBuilder result = new StringBuilder();
+        while (result.length() < n) {
+            result.append(partialString);
+        }
+        result.setLength(n);
+        return result.toString();
+    }
+
+    // Construct a string from a number
+    private static String numberString(int n) {
+        return n + ".";
+    }
+
+    // Return a skewed potentially long string
+    private static String randomSkewedString(int i, Random rnd) {
+        return bigString(numberString(i), skewed(rnd, 17));
+    }
+
+    private static int skewed(Random rnd, int maxLog) {
+        return rnd.nextInt(1 << rnd.nextInt(maxLog + 1));
+    }
+
+    static class StringDest implements WritableFile {
+        final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+
+        @Override
+        public Status append(ByteBuffer[] srcs, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                byte[] bytes = new byte[srcs[i].remaining()];
+                srcs[i].get(bytes);
+                contents.write(bytes, 0, bytes.length);
+            }
+            return Status.of(null);
+        }
+
+        @Override
+        public Status flush() {
+            return Status.of(null);
+        }
+
+        @Override
+        public Status sync() {
+            return Status.of(null);
+        }
+
+        @Override
+        public Status close() {
+            return Status.of(null);
+        }
+    }
+
+    static class StringSource implements SequentialFile {
+        byte[] contents;
+        int position;
+        boolean forceError;
+        boolean returnedPartial;
+
+        @Override
+        public Status read(ByteBuffer dst) {
+            Assertions.assertFalse(returnedPartial, "must not read() after eof/error");
+            if (forceError) {
+                forceError = false;
+                returnedPartial = true;
+                return Status.of(new IllegalStateException("read error"));
+            }
+            int n = Math.min(dst.remaining(), contents.length - position);
+            if (n < dst.remaining()) {
+                returnedPartial = true;
+            }
+            dst.put(contents, position, n);
+            position += n;
+            return Status.of(null);
+        }
+
+        @Override
+        public Status skip(long n) {
+            if (n > contents.length - position) {
+                position = contents.length;
+                return Status.of(new IllegalStateException("in-memory file skipped past end"));
+            }
+            position += (int) n;
+            return Status.of(null);
+        }
+
+        @Override
+        public Status close() {
+            return Status.of(null);
+        }
+    }
+
+    static class ReportCollector implements Reader.Reporter {
+        long droppedBytes;
+        StringBuilder message = new StringBuilder();
+
+        @Override
+        public void corruption(long bytes, Status status) {
+            droppedBytes += bytes;
+            message.append(status.getEx().getMessage());
+        }
+    }
+
+    private StringDest dest;
+    private StringSource source;
+    private ReportCollector report;
+    private boolean reading;
+    private Writer writer;
+    private Reader reader;
+
+    // Record metadata for testing initial offset functionality
+    private static final int[] initialOffsetRecordSizes = {
+            10000,  // Two sizable records in first block
+            10000,
+            2 * kBlockSize - 1000,  // Span three blocks
+            1,
+            13716,  // Consume all but two bytes of block 3.
+            kBlockSize - kHeaderSize,  // Consume the entirety of block 4.
+    };
+
+    private static final long[] initialOffsetLastRecordOffsets = {
+            0,
+            kHeaderSize + 10000,
+            2 * (kHeaderSize + 10000),
+            2 * (kHeaderSize + 10000) + (2 * kBlockSize - 1000) + 3 * kHeaderSize,
+            2 * (kHeaderSize + 10000) + (2 * kBlockSize - 1000) + 3 * kHeaderSize + kHeaderSize + 1,
+            3 * kBlockSize,
+    };
+
+    // Number of initial offset records
+    private static final int numInitialOffsetRecords = initialOffsetLastRecordOffsets.length;
+
+    @BeforeEach
+    public void setUp() {
+        dest = new StringDest();
+        source = new StringSource();
+        report = new ReportCollector();
+        reading = false;
+        writer = new Writer(dest);
+        reader = new Reader(source, report, true, 0);
+    }
+
+    private void reopenForAppend() {
+        writer = new Writer(dest, dest.contents.size());
+    }
+
+    private void write(String msg) {
+        Assertions.assertFalse(reading, "Write() after starting to read");
+        Assertions.assertTrue(writer.addRecord(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8))).isOk());
+    }
+
+    private int writtenBytes() {
+        return dest.contents.size();
+    }
+
+    private String read() {
+        if (!reading) {
+            reading = true;
+            if (source.contents == null) {
+                source.contents = dest.contents.toByteArray();
+            }
+        }
+        ByteBuffer record = reader.readRecord();
+        if (record == null) {
+            return "EOF";
+        }
+        byte[] bytes = new byte[record.remaining()];
+        record.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private byte[] contents() {
+        if (source.contents == null) {
+            source.contents = dest.contents.toByteArray();
+        }
+        return source.contents;
+    }
+
+    private void incrementByte(int offset, int delta) {
+        contents()[offset] += (byte) delta;
+    }
+
+    private void setByte(int offset, int newByte) {
+        contents()[offset] = (byte) newByte;
+    }
+
+    private void shrinkSize(int bytes) {
+        source.contents = Arrays.copyOf(contents(), contents().length - bytes);
+    }
+
+    private void fixChecksum(int headerOffset, int len) {
+        // Compute crc of type/len/data
+        CRC32C crc = new CRC32C();
+        crc.update(contents(), headerOffset + 6, 1 + len);
+        ByteBuffer.wrap(contents()).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(headerOffset, Crc32c.mask((int) crc.getValue()));
+    }
+
+    private void forceError() {
+        source.forceError = true;
+    }
+
+    private long droppedBytes() {
+        return report.droppedBytes;
+    }
+
+    private String reportMessage() {
+        return report.message.toString();
+    }
+
+    // Returns OK iff recorded error message contains "msg"
+    private String matchError(String msg) {
+        if (!reportMessage().contains(msg)) {
+            return reportMessage();
+        }
+        return "OK";
+    }
+
+    private void writeInitialOffsetLog() {
+        for (int i = 0; i < numInitialOffsetRecords; i++) {
+            write(bigString(String.valueOf((char) ('a' + i)), initialOffsetRecordSizes[i]));
+        }
+    }
+
+    private void startReadingAt(long initialOffset) {
+        reader = new Reader(source, report, true, initialOffset);
+    }
+
+    private void checkOffsetPastEndReturnsNoRecords(int offsetPastEnd) {
+        writeInitialOffsetLog();
+        reading = true;
+        source.contents = dest.contents.toByteArray();
+        Reader offsetReader = new Reader(source, report, true, writtenBytes() + offsetPastEnd);
+        Assertions.assertNull(offsetReader.readRecord());
+    }
+
+    private void checkInitialOffsetRecord(long initialOffset, int expectedRecordOffset) {
+        writeInitialOffsetLog();
+        reading = true;
+        source.contents = dest.contents.toByteArray();
+        Reader offsetReader = new Reader(source, report, true, initialOffset);
+
+        // Read all records from expectedRecordOffset through the last one.
+        Assertions.assertTrue(expectedRecordOffset < numInitialOffsetRecords);
+        for (; expectedRecordOffset < numInitialOffsetRecords; ++expectedRecordOffset) {
+            ByteBuffer record = offsetReader.readRecord();
+            Assertions.assertNotNull(record);
+            Assertions.assertEquals(initialOffsetRecordSizes[expectedRecordOffset], record.remaining());
+            Assertions.assertEquals(initialOffsetLastRecordOffsets[expectedRecordOffset], offsetReader.lastRecordOffset());
+            Assertions.assertEquals((byte) ('a' + expectedRecordOffset), record.get(record.position()));
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testReadWrite() {
+        write("foo");
+        write("bar");
+        write("");
+        write("xxxx");
+        Assertions.assertEquals("foo", read());
+        Assertions.assertEquals("bar", read());
+        Assertions.assertEquals("", read());
+        Assertions.assertEquals("xxxx", read());
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals("EOF", read());  // Make sure reads at eof work
+    }
+
+    @Test
+    public void testManyBlocks() {
+        for (int i = 0; i < 100000; i++) {
+            write(numberString(i));
+        }
+        for (int i = 0; i < 100000; i++) {
+            Assertions.assertEquals(numberString(i), read());
+        }
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testFragmentation() {
+        write("small");
+        write(bigString("medium", 50000));
+        write(bigString("large", 100000));
+        Assertions.assertEquals("small", read());
+        Assertions.assertEquals(bigString("medium", 50000), read());
+        Assertions.assertEquals(bigString("large", 100000), read());
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testMarginalTrailer() {
+        // Make a trailer that is exactly the same length as an empty record.
+        int n = kBlockSize - 2 * kHeaderSize;
+        write(bigString("foo", n));
+        Assertions.assertEquals(kBlockSize - kHeaderSize, writtenBytes());
+        write("");
+        write("bar");
+        Assertions.assertEquals(bigString("foo", n), read());
+        Assertions.assertEquals("", read());
+        Assertions.assertEquals("bar", read());
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testShortTrailer() {
+        int n = kBlockSize - 2 * kHeaderSize + 4;
+        write(bigString("foo", n));
+        Assertions.assertEquals(kBlockSize - kHeaderSize + 4, writtenBytes());
+        write("");
+        write("bar");
+        Assertions.assertEquals(bigString("foo", n), read());
+        Assertions.assertEquals("", read());
+        Assertions.assertEquals("bar", read());
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testAlignedEof() {
+        int n = kBlockSize - 2 * kHeaderSize + 4;
+        write(bigString("foo", n));
+        Assertions.assertEquals(kBlockSize - kHeaderSize + 4, writtenBytes());
+        Assertions.assertEquals(bigString("foo", n), read());
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testOpenForAppend() {
+        write("hello");
+        reopenForAppend();
+        write("world");
+        Assertions.assertEquals("hello", read());
+        Assertions.assertEquals("world", read());
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testRandomRead() {
+        int n = 500;
+        Random writeRnd = new Random(301);
+        for (int i = 0; i < n; i++) {
+            write(randomSkewedString(i, writeRnd));
+        }
+        Random readRnd = new Random(301);
+        for (int i = 0; i < n; i++) {
+            Assertions.assertEquals(randomSkewedString(i, readRnd), read());
+        }
+        Assertions.assertEquals("EOF", read());
+    }
+
+    // Tests of all the error paths in Reader follow:
+
+    @Test
+    public void testReadError() {
+        write("foo");
+        source.contents = dest.contents.toByteArray();
+        reading = true;
+        forceError();
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(kBlockSize, droppedBytes());
+        Assertions.assertEquals("OK", matchError("read error"));
+    }
+
+    @Test
+    public void testBadRecordType() {
+        write("foo");
+        // Type is stored in header[6]
+        incrementByte(6, 100);
+        fixChecksum(0, 3);
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(3, droppedBytes());
+        Assertions.assertEquals("OK", matchError("unknown record type"));
+    }
+
+    @Test
+    public void testTruncatedTrailingRecordIsIgnored() {
+        write("foo");
+        shrinkSize(4);  // Drop all payload as well as a header byte
+        Assertions.assertEquals("EOF", read());
+        // Truncated last record is ignored, not treated as an error.
+        Assertions.assertEquals(0, droppedBytes());
+        Assertions.assertEquals("", reportMessage());
+    }
+
+    @Test
+    public void testBadLength() {
+        int kPayloadSize = kBlockSize - kHeaderSize;
+        write(bigString("bar", kPayloadSize));
+        write("foo");
+        // Least significant size byte is stored in header[4].
+        incrementByte(4, 1);
+        Assertions.assertEquals("foo", read());
+        Assertions.assertEquals(kBlockSize, droppedBytes());
+        Assertions.assertEquals("OK", matchError("bad record length"));
+    }
+
+    @Test
+    public void testBadLengthAtEndIsIgnored() {
+        write("foo");
+        shrinkSize(1);
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(0, droppedBytes());
+        Assertions.assertEquals("", reportMessage());
+    }
+
+    @Test
+    public void testChecksumMismatch() {
+        write("foo");
+        incrementByte(0, 10);
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(10, droppedBytes());
+        Assertions.assertEquals("OK", matchError("checksum mismatch"));
+    }
+
+    @Test
+    public void testUnexpectedMiddleType() {
+        write("foo");
+        setByte(6, LogFormat.kMiddleType);
+        fixChecksum(0, 3);
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(3, droppedBytes());
+        Assertions.assertEquals("OK", matchError("missing start"));
+    }
+
+    @Test
+    public void testUnexpectedLastType() {
+        write("foo");
+        setByte(6, LogFormat.kLastType);
+        fixChecksum(0, 3);
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(3, droppedBytes());
+        Assertions.assertEquals("OK", matchError("missing start"));
+    }
+
+    @Test
+    public void testUnexpectedFullType() {
+        write("foo");
+        write("bar");
+        setByte(6, LogFormat.kFirstType);
+        fixChecksum(0, 3);
+        Assertions.assertEquals("bar", read());
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(3, droppedBytes());
+        Assertions.assertEquals("OK", matchError("partial record without end"));
+    }
+
+    @Test
+    public void testUnexpectedFirstType() {
+        write("foo");
+        write(bigString("bar", 100000));
+        setByte(6, LogFormat.kFirstType);
+        fixChecksum(0, 3);
+        Assertions.assertEquals(bigString("bar", 100000), read());
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(3, droppedBytes());
+        Assertions.assertEquals("OK", matchError("partial record without end"));
+    }
+
+    @Test
+    public void testMissingLastIsIgnored() {
+        write(bigString("bar", kBlockSize));
+        // Remove the LAST block, including header.
+        shrinkSize(14);
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals("", reportMessage());
+        Assertions.assertEquals(0, droppedBytes());
+    }
+
+    @Test
+    public void testPartialLastIsIgnored() {
+        write(bigString("bar", kBlockSize));
+        // Cause a bad record length in the LAST block.
+        shrinkSize(1);
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals("", reportMessage());
+        Assertions.assertEquals(0, droppedBytes());
+    }
+
+    @Test
+    public void testSkipIntoMultiRecord() {
+        // Consider a fragmented record:
+        //    first(R1), middle(R1), last(R1), first(R2)
+        // If initialOffset points to a record after first(R1) but before first(R2)
+        // incomplete fragment errors are not actual errors, and must be suppressed
+        // until a new first or full record is encountered.
+        write(bigString("foo", 3 * kBlockSize));
+        write("correct");
+        source.contents = dest.contents.toByteArray();
+        reading = true;
+        startReadingAt(kBlockSize);
+
+        Assertions.assertEquals("correct", read());
+        Assertions.assertEquals("", reportMessage());
+        Assertions.assertEquals(0, droppedBytes());
+        Assertions.assertEquals("EOF", read());
+    }
+
+    @Test
+    public void testErrorJoinsRecords() {
+        // Consider two fragmented records:
+        //    first(R1) last(R1) first(R2) last(R2)
+        // where the middle two fragments disappear.  We do not want
+        // first(R1),last(R2) to get joined and returned as a valid record.
+
+        // Write records that span two blocks
+        write(bigString("foo", kBlockSize));
+        write(bigString("bar", kBlockSize));
+        write("correct");
+
+        // Wipe the middle block
+        for (int offset = kBlockSize; offset < 2 * kBlockSize; offset++) {
+            setByte(offset, 'x');
+        }
+
+        Assertions.assertEquals("correct", read());
+        Assertions.assertEquals("EOF", read());
+        long dropped = droppedBytes();
+        Assertions.assertTrue(dropped <= 2 * kBlockSize + 100);
+        Assertions.assertTrue(dropped >= 2 * kBlockSize);
+    }
+
+    @Test
+    public void testReadStart() {
+        checkInitialOffsetRecord(0, 0);
+    }
+
+    @Test
+    public void testReadSecondOneOff() {
+        checkInitialOffsetRecord(1, 1);
+    }
+
+    @Test
+    public void testReadSecondTenThousand() {
+        checkInitialOffsetRecord(10000, 1);
+    }
+
+    @Test
+    public void testReadSecondStart() {
+        checkInitialOffsetRecord(10007, 1);
+    }
+
+    @Test
+    public void testReadThirdOneOff() {
+        checkInitialOffsetRecord(10008, 2);
+    }
+
+    @Test
+    public void testReadThirdStart() {
+        checkInitialOffsetRecord(20014, 2);
+    }
+
+    @Test
+    public void testReadFourthOneOff() {
+        checkInitialOffsetRecord(20015, 3);
+    }
+
+    @Test
+    public void testReadFourthFirstBlockTrailer() {
+        checkInitialOffsetRecord(kBlockSize - 4, 3);
+    }
+
+    @Test
+    public void testReadFourthMiddleBlock() {
+        checkInitialOffsetRecord(kBlockSize + 1, 3);
+    }
+
+    @Test
+    public void testReadFourthLastBlock() {
+        checkInitialOffsetRecord(2 * kBlockSize + 1, 3);
+    }
+
+    @Test
+    public void testReadFourthStart() {
+        checkInitialOffsetRecord(2 * (kHeaderSize + 1000) + (2 * kBlockSize - 1000) + 3 * kHeaderSize, 3);
+    }
+
+    @Test
+    public void testReadInitialOffsetIntoBlockPadding() {
+        checkInitialOffsetRecord(3 * kBlockSize - 3, 5);
+    }
+
+    @Test
+    public void testReadEnd() {
+        checkOffsetPastEndReturnsNoRecords(0);
+    }
+
+    @Test
+    public void testReadPastEnd() {
+        checkOffsetPastEndReturnsNoRecords(5);
+    }
+
+    @Test
+    public void testFileRoundTrip(@TempDir Path dir) {
+        Env env = new Env();
+        String fname = dir.resolve("000003.log").toString();
+        WritableFile file = env.newWritableFile(fname);
+        Writer fileWriter = new Writer(file);
+        Random rnd = new Random(301);
+        for (int i = 0; i < 200; i++) {
+            ByteBuffer record = ByteBuffer.allocateDirect(skewed(rnd, 17));
+            if (record.hasRemaining()) {
+                record.put(0, (byte) i);
+            }
+            Assertions.assertTrue(fileWriter.addRecord(record).isOk());
+            Assertions.assertEquals(0, record.position());
+        }
+        Assertions.assertTrue(file.sync().isOk());
+        Assertions.assertTrue(file.close().isOk());
+
+        Reader fileReader = new Reader(env.newSequentialFile(fname), report, true, 0);
+        rnd = new Random(301);
+        for (int i = 0; i < 200; i++) {
+            ByteBuffer record = fileReader.readRecord();
+            Assertions.assertNotNull(record);
+            Assertions.assertEquals(skewed(rnd, 17), record.remaining());
+            if (record.hasRemaining()) {
+                Assertions.assertEquals((byte) i, record.get(record.position()));
+            }
+        }
+        Assertions.assertNull(fileReader.readRecord());
+        Assertions.assertEquals(0, droppedBytes());
+    }
+
+    @Test
+    public void testRecycledLogEndsAtOldRecords() {
+        // An earlier log filled the file, the new log is shorter
+        writer = new Writer(dest, 0, true, 1);
+        for (int i = 0; i < 100; i++) {
+            write(bigString(numberString(i), 1000));
+        }
+        byte[] old = dest.contents.toByteArray();
+        dest.contents.reset();
+        writer = new Writer(dest, 0, true, 2);
+        write("foo");
+        write(bigString("bar", 40000));
+        write("baz");
+        byte[] fresh = dest.contents.toByteArray();
+        source.contents = Arrays.copyOf(fresh, old.length);
+        System.arraycopy(old, fresh.length, source.contents, fresh.length, old.length - fresh.length);
+
+        reader = new Reader(source, report, true, 0, 2);
+        Assertions.assertEquals("foo", read());
+        Assertions.assertEquals(bigString("bar", 40000), read());
+        Assertions.assertEquals("baz", read());
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(0, droppedBytes());
+        Assertions.assertEquals("", reportMessage());
+    }
+
+    @Test
+    public void testRecycledLogInitialOffset() {
+        writer = new Writer(dest, 0, true, 5);
+        write("foo");
+        write("bar");
+        reader = new Reader(source, report, true, 1, 5);
+        Assertions.assertEquals("bar", read());
+        Assertions.assertEquals(LogFormat.kRecyclableHeaderSize + 3, reader.lastRecordOffset());
+        Assertions.assertEquals("EOF", read());
+        Assertions.assertEquals(0, droppedBytes());
+    }
+
+    @Test
+    public void testPreallocatedFileRoundTrip(@TempDir Path dir) throws IOException {
+        Env env = new Env();
+        String fname = dir.resolve("000004.log").toString();
+        WritableFile file = env.newWritableFile(fname, 1 << 20);
+        Writer fileWriter = new Writer(file);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(fileWriter.addRecord(ByteBuffer.wrap(
+                    bigString(numberString(i), 1000).getBytes(StandardCharsets.UTF_8))).isOk());
+        }
+        Assertions.assertTrue(file.sync().isOk());
+        Assertions.assertTrue(file.close().isOk());
+        // Appends went over the zeros and did not grow the file
+        Assertions.assertEquals(1 << 20, Files.size(Path.of(fname)));
+
+        reader = new Reader(env.newSequentialFile(fname), report, true, 0);
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer record = reader.readRecord();
+            Assertions.assertNotNull(record);
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            Assertions.assertEquals(bigString(numberString(i), 1000), new String(bytes, StandardCharsets.UTF_8));
+        }
+        Assertions.assertNull(reader.readRecord());
+        Assertions.assertEquals(0, droppedBytes());
+    }
+
+    @Test
+    public void testMmapFileRoundTrip(@TempDir Path dir) throws IOException {
+        String fname = dir.resolve("000005.log").toString();
+        FileChannel channel = FileChannel.open(Path.of(fname),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Small windows so records straddle them
+        WritableFile file = new MmapWritableFile(fname, channel, 64 << 10);
+        Writer fileWriter = new Writer(file);
+        Random rnd = new Random(301);
+        for (int i = 0; i < 200; i++) {
+            Assertions.assertTrue(fileWriter.addRecord(ByteBuffer.wrap(
+                    randomSkewedString(i, rnd).getBytes(StandardCharsets.UTF_8))).isOk());
+            if (i % 50 == 0) {
+                Assertions.assertTrue(file.sync().isOk());
+            }
+        }
+        Assertions.assertTrue(file.sync().isOk());
+        long written = 0;
+        try (FileChannel check = FileChannel.open(Path.of(fname))) {
+            written = check.size();
+        }
+        Assertions.assertTrue(file.close().isOk());
+        // Cut back from the window size to the data
+        Assertions.assertTrue(Files.size(Path.of(fname)) < written);
+
+        reader = new Reader(new Env().newSequentialFile(fname), report, true, 0);
+        rnd = new Random(301);
+        for (int i = 0; i < 200; i++) {
+            ByteBuffer record = reader.readRecord();
+            Assertions.assertNotNull(record);
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            Assertions.assertEquals(randomSkewedString(i, rnd), new String(bytes, StandardCharsets.UTF_8));
+        }
+        Assertions.assertNull(reader.readRecord());
+        Assertions.assertEquals(0, droppedBytes());
+    }
+
+    @Test
+    public void testMmapPreallocatedFileKeepsSize(@TempDir Path dir) throws IOException {
+        Env env = new Env();
+        String fname = dir.resolve("000006.log").toString();
+        WritableFile file = env.newMmapWritableFile(fname, 4 << 20);
+        Writer fileWriter = new Writer(file);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(fileWriter.addRecord(ByteBuffer.wrap(
+                    bigString(numberString(i), 100).getBytes(StandardCharsets.UTF_8))).isOk());
+        }
+        Assertions.assertTrue(file.close().isOk());
+        Assertions.assertEquals(4 << 20, Files.size(Path.of(fname)));
+
+        reader = new Reader(env.newSequentialFile(fname), report, true, 0);
+        int records = 0;
+        while (reader.readRecord() != null) {
+            records++;
+        }
+        Assertions.assertEquals(100, records);
+        Assertions.assertEquals(0, droppedBytes());
+    }
+
+    @Test
+    public void testMmapWriteBenchmark(@TempDir Path dir) throws IOException {
+        Env env = new Env();
+        long total = 128L << 20;
+        for (int round = 0; round < 2; round++) {
+            for (int recordSize : new int[]{100, 4096}) {
+                ByteBuffer record = ByteBuffer.allocateDirect(recordSize);
+                double[] seconds = new double[2];
+                for (int mmap = 0; mmap < 2; mmap++) {
+                    String fname = dir.resolve("bench-" + mmap + ".log").toString();
+                    WritableFile file = mmap == 1 ? env.newMmapWritableFile(fname, 0) : env.newWritableFile(fname);
+                    Writer logWriter = new Writer(file);
+                    long start = System.nanoTime();
+                    for (long written = 0; written < total; written += recordSize) {
+                        logWriter.addRecord(record);
+                    }
+                    seconds[mmap] = (System.nanoTime() - start) / 1e9;
+                    file.close();
+                    Files.delete(Path.of(fname));
+                }
+                long records = total / recordSize;
+                System.err.printf("WAL %d byte records: FileChannel %.0f records/s (%.0f MB/s), mmap %.0f records/s (%.0f MB/s)%n",
+                        recordSize, records / seconds[0], (total >> 20) / seconds[0],
+                        records / seconds[1], (total >> 20) / seconds[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteBenchmark(@TempDir Path dir) throws IOException {
+        int recordSize = 1000;
+        long total = 256L << 20;
+        ByteBuffer record = ByteBuffer.allocateDirect(recordSize);
+        Env env = new Env();
+        for (int round = 0; round < 2; round++) {
+            String fname = dir.resolve("bench-" + round + ".log").toString();
+            WritableFile file = env.newWritableFile(fname);
+            Writer logWriter = new Writer(file);
+            long start = System.nanoTime();
+            for (long written = 0; written < total; written += recordSize) {
+                logWriter.addRecord(record);
+            }
+            double logSeconds = (System.nanoTime() - start) / 1e9;
+            file.close();
+            Files.delete(Path.of(fname));
+
+            Path raw = dir.resolve("raw-" + round);
+            try (FileChannel channel = FileChannel.open(raw, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                start = System.nanoTime();
+                for (long written = 0; written < total; written += recordSize) {
+                    record.clear();
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+            }
+            double rawSeconds = (System.nanoTime() - start) / 1e9;
+            Files.delete(raw);
+            record.clear();
+            System.err.printf("WAL %d byte records: %.0f MB/s, raw FileChannel.write: %.0f MB/s%n",
+                    recordSize, (total >> 20) / logSeconds, (total >> 20) / rawSeconds);
+        }
+    }
+}
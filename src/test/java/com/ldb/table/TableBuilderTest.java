@@ -0,0 +1,345 @@
+package com.ldb.table;
+
+import com.ldb.Env;
+import com.ldb.db.Options;
+import com.ldb.db.Status;
+import com.ldb.db.WritableFile;
+import com.ldb.db.memtable.ArenaSkipList;
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.InternalKeyComparator;
+import com.ldb.db.memtable.MemTable;
+import com.ldb.utils.Coding;
+import com.ldb.utils.Crc32c;
+import com.ldb.utils.filter.BloomFilterBasePolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+class TableBuilderTest {
+    private static final InternalKeyComparator icmp = new InternalKeyComparator();
+
+    static class StringDest implements WritableFile {
+        final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        int appends;
+
+        @Override
+        public Status append(ByteBuffer[] srcs, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                byte[] bytes = new byte[srcs[i].remaining()];
+                srcs[i].get(bytes);
+                contents.write(bytes, 0, bytes.length);
+            }
+            appends++;
+            return Status.of(null);
+        }
+
+        @Override
+        public Status flush() {
+            return Status.of(null);
+        }
+
+        @Override
+        public Status sync() {
+            return Status.of(null);
+        }
+
+        @Override
+        public Status close() {
+            return Status.of(null);
+        }
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer internalKey(String userKey, long sequence) {
+        return new InternalKey(bytes(userKey), sequence, InternalKey.ValueType.kTypeValue).getRep().duplicate();
+    }
+
+    // Checks the trailer of the block at handle and returns its contents
+    private static ByteBuffer readBlock(ByteBuffer file, BlockHandle handle) {
+        int offset = (int) handle.offset();
+        int size = (int) handle.size();
+        ByteBuffer contents = file.duplicate();
+        contents.limit(offset + size).position(offset);
+        contents = contents.slice();
+        Assertions.assertEquals(TableFormat.kNoCompression, file.get(offset + size));
+        CRC32C crc = new CRC32C();
+        crc.update(contents.duplicate());
+        crc.update(TableFormat.kNoCompression);
+        int stored = file.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(offset + size + 1);
+        Assertions.assertEquals((int) crc.getValue(), Crc32c.unmask(stored));
+        return contents;
+    }
+
+    // Decodes the entries of a block into (key, value) pairs and checks that
+    // restart points hold full keys
+    private static List<ByteBuffer[]> decodeBlock(ByteBuffer block) {
+        ByteBuffer input = block.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int numRestarts = input.getInt(input.limit() - Integer.BYTES);
+        int restartOffset = input.limit() - (1 + numRestarts) * Integer.BYTES;
+        List<Integer> restarts = new ArrayList<>();
+        for (int i = 0; i < numRestarts; i++) {
+            restarts.add(input.getInt(restartOffset + i * Integer.BYTES));
+        }
+        List<ByteBuffer[]> entries = new ArrayList<>();
+        byte[] key = new byte[0];
+        input.limit(restartOffset);
+        while (input.hasRemaining()) {
+            boolean restart = restarts.contains(input.position());
+            int shared = Coding.getVarint32(input);
+            int nonShared = Coding.getVarint32(input);
+            int valueLength = Coding.getVarint32(input);
+            if (restart) {
+                Assertions.assertEquals(0, shared);
+            }
+            byte[] next = new byte[shared + nonShared];
+            System.arraycopy(key, 0, next, 0, shared);
+            input.get(next, shared, nonShared);
+            byte[] value = new byte[valueLength];
+            input.get(value);
+            key = next;
+            entries.add(new ByteBuffer[]{ByteBuffer.wrap(key), ByteBuffer.wrap(value)});
+        }
+        return entries;
+    }
+
+    @Test
+    public void testBlockBuilder() {
+        BlockBuilder block = new BlockBuilder(4);
+        Assertions.assertTrue(block.isEmpty());
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(String.format("key%04d", i));
+        }
+        for (int round = 0; round < 2; round++) {
+            for (String key : keys) {
+                block.add(bytes(key), bytes("v" + key));
+            }
+            int estimate = block.currentSizeEstimate();
+            ByteBuffer contents = block.finish();
+            Assertions.assertEquals(estimate, contents.remaining());
+            // 25 restart points and their count
+            Assertions.assertEquals(25, contents.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                    .getInt(contents.limit() - Integer.BYTES));
+            List<ByteBuffer[]> entries = decodeBlock(contents);
+            Assertions.assertEquals(keys.size(), entries.size());
+            for (int i = 0; i < keys.size(); i++) {
+                Assertions.assertEquals(keys.get(i), string(entries.get(i)[0]));
+                Assertions.assertEquals("v" + keys.get(i), string(entries.get(i)[1]));
+            }
+            // Shared prefixes make it much smaller than the raw data
+            Assertions.assertTrue(contents.remaining() < 100 * (7 + 8));
+            block.reset();
+            Assertions.assertTrue(block.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSeparators() {
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        // When user keys are same
+        Assertions.assertEquals("foo", separator(dst, "foo", 100, "foo", 99));
+        Assertions.assertEquals(100, sequence(dst));
+        // When user keys are misordered or one is a prefix of the other
+        Assertions.assertEquals("foo", separator(dst, "foo", 100, "bar", 99));
+        Assertions.assertEquals("foo", separator(dst, "foo", 100, "foobar", 200));
+        // When user keys are different, but correctly ordered
+        Assertions.assertEquals("g", separator(dst, "foo", 100, "hello", 200));
+        Assertions.assertEquals(InternalKey.kMaxSequenceNumber, sequence(dst));
+        Assertions.assertEquals("the r", separator(dst, "the quick brown fox", 1, "the who", 1));
+        // No byte can be incremented below the limit
+        Assertions.assertEquals("abc", separator(dst, "abc", 1, "abd", 1));
+
+        ByteBuffer key = internalKey("foo", 100);
+        int n = icmp.findShortSuccessor(key, 0, key.remaining(), dst);
+        Assertions.assertEquals("g", string(dst.duplicate().limit(n - InternalKey.kTrailerSize)));
+        key = new InternalKey(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xff}), 100,
+                InternalKey.ValueType.kTypeValue).getRep().duplicate();
+        n = icmp.findShortSuccessor(key, 0, key.remaining(), dst);
+        Assertions.assertEquals(key.remaining(), n);
+    }
+
+    private static String separator(ByteBuffer dst, String start, long startSequence, String limit, long limitSequence) {
+        ByteBuffer a = internalKey(start, startSequence);
+        ByteBuffer b = internalKey(limit, limitSequence);
+        int n = icmp.findShortestSeparator(a, 0, a.remaining(), b, 0, b.remaining(), dst);
+        ByteBuffer separator = dst.duplicate().limit(n);
+        Assertions.assertTrue(icmp.compare(a, 0, a.remaining(), separator, 0, n) <= 0);
+        if (icmp.compare(a, 0, a.remaining(), b, 0, b.remaining()) < 0) {
+            Assertions.assertTrue(icmp.compare(separator, 0, n, b, 0, b.remaining()) < 0);
+        }
+        dst.limit(n);
+        return string(dst.duplicate().limit(n - InternalKey.kTrailerSize));
+    }
+
+    private static long sequence(ByteBuffer dst) {
+        long sequence = dst.getLong(dst.limit() - InternalKey.kTrailerSize) >>> 8;
+        dst.clear();
+        return sequence;
+    }
+
+    @Test
+    public void testTableFormat() {
+        Options options = new Options();
+        options.blockSize = 1024;
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        StringDest dest = new StringDest();
+        TableBuilder builder = new TableBuilder(options, dest);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            keys.add(String.format("key%06d", i * 20));
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            builder.add(internalKey(keys.get(i), i + 1), bytes("value" + i));
+        }
+        Assertions.assertEquals(keys.size(), builder.numEntries());
+        Assertions.assertTrue(builder.finish().isOk());
+        ByteBuffer file = ByteBuffer.wrap(dest.contents.toByteArray());
+        Assertions.assertEquals(file.remaining(), builder.fileSize());
+        // Written in large appends, not a write per block
+        Assertions.assertTrue(dest.appends <= file.remaining() / TableBuilder.kWriteBufferSize + 2);
+
+        file.position(file.limit() - Footer.kEncodedLength);
+        Footer footer = Footer.decodeFrom(file);
+        file.position(0);
+
+        // Every data block is covered by an index entry with a short separator
+        List<ByteBuffer[]> index = decodeBlock(readBlock(file, footer.indexHandle()));
+        Assertions.assertTrue(index.size() > 100, "blocks: " + index.size());
+        int next = 0;
+        ByteBuffer previousSeparator = null;
+        int shortened = 0;
+        for (ByteBuffer[] entry : index) {
+            ByteBuffer separator = entry[0];
+            BlockHandle handle = BlockHandle.decodeFrom(entry[1].duplicate());
+            Assertions.assertTrue(handle.size() < options.blockSize + 64);
+            List<ByteBuffer[]> block = decodeBlock(readBlock(file, handle));
+            for (ByteBuffer[] kv : block) {
+                ByteBuffer expected = internalKey(keys.get(next), next + 1);
+                Assertions.assertEquals(expected, kv[0]);
+                Assertions.assertEquals("value" + next, string(kv[1]));
+                next++;
+            }
+            ByteBuffer last = block.get(block.size() - 1)[0];
+            Assertions.assertTrue(icmp.compare(last, 0, last.remaining(), separator, 0, separator.remaining()) <= 0);
+            if (previousSeparator != null) {
+                ByteBuffer first = block.get(0)[0];
+                Assertions.assertTrue(icmp.compare(previousSeparator, 0, previousSeparator.remaining(),
+                        first, 0, first.remaining()) < 0);
+            }
+            if (separator.remaining() < last.remaining()) {
+                shortened++;
+            }
+            previousSeparator = separator;
+        }
+        Assertions.assertEquals(keys.size(), next);
+        Assertions.assertTrue(shortened > index.size() / 2, shortened + " shortened separators");
+
+        // The metaindex points at the filter block
+        List<ByteBuffer[]> metaindex = decodeBlock(readBlock(file, footer.metaindexHandle()));
+        Assertions.assertEquals(1, metaindex.size());
+        Assertions.assertEquals("filter.leveldb.BuiltinBloomFilter", string(metaindex.get(0)[0]));
+        BlockHandle filterHandle = BlockHandle.decodeFrom(metaindex.get(0)[1]);
+        ByteBuffer filters = readBlock(file, filterHandle).order(ByteOrder.LITTLE_ENDIAN);
+        Assertions.assertEquals(FilterBlockBuilder.kFilterBaseLg, filters.get(filters.limit() - 1));
+        int arrayOffset = filters.getInt(filters.limit() - 5);
+        int numFilters = (filters.limit() - 5 - arrayOffset) / Integer.BYTES;
+        // One filter per 2KB of data blocks, which end where the filter block starts
+        long dataSize = filterHandle.offset();
+        Assertions.assertEquals((dataSize - 1) / FilterBlockBuilder.kFilterBase + 1, numFilters);
+        int falsePositives = 0;
+        for (ByteBuffer[] entry : index) {
+            BlockHandle handle = BlockHandle.decodeFrom(entry[1].duplicate());
+            int i = (int) (handle.offset() >> FilterBlockBuilder.kFilterBaseLg);
+            int start = filters.getInt(arrayOffset + i * Integer.BYTES);
+            int limit = filters.getInt(arrayOffset + (i + 1) * Integer.BYTES);
+            ByteBuffer filter = filters.duplicate().limit(limit).position(start).slice().order(ByteOrder.BIG_ENDIAN);
+            for (ByteBuffer[] kv : decodeBlock(readBlock(file, handle))) {
+                byte[] userKey = new byte[kv[0].remaining() - InternalKey.kTrailerSize];
+                kv[0].duplicate().get(userKey);
+                Assertions.assertTrue(options.filterPolicy.keyMayMatch(userKey, filter));
+            }
+            if (options.filterPolicy.keyMayMatch("missing".getBytes(StandardCharsets.UTF_8), filter)) {
+                falsePositives++;
+            }
+        }
+        Assertions.assertTrue(falsePositives < index.size() / 10, falsePositives + " false positives");
+    }
+
+    @Test
+    public void testEmptyTable() {
+        StringDest dest = new StringDest();
+        TableBuilder builder = new TableBuilder(new Options(), dest);
+        Assertions.assertTrue(builder.finish().isOk());
+        ByteBuffer file = ByteBuffer.wrap(dest.contents.toByteArray());
+        file.position(file.limit() - Footer.kEncodedLength);
+        Footer footer = Footer.decodeFrom(file);
+        file.position(0);
+        Assertions.assertEquals(0, decodeBlock(readBlock(file, footer.indexHandle())).size());
+        Assertions.assertEquals(0, decodeBlock(readBlock(file, footer.metaindexHandle())).size());
+    }
+
+    @Test
+    public void testBuildBenchmark(@TempDir Path dir) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        MemTable mem = new MemTable();
+        mem.ref();
+        ByteBuffer key = ByteBuffer.allocate(16);
+        ByteBuffer value = ByteBuffer.allocate(100);
+        long sequence = 0;
+        while (mem.approximateMemoryUsage() < (64 << 20)) {
+            key.putLong(0, Long.reverse(sequence)).putLong(8, sequence);
+            mem.add(++sequence, InternalKey.ValueType.kTypeValue, key, value);
+        }
+        // Entries are copied out of the memtable into reused buffers first, so the
+        // allocation counted is the builder's own and not the iterator views
+        int entries = (int) sequence;
+        ByteBuffer ikeys = ByteBuffer.allocate(entries * (16 + InternalKey.kTrailerSize));
+        ArenaSkipList.Iterator iter = mem.iterator();
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+            ikeys.put(iter.key());
+        }
+        mem.unref();
+        Options options = new Options();
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        for (int round = 0; round < 5; round++) {
+            String fname = dir.resolve(round + ".ldb").toString();
+            WritableFile file = new Env().newWritableFile(fname);
+            long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+            TableBuilder builder = new TableBuilder(options, file);
+            ByteBuffer ikey = ikeys.duplicate();
+            for (int i = 0; i < entries; i++) {
+                ikey.limit((i + 1) * (16 + InternalKey.kTrailerSize)).position(i * (16 + InternalKey.kTrailerSize));
+                builder.add(ikey, value);
+            }
+            Assertions.assertTrue(builder.finish().isOk());
+            Assertions.assertTrue(file.close().isOk());
+            long elapsed = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+            Assertions.assertEquals(Files.size(Path.of(fname)), builder.fileSize());
+            System.err.printf("table of %d entries, %.1f MB: %.0f MB/s, %.2f bytes allocated per entry%n",
+                    entries, builder.fileSize() / 1048576.0, builder.fileSize() / 1048576.0 * 1e9 / elapsed,
+                    (double) allocated / entries);
+        }
+    }
+}
@@ -0,0 +1,592 @@
+package com.ldb.table;
+
+import com.ldb.Env;
+import com.ldb.db.Options;
+import com.ldb.db.RandomAccessFile;
+import com.ldb.db.ReadOptions;
+import com.ldb.db.Status;
+import com.ldb.db.WritableFile;
+import com.ldb.db.memtable.InternalKey;
+import com.ldb.db.memtable.LookupKey;
+import com.ldb.db.memtable.LookupResult;
+import com.ldb.utils.KeyValueIterator;
+import com.ldb.utils.cache.Cache;
+import com.ldb.utils.cache.ClockCache;
+import com.ldb.utils.cache.LRUCache;
+import com.ldb.utils.filter.BloomFilterBasePolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class TableTest {
+    @TempDir
+    Path dir;
+
+    // Counts the reads that reach the file
+    static class CountingFile implements RandomAccessFile {
+        final RandomAccessFile target;
+        final AtomicInteger reads = new AtomicInteger();
+
+        CountingFile(RandomAccessFile target) {
+            this.target = target;
+        }
+
+        @Override
+        public ByteBuffer read(long offset, int n) {
+            reads.incrementAndGet();
+            return target.read(offset, n);
+        }
+
+        @Override
+        public boolean isMapped() {
+            return target.isMapped();
+        }
+
+        @Override
+        public Status close() {
+            return target.close();
+        }
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String userKey(ByteBuffer ikey) {
+        return string(ikey.duplicate().limit(ikey.limit() - InternalKey.kTrailerSize));
+    }
+
+    // "k<i>" keys with value "v<i>", every 5th is a deletion. Sequence i + 1.
+    private static TreeMap<String, String> model(int n) {
+        TreeMap<String, String> model = new TreeMap<>();
+        for (int i = 0; i < n; i++) {
+            model.put(String.format("k%06d", i * 3), i % 5 == 4 ? null : "v" + i);
+        }
+        return model;
+    }
+
+    private Path build(Options options, TreeMap<String, String> model) {
+        Path path = dir.resolve("000007.ldb");
+        WritableFile file = options.getEnv().newWritableFile(path.toString());
+        TableBuilder builder = new TableBuilder(options, file);
+        long sequence = 0;
+        for (Map.Entry<String, String> e : model.entrySet()) {
+            InternalKey.ValueType type = e.getValue() == null
+                    ? InternalKey.ValueType.kTypeDeletion : InternalKey.ValueType.kTypeValue;
+            builder.add(new InternalKey(bytes(e.getKey()), ++sequence, type).getRep().duplicate(),
+                    e.getValue() == null ? ByteBuffer.allocate(0) : bytes(e.getValue()));
+        }
+        Assertions.assertTrue(builder.finish().isOk());
+        Assertions.assertTrue(file.close().isOk());
+        return path;
+    }
+
+    private static CountingFile open(Options options, Path path, boolean mmap) {
+        Env env = options.getEnv();
+        return new CountingFile(mmap ? env.newMmapRandomAccessFile(path.toString())
+                : env.newRandomAccessFile(path.toString()));
+    }
+
+    private static ByteBuffer seekKey(String userKey) {
+        return new InternalKey(bytes(userKey), InternalKey.kMaxSequenceNumber,
+                InternalKey.ValueType.kValueTypeForSeek).getRep().duplicate();
+    }
+
+    @Test
+    public void testBlockIterator() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add(String.format("key%05d", i * 2));
+        }
+        for (int restartInterval : new int[]{1, 2, 16, 1000}) {
+            BlockBuilder builder = new BlockBuilder(restartInterval);
+            for (String key : keys) {
+                builder.add(bytes(key), bytes("v" + key));
+            }
+            Block block = new Block(builder.finish());
+            KeyValueIterator iter = block.iterator(com.ldb.utils.BytewiseComparator::compare);
+            List<String> forward = new ArrayList<>();
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                Assertions.assertEquals("v" + string(iter.key()), string(iter.value()));
+                forward.add(string(iter.key()));
+            }
+            Assertions.assertEquals(keys, forward);
+            List<String> backward = new ArrayList<>();
+            for (iter.seekToLast(); iter.valid(); iter.prev()) {
+                backward.add(0, string(iter.key()));
+            }
+            Assertions.assertEquals(keys, backward);
+            // Every key, the gaps between them and both ends
+            for (int i = -1; i <= 400; i++) {
+                String target = String.format("key%05d", i);
+                iter.seek(bytes(target));
+                int expected = (i + 1) / 2;
+                if (expected >= keys.size()) {
+                    Assertions.assertFalse(iter.valid());
+                    continue;
+                }
+                Assertions.assertEquals(keys.get(expected), string(iter.key()), target);
+                iter.prev();
+                if (expected == 0) {
+                    Assertions.assertFalse(iter.valid());
+                } else {
+                    Assertions.assertEquals(keys.get(expected - 1), string(iter.key()));
+                }
+            }
+        }
+        // A block with nothing in it
+        BlockBuilder empty = new BlockBuilder(16);
+        KeyValueIterator iter = new Block(empty.finish()).iterator(com.ldb.utils.BytewiseComparator::compare);
+        iter.seekToFirst();
+        Assertions.assertFalse(iter.valid());
+        iter.seek(bytes("a"));
+        Assertions.assertFalse(iter.valid());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new Block(ByteBuffer.allocate(3)));
+    }
+
+    @Test
+    public void testIterate() {
+        Options options = new Options();
+        options.blockSize = 256;
+        TreeMap<String, String> model = model(3000);
+        Path path = build(options, model);
+        for (boolean mmap : new boolean[]{true, false}) {
+            Table table = Table.open(options, open(options, path, mmap), fileSize(path));
+            KeyValueIterator iter = table.newIterator(new ReadOptions(), null);
+            List<String> forward = new ArrayList<>();
+            String last = null;
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                String key = userKey(iter.key());
+                forward.add(key);
+                Assertions.assertEquals(model.get(key) == null ? "" : model.get(key), string(iter.value()));
+                if (last != null) {
+                    Assertions.assertTrue(last.compareTo(key) < 0);
+                }
+                last = key;
+            }
+            Assertions.assertEquals(new ArrayList<>(model.keySet()), forward);
+            List<String> backward = new ArrayList<>();
+            for (iter.seekToLast(); iter.valid(); iter.prev()) {
+                backward.add(0, userKey(iter.key()));
+            }
+            Assertions.assertEquals(forward, backward);
+
+            Random rnd = new Random(301);
+            for (int i = 0; i < 1000; i++) {
+                String target = String.format("k%06d", rnd.nextInt(9100));
+                iter.seek(seekKey(target));
+                String expected = model.ceilingKey(target);
+                if (expected == null) {
+                    Assertions.assertFalse(iter.valid());
+                    continue;
+                }
+                Assertions.assertEquals(expected, userKey(iter.key()));
+                iter.prev();
+                String before = model.lowerKey(expected);
+                if (before == null) {
+                    Assertions.assertFalse(iter.valid());
+                } else {
+                    Assertions.assertEquals(before, userKey(iter.key()));
+                }
+            }
+            iter.close();
+            Assertions.assertTrue(table.close().isOk());
+        }
+    }
+
+    private static long fileSize(Path path) {
+        try {
+            return Files.size(path);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    @Test
+    public void testGet() {
+        Options options = new Options();
+        options.blockSize = 256;
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        TreeMap<String, String> model = model(3000);
+        Path path = build(options, model);
+        for (boolean mmap : new boolean[]{true, false}) {
+            CountingFile file = open(options, path, mmap);
+            Table table = Table.open(options, file, fileSize(path));
+            ReadOptions readOptions = new ReadOptions();
+            readOptions.setVerifyChecksums(true);
+            LookupKey lkey = new LookupKey();
+            LookupResult result = new LookupResult();
+            for (Map.Entry<String, String> e : model.entrySet()) {
+                result.reset();
+                Assertions.assertTrue(table.get(readOptions, lkey.set(bytes(e.getKey()), 1L << 40), result));
+                if (e.getValue() == null) {
+                    Assertions.assertEquals(LookupResult.State.kDeleted, result.state());
+                } else {
+                    Assertions.assertEquals(LookupResult.State.kFound, result.state());
+                    Assertions.assertEquals(e.getValue(), string(result.value()));
+                }
+            }
+            // Entries newer than the lookup's snapshot are skipped
+            result.reset();
+            table.get(readOptions, lkey.set(bytes(model.lastKey()), 1), result);
+            Assertions.assertFalse(result.isDone());
+
+            // Missing keys are answered by the filter almost always
+            file.reads.set(0);
+            for (int i = 0; i < 3000; i++) {
+                result.reset();
+                String key = String.format("k%06d", i * 3 + 1);
+                Assertions.assertFalse(table.get(readOptions, lkey.set(bytes(key), 1L << 40), result));
+                Assertions.assertFalse(result.isDone());
+            }
+            Assertions.assertTrue(file.reads.get() < 3000 / 20, file.reads.get() + " reads");
+
+            // The same answers in one batch, each block read once
+            LookupKey[] keys = new LookupKey[model.size()];
+            LookupResult[] results = new LookupResult[model.size()];
+            int[] batch = new int[model.size()];
+            int i = 0;
+            for (String key : model.keySet()) {
+                keys[i] = new LookupKey().set(bytes(key), 1L << 40);
+                results[i] = new LookupResult();
+                batch[i] = i;
+                i++;
+            }
+            file.reads.set(0);
+            table.multiGet(readOptions, keys, results, batch, keys.length);
+            i = 0;
+            for (String value : model.values()) {
+                Assertions.assertEquals(value == null ? LookupResult.State.kDeleted : LookupResult.State.kFound,
+                        results[i].state());
+                if (value != null) {
+                    Assertions.assertEquals(value, string(results[i].value()));
+                }
+                i++;
+            }
+            int batchReads = file.reads.getAndSet(0);
+            ReadOptions noReadahead = new ReadOptions();
+            noReadahead.setReadaheadSize(0);
+            KeyValueIterator scan = table.newIterator(noReadahead, null);
+            for (scan.seekToFirst(); scan.valid(); scan.next()) {
+                // One read per block
+            }
+            Assertions.assertEquals(file.reads.get(), batchReads);
+            // Values stay readable after the table is closed
+            Assertions.assertTrue(table.close().isOk());
+            Assertions.assertEquals("v0", string(results[0].value()));
+        }
+    }
+
+    @Test
+    public void testReadahead() {
+        Options options = new Options();
+        options.blockSize = 1024;
+        TreeMap<String, String> model = model(20000);
+        Path path = build(options, model);
+        long size = fileSize(path);
+        ReadOptions readOptions = new ReadOptions();
+        readOptions.setReadaheadSize(64 << 10);
+        for (boolean mmap : new boolean[]{true, false}) {
+            CountingFile file = open(options, path, mmap);
+            Table table = Table.open(options, file, size);
+            file.reads.set(0);
+            KeyValueIterator iter = table.newIterator(readOptions, null);
+            int n = 0;
+            for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                n++;
+            }
+            Assertions.assertEquals(model.size(), n);
+            if (mmap) {
+                // Views of the mapping, one per block
+                Assertions.assertTrue(file.reads.get() > size / 2048);
+            } else {
+                Assertions.assertTrue(file.reads.get() < size / (64 << 10) + 4, file.reads.get() + " reads");
+            }
+            // Point lookups and backward scans do not read ahead
+            file.reads.set(0);
+            for (iter.seekToLast(); iter.valid(); iter.prev()) {
+                n--;
+            }
+            Assertions.assertEquals(0, n);
+            Assertions.assertTrue(file.reads.get() > size / 2048);
+            table.close();
+        }
+    }
+
+    @Test
+    public void testBlockCache() {
+        Options options = new Options();
+        options.blockSize = 256;
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        options.blockCache = new LRUCache<>(1 << 20, 0, 0.5);
+        TreeMap<String, String> model = model(3000);
+        Path path = build(options, model);
+        long size = fileSize(path);
+        ReadOptions readOptions = new ReadOptions();
+        readOptions.setVerifyChecksums(true);
+        LookupKey lkey = new LookupKey();
+        LookupResult result = new LookupResult();
+
+        // Mapped tables do not use the cache
+        Table mapped = Table.open(options, open(options, path, true), size);
+        mapped.get(readOptions, lkey.set(bytes(model.firstKey()), 1L << 40), result);
+        mapped.close();
+        Assertions.assertEquals(0, options.blockCache.totalCharge());
+
+        CountingFile file = open(options, path, false);
+        Table table = Table.open(options, file, size);
+        for (int pass = 0; pass < 2; pass++) {
+            file.reads.set(0);
+            for (Map.Entry<String, String> e : model.entrySet()) {
+                result.reset();
+                Assertions.assertTrue(table.get(readOptions, lkey.set(bytes(e.getKey()), 1L << 40), result));
+                if (e.getValue() != null) {
+                    Assertions.assertEquals(e.getValue(), string(result.value()));
+                }
+            }
+            if (pass == 1) {
+                // Every block is cached by the first pass
+                Assertions.assertEquals(0, file.reads.get());
+            }
+        }
+        Assertions.assertTrue(options.blockCache.hits() >= model.size());
+        Assertions.assertTrue(options.blockCache.totalCharge() > size / 2);
+
+        // Blocks read with fillCache off are not added
+        Cache<ByteBuffer> before = options.blockCache;
+        options.blockCache = new LRUCache<>(1 << 20, 0, 0.5);
+        Table uncached = Table.open(options, open(options, path, false), size);
+        ReadOptions noFill = new ReadOptions();
+        noFill.setFillCache(false);
+        KeyValueIterator iter = uncached.newIterator(noFill, null);
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+        }
+        iter.close();
+        Assertions.assertEquals(0, options.blockCache.totalCharge());
+        uncached.close();
+        options.blockCache = before;
+        table.close();
+
+        // A cache too small for one block still serves pinned blocks
+        options.blockCache = new LRUCache<>(1, 0, 0.5);
+        table = Table.open(options, open(options, path, false), size);
+        iter = table.newIterator(new ReadOptions(), null);
+        iter.seekToFirst();
+        String first = userKey(iter.key());
+        long pinned = options.blockCache.totalCharge();
+        Assertions.assertTrue(pinned > 1);
+        result.reset();
+        table.get(readOptions, lkey.set(bytes(model.lastKey()), 1L << 40), result);
+        Assertions.assertEquals(pinned, options.blockCache.totalCharge());
+        Assertions.assertEquals(model.firstKey(), first);
+        Assertions.assertEquals(model.firstKey(), userKey(iter.key()));
+        int n = 0;
+        for (; iter.valid(); iter.next()) {
+            n++;
+        }
+        Assertions.assertEquals(model.size(), n);
+        iter.close();
+        Assertions.assertEquals(0, options.blockCache.totalCharge());
+        table.close();
+    }
+
+    @Test
+    public void testOffHeapBlockCache() {
+        Options options = new Options();
+        options.blockSize = 256;
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        options.cacheIndexAndFilterBlocks = true;
+        TreeMap<String, String> model = model(3000);
+        Path path = build(options, model);
+        long size = fileSize(path);
+        options.blockCache = new ClockCache(1 << 20, 0, 64 << 10);
+
+        CountingFile file = open(options, path, false);
+        Table table = Table.open(options, file, size);
+        LookupKey lkey = new LookupKey();
+        List<LookupResult> results = new ArrayList<>();
+        for (int pass = 0; pass < 2; pass++) {
+            file.reads.set(0);
+            for (String key : model.keySet()) {
+                LookupResult result = new LookupResult();
+                Assertions.assertTrue(table.get(new ReadOptions(), lkey.set(bytes(key), 1L << 40), result));
+                results.add(result);
+            }
+        }
+        Assertions.assertEquals(0, file.reads.get());
+        KeyValueIterator iter = table.newIterator(new ReadOptions(), null);
+        int n = 0;
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+            Assertions.assertEquals(model.get(userKey(iter.key())), iter.value().remaining() == 0
+                    ? null : string(iter.value()));
+            n++;
+        }
+        iter.close();
+        Assertions.assertEquals(model.size(), n);
+        Assertions.assertEquals(0, file.reads.get());
+        table.close();
+
+        // Values handed out are copies, they outlive the cache's chunks
+        options.blockCache.prune();
+        Assertions.assertEquals(0, options.blockCache.totalCharge());
+        Table other = Table.open(options, open(options, build(options, model(3000)), false), size);
+        iter = other.newIterator(new ReadOptions(), null);
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+        }
+        iter.close();
+        other.close();
+        int i = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (String value : model.values()) {
+                LookupResult result = results.get(i++);
+                Assertions.assertFalse(result.value() != null && result.value().isDirect());
+                if (value != null) {
+                    Assertions.assertEquals(value, string(result.value()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCacheIndexAndFilterBlocks() {
+        Options options = new Options();
+        options.blockSize = 256;
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        options.cacheIndexAndFilterBlocks = true;
+        TreeMap<String, String> model = model(3000);
+        Path path = build(options, model);
+        long size = fileSize(path);
+        // Room for a fraction of the data blocks next to the index and filter
+        options.blockCache = new LRUCache<>(size / 2, 0, 0.5);
+
+        CountingFile file = open(options, path, false);
+        Table table = Table.open(options, file, size, 1);
+        long metaCharge = options.blockCache.totalCharge();
+        Assertions.assertTrue(metaCharge > 0);
+        // A second open finds them in the cache, it reads the footer and the
+        // metaindex only
+        file.reads.set(0);
+        Table.open(options, file, size, 1);
+        Assertions.assertEquals(2, file.reads.get());
+
+        // A scan many times the cache's data share leaves them cached
+        KeyValueIterator iter = table.newIterator(new ReadOptions(), null);
+        int n = 0;
+        for (iter.seekToFirst(); iter.valid(); iter.next()) {
+            n++;
+        }
+        iter.close();
+        Assertions.assertEquals(model.size(), n);
+        for (int pass = 0; pass < 2; pass++) {
+            iter = table.newIterator(new ReadOptions(), null);
+            for (iter.seekToLast(); iter.valid(); iter.prev()) {
+                n--;
+            }
+            iter.close();
+        }
+        Assertions.assertTrue(options.blockCache.evictions() > 0);
+        file.reads.set(0);
+        LookupKey lkey = new LookupKey();
+        LookupResult result = new LookupResult();
+        for (int i = 0; i < 3000; i++) {
+            result.reset();
+            String key = String.format("k%06d", i * 3 + 1);
+            Assertions.assertFalse(table.get(new ReadOptions(), lkey.set(bytes(key), 1L << 40), result));
+        }
+        Assertions.assertTrue(file.reads.get() < 3000 / 20, file.reads.get() + " reads");
+        table.close();
+    }
+
+    @Test
+    public void testCorruption() throws Exception {
+        Options options = new Options();
+        options.blockSize = 256;
+        TreeMap<String, String> model = model(1000);
+        Path path = build(options, model);
+        long size = fileSize(path);
+        // Flip a byte in the first data block
+        byte[] contents = Files.readAllBytes(path);
+        contents[10] ^= 0x10;
+        Files.write(path, contents, StandardOpenOption.TRUNCATE_EXISTING);
+        for (boolean mmap : new boolean[]{true, false}) {
+            Table table = Table.open(options, open(options, path, mmap), size);
+            ReadOptions verify = new ReadOptions();
+            verify.setVerifyChecksums(true);
+            KeyValueIterator iter = table.newIterator(verify, null);
+            IllegalArgumentException e = Assertions.assertThrows(IllegalArgumentException.class, iter::seekToFirst);
+            Assertions.assertEquals("block checksum mismatch", e.getMessage());
+            // The second block is fine
+            iter.seekToLast();
+            Assertions.assertTrue(iter.valid());
+            table.close();
+        }
+        // Not a table at all
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> Table.open(options, open(options, path, true), size - 1));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> Table.open(options, open(options, path, false), 10));
+    }
+
+    @Test
+    public void testReadBenchmark() {
+        Options options = new Options();
+        options.filterPolicy = new BloomFilterBasePolicy(10);
+        TreeMap<String, String> model = new TreeMap<>();
+        String value = "x".repeat(100);
+        for (int i = 0; i < 400000; i++) {
+            model.put(String.format("key%012d", i), value);
+        }
+        Path path = build(options, model);
+        long size = fileSize(path);
+        ReadOptions readOptions = new ReadOptions();
+        List<String> keys = new ArrayList<>(model.keySet());
+        for (int round = 0; round < 3; round++) {
+            for (String mode : new String[]{"mmap", "pread", "cached pread"}) {
+                boolean mmap = mode.equals("mmap");
+                options.blockCache = mode.equals("cached pread") ? new LRUCache<>(size) : null;
+                Table table = Table.open(options, open(options, path, mmap), size);
+                Random rnd = new Random(301);
+                LookupKey lkey = new LookupKey();
+                LookupResult result = new LookupResult();
+                int gets = 200000;
+                long start = System.nanoTime();
+                for (int i = 0; i < gets; i++) {
+                    result.reset();
+                    table.get(readOptions, lkey.set(bytes(keys.get(rnd.nextInt(keys.size()))), 1L << 40), result);
+                    Assertions.assertEquals(LookupResult.State.kFound, result.state());
+                }
+                long getNanos = System.nanoTime() - start;
+                start = System.nanoTime();
+                KeyValueIterator iter = table.newIterator(readOptions, null);
+                long bytes = 0;
+                for (iter.seekToFirst(); iter.valid(); iter.next()) {
+                    bytes += iter.key().remaining() + iter.value().remaining();
+                }
+                long scanNanos = System.nanoTime() - start;
+                Assertions.assertTrue(bytes > 0);
+                System.err.printf("%s reads of a %.1f MB table: get %.2f us, scan %.0f ns/entry%n",
+                        mode, size / 1048576.0, getNanos / 1e3 / gets,
+                        (double) scanNanos / model.size());
+                table.close();
+            }
+        }
+    }
+}
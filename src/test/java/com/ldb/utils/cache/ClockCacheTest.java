@@ -0,0 +1,409 @@
+package com.ldb.utils.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class ClockCacheTest {
+    private static final int kPageSize = 4096;
+
+    private static ByteBuffer key(int k) {
+        ByteBuffer key = ByteBuffer.allocate(Integer.BYTES);
+        key.putInt(0, k);
+        return key;
+    }
+
+    // "size" bytes, the first four of them v
+    private static ByteBuffer value(int v, int size) {
+        ByteBuffer value = ByteBuffer.allocate(size);
+        value.putInt(0, v);
+        return value;
+    }
+
+    private static int lookup(Cache<ByteBuffer> cache, int k) {
+        Cache.Handle handle = cache.lookup(key(k));
+        if (handle == null) {
+            return -1;
+        }
+        ByteBuffer value = cache.value(handle);
+        int r = value.getInt(value.position());
+        cache.release(handle);
+        return r;
+    }
+
+    private static void insert(Cache<ByteBuffer> cache, int k, int v, int size, Cache.Priority priority) {
+        cache.release(cache.insert(key(k), value(v, size), size, priority));
+    }
+
+    // 16 pages in one shard
+    private final ClockCache cache = new ClockCache(16 * kPageSize, 0, kPageSize);
+
+    @Test
+    public void testHitAndMiss() {
+        Assertions.assertEquals(-1, lookup(cache, 100));
+
+        insert(cache, 100, 101, 100, Cache.Priority.LOW);
+        Assertions.assertEquals(101, lookup(cache, 100));
+        Assertions.assertEquals(-1, lookup(cache, 200));
+
+        insert(cache, 200, 201, 100, Cache.Priority.LOW);
+        Assertions.assertEquals(101, lookup(cache, 100));
+        Assertions.assertEquals(201, lookup(cache, 200));
+
+        insert(cache, 100, 102, 300, Cache.Priority.LOW);
+        Assertions.assertEquals(102, lookup(cache, 100));
+        Assertions.assertEquals(201, lookup(cache, 200));
+        Assertions.assertEquals(-1, lookup(cache, 300));
+
+        Assertions.assertEquals(5, cache.hits());
+        Assertions.assertEquals(3, cache.misses());
+        Assertions.assertFalse(cache.valuesOutliveRelease());
+    }
+
+    @Test
+    public void testValues() {
+        ByteBuffer value = ByteBuffer.allocate(1000);
+        new Random(301).nextBytes(value.array());
+        Cache.Handle inserted = cache.insert(key(1), value.duplicate().position(10), 990, Cache.Priority.LOW);
+        Cache.Handle found = cache.lookup(key(1));
+        for (Cache.Handle handle : new Cache.Handle[]{inserted, found}) {
+            ByteBuffer v = cache.value(handle);
+            Assertions.assertTrue(v.isDirect());
+            Assertions.assertTrue(v.isReadOnly());
+            Assertions.assertEquals(value.duplicate().position(10), v);
+            cache.release(handle);
+        }
+        // Entries are charged their chunk, header included
+        Assertions.assertTrue(cache.totalCharge() >= 1000 + 4);
+        Assertions.assertTrue(cache.totalCharge() <= (1000 + 20) * 5 / 4 + 8);
+    }
+
+    @Test
+    public void testErase() {
+        cache.erase(key(200));
+
+        insert(cache, 100, 101, 100, Cache.Priority.LOW);
+        insert(cache, 200, 201, 100, Cache.Priority.LOW);
+        cache.erase(key(100));
+        Assertions.assertEquals(-1, lookup(cache, 100));
+        Assertions.assertEquals(201, lookup(cache, 200));
+
+        cache.erase(key(100));
+        Assertions.assertEquals(-1, lookup(cache, 100));
+        cache.erase(key(200));
+        Assertions.assertEquals(0, cache.totalCharge());
+    }
+
+    @Test
+    public void testEntriesArePinned() {
+        Cache.Handle h1 = cache.insert(key(100), value(101, 100), 100, Cache.Priority.LOW);
+        insert(cache, 100, 102, 100, Cache.Priority.LOW);
+        Cache.Handle h2 = cache.lookup(key(100));
+        Assertions.assertEquals(102, cache.value(h2).getInt(0));
+        // The replaced entry stays readable while pinned
+        Assertions.assertEquals(101, cache.value(h1).getInt(0));
+        long charge = cache.totalCharge();
+        cache.release(h1);
+        Assertions.assertTrue(cache.totalCharge() < charge);
+
+        cache.erase(key(100));
+        Assertions.assertEquals(-1, lookup(cache, 100));
+        Assertions.assertEquals(102, cache.value(h2).getInt(0));
+        // Its chunk is not reused while pinned
+        for (int i = 0; i < 1000; i++) {
+            insert(cache, 1000 + i, 2000 + i, 100, Cache.Priority.LOW);
+        }
+        Assertions.assertEquals(102, cache.value(h2).getInt(0));
+        cache.release(h2);
+    }
+
+    @Test
+    public void testEviction() {
+        // Far more entries of one size than fit
+        for (int i = 0; i < 5000; i++) {
+            insert(cache, i, i, 200, Cache.Priority.LOW);
+            Assertions.assertEquals(i, lookup(cache, i));
+        }
+        Assertions.assertTrue(cache.totalCharge() <= 16 * kPageSize);
+        Assertions.assertTrue(cache.totalCharge() > 12 * kPageSize);
+        Assertions.assertTrue(cache.evictions() > 4000);
+        int cached = 0;
+        for (int i = 0; i < 5000; i++) {
+            int r = lookup(cache, i);
+            if (r >= 0) {
+                Assertions.assertEquals(i, r);
+                cached++;
+            }
+        }
+        Assertions.assertTrue(cached > 200, cached + " cached");
+        // The most recent ones among them
+        Assertions.assertEquals(4999, lookup(cache, 4999));
+    }
+
+    @Test
+    public void testFrequentlyUsedEntriesStay() {
+        insert(cache, 100, 101, 200, Cache.Priority.LOW);
+        insert(cache, 200, 201, 200, Cache.Priority.LOW);
+        for (int i = 0; i < 5000; i++) {
+            insert(cache, 1000 + i, 2000 + i, 200, Cache.Priority.LOW);
+            Assertions.assertEquals(101, lookup(cache, 100));
+        }
+        Assertions.assertEquals(101, lookup(cache, 100));
+        Assertions.assertEquals(-1, lookup(cache, 200));
+    }
+
+    @Test
+    public void testHighPriorityEntriesSurviveScans() {
+        for (int i = 0; i < 40; i++) {
+            insert(cache, i, i, 200, Cache.Priority.HIGH);
+        }
+        // A scan of low priority entries many times the capacity
+        for (int i = 1000; i < 3000; i++) {
+            insert(cache, i, i, 200, Cache.Priority.LOW);
+        }
+        for (int i = 0; i < 40; i++) {
+            Assertions.assertEquals(i, lookup(cache, i));
+        }
+    }
+
+    @Test
+    public void testUseExceedsCacheSize() {
+        // Pin every chunk there is, further entries are handed back uncached
+        List<Cache.Handle> h = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            h.add(cache.insert(key(i), value(i, 200), 200, Cache.Priority.LOW));
+        }
+        for (int i = 0; i < h.size(); i++) {
+            Assertions.assertEquals(i, cache.value(h.get(i)).getInt(0));
+        }
+        Assertions.assertFalse(cache.value(h.get(399)).isDirect());
+        Assertions.assertTrue(cache.totalCharge() <= 16 * kPageSize);
+        for (Cache.Handle handle : h) {
+            cache.release(handle);
+        }
+        insert(cache, 1000, 1000, 200, Cache.Priority.LOW);
+        Assertions.assertEquals(1000, lookup(cache, 1000));
+    }
+
+    @Test
+    public void testLargeEntries() {
+        // Larger than a page, not cached
+        Cache.Handle handle = cache.insert(key(1), value(1, kPageSize), kPageSize, Cache.Priority.LOW);
+        Assertions.assertEquals(1, cache.value(handle).getInt(0));
+        cache.release(handle);
+        Assertions.assertEquals(-1, lookup(cache, 1));
+
+        // Small entries take every page, then large ones take pages back
+        for (int i = 0; i < 2000; i++) {
+            insert(cache, i, i, 100, Cache.Priority.LOW);
+        }
+        for (int i = 0; i < 8; i++) {
+            insert(cache, 10000 + i, i, 3000, Cache.Priority.LOW);
+            Assertions.assertEquals(i, lookup(cache, 10000 + i));
+        }
+        Assertions.assertTrue(cache.totalCharge() <= 16 * kPageSize);
+        Assertions.assertEquals(1999, lookup(cache, 1999));
+    }
+
+    @Test
+    public void testPrune() {
+        insert(cache, 1, 100, 100, Cache.Priority.LOW);
+        insert(cache, 2, 200, 100, Cache.Priority.LOW);
+
+        Cache.Handle handle = cache.lookup(key(1));
+        Assertions.assertNotNull(handle);
+        cache.prune();
+        cache.release(handle);
+
+        Assertions.assertEquals(100, lookup(cache, 1));
+        Assertions.assertEquals(-1, lookup(cache, 2));
+    }
+
+    @Test
+    public void testZeroSizeCache() {
+        ClockCache zero = new ClockCache(0);
+        insert(zero, 1, 100, 100, Cache.Priority.LOW);
+        Assertions.assertEquals(-1, lookup(zero, 1));
+        Assertions.assertEquals(0, zero.totalCharge());
+    }
+
+    @Test
+    public void testSizeClasses() {
+        int[] sizes = ClockCache.sizeClasses(1 << 20);
+        Assertions.assertEquals(64, sizes[0]);
+        Assertions.assertEquals(1 << 20, sizes[sizes.length - 1]);
+        for (int i = 1; i < sizes.length; i++) {
+            Assertions.assertEquals(0, sizes[i] % 8);
+            Assertions.assertTrue(sizes[i] <= sizes[i - 1] * 5 / 4 + 8);
+        }
+        Assertions.assertEquals(0, ClockCache.defaultShardBits(1 << 20, 1 << 20));
+        Assertions.assertEquals(6, ClockCache.defaultShardBits(30L << 30, 1 << 20));
+    }
+
+    @Test
+    public void testConcurrentReadersAndWriters() throws Exception {
+        ClockCache shared = new ClockCache(64 * kPageSize, 2, kPageSize);
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            futures.add(executor.submit(() -> {
+                Random rnd = new Random(seed);
+                for (int i = 0; i < 50_000; i++) {
+                    int k = rnd.nextInt(4096);
+                    Cache.Handle handle = shared.lookup(key(k));
+                    if (handle == null) {
+                        handle = shared.insert(key(k), value(k, 64 + k % 512), 0, Cache.Priority.LOW);
+                    } else if (rnd.nextInt(100) == 0) {
+                        shared.erase(key(k));
+                    }
+                    ByteBuffer value = shared.value(handle);
+                    Assertions.assertEquals(64 + k % 512, value.remaining());
+                    Assertions.assertEquals(k, value.getInt(0));
+                    Thread.yield();
+                    Assertions.assertEquals(k, value.getInt(0));
+                    shared.release(handle);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assertions.assertTrue(shared.totalCharge() <= 64 * kPageSize);
+        Assertions.assertEquals(threads * 50_000L, shared.hits() + shared.misses());
+        shared.prune();
+        Assertions.assertEquals(0, shared.totalCharge());
+    }
+
+    // Pages keep moving between a small and a large size class while lookups
+    // run, a lookup must never write into a page laid out for another class
+    @Test
+    public void testLookupsDuringPageSteals() throws Exception {
+        ClockCache shared = new ClockCache(32 * kPageSize, 0, kPageSize);
+        int readers = 4;
+        int keys = 1 << 12;
+        // Small entries in even rounds, large ones in odd rounds
+        int[] sizes = {48, 1800};
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(readers + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> {
+            try {
+                for (int round = 0; round < 200; round++) {
+                    for (int i = 0; i < 256; i++) {
+                        int k = (round * 256 + i) % keys;
+                        shared.erase(key(k));
+                        insert(shared, k, k, sizes[round % 2], Cache.Priority.LOW);
+                    }
+                }
+            } finally {
+                done.set(true);
+            }
+            return null;
+        }));
+        for (int t = 0; t < readers; t++) {
+            int seed = t;
+            futures.add(executor.submit(() -> {
+                Random rnd = new Random(seed);
+                while (!done.get()) {
+                    int k = rnd.nextInt(keys);
+                    Cache.Handle handle = shared.lookup(key(k));
+                    if (handle == null) {
+                        continue;
+                    }
+                    ByteBuffer value = shared.value(handle);
+                    Assertions.assertEquals(k, value.getInt(value.position()));
+                    for (int i = value.position() + Integer.BYTES; i < value.limit(); i++) {
+                        Assertions.assertEquals(0, value.get(i), "key " + k);
+                    }
+                    shared.release(handle);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assertions.assertTrue(shared.evictions() > 0);
+    }
+
+    // Hit latency, and what a full collection costs with the cache filled,
+    // for blocks on and off the heap
+    @Test
+    public void testBenchmark() throws Exception {
+        long capacity = 256L << 20;
+        int blockSize = 4096;
+        int blocks = (int) (capacity / (blockSize + 256));
+        for (int round = 0; round < 2; round++) {
+            for (boolean offHeap : new boolean[]{false, true}) {
+                Cache<ByteBuffer> blockCache = offHeap ? new ClockCache(capacity) : new LRUCache<>(capacity);
+                ByteBuffer block = ByteBuffer.allocate(blockSize);
+                for (int k = 0; k < blocks; k++) {
+                    ByteBuffer contents = offHeap ? block.duplicate() : ByteBuffer.allocate(blockSize);
+                    blockCache.release(blockCache.insert(key(k), contents, blockSize, Cache.Priority.LOW));
+                }
+                long gcCount = gcCount();
+                long gcMillis = gcMillis();
+                Random rnd = new Random(301);
+                ByteBuffer key = ByteBuffer.allocate(Integer.BYTES);
+                int lookups = 2_000_000;
+                int found = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < lookups; i++) {
+                    key.putInt(0, rnd.nextInt(blocks));
+                    Cache.Handle handle = blockCache.lookup(key);
+                    if (handle != null) {
+                        found += blockCache.value(handle).remaining() > 0 ? 1 : 0;
+                        blockCache.release(handle);
+                    }
+                }
+                long lookupNanos = System.nanoTime() - start;
+                Assertions.assertTrue(found > lookups / 2, found + " found");
+                long collections = gcCount() - gcCount;
+                long collectionMillis = gcMillis() - gcMillis;
+                start = System.nanoTime();
+                System.gc();
+                long fullGcNanos = System.nanoTime() - start;
+                System.err.printf("%s cache of %d MB: hit %.0f ns, %d collections (%d ms) during lookups, "
+                                + "full gc %.0f ms, heap used %d MB%n", offHeap ? "off-heap" : "on-heap",
+                        capacity >> 20, (double) lookupNanos / lookups, collections, collectionMillis,
+                        fullGcNanos / 1e6, heapUsed() >> 20);
+                blockCache.prune();
+            }
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
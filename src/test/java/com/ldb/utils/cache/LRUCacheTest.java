@@ -0,0 +1,368 @@
+package com.ldb.utils.cache;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class LRUCacheTest {
+    private static final int kCacheSize = 1000;
+
+    private static ByteBuffer key(int k) {
+        ByteBuffer key = ByteBuffer.allocate(Integer.BYTES);
+        key.putInt(0, k);
+        return key;
+    }
+
+    // A single shard so that eviction order is exact
+    private final LRUCache<Integer> cache = new LRUCache<>(kCacheSize, 0, 0);
+
+    private int lookup(int k) {
+        Cache.Handle handle = cache.lookup(key(k));
+        if (handle == null) {
+            return -1;
+        }
+        int r = cache.value(handle);
+        cache.release(handle);
+        return r;
+    }
+
+    private void insert(Cache<Integer> cache, int k, int v, int charge, Cache.Priority priority) {
+        cache.release(cache.insert(key(k), v, charge, priority));
+    }
+
+    private void insert(int k, int v) {
+        insert(cache, k, v, 1, Cache.Priority.LOW);
+    }
+
+    @Test
+    public void testHitAndMiss() {
+        Assertions.assertEquals(-1, lookup(100));
+
+        insert(100, 101);
+        Assertions.assertEquals(101, lookup(100));
+        Assertions.assertEquals(-1, lookup(200));
+        Assertions.assertEquals(-1, lookup(300));
+
+        insert(200, 201);
+        Assertions.assertEquals(101, lookup(100));
+        Assertions.assertEquals(201, lookup(200));
+        Assertions.assertEquals(-1, lookup(300));
+
+        insert(100, 102);
+        Assertions.assertEquals(102, lookup(100));
+        Assertions.assertEquals(201, lookup(200));
+        Assertions.assertEquals(-1, lookup(300));
+
+        Assertions.assertEquals(5, cache.hits());
+        Assertions.assertEquals(5, cache.misses());
+        Assertions.assertEquals(0, cache.evictions());
+    }
+
+    @Test
+    public void testErase() {
+        cache.erase(key(200));
+
+        insert(100, 101);
+        insert(200, 201);
+        cache.erase(key(100));
+        Assertions.assertEquals(-1, lookup(100));
+        Assertions.assertEquals(201, lookup(200));
+        Assertions.assertEquals(1, cache.totalCharge());
+
+        cache.erase(key(100));
+        Assertions.assertEquals(-1, lookup(100));
+        Assertions.assertEquals(201, lookup(200));
+    }
+
+    @Test
+    public void testEntriesArePinned() {
+        Cache.Handle h1 = cache.insert(key(100), 101, 1, Cache.Priority.LOW);
+        Assertions.assertEquals(101, cache.value(h1));
+
+        insert(100, 102);
+        Cache.Handle h2 = cache.lookup(key(100));
+        Assertions.assertEquals(102, cache.value(h2));
+        // The replaced entry stays readable while pinned
+        Assertions.assertEquals(101, cache.value(h1));
+
+        cache.release(h1);
+        cache.erase(key(100));
+        Assertions.assertEquals(-1, lookup(100));
+        Assertions.assertEquals(102, cache.value(h2));
+        Assertions.assertEquals(0, cache.totalCharge());
+        cache.release(h2);
+    }
+
+    @Test
+    public void testEvictionPolicy() {
+        insert(100, 101);
+        insert(200, 201);
+        insert(300, 301);
+        Cache.Handle h = cache.lookup(key(300));
+
+        // Frequently used entry must be kept around,
+        // as must things that are still in use.
+        for (int i = 0; i < kCacheSize + 100; i++) {
+            insert(1000 + i, 2000 + i);
+            Assertions.assertEquals(2000 + i, lookup(1000 + i));
+            Assertions.assertEquals(101, lookup(100));
+        }
+        Assertions.assertEquals(101, lookup(100));
+        Assertions.assertEquals(-1, lookup(200));
+        Assertions.assertEquals(301, lookup(300));
+        cache.release(h);
+        Assertions.assertTrue(cache.evictions() > 100);
+    }
+
+    @Test
+    public void testUseExceedsCacheSize() {
+        // Overfill the cache, keeping handles on all inserted entries.
+        List<Cache.Handle> h = new ArrayList<>();
+        for (int i = 0; i < kCacheSize + 100; i++) {
+            h.add(cache.insert(key(1000 + i), 2000 + i, 1, Cache.Priority.LOW));
+        }
+
+        // Check that all the entries can be found in the cache.
+        for (int i = 0; i < h.size(); i++) {
+            Assertions.assertEquals(2000 + i, lookup(1000 + i));
+        }
+
+        for (Cache.Handle handle : h) {
+            cache.release(handle);
+        }
+        // Unpinned, the cache shrinks back to its capacity
+        Assertions.assertEquals(kCacheSize, cache.totalCharge());
+    }
+
+    @Test
+    public void testHeavyEntries() {
+        // Add a bunch of light and heavy entries and then count the combined
+        // size of items still in the cache, which must be approximately the
+        // same as the total capacity.
+        int kLight = 1;
+        int kHeavy = 10;
+        int added = 0;
+        int index = 0;
+        while (added < 2 * kCacheSize) {
+            int weight = (index & 1) != 0 ? kLight : kHeavy;
+            insert(cache, index, 1000 + index, weight, Cache.Priority.LOW);
+            added += weight;
+            index++;
+        }
+
+        int cachedWeight = 0;
+        for (int i = 0; i < index; i++) {
+            int weight = (i & 1) != 0 ? kLight : kHeavy;
+            int r = lookup(i);
+            if (r >= 0) {
+                cachedWeight += weight;
+                Assertions.assertEquals(1000 + i, r);
+            }
+        }
+        Assertions.assertTrue(cachedWeight <= kCacheSize + kCacheSize / 10);
+        Assertions.assertEquals(cachedWeight, cache.totalCharge());
+    }
+
+    @Test
+    public void testDeleter() {
+        List<Integer> deleted = new ArrayList<>();
+        LRUCache<Integer> owning = new LRUCache<>(2, 0, 0, deleted::add);
+        insert(owning, 1, 101, 1, Cache.Priority.LOW);
+        Cache.Handle h = owning.lookup(key(1));
+        // Replaced and erased while pinned, deleted on release
+        insert(owning, 1, 102, 1, Cache.Priority.LOW);
+        owning.erase(key(1));
+        Assertions.assertEquals(List.of(102), deleted);
+        owning.release(h);
+        Assertions.assertEquals(List.of(102, 101), deleted);
+
+        // Evicted ones
+        insert(owning, 2, 201, 1, Cache.Priority.LOW);
+        insert(owning, 3, 301, 1, Cache.Priority.LOW);
+        insert(owning, 4, 401, 1, Cache.Priority.LOW);
+        Assertions.assertEquals(List.of(102, 101, 201), deleted);
+        owning.prune();
+        Assertions.assertEquals(List.of(102, 101, 201, 301, 401), deleted);
+    }
+
+    @Test
+    public void testNewId() {
+        long a = cache.newId();
+        long b = cache.newId();
+        Assertions.assertNotEquals(a, b);
+    }
+
+    @Test
+    public void testPrune() {
+        insert(1, 100);
+        insert(2, 200);
+
+        Cache.Handle handle = cache.lookup(key(1));
+        Assertions.assertNotNull(handle);
+        cache.prune();
+        cache.release(handle);
+
+        Assertions.assertEquals(100, lookup(1));
+        Assertions.assertEquals(-1, lookup(2));
+    }
+
+    @Test
+    public void testZeroSizeCache() {
+        LRUCache<Integer> zero = new LRUCache<>(0);
+        insert(zero, 1, 100, 1, Cache.Priority.LOW);
+        Assertions.assertNull(zero.lookup(key(1)));
+        Assertions.assertEquals(0, zero.totalCharge());
+    }
+
+    @Test
+    public void testHighPriorityPool() {
+        // Half the capacity is kept for high priority entries
+        LRUCache<Integer> pooled = new LRUCache<>(100, 0, 0.5);
+        for (int i = 0; i < 40; i++) {
+            insert(pooled, i, i, 1, Cache.Priority.HIGH);
+        }
+        // A scan of low priority entries many times the capacity
+        for (int i = 1000; i < 2000; i++) {
+            insert(pooled, i, i, 1, Cache.Priority.LOW);
+        }
+        for (int i = 0; i < 40; i++) {
+            Cache.Handle handle = pooled.lookup(key(i));
+            Assertions.assertNotNull(handle, "key " + i);
+            pooled.release(handle);
+        }
+        Assertions.assertEquals(100, pooled.totalCharge());
+
+        // The pool is bounded, its oldest entries are evicted like low priority ones
+        for (int i = 100; i < 200; i++) {
+            insert(pooled, i, i, 1, Cache.Priority.HIGH);
+        }
+        Assertions.assertNull(pooled.lookup(key(0)));
+        Cache.Handle handle = pooled.lookup(key(199));
+        Assertions.assertNotNull(handle);
+        pooled.release(handle);
+    }
+
+    @Test
+    public void testHitEntriesArePromoted() {
+        LRUCache<Integer> pooled = new LRUCache<>(100, 0, 0.5);
+        for (int i = 0; i < 100; i++) {
+            insert(pooled, i, i, 1, Cache.Priority.LOW);
+        }
+        // Looked up once, the first ten move to the high priority pool
+        for (int i = 0; i < 10; i++) {
+            pooled.release(pooled.lookup(key(i)));
+        }
+        for (int i = 1000; i < 1200; i++) {
+            insert(pooled, i, i, 1, Cache.Priority.LOW);
+        }
+        for (int i = 0; i < 10; i++) {
+            Cache.Handle handle = pooled.lookup(key(i));
+            Assertions.assertNotNull(handle, "key " + i);
+            pooled.release(handle);
+        }
+        Assertions.assertNull(pooled.lookup(key(10)));
+    }
+
+    @Test
+    public void testShards() {
+        Assertions.assertEquals(0, LRUCache.defaultShardBits(256 << 10));
+        Assertions.assertEquals(1, LRUCache.defaultShardBits(1 << 20));
+        Assertions.assertEquals(4, LRUCache.defaultShardBits(8 << 20));
+        Assertions.assertEquals(6, LRUCache.defaultShardBits(1L << 40));
+
+        // Each shard has its share of the capacity, the total stays within it
+        LRUCache<Integer> sharded = new LRUCache<>(1600, 4, 0.5);
+        for (int i = 0; i < 10000; i++) {
+            insert(sharded, i, i, 1, Cache.Priority.LOW);
+        }
+        Assertions.assertTrue(sharded.totalCharge() <= 1600);
+        Assertions.assertTrue(sharded.totalCharge() > 1500, sharded.totalCharge() + " cached");
+        Assertions.assertEquals(10000 - sharded.totalCharge(), sharded.evictions());
+        Assertions.assertEquals(9999, lookupAll(sharded, 9999, 1));
+    }
+
+    private static int lookupAll(Cache<Integer> cache, int k, int n) {
+        int found = -1;
+        for (int i = 0; i < n; i++) {
+            Cache.Handle handle = cache.lookup(key(k));
+            if (handle != null) {
+                found = cache.value(handle);
+                cache.release(handle);
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        LRUCache<Integer> shared = new LRUCache<>(4096, 4, 0.5);
+        int threads = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            futures.add(executor.submit(() -> {
+                Random rnd = new Random(seed);
+                for (int i = 0; i < 100_000; i++) {
+                    int k = rnd.nextInt(8192);
+                    Cache.Handle handle = shared.lookup(key(k));
+                    if (handle == null) {
+                        handle = shared.insert(key(k), k, 1, Cache.Priority.LOW);
+                    }
+                    Assertions.assertEquals(k, shared.value(handle));
+                    shared.release(handle);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assertions.assertTrue(shared.totalCharge() <= 4096);
+        Assertions.assertEquals(threads * 100_000L, shared.hits() + shared.misses());
+    }
+
+    @Test
+    public void testLookupBenchmark() throws Exception {
+        int keys = 100_000;
+        int lookupsPerThread = 100_000;
+        for (int shardBits : new int[]{0, 6, 0, 6}) {
+            // Room for all keys in every shard, each lookup is a hit
+            LRUCache<Integer> shared = new LRUCache<>(2L * keys << shardBits, shardBits, 0.5);
+            for (int k = 0; k < keys; k++) {
+                insert(shared, k, k, 1, Cache.Priority.LOW);
+            }
+            for (int threads : new int[]{1, 64}) {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                List<Future<?>> futures = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    futures.add(executor.submit(() -> {
+                        Random rnd = new Random();
+                        ByteBuffer key = ByteBuffer.allocate(Integer.BYTES);
+                        for (int i = 0; i < lookupsPerThread; i++) {
+                            key.putInt(0, rnd.nextInt(keys));
+                            shared.release(shared.lookup(key));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                long elapsed = System.nanoTime() - start;
+                executor.shutdown();
+                System.err.printf("%d shards, %d readers: %.0f lookups/s%n", 1 << shardBits, threads,
+                        threads * lookupsPerThread * 1e9 / elapsed);
+            }
+        }
+    }
+}